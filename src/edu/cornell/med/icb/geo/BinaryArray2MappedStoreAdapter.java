@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo;
+
+import edu.cornell.med.icb.geo.binaryarray.MappedArrayReader;
+import edu.cornell.med.icb.geo.binaryarray.MappedArrayWriter;
+import edu.mssm.crover.cli.CLI;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+
+/**
+ * An adapter that converts signal data in binary format to a memory-mapped binary array store
+ * with the same basename. Once the store exists, binary array readers use it instead of reading
+ * the array data sequentially, and the store can be used directly as a BDVal input file.
+ * Adapter options are --input basename (default is the platform name) and --transposed to
+ * also store the signal by probe.
+ */
+public class BinaryArray2MappedStoreAdapter implements FormatAdapter {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Logger LOGGER =
+            Logger.getLogger(BinaryArray2MappedStoreAdapter.class);
+
+    private String inputBasename;
+    private boolean transposed;
+
+    public SampleDataCallback getCallback(final GEOPlatformIndexed platform) {
+        return null;
+    }
+
+    public void analyzeSampleData(final GEOPlatformIndexed platform, final SampleDataCallback callback,
+                                  final MutableString sampleIdentifier) {
+
+    }
+
+    public void preSeries(final GEOPlatformIndexed platform) {
+        if (inputBasename == null) {
+            inputBasename = platform.getName().toString();
+        }
+        try {
+            LOGGER.info("Converting binary array " + inputBasename + " to "
+                    + inputBasename + MappedArrayReader.ARRAY_STORE_SUFFIX);
+            MappedArrayWriter.convert(inputBasename, transposed);
+            System.exit(0);
+        } catch (IOException e) {
+            System.err.println("Error converting binary array " + inputBasename);
+            e.printStackTrace();
+            System.exit(10);
+        } catch (ClassNotFoundException e) {
+            System.err.println("Could not initialize an array reader.");
+            e.printStackTrace();
+            System.exit(10);
+        }
+    }
+
+    public void postSeries(final GEOPlatformIndexed platform,
+                           final ObjectList<MutableString> sampleIdSelection) {
+    }
+
+    public void setOptions(final GeoScanOptions options) {
+        if (options.adapterOptions != null) {
+            final String[] opts = options.adapterOptions.split("[\\s]+");
+            this.inputBasename = CLI.getOption(opts, "--input", null);
+            System.out.println("Will read input: " + this.inputBasename);
+            this.transposed = CLI.isKeywordGiven(opts, "--transposed");
+            if (transposed) {
+                System.out.println("Will also store the signal by probe.");
+            }
+        } else {
+            System.out.println("adapter options were null.");
+        }
+    }
+}
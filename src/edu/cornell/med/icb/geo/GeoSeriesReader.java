@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import edu.rit.pj.ParallelRegion;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.bdval.util.ParallelTeams;
+
+import java.io.Reader;
+
+/**
+ * Reads the samples of a GEO series (GSE) soft family file into a table with one column of
+ * probe set identifiers (ID_REF) and one column of signal values per sample. The input is read
+ * in a single pass: the thread that holds the parser copies the data table of the next sample
+ * section, and sample tables are parsed concurrently into float columns allocated for the
+ * probes of the platform. Signal values are parsed from the characters of the sample tables,
+ * without creating strings for each line. The columns of the table follow the order of the
+ * samples in the file.
+ */
+public class GeoSeriesReader {
+    private static final Log LOG = LogFactory.getLog(GeoSeriesReader.class);
+
+    /**
+     * Powers of ten that are exactly represented as floats.
+     */
+    private static final float[] POWERS_OF_TEN = {
+            1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f,
+    };
+
+    /**
+     * Largest integer such that all integers of smaller magnitude are exactly represented
+     * as floats.
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 24;
+
+    /**
+     * Number of threads used to parse sample tables.
+     */
+    private final int numberOfThreads;
+
+    /**
+     * Create a reader that parses sample tables on the given number of threads.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     */
+    public GeoSeriesReader(final int numberOfThreads) {
+        super();
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Read a GEO series soft family file.
+     *
+     * @param reader Where to read the file from.
+     * @return A table with the probe set identifiers and the signal of each sample, or null if
+     * the file has no platform section.
+     */
+    public Table read(final Reader reader) {
+        final GeoSoftFamilyParser parser = new GeoSoftFamilyParser(reader);
+        if (parser.skipToDatabaseSection()) {
+            final MutableString databaseName = parser.getSectionAttribute();
+            System.out.println("Database: " + databaseName);
+        } else {
+            System.out.println("No database section found.");
+        }
+        if (!parser.skipToPlatformSection()) {
+            System.out.println("No platform section found.");
+            return null;
+        }
+        final MutableString platformName = parser.getSectionAttribute();
+        System.out.println("Platform: " + platformName);
+        final GEOPlatformIndexed platform = parser.parsePlatform();
+        platform.setName(platformName);
+        final int numberOfProbes = platform.getNumProbeIds();
+        System.out.println("Platform has " + numberOfProbes + " probes.");
+
+        final ObjectList<MutableString> sampleNames = new ObjectArrayList<MutableString>();
+        final ObjectList<float[]> signals = new ObjectArrayList<float[]>();
+        final int threadCount = numberOfThreads == 0 ? ParallelTeams.getThreadCount(0)
+                : Math.max(1, numberOfThreads);
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Parsing samples on " + threadCount + " threads.");
+        }
+        if (threadCount == 1) {
+            parseSamples(parser, platform, sampleNames, signals);
+        } else {
+            try {
+                ParallelTeams.execute(threadCount, new ParallelRegion() {
+                    @Override
+                    public void run() {
+                        parseSamples(parser, platform, sampleNames, signals);
+                    }
+                });
+            } catch (Exception e) {
+                LOG.error("An error occurred parsing GEO samples", e);
+                throw new IllegalStateException("An error occurred parsing GEO samples", e);
+            }
+        }
+        LOG.info("Read " + sampleNames.size() + " samples on " + threadCount + " threads.");
+
+        final ArrayTable result = new ArrayTable();
+        result.setChunk(numberOfProbes);
+        result.setInitialSize(numberOfProbes);
+        result.addColumn("ID_REF", String.class);
+
+        // append probeset ids:
+        for (int probeIndex = 0; probeIndex < numberOfProbes; probeIndex++) {
+            final String probeId = platform.getProbesetIdentifier(probeIndex).toString();
+            result.appendObject(0, probeId);
+        }
+
+        try {
+            for (int sampleIndex = 0; sampleIndex < sampleNames.size(); sampleIndex++) {
+                final int columnIndex =
+                        result.addColumn(sampleNames.get(sampleIndex).toString(), double.class);
+                // release each column once it has been copied to the table:
+                final float[] signal = signals.set(sampleIndex, null);
+                for (final float value : signal) {
+                    result.appendDoubleValue(columnIndex, value);
+                }
+            }
+        } catch (TypeMismatchException e) {
+            throw new InternalError("Column must be of type double.");
+        }
+        return result;
+    }
+
+    /**
+     * Parse samples until the end of the file. Several threads may parse samples of the same
+     * file: each thread reads the table of the next sample from the parser, then parses it
+     * while other threads read the following samples.
+     */
+    private void parseSamples(final GeoSoftFamilyParser parser, final GEOPlatformIndexed platform,
+                              final ObjectList<MutableString> sampleNames,
+                              final ObjectList<float[]> signals) {
+        final int numberOfProbes = platform.getNumProbeIds();
+        // reused for each sample parsed by this thread:
+        final MutableString sampleTable = new MutableString();
+        final MutableString probeId = new MutableString(32);
+        while (true) {
+            final float[] signal;
+            final boolean hasTable;
+            synchronized (parser) {
+                if (!parser.skipToSampleSection()) {
+                    break;
+                }
+                signal = new float[numberOfProbes];
+                sampleNames.add(parser.getSectionAttribute());
+                signals.add(signal);
+                sampleTable.length(0);
+                hasTable = parser.readSampleTable(sampleTable);
+            }
+            if (hasTable) {
+                parseSampleTable(platform, sampleTable, probeId, signal);
+            }
+        }
+    }
+
+    /**
+     * Parse the signal values of a sample. Columns are separated by a tab or by a run of
+     * spaces. The probe identifier is in the first column, the signal in the VALUE column.
+     * Probes without a signal keep the value zero.
+     *
+     * @param platform    Platform of the sample.
+     * @param sampleTable Column names, then one line per probe.
+     * @param probeId     Used to look up probe identifiers.
+     * @param signal      Where to store the signal of each probe, by probe index.
+     */
+    private static void parseSampleTable(final GEOPlatformIndexed platform,
+                                         final MutableString sampleTable,
+                                         final MutableString probeId, final float[] signal) {
+        final char[] chars = sampleTable.array();
+        final int length = sampleTable.length();
+        int lineEnd = sampleTable.indexOf('\n');
+        final String columnNames = sampleTable.substring(0, lineEnd).toString();
+        final int valueColumnIndex = indexOf(columnNames, "VALUE");
+        if (indexOf(columnNames, "ID_REF") == -1 || valueColumnIndex == -1) {
+            System.out.println("Cannot parse the data for this sample. Columns were non standard: "
+                    + columnNames);
+            return;
+        }
+
+        for (int lineStart = lineEnd + 1; lineStart < length; lineStart = lineEnd + 1) {
+            lineEnd = sampleTable.indexOf('\n', lineStart);
+            int probeIndex = -1;
+            int columnIndex = 0;
+            int tokenStart = lineStart;
+            while (tokenStart <= lineEnd) {
+                int tokenEnd = tokenStart;
+                while (tokenEnd < lineEnd && chars[tokenEnd] != '\t' && chars[tokenEnd] != ' ') {
+                    tokenEnd++;
+                }
+                if (columnIndex == 0) {
+                    probeId.length(0);
+                    probeId.append(chars, tokenStart, tokenEnd - tokenStart);
+                    probeIndex = platform.getProbeIds().getInt(probeId);
+                    if (probeIndex < 0 || probeIndex >= signal.length) {
+                        break;
+                    }
+                }
+                if (columnIndex == valueColumnIndex) {
+                    if (tokenEnd > tokenStart) {
+                        try {
+                            signal[probeIndex] = parseFloat(chars, tokenStart, tokenEnd);
+                        } catch (NumberFormatException e) {
+                            LOG.debug("Cannot parse signal value "
+                                    + new String(chars, tokenStart, tokenEnd - tokenStart));
+                        }
+                    }
+                    break;
+                }
+                // a tab separates two columns, and so does a run of spaces:
+                tokenStart = tokenEnd + 1;
+                if (tokenEnd < lineEnd && chars[tokenEnd] == ' ') {
+                    while (tokenStart < lineEnd && chars[tokenStart] == ' ') {
+                        tokenStart++;
+                    }
+                }
+                columnIndex++;
+            }
+        }
+    }
+
+    /**
+     * Index of a column, given column names separated by spaces or tabs.
+     */
+    private static int indexOf(final String columnNames, final String columnName) {
+        final String[] names = columnNames.split("[ \t]+");
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Parse a float from a range of characters. Decimal numbers with few significant digits,
+     * which are the vast majority of microarray signal values, are converted with a single
+     * exact float multiplication or division, and so are correctly rounded. Other values are
+     * delegated to {@link Float#parseFloat(String)}, so the result is always the one
+     * {@link Float#parseFloat(String)} returns.
+     *
+     * @param chars Characters to parse.
+     * @param start Index of the first character of the number.
+     * @param end   Index after the last character of the number.
+     * @return the value of the number.
+     * @throws NumberFormatException if the characters are not a number.
+     */
+    static float parseFloat(final char[] chars, final int start, final int end) {
+        int position = start;
+        boolean negative = false;
+        if (position < end && (chars[position] == '-' || chars[position] == '+')) {
+            negative = chars[position] == '-';
+            position++;
+        }
+        long mantissa = 0;
+        int exponent = 0;
+        int significantDigits = 0;
+        boolean hasDigits = false;
+        boolean fraction = false;
+        for (; position < end; position++) {
+            final char c = chars[position];
+            if (c >= '0' && c <= '9') {
+                hasDigits = true;
+                if (mantissa != 0 || c != '0') {
+                    significantDigits++;
+                }
+                mantissa = 10 * mantissa + (c - '0');
+                if (fraction) {
+                    exponent--;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (hasDigits && position < end && (chars[position] == 'e' || chars[position] == 'E')) {
+            position++;
+            boolean negativeExponent = false;
+            if (position < end && (chars[position] == '-' || chars[position] == '+')) {
+                negativeExponent = chars[position] == '-';
+                position++;
+            }
+            int explicitExponent = 0;
+            final int exponentStart = position;
+            for (; position < end && chars[position] >= '0' && chars[position] <= '9'
+                    && explicitExponent < 1000; position++) {
+                explicitExponent = 10 * explicitExponent + (chars[position] - '0');
+            }
+            if (position == exponentStart) {
+                hasDigits = false;
+            }
+            exponent += negativeExponent ? -explicitExponent : explicitExponent;
+        }
+        if (hasDigits && position == end && significantDigits <= 18) {
+            while (mantissa != 0 && mantissa % 10 == 0) {
+                mantissa /= 10;
+                exponent++;
+            }
+            if (mantissa == 0) {
+                return negative ? -0f : 0f;
+            }
+            if (mantissa <= MAX_EXACT_MANTISSA
+                    && exponent >= -POWERS_OF_TEN.length + 1 && exponent < POWERS_OF_TEN.length) {
+                final float value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent]
+                        : mantissa / POWERS_OF_TEN[-exponent];
+                return negative ? -value : value;
+            }
+        }
+        // NaN, Infinity, hexadecimal, many digits or large exponents, and malformed numbers:
+        return Float.parseFloat(new String(chars, start, end - start));
+    }
+}
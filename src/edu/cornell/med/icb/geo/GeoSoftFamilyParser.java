@@ -349,4 +349,46 @@ public class GeoSoftFamilyParser {
         }
     }
 
+    /**
+     * Copy the data table of the current sample section, so that it can be parsed later,
+     * possibly by another thread. The line of column names and each line of sample data are
+     * appended to the table, each followed by a new line character.
+     *
+     * @param table Where to append the lines of the sample table.
+     * @return True if the section has a sample table with at least a line of column names,
+     * false otherwise.
+     */
+    public boolean readSampleTable(final MutableString table) {
+        assert currentSection == CurrentSectionType.SAMPLE_SECTION : "readSampleTable must be called within the sample section of the file.";
+        currentLine = null;
+        MutableString line;
+        boolean tableFound = false;
+        while (lineIterator.hasNext()) {
+            line = lineIterator.next();
+            if (line.startsWith("!sample_table_begin")) {
+                tableFound = true;
+                break;
+            }
+            if (line.startsWith("^")) {
+                // no table in this section, keep the start of the next one:
+                currentLine = line.copy();
+                return false;
+            }
+        }
+        if (!tableFound) {
+            return false;
+        }
+
+        boolean copied = false;
+        while (lineIterator.hasNext()) {
+            line = lineIterator.next();
+            if (line.startsWith("!sample_table_end")) {
+                break;
+            }
+            table.append(line).append('\n');
+            copied = true;
+        }
+        return copied;
+    }
+
 }
@@ -29,6 +29,7 @@ import it.unimi.dsi.lang.MutableString;
 
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -41,15 +42,20 @@ import java.io.InputStream;
  * @author Fabien Campagne Date: Aug 25, 2007 Time: 11:29:02 AM
  */
 public class ArrayReader {
-    private final DataInput dataInput;
+    private DataInput dataInput;
     private final IndexedIdentifier probesetIds;
     private IndexedIdentifier sampleIds;
-    private final InputStream stream;
+    private InputStream stream;
     private ObjectList<MutableString> sampleIdList;
     public static final String ARRAY_DATA_BIN_SUFFIX = "-array-data.bin";
     public static final String ARRAY_SAMPLES_TXT_SUFFIX = "-array-samples.txt";
     public static final String ARRAYS_PROBESETIDS_IO_SUFFIX = "-arrays-probesetids.io";
-    private final FloatIterator signalIterator;
+    private FloatIterator signalIterator;
+
+    /**
+     * Binary array store used instead of the array data, when an up to date store exists.
+     */
+    private MappedArrayReader store;
 
     /**
      * Get sample ids for this array, in the order in which they were written.
@@ -68,17 +74,34 @@ public class ArrayReader {
     }
 
     /**
-     * Construct a reader to read binary array data.
+     * Construct a reader to read binary array data. When a binary array store with the same
+     * basename is at least as recent as the array data, samples are read from the
+     * memory-mapped store (see {@link MappedArrayReader}).
      *
      * @param basename The basename of the binary array data.
      * @throws FileNotFoundException If some binary array files cannot be found relative to the provided basename.
      */
     public ArrayReader(final MutableString basename) throws IOException, ClassNotFoundException {
+        this(basename, true);
+    }
+
+    ArrayReader(final MutableString basename, final boolean useStore)
+            throws IOException, ClassNotFoundException {
         super();
         final String inputFilename = basename.toString() + ARRAY_DATA_BIN_SUFFIX;
         final String sampleListFilename = basename.toString() + ARRAY_SAMPLES_TXT_SUFFIX;
         final String probesetIdsFilename = basename + ARRAYS_PROBESETIDS_IO_SUFFIX;
+        final File storeFile = new File(basename + MappedArrayReader.ARRAY_STORE_SUFFIX);
+        final File inputFile = new File(inputFilename);
 
+        if (useStore && storeFile.exists()
+                && (!inputFile.exists() || storeFile.lastModified() >= inputFile.lastModified())) {
+            store = new MappedArrayReader(storeFile.getPath());
+            sampleIdList = store.getSampleIdList();
+            sampleIds = store.getSampleIds();
+            probesetIds = store.getProbeIds();
+            return;
+        }
         readSampleIds(sampleListFilename);
         stream = new FastBufferedInputStream(new FileInputStream(inputFilename));
         dataInput = new DataInputStream(stream);
@@ -87,6 +110,13 @@ public class ArrayReader {
 
     }
 
+    /**
+     * Return a map from probe set ids to probe set index.
+     */
+    public IndexedIdentifier getProbesetIds() {
+        return probesetIds;
+    }
+
     protected ObjectList<MutableString> readSampleIds(final String sampleIdFilename) {
         sampleIdList = new it.unimi.dsi.fastutil.objects.ObjectArrayList<MutableString>();
         sampleIds = new IndexedIdentifier();
@@ -125,6 +155,10 @@ public class ArrayReader {
      * @param signal
      */
     public void readNextSample(final float[] signal) throws IOException {
+        if (store != null) {
+            store.readNextSample(signal);
+            return;
+        }
         int count = 0;
         while (signalIterator.hasNext() && count < signal.length) {
             final float signalValue = signalIterator.nextFloat();
@@ -139,6 +173,10 @@ public class ArrayReader {
      * @throws IOException
      */
     public void close() throws IOException {
-        stream.close();
+        if (store != null) {
+            store.close();
+        } else {
+            stream.close();
+        }
     }
 }
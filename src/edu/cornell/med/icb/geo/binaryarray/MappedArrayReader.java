@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo.binaryarray;
+
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads signals from a binary array store, written by {@link MappedArrayWriter}. Unlike
+ * {@link ArrayReader}, which reads samples in sequence, this reader memory-maps the store and
+ * gives random access to the signal of any sample or any probe.
+ * <p/>
+ * A store is a single file. It starts with a header of {@link #HEADER_SIZE} bytes:
+ * <PRE>
+ * int  magic number ("BDAS")
+ * int  version
+ * int  number of probes
+ * int  number of samples
+ * int  layout: {@link #SAMPLE_MAJOR}, plus {@link #PROBE_MAJOR} if the store has a transposed copy
+ * long offset of the sample-major signal, one row of probes per sample
+ * long offset of the probe-major signal, one row of samples per probe (0 if absent)
+ * long offset of the identifiers: probe ids, then sample ids, in index order
+ * </PRE>
+ * Signal values are big-endian floats.
+ */
+public class MappedArrayReader {
+    public static final String ARRAY_STORE_SUFFIX = "-array-store.bin";
+
+    static final int MAGIC = 0x42444153;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+
+    /**
+     * Layout flag of stores with a sample-major copy of the signal (all stores).
+     */
+    public static final int SAMPLE_MAJOR = 1;
+
+    /**
+     * Layout flag of stores with a probe-major (transposed) copy of the signal.
+     */
+    public static final int PROBE_MAJOR = 2;
+
+    private final int numberOfProbes;
+    private final int numberOfSamples;
+    private final ObjectList<MutableString> probeIdList;
+    private final ObjectList<MutableString> sampleIdList;
+    private final IndexedIdentifier probeIds;
+    private final IndexedIdentifier sampleIds;
+    private final RandomAccessFile file;
+    private final MappedFloatMatrix sampleMajor;
+    private final MappedFloatMatrix probeMajor;
+    private int nextSampleIndex;
+
+    /**
+     * Open a binary array store.
+     *
+     * @param filename Name of the store file.
+     * @throws IOException if the file cannot be read or is not a binary array store.
+     */
+    public MappedArrayReader(final String filename) throws IOException {
+        super();
+        file = new RandomAccessFile(filename, "r");
+        try {
+            if (file.length() < HEADER_SIZE || file.readInt() != MAGIC) {
+                throw new IOException(filename + " is not a binary array store.");
+            }
+            final int version = file.readInt();
+            if (version > VERSION) {
+                throw new IOException("Binary array store " + filename + " has version "
+                        + version + ", this reader supports versions up to " + VERSION);
+            }
+            numberOfProbes = file.readInt();
+            numberOfSamples = file.readInt();
+            final int layout = file.readInt();
+            final long sampleMajorOffset = file.readLong();
+            final long probeMajorOffset = file.readLong();
+            final long identifiersOffset = file.readLong();
+
+            probeIdList = new ObjectArrayList<MutableString>(numberOfProbes);
+            sampleIdList = new ObjectArrayList<MutableString>(numberOfSamples);
+            probeIds = new IndexedIdentifier();
+            sampleIds = new IndexedIdentifier();
+            readIdentifiers(filename, identifiersOffset);
+
+            final FileChannel channel = file.getChannel();
+            sampleMajor = new MappedFloatMatrix(channel, sampleMajorOffset,
+                    numberOfSamples, numberOfProbes);
+            probeMajor = (layout & PROBE_MAJOR) != 0 ? new MappedFloatMatrix(channel,
+                    probeMajorOffset, numberOfProbes, numberOfSamples) : null;
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    private void readIdentifiers(final String filename, final long identifiersOffset)
+            throws IOException {
+        final FileInputStream input = new FileInputStream(filename);
+        try {
+            input.getChannel().position(identifiersOffset);
+            final DataInputStream dataInput =
+                    new DataInputStream(new FastBufferedInputStream(input));
+            for (int i = 0; i < numberOfProbes; i++) {
+                final MutableString probeId = new MutableString(dataInput.readUTF()).compact();
+                probeIdList.add(probeId);
+                probeIds.registerIdentifier(probeId);
+            }
+            for (int i = 0; i < numberOfSamples; i++) {
+                final MutableString sampleId = new MutableString(dataInput.readUTF()).compact();
+                sampleIdList.add(sampleId);
+                sampleIds.registerIdentifier(sampleId);
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    public int getNumberOfProbes() {
+        return numberOfProbes;
+    }
+
+    public int getNumberOfSamples() {
+        return numberOfSamples;
+    }
+
+    /**
+     * Returns whether the store has a probe-major copy of the signal, which makes
+     * {@link #readProbe(int, float[])} a sequential read.
+     */
+    public boolean isTransposed() {
+        return probeMajor != null;
+    }
+
+    /**
+     * Get probe ids, by probe index.
+     */
+    public ObjectList<MutableString> getProbeIdList() {
+        return probeIdList;
+    }
+
+    /**
+     * Return a map from probe ids to probe index.
+     */
+    public IndexedIdentifier getProbeIds() {
+        return probeIds;
+    }
+
+    /**
+     * Get sample ids, by sample index, in the order in which they were written.
+     */
+    public ObjectList<MutableString> getSampleIdList() {
+        return sampleIdList;
+    }
+
+    /**
+     * Return a map from sample ids to sample index.
+     */
+    public IndexedIdentifier getSampleIds() {
+        return sampleIds;
+    }
+
+    /**
+     * Allocate an array of the appropriate size to store all signal values for a sample of the array.
+     */
+    public float[] allocateSignalArray() {
+        return new float[numberOfProbes];
+    }
+
+    /**
+     * Allocate an array of the appropriate size to store the signal of a probe in all samples.
+     */
+    public float[] allocateProbeArray() {
+        return new float[numberOfSamples];
+    }
+
+    /**
+     * Read the signal of one probe in one sample.
+     */
+    public float getSignal(final int sampleIndex, final int probeIndex) {
+        return sampleMajor.get(sampleIndex, probeIndex);
+    }
+
+    /**
+     * Read the signal of all probes for a sample.
+     *
+     * @param sampleIndex Index of the sample.
+     * @param signal      Where to store the signal, by probe index.
+     */
+    public void readSample(final int sampleIndex, final float[] signal) {
+        sampleMajor.getRow(sampleIndex, signal);
+    }
+
+    /**
+     * Read the signal of a probe in all samples. Stores without a transposed copy gather the
+     * values from each sample.
+     *
+     * @param probeIndex Index of the probe.
+     * @param signal     Where to store the signal, by sample index.
+     */
+    public void readProbe(final int probeIndex, final float[] signal) {
+        if (probeMajor != null) {
+            probeMajor.getRow(probeIndex, signal);
+        } else {
+            sampleMajor.getColumn(probeIndex, signal);
+        }
+    }
+
+    /**
+     * Read signal values for the next sample, starting with the first sample of the store.
+     * Nothing is read after the last sample.
+     *
+     * @param signal Where to store the signal, by probe index.
+     */
+    public void readNextSample(final float[] signal) {
+        if (nextSampleIndex < numberOfSamples) {
+            readSample(nextSampleIndex++, signal);
+        }
+    }
+
+    /**
+     * Release resources used by this reader. Memory mapped by the reader is released when the
+     * reader is garbage collected.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        file.close();
+    }
+}
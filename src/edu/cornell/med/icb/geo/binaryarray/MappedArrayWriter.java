@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo.binaryarray;
+
+import edu.cornell.med.icb.geo.GEOPlatformIndexed;
+import edu.cornell.med.icb.identifier.IndexedIdentifier;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+
+/**
+ * Write signal values of an array in a binary array store, which {@link MappedArrayReader}
+ * memory-maps for random access by sample or by probe. Samples are appended in sequence, as
+ * with {@link ArrayWriter}. When the writer is closed, the identifiers are written, then the
+ * optional probe-major copy of the signal, and finally the header.
+ */
+public class MappedArrayWriter {
+    /**
+     * Maximum number of values transposed at once.
+     */
+    private static final int TRANSPOSE_BLOCK_SIZE = 1 << 22;
+
+    private final File file;
+    private final ObjectList<MutableString> probeIds;
+    private final ObjectList<MutableString> sampleIds;
+    private final boolean transposed;
+    private final DataOutputStream dataOutput;
+    private final ByteBuffer sampleBuffer;
+
+    /**
+     * Create a store for the probes of a platform.
+     *
+     * @param basename   Basename of the store.
+     * @param platform   Platform of the samples.
+     * @param transposed Whether to write a probe-major copy of the signal.
+     * @throws IOException if the store cannot be created.
+     */
+    public MappedArrayWriter(final String basename, final GEOPlatformIndexed platform,
+                             final boolean transposed) throws IOException {
+        this(basename, probeIdsOf(platform), transposed);
+    }
+
+    /**
+     * Create a store for the given probes.
+     *
+     * @param basename   Basename of the store.
+     * @param probeIds   Probe ids, by probe index.
+     * @param transposed Whether to write a probe-major copy of the signal.
+     * @throws IOException if the store cannot be created.
+     */
+    public MappedArrayWriter(final String basename, final ObjectList<MutableString> probeIds,
+                             final boolean transposed) throws IOException {
+        super();
+        this.file = new File(basename + MappedArrayReader.ARRAY_STORE_SUFFIX);
+        this.probeIds = probeIds;
+        this.transposed = transposed;
+        sampleIds = new ObjectArrayList<MutableString>();
+        sampleBuffer = ByteBuffer.allocate(4 * probeIds.size());
+        dataOutput = new DataOutputStream(new FastBufferedOutputStream(new FileOutputStream(file)));
+        // the header is written when the writer is closed:
+        dataOutput.write(new byte[MappedArrayReader.HEADER_SIZE]);
+    }
+
+    private static ObjectList<MutableString> probeIdsOf(final GEOPlatformIndexed platform) {
+        final ObjectList<MutableString> probeIds = new ObjectArrayList<MutableString>();
+        for (int probeIndex = 0; probeIndex < platform.getNumProbeIds(); probeIndex++) {
+            probeIds.add(platform.getProbesetIdentifier(probeIndex));
+        }
+        return probeIds;
+    }
+
+    /**
+     * Append the signal of a sample to the store.
+     *
+     * @param signal   Signal of each probe, by probe index.
+     * @param sampleId Identifier of the sample.
+     * @throws IOException if the signal cannot be written.
+     */
+    public void appendSample(final float[] signal, final MutableString sampleId)
+            throws IOException {
+        if (signal.length != probeIds.size()) {
+            throw new IllegalArgumentException("Expected " + probeIds.size()
+                    + " signal values for sample " + sampleId + " but got " + signal.length);
+        }
+        sampleBuffer.clear();
+        sampleBuffer.asFloatBuffer().put(signal);
+        dataOutput.write(sampleBuffer.array());
+        sampleIds.add(sampleId.copy());
+    }
+
+    /**
+     * Close this writer and complete the store.
+     *
+     * @throws IOException If an error occurs writing the store.
+     */
+    public void close() throws IOException {
+        final int numberOfProbes = probeIds.size();
+        final int numberOfSamples = sampleIds.size();
+        final long identifiersOffset =
+                MappedArrayReader.HEADER_SIZE + 4L * numberOfProbes * numberOfSamples;
+        for (final MutableString probeId : probeIds) {
+            dataOutput.writeUTF(probeId.toString());
+        }
+        for (final MutableString sampleId : sampleIds) {
+            dataOutput.writeUTF(sampleId.toString());
+        }
+        dataOutput.close();
+
+        final RandomAccessFile store = new RandomAccessFile(file, "rw");
+        try {
+            long probeMajorOffset = 0;
+            int layout = MappedArrayReader.SAMPLE_MAJOR;
+            if (transposed) {
+                // align the transposed copy on a float boundary:
+                probeMajorOffset = (store.length() + 3) / 4 * 4;
+                layout |= MappedArrayReader.PROBE_MAJOR;
+                writeTransposed(store.getChannel(), probeMajorOffset, numberOfProbes,
+                        numberOfSamples);
+            }
+            store.seek(0);
+            store.writeInt(MappedArrayReader.MAGIC);
+            store.writeInt(MappedArrayReader.VERSION);
+            store.writeInt(numberOfProbes);
+            store.writeInt(numberOfSamples);
+            store.writeInt(layout);
+            store.writeLong(MappedArrayReader.HEADER_SIZE);
+            store.writeLong(probeMajorOffset);
+            store.writeLong(identifiersOffset);
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * Write the probe-major copy of the signal, transposing blocks of probes.
+     */
+    private void writeTransposed(final FileChannel channel, final long offset,
+                                 final int numberOfProbes, final int numberOfSamples)
+            throws IOException {
+        final MappedFloatMatrix sampleMajor = new MappedFloatMatrix(channel,
+                MappedArrayReader.HEADER_SIZE, numberOfSamples, numberOfProbes);
+        final int probesPerBlock = Math.max(1,
+                Math.min(numberOfProbes, TRANSPOSE_BLOCK_SIZE / Math.max(1, numberOfSamples)));
+        final float[] row = new float[probesPerBlock];
+        final float[] block = new float[probesPerBlock * numberOfSamples];
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * block.length);
+        long position = offset;
+        for (int firstProbe = 0; firstProbe < numberOfProbes; firstProbe += probesPerBlock) {
+            final int probes = Math.min(probesPerBlock, numberOfProbes - firstProbe);
+            for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+                sampleMajor.getRow(sampleIndex, firstProbe, row, 0, probes);
+                for (int probe = 0; probe < probes; probe++) {
+                    block[probe * numberOfSamples + sampleIndex] = row[probe];
+                }
+            }
+            buffer.clear();
+            buffer.asFloatBuffer().put(block, 0, probes * numberOfSamples);
+            buffer.limit(4 * probes * numberOfSamples);
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+    }
+
+    /**
+     * Convert binary array data written by {@link ArrayWriter} to a binary array store with
+     * the same basename.
+     *
+     * @param basename   The basename of the binary array data.
+     * @param transposed Whether to write a probe-major copy of the signal.
+     * @throws IOException if the array data cannot be read or the store cannot be written.
+     * @throws ClassNotFoundException if the probe set ids of the array cannot be loaded.
+     */
+    public static void convert(final String basename, final boolean transposed)
+            throws IOException, ClassNotFoundException {
+        final ArrayReader reader = new ArrayReader(new MutableString(basename), false);
+        try {
+            final IndexedIdentifier probesetIds = reader.getProbesetIds();
+            final MutableString[] probeIds = new MutableString[probesetIds.size()];
+            for (final Map.Entry<MutableString, Integer> entry : probesetIds.entrySet()) {
+                probeIds[entry.getValue()] = entry.getKey();
+            }
+            final MappedArrayWriter writer = new MappedArrayWriter(basename,
+                    new ObjectArrayList<MutableString>(probeIds), transposed);
+            final float[] signal = reader.allocateSignalArray();
+            for (final MutableString sampleId : reader.getSampleIdList()) {
+                reader.readNextSample(signal);
+                writer.appendSample(signal, sampleId);
+            }
+            writer.close();
+        } finally {
+            reader.close();
+        }
+    }
+}
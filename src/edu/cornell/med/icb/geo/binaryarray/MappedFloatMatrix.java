@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo.binaryarray;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A row-major matrix of floats, memory-mapped from a region of a file. A single mapping cannot
+ * exceed 2Gb, so the region is mapped in segments of whole rows. Reads use absolute positions
+ * or duplicates of the mapped buffers, so a matrix can be read by several threads at once.
+ */
+final class MappedFloatMatrix {
+    private final int numberOfRows;
+    private final int numberOfColumns;
+    private final int rowsPerSegment;
+    private final FloatBuffer[] segments;
+
+    /**
+     * Map a matrix stored in a file.
+     *
+     * @param channel         Channel of the file
+     * @param offset          Position of the first value of the matrix in the file
+     * @param numberOfRows    Number of rows
+     * @param numberOfColumns Number of values in each row
+     * @throws IOException if the file cannot be mapped
+     */
+    MappedFloatMatrix(final FileChannel channel, final long offset, final int numberOfRows,
+                      final int numberOfColumns) throws IOException {
+        super();
+        this.numberOfRows = numberOfRows;
+        this.numberOfColumns = numberOfColumns;
+        final long rowBytes = Math.max(1L, 4L * numberOfColumns);
+        rowsPerSegment = (int) Math.max(1, Math.min(numberOfRows, Integer.MAX_VALUE / rowBytes));
+        final int numberOfSegments = (numberOfRows + rowsPerSegment - 1) / rowsPerSegment;
+        segments = new FloatBuffer[numberOfSegments];
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            final int firstRow = segment * rowsPerSegment;
+            final int rows = Math.min(rowsPerSegment, numberOfRows - firstRow);
+            segments[segment] = channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + 4L * numberOfColumns * firstRow,
+                    4L * numberOfColumns * rows).asFloatBuffer();
+        }
+    }
+
+    int getNumberOfRows() {
+        return numberOfRows;
+    }
+
+    int getNumberOfColumns() {
+        return numberOfColumns;
+    }
+
+    float get(final int row, final int column) {
+        return segments[row / rowsPerSegment].get(
+                (row % rowsPerSegment) * numberOfColumns + column);
+    }
+
+    /**
+     * Copy consecutive values of a row.
+     *
+     * @param row    Index of the row
+     * @param column Index of the first column to copy
+     * @param values Where to copy the values
+     * @param offset Where to copy the first value in the values array
+     * @param length Number of values to copy
+     */
+    void getRow(final int row, final int column, final float[] values, final int offset,
+                final int length) {
+        final FloatBuffer segment = segments[row / rowsPerSegment].duplicate();
+        segment.position((row % rowsPerSegment) * numberOfColumns + column);
+        segment.get(values, offset, length);
+    }
+
+    void getRow(final int row, final float[] values) {
+        getRow(row, 0, values, 0, numberOfColumns);
+    }
+
+    void getColumn(final int column, final float[] values) {
+        for (int row = 0; row < numberOfRows; row++) {
+            values[row] = get(row, column);
+        }
+    }
+}
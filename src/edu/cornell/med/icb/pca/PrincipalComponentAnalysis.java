@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.pca;
+
+import java.util.List;
+
+/**
+ * Principal component analysis of a matrix. Matrices are stored column by column:
+ * matrix.length is the number of columns and matrix[x].length the number of rows.
+ * Rows are observations (e.g., samples) and columns are variables (e.g., probesets).
+ * Implementations follow the semantics of the R prcomp function.
+ */
+public interface PrincipalComponentAnalysis {
+    /**
+     * Set the tolerance used to omit components. Components are omitted if their standard
+     * deviation is less than or equal to tolerance times the standard deviation of the
+     * first component.
+     *
+     * @param tolerance Tolerance relative to the first component
+     */
+    void setTolerance(double tolerance);
+
+    /**
+     * Indicate whether the rows of the rotation matrix should be named after a
+     * principal component analysis.
+     *
+     * @param collectRotationRowNames When true, {@link #getRotationRowNames()} returns the
+     *                                ids of the columns of the analysed matrix.
+     */
+    void setCollectRotationRowNames(boolean collectRotationRowNames);
+
+    /**
+     * Indicate whether the variables should be centered and scaled to unit variance
+     * before the analysis.
+     *
+     * @param doScaling When true, center and scale the columns of the matrix.
+     */
+    void setDoScaling(boolean doScaling);
+
+    /**
+     * Perform a principal component analysis on a matrix.
+     *
+     * @param matrix Matrix to analyse. matrix.length must be the number of columns of the matrix,
+     *               and matrix[x].length=numRows for any x.
+     * @param colIds Ids of the columns.
+     */
+    void pca(double[][] matrix, List<CharSequence> colIds);
+
+    /**
+     * Perform a principal component analysis on a matrix.
+     *
+     * @param matrix Matrix to analyse. matrix.length must be the number of columns of the matrix,
+     *               and matrix[x].length=numRows for any x.
+     * @param colIds Ids of the columns.
+     * @param rowIds Ids of the rows.
+     */
+    void pca(double[][] matrix, List<CharSequence> colIds, List<CharSequence> rowIds);
+
+    /**
+     * Get the rotation matrix obtained by the last analysis. rotation[c] holds the loadings
+     * of principal component c, one per column of the analysed matrix.
+     *
+     * @return the rotation matrix, or null if the analysis failed
+     */
+    double[][] getRotation();
+
+    /**
+     * Set the rotation matrix, for instance to project new data with a rotation obtained
+     * previously.
+     *
+     * @param rotation The rotation matrix
+     */
+    void setRotation(double[][] rotation);
+
+    /**
+     * Get the names of the rows of the rotation matrix, i.e., the ids of the columns of the
+     * analysed matrix.
+     *
+     * @return the rotation row names
+     */
+    List<CharSequence> getRotationRowNames();
+
+    /**
+     * Returns the product slice * rotation matrix, i.e., each row of slice projected onto
+     * the principal components.
+     *
+     * @param slice Matrix with the same columns as the analysed matrix
+     * @return A matrix of dimension numRows(slice) x numCol(rotation), or null if no
+     * rotation is available.
+     */
+    double[][] rotate(double[][] slice);
+}
@@ -34,9 +34,11 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
+ * Principal component analysis performed by the R prcomp function, through Rserve.
+ *
  * @author Fabien Campagne Date: April 15 2008.
  */
-public class PrincipalComponentAnalysisWithR {
+public class PrincipalComponentAnalysisWithR implements PrincipalComponentAnalysis {
     private static final Log LOG = LogFactory.getLog(PrincipalComponentAnalysisWithR.class);
     private boolean doScaling;
 
@@ -286,25 +288,7 @@ public class PrincipalComponentAnalysisWithR {
      * @return A * B
      */
     public static double[][] product(final double[][] A, final double[][] B) {
-        final int numResultRows = A[0].length;        // numRows of slice matrix
-        final int numResultCols = B.length;    // numCol for rotation matrix
-        final int n = A.length;                   // numCol of slice matrix
-        assert n == B[0].length : "number of columns of slice must match the number of rows of the rotation matrix.";
-
-        final double[][] result = new double[/* cols */ numResultCols][/* rows */ numResultRows];
-        for (int i = 0; i < numResultRows; i++) {    // result column index
-            for (int j = 0; j < numResultCols; j++) {   // result row index
-                for (int r = 0; r < n; r++) {
-
-                    final double s = A[r][i];
-                    final double rot = (j >= B.length ? 0 : B[j][r]);
-
-                    result[j][i] += s * rot;
-                }
-            }
-            //  System.out.println("rotationRowName: "+rowIds.get(i));
-        }
-        return result;
+        return PrincipalComponentAnalysisWithSVD.product(A, B);
     }
 
     public void setDoScaling(final boolean b) {
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2007-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.pca;
+
+import edu.cornell.med.icb.svd.SVDFactory;
+import edu.cornell.med.icb.svd.SVDRuntimeException;
+import edu.cornell.med.icb.svd.SingularValueDecomposition;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Principal component analysis computed in the JVM with one of the {@link SVDFactory}
+ * engines. Follows the semantics of R's prcomp: the principal components are the right
+ * singular vectors of the (optionally centered and scaled) matrix, and components whose
+ * standard deviation is not larger than tolerance times the standard deviation of the
+ * first component are omitted. As with any SVD, the sign of each component is arbitrary
+ * and may differ from the sign R reports.
+ */
+public class PrincipalComponentAnalysisWithSVD implements PrincipalComponentAnalysis {
+    private static final Log LOG = LogFactory.getLog(PrincipalComponentAnalysisWithSVD.class);
+
+    /**
+     * The SVD engine used to compute the components.
+     */
+    private final SVDFactory.ImplementationType svdType;
+
+    private boolean doScaling;
+    private double tolerance = 1E-6;
+    private double[][] rotation;
+    private List<CharSequence> rotationRowNames = new ArrayList<CharSequence>();
+    private boolean collectRotationRowNames;
+
+    /**
+     * Construct a new PrincipalComponentAnalysisWithSVD that uses the Colt SVD engine.
+     */
+    public PrincipalComponentAnalysisWithSVD() {
+        this(SVDFactory.ImplementationType.COLT);
+    }
+
+    /**
+     * Construct a new PrincipalComponentAnalysisWithSVD.
+     *
+     * @param svdType The SVD engine used to compute the components (e.g., COLT or MTJ).
+     */
+    public PrincipalComponentAnalysisWithSVD(final SVDFactory.ImplementationType svdType) {
+        super();
+        this.svdType = svdType;
+    }
+
+    public void setTolerance(final double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    public void setCollectRotationRowNames(final boolean collectRotationRowNames) {
+        this.collectRotationRowNames = collectRotationRowNames;
+    }
+
+    public void setDoScaling(final boolean doScaling) {
+        this.doScaling = doScaling;
+    }
+
+    public double[][] getRotation() {
+        return rotation;
+    }
+
+    public void setRotation(final double[][] rotation) {
+        this.rotation = rotation;
+    }
+
+    public List<CharSequence> getRotationRowNames() {
+        return rotationRowNames;
+    }
+
+    public void pca(final double[][] matrix, final List<CharSequence> colIds) {
+        pca(matrix, colIds, null);
+    }
+
+    /**
+     * Perform a principal component analysis on a matrix.
+     *
+     * @param matrix Matrix to analyse. matrix.length must be the number of columns of the matrix,
+     *               and matrix[x].length=numRows for any x. The matrix is not modified.
+     * @param colIds Ids of the columns.
+     * @param rowIds Ids of the rows (not used, the rotation matrix is named after the columns).
+     */
+    public void pca(final double[][] matrix, final List<CharSequence> colIds,
+                    final List<CharSequence> rowIds) {
+        // Clear any previous results
+        rotation = null;
+
+        final int numCols = matrix.length;      // number of columns (variables)
+        final int numRows = matrix[0].length;   // number of rows (observations)
+
+        final double[][] centered = center(matrix, numCols, numRows);
+        if (centered == null) {
+            return;
+        }
+        try {
+            final SingularValueDecomposition svd = SVDFactory.getImplementation(svdType);
+            if (numCols < numRows) {
+                // the matrix is tall: its left singular vectors are available directly and the
+                // right singular vectors are obtained as v = t(x) u / s
+                svd.svd(centered);
+                final double[] singularValues = svd.getSingularValues();
+                final int rank = rank(singularValues, numRows);
+                final double[][] u = svd.getU();
+                rotation = new double[rank][numCols];
+                for (int component = 0; component < rank; component++) {
+                    for (int col = 0; col < numCols; col++) {
+                        double dot = 0;
+                        for (int row = 0; row < numRows; row++) {
+                            dot += centered[col][row] * u[component][row];
+                        }
+                        rotation[component][col] = dot / singularValues[component];
+                    }
+                }
+            } else {
+                // decompose the transpose, whose left singular vectors are the right singular
+                // vectors of the matrix. A zero row is added to square matrices so that the
+                // transpose is tall, which does not change the components.
+                final double[][] transpose = new double[numRows][numCols + (numCols == numRows ? 1 : 0)];
+                for (int col = 0; col < numCols; col++) {
+                    for (int row = 0; row < numRows; row++) {
+                        transpose[row][col] = centered[col][row];
+                    }
+                }
+                svd.svd(transpose);
+                final int rank = rank(svd.getSingularValues(), numRows);
+                final double[][] u = svd.getU();
+                rotation = new double[rank][numCols];
+                for (int component = 0; component < rank; component++) {
+                    System.arraycopy(u[component], 0, rotation[component], 0, numCols);
+                }
+            }
+        } catch (SVDRuntimeException e) {
+            rotation = null;
+            LOG.warn("Cannot PCA. The " + svdType + " singular value decomposition failed.", e);
+            return;
+        }
+
+        if (collectRotationRowNames) {
+            rotationRowNames = new ArrayList<CharSequence>(colIds);
+        }
+    }
+
+    /**
+     * Copy the matrix, centering and scaling the columns when scaling is requested.
+     *
+     * @return the centered matrix, or null if a column cannot be scaled to unit variance.
+     */
+    private double[][] center(final double[][] matrix, final int numCols, final int numRows) {
+        final double[][] centered = new double[numCols][];
+        for (int col = 0; col < numCols; col++) {
+            centered[col] = matrix[col].clone();
+            if (!doScaling) {
+                continue;
+            }
+            double mean = 0;
+            for (int row = 0; row < numRows; row++) {
+                mean += centered[col][row];
+            }
+            mean /= numRows;
+            double sumOfSquares = 0;
+            for (int row = 0; row < numRows; row++) {
+                centered[col][row] -= mean;
+                sumOfSquares += centered[col][row] * centered[col][row];
+            }
+            final double sd = Math.sqrt(sumOfSquares / Math.max(1, numRows - 1));
+            if (sd == 0) {
+                LOG.warn("Cannot PCA. Cannot rescale a constant/zero column to unit variance.");
+                return null;
+            }
+            for (int row = 0; row < numRows; row++) {
+                centered[col][row] /= sd;
+            }
+        }
+        return centered;
+    }
+
+    /**
+     * Determine how many components have a standard deviation larger than tolerance times
+     * the standard deviation of the first component.
+     *
+     * @param singularValues Singular values, in decreasing order
+     * @param numRows        Number of rows of the analysed matrix
+     * @return the number of components to keep
+     */
+    private int rank(final double[] singularValues, final int numRows) {
+        final double scale = Math.sqrt(Math.max(1, numRows - 1));
+        final int maxRank = Math.min(singularValues.length, numRows);
+        if (maxRank == 0) {
+            return 0;
+        }
+        final double threshold = singularValues[0] / scale * tolerance;
+        int rank = 0;
+        while (rank < maxRank && singularValues[rank] / scale > threshold) {
+            rank++;
+        }
+        return rank;
+    }
+
+    public double[][] rotate(final double[][] slice) {
+        if (rotation == null) {
+            return null;
+        }
+        return product(slice, rotation);
+    }
+
+    /**
+     * Calculate the product of two matrices.
+     *
+     * @param A Matrix A
+     * @param B Matrix B
+     * @return A * B
+     */
+    public static double[][] product(final double[][] A, final double[][] B) {
+        final int numResultRows = A[0].length;        // numRows of slice matrix
+        final int numResultCols = B.length;    // numCol for rotation matrix
+        final int n = A.length;                   // numCol of slice matrix
+        assert B.length == 0 || n == B[0].length : "number of columns of slice must match the number of rows of the rotation matrix.";
+
+        final double[][] result = new double[/* cols */ numResultCols][/* rows */ numResultRows];
+        for (int j = 0; j < numResultCols; j++) {   // result column index
+            final double[] rotationColumn = B[j];
+            final double[] resultColumn = result[j];
+            for (int r = 0; r < n; r++) {
+                final double rot = rotationColumn[r];
+                final double[] sliceColumn = A[r];
+                for (int i = 0; i < numResultRows; i++) {    // result row index
+                    resultColumn[i] += sliceColumn[i] * rot;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -70,6 +70,15 @@ public class RotationReaderWriter {
      */
     private static final Logger LOG = Logger.getLogger(RotationReaderWriter.class);
 
+    /**
+     * Compound file writers shared by all the instances of this JVM, keyed by the canonical
+     * name of the compound file. Sharing the writer keeps the directory of each compound
+     * file consistent across threads. All access to a compound file is synchronized on its
+     * writer.
+     */
+    private static final Map<String, CompoundFileWriter> WRITERS =
+            new HashMap<String, CompoundFileWriter>();
+
     /**
      * The CompoundFileWriter.
      */
@@ -150,11 +159,43 @@ public class RotationReaderWriter {
         final String cacheCompoundFilename = cacheDirectoryName
                 + "Rotation-Cache-" + datasetEndpointName + "-Split-" + splitId + ".compound-file";
 
-        cfw = new CompoundFileWriter(cacheCompoundFilename);
-        LOG.trace("Opened the compound cache file " + cacheCompoundFilename);
+        cfw = getWriter(cacheCompoundFilename);
         cfr = cfw.getCompoundFileReader();
     }
 
+    /**
+     * Get the writer shared by all instances for a compound file, opening the file the
+     * first time it is requested.
+     *
+     * @param compoundFilename Name of the compound file
+     * @return the shared writer
+     * @throws IOException if the compound file cannot be opened
+     */
+    private static CompoundFileWriter getWriter(final String compoundFilename)
+            throws IOException {
+        synchronized (WRITERS) {
+            CompoundFileWriter writer = WRITERS.get(compoundFilename);
+            if (writer == null) {
+                writer = new CompoundFileWriter(compoundFilename);
+                WRITERS.put(compoundFilename, writer);
+                LOG.trace("Opened the compound cache file " + compoundFilename);
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * Get the object that synchronizes access to a compound file.
+     *
+     * @param compoundFilename Canonical name of the compound file
+     * @return the shared writer if the file was opened by this JVM, a new object otherwise
+     */
+    private static Object getLock(final String compoundFilename) {
+        synchronized (WRITERS) {
+            final CompoundFileWriter writer = WRITERS.get(compoundFilename);
+            return writer != null ? writer : new Object();
+        }
+    }
 
     /**
      * Check if a table has been saved to the cache.
@@ -166,21 +207,11 @@ public class RotationReaderWriter {
     public boolean isTableCached(final CharSequence datasetEndpointName, final MutableString pathwayId) {
         final boolean result;
         final String cachedTableFile = getRotationFile(datasetEndpointName, pathwayId);
-        if (LOG.isTraceEnabled()) {
-            LOG.trace(Thread.currentThread().getName() + " entering synchronized block on "
-                    + cachedTableFile.intern());
-        }
-
-        synchronized (cachedTableFile.intern()) {
+        synchronized (cfw) {
             result = cfr.containsFile(cachedTableFile);
-            if (LOG.isTraceEnabled()) {
-                LOG.trace("Checked for existance of table " + cachedTableFile + " : " + result);
-            }
         }
-
         if (LOG.isTraceEnabled()) {
-            LOG.trace(Thread.currentThread().getName() + " left synchronized block on "
-                    + cachedTableFile.intern());
+            LOG.trace("Checked for existance of table " + cachedTableFile + " : " + result);
         }
         return result;
     }
@@ -204,6 +235,12 @@ public class RotationReaderWriter {
         if (LOG.isTraceEnabled()) {
             LOG.trace("getting rotation matrix from " + cachedTableFile);
         }
+        synchronized (cfw) {
+            return readRotationMatrix(cachedTableFile, rowIds);
+        }
+    }
+
+    private double[][] readRotationMatrix(final String cachedTableFile, final List<CharSequence> rowIds) {
         try {
             final CompoundDataInput dataInput = cfr.readFile(cachedTableFile);
 
@@ -237,6 +274,12 @@ public class RotationReaderWriter {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Attempting to read cached table from " + cachedTableFile);
         }
+        synchronized (cfw) {
+            return readTableColumnIds(cachedTableFile);
+        }
+    }
+
+    private ObjectSet<CharSequence> readTableColumnIds(final String cachedTableFile) {
         final ObjectSet<CharSequence> result = new ObjectArraySet<CharSequence>();
         try {
             final CompoundDataInput dataInput = cfr.readFile(cachedTableFile);
@@ -284,10 +327,6 @@ public class RotationReaderWriter {
     public void saveRotationMatrix(final CharSequence datasetEndpointName,
                                    final MutableString pathwayId, final List<CharSequence> rowIds,
                                    final double[][] rotation) {
-
-        final int numColumns = rotation.length;
-        final int numRows = rowIds.size();
-        //    System.out.println(String.format("numColumns: %d numRows: %d", numColumns, numRows));
         for (final double[] column : rotation) {
             assert column.length == rowIds.size() : "number of rows of rotation matrix must match number of row identifiers.";
         }
@@ -296,6 +335,22 @@ public class RotationReaderWriter {
         if (LOG.isDebugEnabled()) {
             LOG.debug("Saving " + pathwayId + " to rotation file " + cachedTableFile);
         }
+        synchronized (cfw) {
+            if (cfr.containsFile(cachedTableFile)) {
+                // saved by another thread since the caller checked isTableCached
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Rotation file " + cachedTableFile + " was already saved");
+                }
+                return;
+            }
+            writeRotationMatrix(cachedTableFile, rowIds, rotation);
+        }
+    }
+
+    private void writeRotationMatrix(final String cachedTableFile,
+                                     final List<CharSequence> rowIds, final double[][] rotation) {
+        final int numColumns = rotation.length;
+        final int numRows = rowIds.size();
         CompoundDataOutput dataOutput = null;
         try {
             dataOutput = cfw.addFile(cachedTableFile);
@@ -390,7 +445,11 @@ public class RotationReaderWriter {
                     LOG.trace("Scanning for rotation files within compound file "
                             + compoundFileName);
                 }
-                final CompoundFileReader compoundReader = new CompoundFileReader(compoundFileName);
+                final CompoundFileReader compoundReader;
+                synchronized (getLock(compoundFileName)) {
+                    // do not scan a compound file while another thread adds to it
+                    compoundReader = new CompoundFileReader(compoundFileName);
+                }
                 final Set<String> output = new HashSet<String>();
                 results.put(compoundFileName, output);
 
@@ -429,6 +488,18 @@ public class RotationReaderWriter {
 
     public void saveMap(final String datasetEndpointName, final MutableString pathwayId, final List<CharSequence> rowIds, final Object2DoubleOpenHashMap<MutableString> map, final String type) {
         final String mapFileName = getMapFile(datasetEndpointName, pathwayId, type);
+        synchronized (cfw) {
+            if (cfr.containsFile(mapFileName)) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Map file " + mapFileName + " was already saved");
+                }
+                return;
+            }
+            writeMap(mapFileName, map);
+        }
+    }
+
+    private void writeMap(final String mapFileName, final Object2DoubleOpenHashMap<MutableString> map) {
         CompoundDataOutput dataOutput = null;
         try {
             dataOutput = cfw.addFile(mapFileName);
@@ -447,10 +518,15 @@ public class RotationReaderWriter {
         }
     }
 
-    @SuppressWarnings("unchecked")
-    public  Object2DoubleOpenHashMap<MutableString> loadMap(final String datasetEndpointName, final MutableString pathwayId, final String type) {
+    public Object2DoubleOpenHashMap<MutableString> loadMap(final String datasetEndpointName, final MutableString pathwayId, final String type) {
         final String mapFileName = getMapFile(datasetEndpointName, pathwayId, type);
+        synchronized (cfw) {
+            return readMap(mapFileName);
+        }
+    }
 
+    @SuppressWarnings("unchecked")
+    private Object2DoubleOpenHashMap<MutableString> readMap(final String mapFileName) {
         try {
             final CompoundDataInput dataInput = cfr.readFile(mapFileName);
             final Object2DoubleOpenHashMap<MutableString> o =
@@ -31,6 +31,7 @@ import edu.mssm.crover.tables.ColumnTypeException;
 import edu.mssm.crover.tables.InvalidColumnException;
 import edu.mssm.crover.tables.Table;
 import edu.mssm.crover.tables.TypeMismatchException;
+import edu.rit.pj.IntegerForLoop;
 import it.unimi.dsi.fastutil.io.BinIO;
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
@@ -49,7 +50,10 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.math.NumberUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bdval.util.ParallelTeams;
+import org.bdval.util.TableView;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -92,6 +96,10 @@ public class BDVModel {
     protected String datasetName;
     protected Object2DoubleMap<MutableString> probesetScaleMeanMap;
     protected Object2DoubleMap<MutableString> probesetScaleRangeMap;
+    /**
+     * Number of threads used to prepare and evaluate the juror models of a consensus model.
+     */
+    protected int numberOfThreads = 1;
 
     /**
      * The common base prefix for all BDVModel files.
@@ -121,6 +129,10 @@ public class BDVModel {
      * The name of the zip file that contains this BDVModel.
      */
     protected final String zipFilename;
+    /**
+     * The name of the file that contains this BDVModel in the packed format.
+     */
+    protected final String packedFilename;
 
     /**
      * Properties associated with this model.
@@ -148,7 +160,7 @@ public class BDVModel {
     /**
      * Format types supported.
      */
-    protected static enum Format {
+    public static enum Format {
         /**
          * Store as {@link java.util.Properties}.
          */
@@ -156,7 +168,13 @@ public class BDVModel {
         /**
          * Store as binary as in {@link java.io.Serializable}.
          */
-        BINARY
+        BINARY,
+        /**
+         * Store in a single file where platform and scaling data are primitive arrays indexed
+         * by feature position. The file is memory mapped when the model is loaded.
+         * @see PackedModel
+         */
+        PACKED
     }
 
     /**
@@ -201,7 +219,11 @@ public class BDVModel {
         /**
          * Properties associated with this model (old format).
          */
-        props
+        props,
+        /**
+         * The model in the packed format.
+         */
+        packed
     }
 
     /**
@@ -222,12 +244,13 @@ public class BDVModel {
     public BDVModel(final String modelPrefix, final Format format) {
         super();
         this.format = format;
-        zipModel = format != Format.BINARY;
+        zipModel = format == Format.PROPERTIES;
 
         final String prefix = removeSuffix(modelPrefix, "." + ModelFileExtension.model.toString());
         modelFilenamePrefix = removeSuffix(prefix, ".zip");
 
         zipFilename = modelFilenamePrefix + ".zip";
+        packedFilename = modelFilenamePrefix + "." + ModelFileExtension.packed.toString();
         modelFilename = modelFilenamePrefix + "." + ModelFileExtension.model.toString();
 
         // The platform "filename" for zip files is actually just the prefix
@@ -304,6 +327,10 @@ public class BDVModel {
         }
         properties.clear();
         properties.setDelimiterParsingDisabled(true);
+        if (format == Format.PACKED || (!zipExists && new File(packedFilename).exists())) {
+            loadPacked(options);
+            return;
+        }
         // check to see if a zip file exists - if it doesn't we assume it's an old binary format
         if (zipModel && zipExists) {
             LOG.info("Reading model from filename: " + zipFilename);
@@ -329,6 +356,7 @@ public class BDVModel {
 
                     delegate = new ConsensusBDVModel(modelFilenamePrefix,
                             modelJurorFilePrefixes.toArray(new String[modelJurorFilePrefixes.size()]));
+                    delegate.setNumberOfThreads(numberOfThreads);
                     delegate.load(options);
                     setGeneList(convertTrainingPlatformToGeneList(options));
                     return;
@@ -378,6 +406,7 @@ public class BDVModel {
 
                 delegate = new ConsensusBDVModel(modelFilenamePrefix,
                         modelJurorFilePrefixes.toArray(new String[modelJurorFilePrefixes.size()]));
+                delegate.setNumberOfThreads(numberOfThreads);
                 delegate.load(options);
                 setGeneList(convertTrainingPlatformToGeneList(options));
                 return;
@@ -407,6 +436,36 @@ public class BDVModel {
         }
     }
 
+    /**
+     * Load a model stored in the packed format.
+     *
+     * @param options specific options to use when loading the model
+     * @throws IOException if there is a problem accessing the model
+     */
+    private void loadPacked(final DAVOptions options) throws IOException {
+        LOG.info("Reading model from filename: " + packedFilename);
+        final PackedModel packed = PackedModel.read(new File(packedFilename));
+        properties.clear();
+        properties.addAll(loadProperties(new ByteArrayInputStream(packed.getProperties()), options));
+        if (isConsensusModel()) {
+            throw new IOException("Consensus models cannot be stored in the packed format: "
+                    + packedFilename);
+        }
+        trainingPlatform = options.trainingPlatform = packed.getPlatform();
+        probesetScaleMeanMap = options.probesetScaleMeanMap = packed.getMeans();
+        probesetScaleRangeMap = options.probesetScaleRangeMap = packed.getRanges();
+        setGeneList(convertTrainingPlatformToGeneList(options));
+
+        final String modelParameters = properties.getString("training.classifier.parameters");
+        helper = ClassificationModel.load(new ByteArrayInputStream(packed.getClassifier()),
+                modelParameters);
+        LOG.info("Model loaded.");
+
+        options.classiferClass = helper.classifier.getClass();
+        // we don't have a way to inspect the saved model for parameters used during training:
+        options.classifierParameters = ClassificationModel.splitModelParameters(modelParameters);
+    }
+
     /**
      * Load the BDVModel training platform from the specified zip file.
      *
@@ -588,6 +647,19 @@ public class BDVModel {
         this.helper = helper;
     }
 
+    /**
+     * Set the number of threads used to prepare test sets and evaluate the juror models of a
+     * consensus model. Models that are not consensus models ignore this setting.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+        if (delegate != null) {
+            delegate.setNumberOfThreads(numberOfThreads);
+        }
+    }
+
     /**
      * Returns a gene list corresponding to the features of the model.
      *
@@ -626,6 +698,53 @@ public class BDVModel {
         }
     }
 
+    /**
+     * Prepare the test set of this model from a table that was already processed for a set of
+     * models (see {@link PredictManyMode}). The processed table must contain the features of
+     * this model and is not modified: the model gets a copy of its own columns, scaled with
+     * its own scaling values. Models loaded with their own options can prepare their test
+     * sets concurrently from the same processed table.
+     *
+     * @param mode           The mode that processed the table
+     * @param options        The options this model was loaded with
+     * @param processedTable Processed table, one row per sample
+     * @return the test set of this model
+     * @throws TypeMismatchException  if the processed table cannot be scaled
+     * @throws InvalidColumnException if the processed table cannot be scaled
+     */
+    protected Table prepareTestSet(final DAVMode mode, final DAVOptions options,
+                                   final Table processedTable)
+            throws TypeMismatchException, InvalidColumnException {
+        if (delegate != null) {
+            return delegate.prepareTestSet(mode, options, processedTable);
+        } else {
+            final Table testSet = mode.filterTable(options, processedTable, geneList);
+            mode.scaleFeatures(options, true, testSet);
+            // filterTable rebuilt the platform for the columns of the test set:
+            options.trainingPlatform = trainingPlatform;
+            splitSpecificTestSet = testSet;
+            return testSet;
+        }
+    }
+
+    /**
+     * Identifiers of the features a test set must provide to this model. A consensus model
+     * needs the features of all its juror models.
+     *
+     * @return the identifiers of the features of this model
+     */
+    public Set<String> getFeatureIds() {
+        if (delegate != null) {
+            return delegate.getFeatureIds();
+        } else {
+            final Set<String> featureIds = new ObjectOpenHashSet<String>();
+            for (int probeIndex = 0; probeIndex < trainingPlatform.getNumProbeIds(); probeIndex++) {
+                featureIds.add(trainingPlatform.getProbesetIdentifier(probeIndex).toString());
+            }
+            return featureIds;
+        }
+    }
+
     private GEOPlatformIndexed loadPlatform() throws ClassNotFoundException, IOException {
         final GEOPlatformIndexed platform;
         final boolean zipExists = new File(zipFilename).exists();
@@ -665,6 +784,69 @@ public class BDVModel {
         }
     }
 
+    /**
+     * Predict the class label of a batch of samples. Samples are predicted with {@link
+     * #predict(int, double[])}, concurrently when more than one thread is requested. The
+     * classifier must then support concurrent predictions on the same problem.
+     *
+     * @param sampleIndices   Indices of the samples to predict.
+     * @param decisions       Array where the predicted class label of sampleIndices[i] is
+     *                        written at index i.
+     * @param probabilities   Array where the estimated probabilities of sampleIndices[i] are
+     *                        written at indices 2i and 2i+1.
+     * @param numberOfThreads Number of threads to predict with. Zero uses one thread per
+     *                        processor.
+     */
+    public void predict(final int[] sampleIndices, final double[] decisions,
+                        final double[] probabilities, final int numberOfThreads) {
+        assert decisions.length >= sampleIndices.length : "decisions array is too small.";
+        assert probabilities.length >= 2 * sampleIndices.length : "probabilities array is too small.";
+        if (delegate != null) {
+            delegate.predict(sampleIndices, decisions, probabilities, numberOfThreads);
+            return;
+        }
+        try {
+            // one thread predicts on the calling thread, teams are shared between batches:
+            ParallelTeams.execute(numberOfThreads,
+                    0, sampleIndices.length - 1 /* end index is inclusive */,
+                    new IntegerForLoop() {
+                        @Override
+                        public void run(final int first, final int last) {
+                            predict(sampleIndices, decisions, probabilities, first, last);
+                        }
+                    });
+        } catch (Exception e) {
+            LOG.error("An error occurred predicting samples", e);
+            throw new IllegalStateException("An error occurred predicting samples", e);
+        }
+    }
+
+    /**
+     * Predict the class label of the samples in a contiguous range of sample indices.
+     *
+     * @see #predict(int[], double[], double[], int)
+     */
+    public void predict(final int fromIndex, final int toIndex, final double[] decisions,
+                        final double[] probabilities, final int numberOfThreads) {
+        final int[] sampleIndices = new int[toIndex - fromIndex];
+        for (int i = 0; i < sampleIndices.length; i++) {
+            sampleIndices[i] = fromIndex + i;
+        }
+        predict(sampleIndices, decisions, probabilities, numberOfThreads);
+    }
+
+    private void predict(final int[] sampleIndices, final double[] decisions,
+                         final double[] probabilities, final int first, final int last) {
+        final double[] sampleProbabilities = new double[2];
+        for (int i = first; i <= last; i++) {
+            sampleProbabilities[0] = 0;
+            sampleProbabilities[1] = 0;
+            decisions[i] = predict(sampleIndices[i], sampleProbabilities);
+            probabilities[2 * i] = sampleProbabilities[0];
+            probabilities[2 * i + 1] = sampleProbabilities[1];
+        }
+    }
+
     /**
      * Save the model to a set of files. The files will contain all the information needed to
      * apply the BDVal model to new samples.
@@ -678,30 +860,58 @@ public class BDVModel {
     public void save(final DAVOptions options, final ClassificationTask task,
                      final SplitPlan splitPlan, final WriteModel writeModelMode)
             throws IOException {
-        if (zipModel) {
+        save(createProperties(options, task, splitPlan, writeModelMode), options);
+    }
+
+    /**
+     * Write this model, as it was loaded, with another prefix and storage format. Use to
+     * convert models between the zip ({@link Format#PROPERTIES}) and {@link Format#PACKED}
+     * formats. Consensus models cannot be converted; convert each of their juror models
+     * instead.
+     *
+     * @param targetModelPrefix Prefix of the files of the converted model
+     * @param targetFormat      Format of the converted model
+     * @throws IOException if the model is a consensus model or if there is a problem writing
+     * to the files
+     */
+    public void convert(final String targetModelPrefix, final Format targetFormat)
+            throws IOException {
+        if (isConsensusModel()) {
+            final String message = "Consensus models cannot be converted, convert each juror "
+                    + "model instead: " + modelFilenamePrefix;
+            LOG.error(message);
+            throw new IOException(message);
+        }
+        final DAVOptions options = new DAVOptions();
+        options.trainingPlatform = trainingPlatform;
+        options.probesetScaleMeanMap = probesetScaleMeanMap;
+        options.probesetScaleRangeMap = probesetScaleRangeMap;
+        options.scaleFeatures = properties.getBoolean("scaling.enabled");
+        final BDVModel target = new BDVModel(targetModelPrefix, helper, targetFormat);
+        target.save(properties, options);
+    }
+
+    private void save(final Properties modelProperties, final DAVOptions options)
+            throws IOException {
+        if (format == Format.PACKED) {
+            savePacked(modelProperties, options);
+        } else if (zipModel) {
             LOG.info("Writing model to filename: " + zipFilename);
             ZipOutputStream zipStream = null;
             try {
                 // Create the ZIP file
                 zipStream = new ZipOutputStream(new FileOutputStream(zipFilename));
-                save(zipStream, options, task, splitPlan, writeModelMode);
+                saveZip(zipStream, modelProperties, options);
             } finally {
                 IOUtils.closeQuietly(zipStream);
             }
         } else {
             LOG.info("Writing model properties  to filename: " + modelPropertiesFilename);
-            saveProperties(FileUtils.openOutputStream(new File(modelPropertiesFilename)),
-                    options, task, splitPlan, writeModelMode);
+            writeProperties(FileUtils.openOutputStream(new File(modelPropertiesFilename)),
+                    modelProperties);
 
             helper.model.write(modelFilename);
-            if (options.scaleFeatures) {
-                if (options.probesetScaleMeanMap.size() <= 0) {
-                    throw new IllegalArgumentException("mean map must be populated.");
-                }
-                if (options.probesetScaleRangeMap.size() <= 0) {
-                    throw new IllegalArgumentException("range map must be populated.");
-                }
-            }
+            checkScaleMaps(options);
 
             saveMeansMap(FileUtils.openOutputStream(new File(meansMapFilename)), options);
             saveRangeMap(FileUtils.openOutputStream(new File(rangeMapFilename)), options);
@@ -710,6 +920,41 @@ public class BDVModel {
         }
     }
 
+    /**
+     * Save the model to a single file in the packed format.
+     *
+     * @param modelProperties The properties of the model
+     * @param options         The options associated with this model
+     * @throws IOException if there is a problem writing to the file
+     */
+    private void savePacked(final Properties modelProperties, final DAVOptions options)
+            throws IOException {
+        LOG.info("Writing model to filename: " + packedFilename);
+        checkScaleMaps(options);
+        final ByteArrayOutputStream propertiesBytes = new ByteArrayOutputStream();
+        try {
+            modelProperties.save(propertiesBytes);
+        } catch (ConfigurationException e) {
+            throw new IOException("Cannot write model properties.", e);
+        }
+        final ByteArrayOutputStream classifierBytes = new ByteArrayOutputStream();
+        helper.model.write(classifierBytes);
+        PackedModel.write(new File(packedFilename), propertiesBytes.toByteArray(),
+                options.trainingPlatform, options.probesetScaleMeanMap,
+                options.probesetScaleRangeMap, classifierBytes.toByteArray());
+    }
+
+    private void checkScaleMaps(final DAVOptions options) {
+        if (options.scaleFeatures) {
+            if (options.probesetScaleMeanMap.size() <= 0) {
+                throw new IllegalArgumentException("mean map must be populated.");
+            }
+            if (options.probesetScaleRangeMap.size() <= 0) {
+                throw new IllegalArgumentException("range map must be populated.");
+            }
+        }
+    }
+
     /**
      * Save the model to a set the specified zip stream. The files will contain all the
      * information needed to apply the BDVal model to new samples.
@@ -724,10 +969,15 @@ public class BDVModel {
     protected void save(final ZipOutputStream zipStream, final DAVOptions options,
                         final ClassificationTask task, final SplitPlan splitPlan,
                         final WriteModel writeModelMode) throws IOException {
+        saveZip(zipStream, createProperties(options, task, splitPlan, writeModelMode), options);
+    }
+
+    private void saveZip(final ZipOutputStream zipStream, final Properties modelProperties,
+                         final DAVOptions options) throws IOException {
         setZipStreamComment(zipStream);
 
         // Add ZIP entry for the model properties to output stream.
-        saveProperties(zipStream, options, task, splitPlan, writeModelMode);
+        writeProperties(zipStream, modelProperties);
 
         // Add ZIP entries for the model training platform to output stream.
         savePlatform(zipStream, options);
@@ -740,14 +990,7 @@ public class BDVModel {
         byteArrayOutputStream.writeTo(zipStream);
         zipStream.closeEntry();
 
-        if (options.scaleFeatures) {
-            if (options.probesetScaleMeanMap.size() <= 0) {
-                throw new IllegalArgumentException("mean map must be populated.");
-            }
-            if (options.probesetScaleRangeMap.size() <= 0) {
-                throw new IllegalArgumentException("range map must be populated.");
-            }
-        }
+        checkScaleMaps(options);
 
         // Add ZIP entry for the scale mean map to output stream.
         saveMeansMap(zipStream, options);
@@ -889,6 +1132,21 @@ public class BDVModel {
                                   final DAVOptions options, final ClassificationTask task,
                                   final SplitPlan splitPlan,
                                   final WriteModel writeModelMode) throws IOException {
+        writeProperties(stream, createProperties(options, task, splitPlan, writeModelMode));
+    }
+
+    /**
+     * Create the BDVModel properties.
+     *
+     * @param options        The options associated with this model
+     * @param task           The classification task used for this model
+     * @param splitPlan      The split plan assoicated with this model
+     * @param writeModelMode The mode saving the model
+     * @return the model properties
+     */
+    private Properties createProperties(final DAVOptions options, final ClassificationTask task,
+                                        final SplitPlan splitPlan,
+                                        final WriteModel writeModelMode) {
         final Properties modelProperties = new Properties();
         modelProperties.setDelimiterParsingDisabled(true);
         modelProperties.addProperty("trained.from.dataset", task.getExperimentDataFilename());
@@ -915,7 +1173,18 @@ public class BDVModel {
         modelProperties.addProperty("pathway.aggregation.method", options.pathwayAggregtionMethod);
         modelProperties.addProperty("pathway.option.pathways", options.pathwaysInfoFilename);
         modelProperties.addProperty("pathway.option.gene-to-probe", options.geneToProbeFilename);
+        return modelProperties;
+    }
 
+    /**
+     * Store BDVModel properties to the specified output stream.
+     *
+     * @param stream          The stream to store the properties to
+     * @param modelProperties The properties to store
+     * @throws IOException if there is a problem writing to the stream
+     */
+    private void writeProperties(final OutputStream stream, final Properties modelProperties)
+            throws IOException {
         try {
             if (zipModel) {
                 final ZipOutputStream zipStream = (ZipOutputStream) stream;
@@ -943,8 +1212,7 @@ public class BDVModel {
         if (delegate != null) {
             delegate.prepareClassificationProblem(testSet);
         } else {
-            checkReOrderTestSet(testSet);
-            modelSpecificProblem = loadProblem(getHelper(), testSet);
+            modelSpecificProblem = loadProblem(getHelper(), checkReOrderTestSet(testSet));
         }
     }
 
@@ -958,58 +1226,46 @@ public class BDVModel {
         return problem;
     }
 
-    protected void checkReOrderTestSet(final Table testSet) throws InvalidColumnException {
+    /**
+     * Align the columns of a test set with the features of the model. The column of each
+     * feature is looked up once, in the order of the feature indices of the training platform,
+     * and the aligned table is a read-only view of the test set with exactly these columns.
+     * Columns of the test set that are not features of the model are left out of the view.
+     *
+     * @param testSet The test set to align. The test set is not modified.
+     * @return A view of the test set with the features of the model, in the model order
+     * @throws InvalidColumnException if some features of the model are not columns of
+     * the test set
+     */
+    protected Table checkReOrderTestSet(final Table testSet) throws InvalidColumnException {
+        final int modelNumFeatures = trainingPlatform.getNumProbeIds();
         if (LOG.isDebugEnabled()) {
-            LOG.debug("model expects " + trainingPlatform.getProbeIds().size() + " features.");
+            LOG.debug("model expects " + modelNumFeatures + " features.");
         }
 
-        // remove any columns in the testSet that do not exist in the trainingPlatform
-        // TODO: What if the trainingPlatform contains columns not in the testSet?
-        for (int columnIndex = 0; columnIndex < testSet.getColumnNumber(); columnIndex++) {
-            final String columnName = testSet.getIdentifier(columnIndex);
-            if (!trainingPlatform.getProbeIds().containsKey(new MutableString(columnName))) {
-                if (LOG.isDebugEnabled()) {
-                    LOG.debug("removing column: " + columnName);
-                }
-                testSet.removeColumn(columnName);
+        final int[] columnIndices = new int[modelNumFeatures];
+        final ObjectList<String> missingFeatures = new ObjectArrayList<String>();
+        for (int featureIndex = 0; featureIndex < modelNumFeatures; featureIndex++) {
+            final String featureId = trainingPlatform.getProbesetIdentifier(featureIndex).toString();
+            if (testSet.isColumn(featureId)) {
+                columnIndices[featureIndex] = testSet.getColumnIndex(featureId);
+            } else {
+                missingFeatures.add(featureId);
             }
         }
 
-        // TODO: can we end up in an infinite loop here?
-        boolean permutation;
-        do {
-            permutation = false;
-            for (int columnIndex = 0; columnIndex < testSet.getColumnNumber(); columnIndex++) {
-                final String columnName = testSet.getIdentifier(columnIndex);
-                final int featureIndex = trainingPlatform.getProbeIds().getInt(new MutableString(columnName));
-                assert featureIndex < testSet.getColumnNumber() : "feature index out of range";
-                permutation |= testSet.permutateColumns(columnName, featureIndex);
-            }
-        } while (permutation);
-
-        for (int featurePosition = 0; featurePosition < trainingPlatform.getProbeIds().size(); featurePosition++) {
-            final String featureId = testSet.getIdentifier(featurePosition);   // +1 takes account of the label
-            final int featureIndex = trainingPlatform.getProbeIds().get(new MutableString(featureId));
-
-            if (featureIndex != featurePosition) {
-                LOG.fatal("Feature order does not match between the filtered input table and the "
-                        + "model. Cannot use model with input table.");
-                LOG.fatal(String.format("Feature %s is at position %d in the model, but at "
-                        + "position %d in the table. ", featureId, featureIndex, featurePosition));
-                System.exit(10);
-            }
+        if (!missingFeatures.isEmpty()) {
+            LOG.fatal("The test set does not contain all the features of the model. "
+                    + "Cannot use model with input table.");
+            throw new InvalidColumnException(String.format("%d of the %d features of the model "
+                    + "are not columns of the test set: %s", missingFeatures.size(),
+                    modelNumFeatures, StringUtils.join(missingFeatures, ", ")));
         }
-
-        final int modelNumFeatures = trainingPlatform.getProbeIds().size();
-        final int tableNumFeatures = testSet.getColumnNumber();
-        if (modelNumFeatures != tableNumFeatures) {
-            LOG.fatal("The number of features must match exactly between the model and the table.");
-            LOG.fatal("Model expected: " + modelNumFeatures);
-            LOG.fatal("Table contained: " + tableNumFeatures);
-            System.exit(10);
+        if (LOG.isDebugEnabled() && testSet.getColumnNumber() > modelNumFeatures) {
+            LOG.debug("ignoring " + (testSet.getColumnNumber() - modelNumFeatures)
+                    + " columns that are not features of the model.");
         }
-
-        final int numberOfSamples = testSet.getRowNumber();
+        return new TableView(testSet, columnIndices);
     }
 
     /**
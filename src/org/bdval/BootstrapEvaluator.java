@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import cern.jet.random.engine.RandomEngine;
+import edu.rit.pj.IntegerForLoop;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math.stat.descriptive.rank.Percentile;
+import org.bdval.util.ParallelTeams;
+
+import java.util.Arrays;
+
+/**
+ * Bootstrap estimates of the performance of a classifier on a fixed test set. Bootstrap
+ * samples are drawn with replacement as vectors of sample indices, in sequence from a single
+ * random generator and in the same order as {@link Predict#buildSample}, so that a seed
+ * produces the same samples as before and samples do not depend on the number of threads.
+ * AUC, MCC, accuracy, sensitivity and specificity are computed for each bootstrap sample
+ * directly on primitive arrays, in parallel across samples.
+ * Decisions are positive for the positive class; true labels are 1 for the positive class
+ * and 0 for the negative class.
+ */
+public class BootstrapEvaluator {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(BootstrapEvaluator.class);
+
+    /**
+     * Names of the measures, in the order of the rows returned by {@link #evaluate(int[][])}.
+     */
+    public static final String[] MEASURES = {
+            "AUC", "MCC", "Accuracy", "Sensitivity", "Specificity",
+    };
+
+    private static final int AUC = 0;
+    private static final int MCC = 1;
+    private static final int ACCURACY = 2;
+    private static final int SENSITIVITY = 3;
+    private static final int SPECIFICITY = 4;
+
+    /**
+     * Decision values of the test set samples.
+     */
+    private final double[] decisions;
+
+    /**
+     * True labels of the test set samples.
+     */
+    private final double[] trueLabels;
+
+    /**
+     * Number of threads used to evaluate samples. Zero uses one thread per processor.
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * Prepare bootstrap estimates for the predictions made on a test set.
+     *
+     * @param decisions  Decision value of each sample of the test set
+     * @param trueLabels True label of each sample of the test set (0 or 1)
+     */
+    public BootstrapEvaluator(final double[] decisions, final double[] trueLabels) {
+        super();
+        if (decisions.length != trueLabels.length) {
+            throw new IllegalArgumentException(
+                    " the number of decision values and labels must match.");
+        }
+        this.decisions = decisions;
+        this.trueLabels = trueLabels;
+    }
+
+    /**
+     * Set the number of threads used to evaluate bootstrap samples.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Draw bootstrap samples of the test set. Drawing is cheap compared to evaluation and is
+     * done sequentially.
+     *
+     * @param numberOfBootstrapSamples Number of samples to draw
+     * @param randomGenerator          Generator the samples are drawn from
+     * @return the indices of the test set samples in each bootstrap sample
+     */
+    public int[][] drawSamples(final int numberOfBootstrapSamples,
+                               final RandomEngine randomGenerator) {
+        final int sampleSize = decisions.length;
+        final int[][] samples = new int[numberOfBootstrapSamples][];
+        for (int i = 0; i < numberOfBootstrapSamples; i++) {
+            samples[i] = drawSample(randomGenerator, sampleSize);
+        }
+        return samples;
+    }
+
+    /**
+     * Draw one bootstrap sample.
+     *
+     * @param randomGenerator Generator the sample is drawn from
+     * @param sampleSize      Number of samples in the test set
+     * @return the indices of the test set samples in the bootstrap sample
+     */
+    public static int[] drawSample(final RandomEngine randomGenerator, final int sampleSize) {
+        final int[] instanceIndices = new int[sampleSize];
+        for (int instanceIndex = 0; instanceIndex < sampleSize; instanceIndex++) {
+            instanceIndices[instanceIndex] = (int) (randomGenerator.nextDouble() * sampleSize); //[0-sampleSize[  array indexing convention
+        }
+        return instanceIndices;
+    }
+
+    /**
+     * Evaluate performance measures on bootstrap samples.
+     *
+     * @param samples Bootstrap samples, as returned by {@link #drawSamples(int, RandomEngine)}
+     * @return the value of each measure on each sample, indexed by [measure][sample] in
+     * the order of {@link #MEASURES}. Measures that are not defined on a sample (e.g., AUC
+     * when the sample has a single class) are NaN.
+     */
+    public double[][] evaluate(final int[][] samples) {
+        final double[][] values = new double[MEASURES.length][samples.length];
+        forEachSample(samples.length, new IntegerForLoop() {
+            @Override
+            public void run(final int first, final int last) {
+                for (int i = first; i <= last; i++) {
+                    evaluate(samples[i], values, i);
+                }
+            }
+        });
+        return values;
+    }
+
+    /**
+     * Values of the decisions or labels of the samples of a bootstrap sample.
+     *
+     * @param values  Decisions or true labels of the test set
+     * @param indices Indices of the test set samples in the bootstrap sample
+     * @return the values in the bootstrap sample
+     */
+    public static double[] select(final double[] values, final int[] indices) {
+        final double[] selected = new double[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            selected[i] = values[indices[i]];
+        }
+        return selected;
+    }
+
+    /**
+     * Percentile confidence interval of a measure over bootstrap samples. NaN values are
+     * ignored.
+     *
+     * @param values Values of the measure on each bootstrap sample
+     * @param level  Confidence level, e.g., 0.95
+     * @return the lower and upper bounds of the interval, NaN when all values are NaN
+     */
+    public static double[] confidenceInterval(final double[] values, final double level) {
+        final double[] defined = definedValues(values);
+        if (defined.length == 0) {
+            return new double[] {Double.NaN, Double.NaN};
+        }
+        final double tail = (1 - level) / 2 * 100;
+        final Percentile percentile = new Percentile();
+        return new double[] {
+                percentile.evaluate(defined, Math.max(tail, Double.MIN_VALUE)),
+                percentile.evaluate(defined, 100 - tail)};
+    }
+
+    /**
+     * Average of a measure over bootstrap samples. NaN values are ignored.
+     *
+     * @param values Values of the measure on each bootstrap sample
+     * @return the average, NaN when all values are NaN
+     */
+    public static double mean(final double[] values) {
+        final double[] defined = definedValues(values);
+        double sum = 0;
+        for (final double value : defined) {
+            sum += value;
+        }
+        return defined.length == 0 ? Double.NaN : sum / defined.length;
+    }
+
+    private static double[] definedValues(final double[] values) {
+        int count = 0;
+        for (final double value : values) {
+            if (!Double.isNaN(value)) {
+                count++;
+            }
+        }
+        final double[] defined = new double[count];
+        int i = 0;
+        for (final double value : values) {
+            if (!Double.isNaN(value)) {
+                defined[i++] = value;
+            }
+        }
+        return defined;
+    }
+
+    private void evaluate(final int[] indices, final double[][] values, final int sampleIndex) {
+        int positives = 0;
+        for (final int index : indices) {
+            if (trueLabels[index] > 0) {
+                positives++;
+            }
+        }
+        final double[] positiveDecisions = new double[positives];
+        final double[] negativeDecisions = new double[indices.length - positives];
+        int truePositives = 0;
+        int trueNegatives = 0;
+        int p = 0;
+        int n = 0;
+        for (final int index : indices) {
+            final double decision = decisions[index];
+            if (trueLabels[index] > 0) {
+                positiveDecisions[p++] = decision;
+                if (decision > 0) {
+                    truePositives++;
+                }
+            } else {
+                negativeDecisions[n++] = decision;
+                if (decision <= 0) {
+                    trueNegatives++;
+                }
+            }
+        }
+        final int negatives = negativeDecisions.length;
+        final int falsePositives = negatives - trueNegatives;
+        final int falseNegatives = positives - truePositives;
+
+        values[AUC][sampleIndex] = auc(positiveDecisions, negativeDecisions);
+        values[ACCURACY][sampleIndex] = indices.length == 0 ? Double.NaN
+                : (truePositives + trueNegatives) / (double) indices.length;
+        values[SENSITIVITY][sampleIndex] = positives == 0 ? Double.NaN
+                : truePositives / (double) positives;
+        values[SPECIFICITY][sampleIndex] = negatives == 0 ? Double.NaN
+                : trueNegatives / (double) negatives;
+        final double denominator = Math.sqrt((double) (truePositives + falsePositives)
+                * (truePositives + falseNegatives) * (trueNegatives + falsePositives)
+                * (trueNegatives + falseNegatives));
+        values[MCC][sampleIndex] = denominator == 0 ? 0
+                : ((double) truePositives * trueNegatives
+                - (double) falsePositives * falseNegatives) / denominator;
+    }
+
+    /**
+     * Area under the ROC curve, as the probability that a positive sample has a larger
+     * decision than a negative sample (ties count one half).
+     */
+    private static double auc(final double[] positiveDecisions, final double[] negativeDecisions) {
+        if (positiveDecisions.length == 0 || negativeDecisions.length == 0) {
+            return Double.NaN;
+        }
+        Arrays.sort(positiveDecisions);
+        Arrays.sort(negativeDecisions);
+        double pairs = 0;
+        int below = 0;   // negatives strictly below the current positive decision
+        int notAbove = 0;  // negatives below or equal to the current positive decision
+        for (final double decision : positiveDecisions) {
+            while (below < negativeDecisions.length && negativeDecisions[below] < decision) {
+                below++;
+            }
+            if (notAbove < below) {
+                notAbove = below;
+            }
+            while (notAbove < negativeDecisions.length && negativeDecisions[notAbove] <= decision) {
+                notAbove++;
+            }
+            pairs += below + (notAbove - below) / 2.0;
+        }
+        return pairs / ((double) positiveDecisions.length * negativeDecisions.length);
+    }
+
+    /**
+     * Run a loop over bootstrap samples on a team of threads, or on the calling thread when a
+     * single thread is used.
+     */
+    private void forEachSample(final int numberOfBootstrapSamples, final IntegerForLoop loop) {
+        try {
+            ParallelTeams.execute(numberOfThreads,
+                    0, numberOfBootstrapSamples - 1 /* end index is inclusive */, loop);
+        } catch (Exception e) {
+            LOG.error("An error occurred evaluating bootstrap samples", e);
+            throw new IllegalStateException("An error occurred evaluating bootstrap samples", e);
+        }
+    }
+}
@@ -25,8 +25,8 @@ import edu.mssm.crover.tables.ColumnTypeException;
 import edu.mssm.crover.tables.InvalidColumnException;
 import edu.mssm.crover.tables.Table;
 import edu.mssm.crover.tables.TypeMismatchException;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
@@ -40,12 +40,16 @@ import org.apache.commons.lang.BooleanUtils;
 import org.apache.commons.lang.SystemUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bdval.util.ParallelTeams;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -114,6 +118,15 @@ public class ConsensusBDVModel extends BDVModel {
         }
     }
 
+    /**
+     * Prepare the test set of each juror model. Jurors are grouped by the options that
+     * preprocess the input table, and the input table is processed once per group, for the
+     * union of the features of the jurors of the group. Jurors that aggregate pathway features
+     * are grouped by dataset and split, since pathway components are stored for a dataset and
+     * split. Each juror then gets a copy of its own columns, scaled with its own scaling
+     * values. Jurors are prepared concurrently on {@link #setNumberOfThreads(int)
+     * numberOfThreads} threads.
+     */
     @Override
     protected synchronized Table loadTestSet(final DAVMode mode, final DAVOptions options,
                                              final FixedGeneList geneList,
@@ -127,37 +140,101 @@ public class ConsensusBDVModel extends BDVModel {
         }
 
         final GEOPlatformIndexed oldTrainingPlatform = options.trainingPlatform;
-        int index = 0;
-        for (final BDVModel jurorModel : jurorModels) {
-            System.out.println("processing dataset for component model " + index++);
-            options.datasetName = jurorModel.datasetName;
+        final Map<String, List<BDVModel>> groups = groupJurorModels();
+        int groupIndex = 0;
+        for (final List<BDVModel> group : groups.values()) {
+            System.out.println("processing dataset for component model group " + groupIndex++);
+            final BDVModel firstJurorModel = group.get(0);
+            options.datasetName = firstJurorModel.datasetName;
 
-            Table processedTable = mode.processTable(jurorModel.getGeneList(),
-                    options.inputTable, options, labelValueGroups, true, jurorModel.splitId, "predict");
+            Table processedTable = mode.processTable(unionGeneList(group),
+                    options.inputTable, options, labelValueGroups, true, firstJurorModel.splitId,
+                    "predict");
 
             // several prediction datasets may exist (e.g., test, validation), so we clear the
             // cache from these data:
-            // TODO enable cache removal. Commented to speed up debugging only.
-            mode.removeFromCache(jurorModel.splitId, "predict", jurorModel.datasetName);
-
-            options.probesetScaleMeanMap = jurorModel.probesetScaleMeanMap;
-            options.probesetScaleRangeMap = jurorModel.probesetScaleRangeMap;
-            mode.scaleFeatures(options, true, processedTable);
+            mode.removeFromCache(firstJurorModel.splitId, "predict", firstJurorModel.datasetName);
             // reload the platform. We changed it in processTable.
             options.trainingPlatform = oldTrainingPlatform;
 
             if (testSampleIds != null) {
                 // focus on a subset of samples in the input table: those in test-samples
-                processedTable = mode.filterSamples(processedTable, testSampleIds);
+                processedTable = mode.filterSamples(processedTable, testSampleIds, true);
             }
+            prepareJurorTestSets(mode, options, processedTable, group);
+        }
 
-            jurorModel.splitSpecificTestSet = processedTable;
+        // return the first test set, we just need it to extract sample ids..
+        return jurorModels.get(0).splitSpecificTestSet;
+    }
+
+    /**
+     * Group the juror models by the options that preprocess the input table for them.
+     *
+     * @return juror models, grouped in the order of the jurors
+     */
+    private Map<String, List<BDVModel>> groupJurorModels() {
+        final Map<String, List<BDVModel>> groups = new LinkedHashMap<String, List<BDVModel>>();
+        for (final BDVModel jurorModel : jurorModels) {
+            final Properties jurorProperties = jurorModel.getProperties();
+            final String pathways = jurorProperties.getString("pathway.option.pathways");
+            // the aggregation method is recorded for every model, but only matters with
+            // pathways, whose components depend on the dataset and split:
+            final String groupKey = pathways == null ? "" : pathways + "\t"
+                    + jurorProperties.getString("pathway.option.gene-to-probe") + "\t"
+                    + jurorProperties.getString("pathway.aggregation.method") + "\t"
+                    + jurorModel.datasetName + "\t" + jurorModel.splitId;
+            List<BDVModel> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<BDVModel>();
+                groups.put(groupKey, group);
+            }
+            group.add(jurorModel);
         }
+        return groups;
+    }
+
+    /**
+     * Prepare the test set of each juror model from a table processed for the union of the
+     * juror features. Each juror gets a copy of its own columns, scaled with its own scaling
+     * values. Jurors are prepared concurrently on {@link #setNumberOfThreads(int)
+     * numberOfThreads} threads.
+     */
+    @Override
+    protected Table prepareTestSet(final DAVMode mode, final DAVOptions options,
+                                   final Table unionTable)
+            throws TypeMismatchException, InvalidColumnException {
+        prepareJurorTestSets(mode, options, unionTable, jurorModels);
 
         // return the first test set, we just need it to extract sample ids..
         return jurorModels.get(0).splitSpecificTestSet;
     }
 
+    /**
+     * Prepare the test sets of some juror models from a table processed for the union of
+     * their features.
+     */
+    private void prepareJurorTestSets(final DAVMode mode, final DAVOptions options,
+                                      final Table unionTable, final List<BDVModel> jurors) {
+        forEachJuror(numberOfThreads, jurors, new JurorLoop() {
+            @Override
+            public void run(final BDVModel jurorModel, final int jurorIndex) throws Exception {
+                // each juror has its own scaling values and training platform:
+                final DAVOptions jurorOptions = new DAVOptions();
+                jurorOptions.scaleFeatures = options.scaleFeatures;
+                jurorOptions.scalerClass = options.scalerClass;
+                jurorOptions.probesetScaleMeanMap = jurorModel.probesetScaleMeanMap;
+                jurorOptions.probesetScaleRangeMap = jurorModel.probesetScaleRangeMap;
+
+                // filterTable copies the columns, scaling will not change the union table:
+                final Table jurorTable =
+                        mode.filterTable(jurorOptions, unionTable, jurorModel.getGeneList());
+                mode.scaleFeatures(jurorOptions, true, jurorTable);
+                jurorModel.splitSpecificTestSet = jurorTable;
+            }
+        });
+    }
+
     /**
      * Add properties specific to the model type.
      * @param modelProperties The property object to add properties to.
@@ -394,32 +471,101 @@ public class ConsensusBDVModel extends BDVModel {
             probabilities[j] = 0;
         }
         final double[] localProbs = new double[probabilities.length];
-        final DoubleList jurorDecisionPositive = new DoubleArrayList();
-        final DoubleList jurorDecisionNegative = new DoubleArrayList();
+        int positiveVotes = 0;
+        int negativeVotes = 0;
+        double positiveProbabilitySum = 0;
+        double negativeProbabilitySum = 0;
         for (final BDVModel jurorModel : jurorModels) {
             final double jurorDecision =
                     jurorModel.predict(jurorModel.modelSpecificProblem, sampleIndex, localProbs);
             final double probability = Math.max(localProbs[0], localProbs[1]);
 
             if (jurorDecision > 0) {
-                jurorDecisionPositive.add(probability);
+                positiveVotes++;
+                positiveProbabilitySum += probability;
             } else {
-                jurorDecisionNegative.add(probability);
+                negativeVotes++;
+                negativeProbabilitySum += probability;
             }
+        }
+        return vote(positiveVotes, positiveProbabilitySum, negativeVotes, negativeProbabilitySum,
+                probabilities, 0);
+    }
 
+    /**
+     * Predict the consensus class label of a batch of samples. Each juror predicts all the
+     * samples of the batch, jurors are evaluated concurrently.
+     *
+     * @param sampleIndices   Indices of the samples to predict.
+     * @param decisions       Array where the consensus class label of sampleIndices[i] is
+     *                        written at index i.
+     * @param probabilities   Array where the consensus probability of sampleIndices[i] is
+     *                        written at index 2i (index 2i+1 is set to zero).
+     * @param numberOfThreads Number of threads to evaluate jurors with. Zero uses one thread
+     *                        per processor.
+     */
+    @Override
+    public void predict(final int[] sampleIndices, final double[] decisions,
+                        final double[] probabilities, final int numberOfThreads) {
+        assert decisions.length >= sampleIndices.length : "decisions array is too small.";
+        assert probabilities.length >= 2 * sampleIndices.length : "probabilities array is too small.";
+        final int numberOfSamples = sampleIndices.length;
+        if (numberOfSamples == 0) {
+            return;
         }
-        final double consensusDecision =
-                jurorDecisionPositive.size() > jurorDecisionNegative.size() ? 1 : -1;
-        final DoubleList toSum =
-                consensusDecision == 1 ? jurorDecisionPositive : jurorDecisionNegative;
-        double consensusProbability = 0;
-        for (final double value : toSum) {
-            consensusProbability += value;
+        final int numberOfJurors = jurorModels.size();
+        // juror j stores the decision and probability of sample i at j * numberOfSamples + i:
+        final double[] jurorDecisions = new double[numberOfJurors * numberOfSamples];
+        final double[] jurorProbabilities = new double[numberOfJurors * numberOfSamples];
+        forEachJuror(numberOfThreads, jurorModels, new JurorLoop() {
+            @Override
+            public void run(final BDVModel jurorModel, final int jurorIndex) {
+                final double[] localProbs = new double[2];
+                final int offset = jurorIndex * numberOfSamples;
+                for (int i = 0; i < numberOfSamples; i++) {
+                    jurorDecisions[offset + i] = jurorModel.predict(
+                            jurorModel.modelSpecificProblem, sampleIndices[i], localProbs);
+                    jurorProbabilities[offset + i] = Math.max(localProbs[0], localProbs[1]);
+                }
+            }
+        });
+
+        for (int i = 0; i < numberOfSamples; i++) {
+            int positiveVotes = 0;
+            int negativeVotes = 0;
+            double positiveProbabilitySum = 0;
+            double negativeProbabilitySum = 0;
+            for (int offset = i; offset < jurorDecisions.length; offset += numberOfSamples) {
+                if (jurorDecisions[offset] > 0) {
+                    positiveVotes++;
+                    positiveProbabilitySum += jurorProbabilities[offset];
+                } else {
+                    negativeVotes++;
+                    negativeProbabilitySum += jurorProbabilities[offset];
+                }
+            }
+            probabilities[2 * i + 1] = 0;
+            decisions[i] = vote(positiveVotes, positiveProbabilitySum, negativeVotes,
+                    negativeProbabilitySum, probabilities, 2 * i);
         }
-        consensusProbability /= (double) toSum.size();
-        probabilities[0] = consensusProbability;
+    }
 
-        return consensusDecision;
+    /**
+     * Decide the consensus class label by majority vote. Ties are negative. The consensus
+     * probability is the average probability of the jurors of the majority.
+     *
+     * @return the consensus class label
+     */
+    private static double vote(final int positiveVotes, final double positiveProbabilitySum,
+                               final int negativeVotes, final double negativeProbabilitySum,
+                               final double[] probabilities, final int probabilityIndex) {
+        if (positiveVotes > negativeVotes) {
+            probabilities[probabilityIndex] = positiveProbabilitySum / (double) positiveVotes;
+            return 1;
+        } else {
+            probabilities[probabilityIndex] = negativeProbabilitySum / (double) negativeVotes;
+            return -1;
+        }
     }
 
     /**
@@ -440,13 +586,66 @@ public class ConsensusBDVModel extends BDVModel {
     @Override
     public void prepareClassificationProblem(final Table testSet)
             throws InvalidColumnException, TypeMismatchException {
-        for (final BDVModel jurorModel : jurorModels) {
-            assert jurorModel.splitSpecificTestSet != null
-                    : "split-specific test set must have been pre-populated.";
+        forEachJuror(numberOfThreads, jurorModels, new JurorLoop() {
+            @Override
+            public void run(final BDVModel jurorModel, final int jurorIndex) throws Exception {
+                assert jurorModel.splitSpecificTestSet != null
+                        : "split-specific test set must have been pre-populated.";
+
+                jurorModel.modelSpecificProblem = loadProblem(jurorModel.getHelper(),
+                        jurorModel.checkReOrderTestSet(jurorModel.splitSpecificTestSet));
+            }
+        });
+    }
+
+    /**
+     * Work done for each juror model by {@link ConsensusBDVModel#forEachJuror}.
+     */
+    private abstract static class JurorLoop {
+        /**
+         * Process one juror model.
+         *
+         * @param jurorModel The juror model
+         * @param jurorIndex Index of the juror in the list of jurors being processed
+         * @throws Exception if the juror cannot be processed
+         */
+        public abstract void run(BDVModel jurorModel, int jurorIndex) throws Exception;
+    }
 
-            jurorModel.checkReOrderTestSet(jurorModel.splitSpecificTestSet);
-            jurorModel.modelSpecificProblem =
-                    loadProblem(jurorModel.getHelper(), jurorModel.splitSpecificTestSet);
+    /**
+     * Run a loop over juror models on a team of threads. Each juror is processed by
+     * exactly one thread. The team always has the number of threads of the model, whatever
+     * the number of jurors, so that the same teams are reused by every call.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     * @param jurors          The juror models to process
+     * @param loop            The work to do for each juror
+     */
+    private void forEachJuror(final int numberOfThreads, final List<BDVModel> jurors,
+                              final JurorLoop loop) {
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Processing " + jurors.size() + " juror models on "
+                    + ParallelTeams.getThreadCount(numberOfThreads) + " threads.");
+        }
+        try {
+            ParallelTeams.execute(numberOfThreads,
+                    0, jurors.size() - 1 /* end index is inclusive */, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            // jurors may differ in size, hand them out one at a time:
+                            return IntegerSchedule.dynamic(1);
+                        }
+
+                        @Override
+                        public void run(final int first, final int last) throws Exception {
+                            for (int jurorIndex = first; jurorIndex <= last; jurorIndex++) {
+                                loop.run(jurors.get(jurorIndex), jurorIndex);
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            LOG.error("An error occurred processing juror models", e);
+            throw new IllegalStateException("An error occurred processing juror models", e);
         }
     }
 
@@ -458,16 +657,37 @@ public class ConsensusBDVModel extends BDVModel {
      */
     @Override
     protected FixedGeneList convertTrainingPlatformToGeneList(final DAVOptions options) {
-        final ObjectSet<String> probeIds = new ObjectOpenHashSet<String>();
+        return unionGeneList(jurorModels);
+    }
 
-        for (final BDVModel jurorModel : jurorModels) {
-            for (int probeIndex = 0; probeIndex < jurorModel.trainingPlatform.getNumProbeIds(); probeIndex++) {
-                probeIds.add(jurorModel.trainingPlatform.getProbesetIdentifier(probeIndex).toString());
-            }
+    /**
+     * Calculate the union of the gene lists used by some juror models.
+     *
+     * @param jurors The juror models
+     * @return A gene list with the features of the juror models
+     */
+    private static FixedGeneList unionGeneList(final List<BDVModel> jurors) {
+        final Set<String> probeIds = new ObjectOpenHashSet<String>();
+        for (final BDVModel jurorModel : jurors) {
+            probeIds.addAll(jurorModel.getFeatureIds());
         }
         return new FixedGeneList(probeIds.toArray(new String[probeIds.size()]));
     }
 
+    /**
+     * The features of a consensus model are the union of the features of its juror models.
+     *
+     * @return the identifiers of the features of the juror models
+     */
+    @Override
+    public Set<String> getFeatureIds() {
+        final Set<String> probeIds = new ObjectOpenHashSet<String>();
+        for (final BDVModel jurorModel : jurorModels) {
+            probeIds.addAll(jurorModel.getFeatureIds());
+        }
+        return probeIds;
+    }
+
     /**
      * Is this model an consensus of other models?
      *
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.NormalDistributionImpl;
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.DecompositionSolver;
+import org.apache.commons.math.linear.LUDecompositionImpl;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Cox proportional-hazards regression, fitted in the JVM. The fit follows R's
+ * <code>coxph</code> defaults, as used by <code>rscripts/cox_regression.R</code>: the partial
+ * likelihood uses the Efron approximation for tied event times, and is maximized by
+ * Newton-Raphson iterations from zero coefficients, with step halving when an iteration does
+ * not improve the likelihood. P-values are Wald tests and R2 is the likelihood-ratio R2 reported
+ * by <code>summary.coxph</code>.
+ */
+public class CoxProportionalHazards {
+    /**
+     * Maximum number of Newton-Raphson iterations (coxph iter.max).
+     */
+    private static final int MAX_ITERATIONS = 20;
+
+    /**
+     * Relative change of the log partial likelihood at convergence (coxph eps).
+     */
+    private static final double EPSILON = 1E-9;
+
+    /**
+     * Survival or censoring time of each sample.
+     */
+    private final double[] time;
+
+    /**
+     * Event indicator of each sample: 1 when the event was observed, 0 when censored.
+     */
+    private final double[] censor;
+
+    /**
+     * Centered covariates, indexed by [sample][covariate].
+     */
+    private final double[][] covariates;
+
+    /**
+     * Sample indices by decreasing time.
+     */
+    private final int[] order;
+
+    private final double[] coefficients;
+    private final double[][] variance;
+    private final double logLikelihood;
+    private final double nullLogLikelihood;
+    private int iterations;
+
+    /**
+     * Fit a Cox proportional-hazards model.
+     *
+     * @param time       Survival or censoring time of each sample
+     * @param censor     Event indicator of each sample (1 for an event, 0 for censored)
+     * @param covariates Covariates, indexed by [covariate][sample]
+     */
+    public CoxProportionalHazards(final double[] time, final double[] censor,
+                                  final double[][] covariates) {
+        super();
+        if (time.length != censor.length) {
+            throw new IllegalArgumentException(
+                    " the number of times and censor values must match.");
+        }
+        final int numberOfCovariates = covariates.length;
+        final int numberOfSamples = time.length;
+        this.time = time;
+        this.censor = censor;
+        this.covariates = new double[numberOfSamples][numberOfCovariates];
+        for (int k = 0; k < numberOfCovariates; k++) {
+            if (covariates[k].length != numberOfSamples) {
+                throw new IllegalArgumentException(
+                        " the number of values of covariate " + k + " must match the number of times.");
+            }
+            // centering does not change the coefficients but keeps exp() in range:
+            double mean = 0;
+            for (final double value : covariates[k]) {
+                mean += value;
+            }
+            mean /= numberOfSamples;
+            for (int i = 0; i < numberOfSamples; i++) {
+                this.covariates[i][k] = covariates[k][i] - mean;
+            }
+        }
+        this.order = orderByDecreasingTime(time);
+
+        double[] beta = new double[numberOfCovariates];
+        double[] gradient = new double[numberOfCovariates];
+        double[][] information = new double[numberOfCovariates][numberOfCovariates];
+        nullLogLikelihood = evaluate(beta, gradient, information);
+        double current = nullLogLikelihood;
+        for (iterations = 1; iterations <= MAX_ITERATIONS; iterations++) {
+            final double[] step = solver(information).solve(gradient);
+            final double[] candidate = new double[numberOfCovariates];
+            for (int k = 0; k < numberOfCovariates; k++) {
+                candidate[k] = beta[k] + step[k];
+            }
+            final double[] candidateGradient = new double[numberOfCovariates];
+            final double[][] candidateInformation = new double[numberOfCovariates][numberOfCovariates];
+            double candidateLikelihood = evaluate(candidate, candidateGradient, candidateInformation);
+            int halvings = 0;
+            // also halves when the likelihood overflowed to NaN:
+            while (!(candidateLikelihood >= current) && halvings++ < MAX_ITERATIONS) {
+                for (int k = 0; k < numberOfCovariates; k++) {
+                    candidate[k] = (beta[k] + candidate[k]) / 2;
+                }
+                candidateLikelihood = evaluate(candidate, candidateGradient, candidateInformation);
+            }
+            final boolean converged = Math.abs(1 - current / candidateLikelihood) <= EPSILON;
+            beta = candidate;
+            gradient = candidateGradient;
+            information = candidateInformation;
+            current = candidateLikelihood;
+            if (converged) {
+                break;
+            }
+        }
+        iterations = Math.min(iterations, MAX_ITERATIONS);
+        coefficients = beta;
+        logLikelihood = current;
+        variance = solver(information).getInverse().getData();
+    }
+
+    /**
+     * Sample indices sorted by decreasing time. Samples with the same time are consecutive.
+     */
+    static int[] orderByDecreasingTime(final double[] time) {
+        final Integer[] indices = new Integer[time.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = i;
+        }
+        Arrays.sort(indices, new Comparator<Integer>() {
+            public int compare(final Integer first, final Integer second) {
+                return Double.compare(time[second], time[first]);
+            }
+        });
+        final int[] order = new int[indices.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = indices[i];
+        }
+        return order;
+    }
+
+    private static DecompositionSolver solver(final double[][] matrix) {
+        return new LUDecompositionImpl(new Array2DRowRealMatrix(matrix, false)).getSolver();
+    }
+
+    /**
+     * Log partial likelihood (Efron ties), its gradient and the observed information matrix
+     * at the given coefficients. Risk sets are accumulated from the longest time down, so
+     * each distinct time adds its samples to the sums of the risk set before its events are
+     * processed.
+     */
+    private double evaluate(final double[] beta, final double[] gradient,
+                            final double[][] information) {
+        final int p = beta.length;
+        final int n = order.length;
+        Arrays.fill(gradient, 0);
+        for (final double[] row : information) {
+            Arrays.fill(row, 0);
+        }
+        double result = 0;
+        double riskSum = 0;
+        final double[] riskWeightedSum = new double[p];
+        final double[][] riskWeightedSquares = new double[p][p];
+        final double[] eventWeightedSum = new double[p];
+        final double[][] eventWeightedSquares = new double[p][p];
+        final double[] mean = new double[p];
+        int position = 0;
+        while (position < n) {
+            final double currentTime = time[order[position]];
+            double eventRiskSum = 0;
+            int events = 0;
+            Arrays.fill(eventWeightedSum, 0);
+            for (final double[] row : eventWeightedSquares) {
+                Arrays.fill(row, 0);
+            }
+            for (; position < n && time[order[position]] == currentTime; position++) {
+                final int sample = order[position];
+                final double[] x = covariates[sample];
+                double linearPredictor = 0;
+                for (int j = 0; j < p; j++) {
+                    linearPredictor += beta[j] * x[j];
+                }
+                final double risk = Math.exp(linearPredictor);
+                riskSum += risk;
+                for (int j = 0; j < p; j++) {
+                    riskWeightedSum[j] += risk * x[j];
+                    for (int k = 0; k <= j; k++) {
+                        riskWeightedSquares[j][k] += risk * x[j] * x[k];
+                    }
+                }
+                if (censor[sample] == 1) {
+                    events++;
+                    eventRiskSum += risk;
+                    result += linearPredictor;
+                    for (int j = 0; j < p; j++) {
+                        gradient[j] += x[j];
+                        eventWeightedSum[j] += risk * x[j];
+                        for (int k = 0; k <= j; k++) {
+                            eventWeightedSquares[j][k] += risk * x[j] * x[k];
+                        }
+                    }
+                }
+            }
+            for (int l = 0; l < events; l++) {
+                final double fraction = (double) l / events;
+                final double denominator = riskSum - fraction * eventRiskSum;
+                result -= Math.log(denominator);
+                for (int j = 0; j < p; j++) {
+                    mean[j] = (riskWeightedSum[j] - fraction * eventWeightedSum[j]) / denominator;
+                    gradient[j] -= mean[j];
+                }
+                for (int j = 0; j < p; j++) {
+                    for (int k = 0; k <= j; k++) {
+                        information[j][k] += (riskWeightedSquares[j][k]
+                                - fraction * eventWeightedSquares[j][k]) / denominator
+                                - mean[j] * mean[k];
+                    }
+                }
+            }
+        }
+        for (int j = 0; j < p; j++) {
+            for (int k = 0; k < j; k++) {
+                information[k][j] = information[j][k];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the regression coefficient of each covariate
+     */
+    public double[] getCoefficients() {
+        return coefficients;
+    }
+
+    /**
+     * @return the hazard ratio of each covariate, exp(coefficient)
+     */
+    public double[] getHazardRatios() {
+        final double[] ratios = new double[coefficients.length];
+        for (int k = 0; k < ratios.length; k++) {
+            ratios[k] = Math.exp(coefficients[k]);
+        }
+        return ratios;
+    }
+
+    /**
+     * @return the standard error of each coefficient
+     */
+    public double[] getStandardErrors() {
+        final double[] errors = new double[coefficients.length];
+        for (int k = 0; k < errors.length; k++) {
+            errors[k] = Math.sqrt(variance[k][k]);
+        }
+        return errors;
+    }
+
+    /**
+     * @return the Wald test p-value of each coefficient
+     * @throws MathException if the normal distribution cannot be evaluated
+     */
+    public double[] getPValues() throws MathException {
+        final NormalDistributionImpl normal = new NormalDistributionImpl();
+        final double[] errors = getStandardErrors();
+        final double[] pValues = new double[coefficients.length];
+        for (int k = 0; k < pValues.length; k++) {
+            pValues[k] = 2 * normal.cumulativeProbability(-Math.abs(coefficients[k] / errors[k]));
+        }
+        return pValues;
+    }
+
+    /**
+     * Confidence intervals of the hazard ratios, as reported by summary.coxph.
+     *
+     * @param alpha One minus the confidence level, e.g., 0.05
+     * @return the lower and upper bounds of the interval of each hazard ratio, indexed by
+     * [covariate][bound]
+     * @throws MathException if the normal distribution cannot be evaluated
+     */
+    public double[][] getConfidenceIntervals(final double alpha) throws MathException {
+        final double z = new NormalDistributionImpl().inverseCumulativeProbability(1 - alpha / 2);
+        final double[] errors = getStandardErrors();
+        final double[][] intervals = new double[coefficients.length][];
+        for (int k = 0; k < intervals.length; k++) {
+            intervals[k] = new double[] {
+                    Math.exp(coefficients[k] - z * errors[k]),
+                    Math.exp(coefficients[k] + z * errors[k])};
+        }
+        return intervals;
+    }
+
+    /**
+     * @return the likelihood-ratio R2, 1 - exp(2 (null log likelihood - log likelihood) / n)
+     */
+    public double getRSquare() {
+        return 1 - Math.exp(2 * (nullLogLikelihood - logLikelihood) / time.length);
+    }
+
+    /**
+     * @return the log partial likelihood at the fitted coefficients
+     */
+    public double getLogLikelihood() {
+        return logLikelihood;
+    }
+
+    /**
+     * @return the log partial likelihood with all coefficients zero
+     */
+    public double getNullLogLikelihood() {
+        return nullLogLikelihood;
+    }
+
+    /**
+     * @return the number of Newton-Raphson iterations used by the fit
+     */
+    public int getIterations() {
+        return iterations;
+    }
+}
@@ -24,6 +24,7 @@ import edu.cornell.med.icb.R.RConnectionPool;
 import edu.cornell.med.icb.R.RUtils;
 import edu.cornell.med.icb.cli.UseModality;
 import edu.cornell.med.icb.geo.*;
+import edu.cornell.med.icb.geo.binaryarray.MappedArrayReader;
 import edu.cornell.med.icb.geo.tools.*;
 import edu.cornell.med.icb.identifier.DoubleIndexedIdentifier;
 import edu.cornell.med.icb.identifier.IndexedIdentifier;
@@ -48,10 +49,13 @@ import org.apache.commons.lang.SystemUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bdval.cache.TableCache;
+import org.bdval.cache.TableMemoryCache;
 import org.bdval.pathways.AverageAcrossPathwayFeatureAggregator;
 import org.bdval.pathways.PCAFeatureAggregator;
 import org.bdval.pathways.PathwayFeatureAggregator;
 import org.bdval.pathways.PathwayInfo;
+import org.bdval.util.PipelinedInputStream;
+import org.bdval.util.TableView;
 
 import java.io.*;
 import java.util.*;
@@ -117,16 +121,21 @@ public class DAVMode extends UseModality<DAVOptions> {
      */
     private String aggregationType;
 
-    /**
-     * Synchronization object for pathway processing.
-     * TODO: probably should not be a String
-     */
-    private static final String SEMAPHORE = "global".intern();
     /**
      * BDVal configuration properties, from the --properties argument.
      */
     protected Properties configurationProperties;
 
+    /**
+     * Number of threads used to parse GEO series input files.
+     */
+    private int inputThreads = 1;
+
+    /**
+     * Number of threads used to compute univariate feature statistics.
+     */
+    private int statisticsThreads = 1;
+
     /**
      * Define basic command line options for this mode.  Individual modes should override
      * making sure that options are reused or removed appropriately.  Options cannot
@@ -148,6 +157,16 @@ public class DAVMode extends UseModality<DAVOptions> {
                         + " discover markers.");
         jsap.registerParameter(inputFilenameOption);
 
+        final Parameter inputThreads = new FlaggedOption("input-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("input-threads")
+                .setHelp("Number of threads used to parse the samples of GEO series (GSE) "
+                        + "soft input files. Zero uses one thread per processor. "
+                        + "Default is 1 (sequential).");
+        jsap.registerParameter(inputThreads);
+
         final Parameter outputFlag = new FlaggedOption("output")
                 .setStringParser(JSAP.STRING_PARSER)
                 .setDefault(JSAP.NO_DEFAULT)
@@ -284,6 +303,27 @@ public class DAVMode extends UseModality<DAVOptions> {
                         + "average of the probeset signal in each pathway. Default is PCA.");
         jsap.registerParameter(pathwayAggregationMethod);
 
+        final Parameter pathwayThreads = new FlaggedOption("pathway-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("pathway-threads")
+                .setHelp("Number of threads used to aggregate the features of pathways. "
+                        + "Pathways are independent and can be aggregated concurrently. "
+                        + "Zero uses one thread per processor. Default is 1 (sequential).");
+        jsap.registerParameter(pathwayThreads);
+
+        final Parameter statisticsThreads = new FlaggedOption("statistics-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("statistics-threads")
+                .setHelp("Number of threads used to compute univariate statistics of the "
+                        + "features (e.g., T-Test or permutation p-values) when discovering "
+                        + "markers. Zero uses one thread per processor. "
+                        + "Default is 1 (sequential).");
+        jsap.registerParameter(statisticsThreads);
+
         final Parameter gene2Probes = new FlaggedOption("gene2probes")
                 .setStringParser(JSAP.STRING_PARSER)
                 .setDefault(JSAP.NO_DEFAULT)
@@ -480,6 +520,17 @@ public class DAVMode extends UseModality<DAVOptions> {
                 .setHelp("Enables caching for faster access to processed tables.");
         jsap.registerParameter(cacheEnabledParam);
 
+        final Parameter cacheMemoryParam = new FlaggedOption("cache-memory")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("0")
+                .setRequired(false)
+                .setLongFlag("cache-memory")
+                .setHelp("Memory budget (in megabytes) used to keep cached tables in memory, "
+                        + "in front of the cache directory. Least recently used tables are "
+                        + "evicted when the budget is exceeded. Zero (default) keeps no table "
+                        + "in memory. Only used when the cache is enabled.");
+        jsap.registerParameter(cacheMemoryParam);
+
         final Parameter pathwayComponentDirParam = new FlaggedOption("pathway-components-dir")
                 .setStringParser(JSAP.STRING_PARSER)
                 .setDefault("pathway-components")
@@ -506,6 +557,7 @@ public class DAVMode extends UseModality<DAVOptions> {
         setupDatasetRoot(result, options);
         setupSplitPlan(result, options);
         setupPathwayOptions(result, options);
+        setupStatisticsThreads(result);
         setupTableCache(result, options);
         setupTaskAndConditions(result, options);
         setupInput(result, options);
@@ -520,6 +572,12 @@ public class DAVMode extends UseModality<DAVOptions> {
         setupScalerOptions(result, options);
     }
 
+    private void setupStatisticsThreads(final JSAPResult result) {
+        if (result.contains("statistics-threads")) {
+            statisticsThreads = result.getInt("statistics-threads");
+        }
+    }
+
     private void setupProperties(final JSAPResult result) {
         if (result.contains("properties")) {
             final String propsFilename = result.getString("properties");
@@ -567,6 +625,10 @@ public class DAVMode extends UseModality<DAVOptions> {
                     FileUtils.forceMkdir(cacheDir);
                 }
                 tableCache = new TableCache(cacheDir);
+                if (result.contains("cache-memory")) {
+                    TableMemoryCache.getInstance().setBudget(
+                            result.getInt("cache-memory") * 1024L * 1024L);
+                }
             } catch (IOException e) {
                 LOG.error("Cannot setup table cache in directory" + tableCacheDirectory, e);
                 System.exit(1);
@@ -633,6 +695,30 @@ public class DAVMode extends UseModality<DAVOptions> {
         }
     }
 
+    /**
+     * Create options to load a model with. Models change the options they are loaded with
+     * (platform, scaling, classifier), so modes that hold several models give each its own
+     * options. Options that describe the arrays and the environment are copied from the
+     * options of the mode.
+     *
+     * @param options Interpreted options of the mode
+     * @return new options for one model
+     */
+    protected DAVOptions createModelOptions(final DAVOptions options) {
+        final DAVOptions modelOptions = new DAVOptions();
+        modelOptions.platforms = options.platforms;
+        modelOptions.randomGenerator = options.randomGenerator;
+        modelOptions.randomSeed = options.randomSeed;
+        modelOptions.rservePort = options.rservePort;
+        modelOptions.adjustSignalToFloorValue = options.adjustSignalToFloorValue;
+        modelOptions.signalFloorValue = options.signalFloorValue;
+        modelOptions.oneChannelArray = options.oneChannelArray;
+        modelOptions.loggedArray = options.loggedArray;
+        modelOptions.quiet = options.quiet;
+        modelOptions.datasetName = options.datasetName;
+        return modelOptions;
+    }
+
     protected void setupPathwayOptions(final DAVOptions options,
                                        final String pathwayAggregationMethod,
                                        final String pathwayInfoFilename,
@@ -689,6 +775,9 @@ public class DAVMode extends UseModality<DAVOptions> {
         }
         setupPathwayOptions(options,
                 pathwayAggregationMethod, pathwayFilename, gene2ProbeFilename, pathwayComponentsDir);
+        if (pathwayHelper != null && result.contains("pathway-threads")) {
+            pathwayHelper.setNumberOfThreads(result.getInt("pathway-threads"));
+        }
     }
 
     public void loadPathways(final DAVOptions options, final String pathwayFilename) {
@@ -785,6 +874,9 @@ public class DAVMode extends UseModality<DAVOptions> {
 
     protected synchronized void setupInput(final JSAPResult result, final DAVOptions options) {
         options.input = result.getString("input");
+        if (result.contains("input-threads")) {
+            inputThreads = result.getInt("input-threads");
+        }
         if (isTableCacheEnabled) {
             assert tableCache != null : "TableCache must be initialized.";
             if (tableCache.isTableCached(getSplitId(), getSplitType(), options.datasetName)) {
@@ -794,7 +886,11 @@ public class DAVMode extends UseModality<DAVOptions> {
         }
 
         try {
-            options.inputTable = readInputFile(options.input);
+            if (SharedInputTable.isEnabled()) {
+                options.inputTable = SharedInputTable.getInstance(options.input).getInputTable(this);
+            } else {
+                options.inputTable = readInputFile(options.input);
+            }
         } catch (IOException e) {
             System.err.println("Cannot read input file \"" + options.input + "\"");
             LOG.fatal("Cannot read input file \"" + options.input + "\"", e);
@@ -1007,6 +1103,15 @@ public class DAVMode extends UseModality<DAVOptions> {
         return splitId;
     }
 
+    /**
+     * Get the number of threads used to compute univariate feature statistics.
+     *
+     * @return the number of threads, zero for one thread per processor
+     */
+    public int getStatisticsThreads() {
+        return statisticsThreads;
+    }
+
     public String getSplitType() {
         return splitType;
     }
@@ -1125,6 +1230,11 @@ public class DAVMode extends UseModality<DAVOptions> {
     protected Table readInputFile(final String fileName) throws
             IOException, SyntaxErrorException, UnsupportedFormatException {
         System.out.print("Reading input " + fileName + "... ");
+        if (fileName.endsWith(MappedArrayReader.ARRAY_STORE_SUFFIX)) {
+            final Table table = readArrayStore(fileName);
+            System.out.println("done");
+            return table;
+        }
         final Table table;
         Reader reader = null;
         try {
@@ -1132,7 +1242,9 @@ public class DAVMode extends UseModality<DAVOptions> {
             final InputStream inputStream = FileUtils.openInputStream(new File(fileName));
             String fileExtension = FilenameUtils.getExtension(fileName);
             if ("gz".equalsIgnoreCase(fileExtension)) {
-                reader = new InputStreamReader(new GZIPInputStream(inputStream));
+                // decompress on a separate thread, while the input is parsed:
+                reader = new InputStreamReader(
+                        new PipelinedInputStream(new GZIPInputStream(inputStream)));
                 // strip the ".gz" to get the "real" extension
                 fileExtension = FilenameUtils.getExtension(FilenameUtils.getBaseName(fileName));
             } else {
@@ -1176,58 +1288,44 @@ public class DAVMode extends UseModality<DAVOptions> {
     }
 
     private Table readGeoSeries(final Reader reader) {
-        final ArrayTable result = new ArrayTable();
-
-        final GeoSoftFamilyParser parser = new GeoSoftFamilyParser(reader);
-        if (parser.skipToDatabaseSection()) {
-            final MutableString databaseName = parser.getSectionAttribute();
-            System.out.println("Database: " + databaseName);
-        } else {
-            System.out.println("No database section found.");
-        }
-        GEOPlatformIndexed platform = null;
-        if (parser.skipToPlatformSection()) {
-            final MutableString platformName = parser.getSectionAttribute();
-            System.out.println("Platform: " + platformName);
-            platform = parser.parsePlatform();
-            platform.setName(platformName);
-            System.out.println("Platform has "
-                    + platform.getNumProbeIds() + " probes.");
-        } else {
-            System.out.println("No database section found.");
-        }
-        result.setChunk(platform.getNumProbeIds());
-        result.setInitialSize(platform.getNumProbeIds());
-        result.addColumn("ID_REF", String.class);
-
-        // append probeset ids:
-        for (int probeIndex = 0; probeIndex < platform.getNumProbeIds(); probeIndex++) {
-            final String probeId = platform.getProbesetIdentifier(probeIndex).toString();
-            result.appendObject(0, probeId);
-        }
+        return new GeoSeriesReader(inputThreads).read(reader);
+    }
 
-        final DefaultSignalAdapter formatAdapter = new DefaultSignalAdapter(true);
-        while (parser.skipToSampleSection()) {
-            // append signal value for each sample:
-            final MutableString sampleName = parser.getSectionAttribute();
-            final int newColumnIndex = result.addColumn(sampleName.toString(), double.class);
-            final SampleDataCallback callback = formatAdapter.getCallback(platform);
-            parser.parseSampleData(platform, callback);
-            final AffymetrixSampleData data = (AffymetrixSampleData) callback.getParsedData();
+    /**
+     * Reads a binary array store into a table with one column of probe set ids (ID_REF) and
+     * one column of signal values per sample.
+     *
+     * @param fileName Name of the store file
+     * @return A table with the signal of each sample
+     * @throws IOException if the store cannot be read
+     */
+    private Table readArrayStore(final String fileName) throws IOException {
+        final MappedArrayReader store = new MappedArrayReader(fileName);
+        try {
+            final int numberOfProbes = store.getNumberOfProbes();
+            final ArrayTable result = new ArrayTable();
+            result.setChunk(numberOfProbes);
+            result.setInitialSize(numberOfProbes);
+            result.addColumn("ID_REF", String.class);
+            for (final MutableString probeId : store.getProbeIdList()) {
+                result.appendObject(0, probeId.toString());
+            }
 
-            for (final float signal : data.signal) {
-                try {
-                    result.appendDoubleValue(newColumnIndex, signal);
-                    // result.parseAppend(newColumnIndex, Float.toString(signal));
-                } catch (TypeMismatchException e) {
-                    throw new InternalError("Column must be of type double.");
+            final float[] signal = store.allocateSignalArray();
+            for (int sampleIndex = 0; sampleIndex < store.getNumberOfSamples(); sampleIndex++) {
+                final int columnIndex = result.addColumn(
+                        store.getSampleIdList().get(sampleIndex).toString(), double.class);
+                store.readSample(sampleIndex, signal);
+                for (final float value : signal) {
+                    result.appendDoubleValue(columnIndex, value);
                 }
             }
-            formatAdapter.analyzeSampleData(platform, callback, sampleName);
-
+            return result;
+        } catch (TypeMismatchException e) {
+            throw new InternalError("Column must be of type double.");
+        } finally {
+            store.close();
         }
-
-        return result;
     }
 
     /**
@@ -1334,29 +1432,15 @@ public class DAVMode extends UseModality<DAVOptions> {
             table = tableCache.getCachedTable(splitId, splitType, options.datasetName, geneList);
             rebuildTrainingPlatform(options, table);
         } else {
-            int idColumnIndex = 0;
-
-            final Table taskSpecificTable = predictOnly ? inputTable : filterInputTable(inputTable, labelValueGroups);
-
-            try {
-                idColumnIndex = taskSpecificTable.getColumnIndex(options.IDENTIFIER_COLUMN_NAME);
-            } catch (InvalidColumnException e) {
-                e.printStackTrace();
-                System.out.println("Column " + options.IDENTIFIER_COLUMN_NAME +
-                        " could not be found in input file. Unable to exclude by probeset.");
-                System.exit(10);
+            final Table aggregatedTable;
+            if (!predictOnly && isSharedPreprocessingPossible(options, inputTable)) {
+                final Table sampleTable = selectSharedSamples(options, labelValueGroups);
+                rebuildTrainingPlatform(options, sampleTable);
+                aggregatedTable = doPathwayAggregation(options, sampleTable, splitId, splitType);
+            } else {
+                aggregatedTable = preprocessTable(inputTable, options, labelValueGroups,
+                        predictOnly, splitId, splitType);
             }
-
-            final int[] columnSelection = MicroarrayTrainEvaluate.getDoubleColumnIndices(taskSpecificTable);
-
-            normalize(options, taskSpecificTable);
-            applyFloor(options, taskSpecificTable, columnSelection);
-            //   taskSpecificTable = considerFilterTableByGeneList(geneList, options, labelValueGroups, idColumnIndex,
-            //           taskSpecificTable);
-
-            System.gc();
-            final Table transposedTable = transposeTable(options, taskSpecificTable, idColumnIndex);
-            final Table aggregatedTable = doPathwayAggregation(options, transposedTable, splitId, splitType);
             rebuildTrainingPlatform(options, aggregatedTable);
             table = aggregatedTable;
             if (isTableCacheEnabled) {
@@ -1375,6 +1459,113 @@ public class DAVMode extends UseModality<DAVOptions> {
 
     }
 
+    /**
+     * Filter, normalize, floor, transpose and aggregate an input table for one split.
+     *
+     * @param inputTable       The entire data set before filtering
+     * @param options          DAVMode options for processing
+     * @param labelValueGroups Sets of labels for each classification target.
+     * @param predictOnly      When true, no filtering is done by labelValueGroups.
+     * @param splitId          The split being processed
+     * @param splitType        The type of split being processed
+     * @return the aggregated table, one row per sample
+     * @throws TypeMismatchException
+     * @throws InvalidColumnException
+     * @throws ColumnTypeException
+     */
+    private Table preprocessTable(final Table inputTable, final DAVOptions options,
+                                  final List<Set<String>> labelValueGroups,
+                                  final boolean predictOnly, final int splitId,
+                                  final String splitType) throws TypeMismatchException,
+            InvalidColumnException, ColumnTypeException {
+        int idColumnIndex = 0;
+
+        final Table taskSpecificTable;
+        if (predictOnly) {
+            // normalization and the floor modify the table, other splits read the shared input:
+            taskSpecificTable = isSharedInputTable(options, inputTable) ? inputTable.copy()
+                    : inputTable;
+        } else {
+            taskSpecificTable = filterInputTable(inputTable, labelValueGroups);
+        }
+
+        try {
+            idColumnIndex = taskSpecificTable.getColumnIndex(options.IDENTIFIER_COLUMN_NAME);
+        } catch (InvalidColumnException e) {
+            e.printStackTrace();
+            System.out.println("Column " + options.IDENTIFIER_COLUMN_NAME +
+                    " could not be found in input file. Unable to exclude by probeset.");
+            System.exit(10);
+        }
+
+        final int[] columnSelection = MicroarrayTrainEvaluate.getDoubleColumnIndices(taskSpecificTable);
+
+        normalize(options, taskSpecificTable);
+        applyFloor(options, taskSpecificTable, columnSelection);
+        //   taskSpecificTable = considerFilterTableByGeneList(geneList, options, labelValueGroups, idColumnIndex,
+        //           taskSpecificTable);
+
+        System.gc();
+        final Table transposedTable = transposeTable(options, taskSpecificTable, idColumnIndex);
+        return doPathwayAggregation(options, transposedTable, splitId, splitType);
+    }
+
+    /**
+     * Determine if the preprocessed input table shared by all splits of this JVM can be
+     * used in place of the input table. Normalization depends on the samples of each split,
+     * so the shared table can only be used when features are not normalized.
+     *
+     * @param options    DAVMode options for processing
+     * @param inputTable The input table this mode would otherwise process
+     * @return true when the split can select its samples from the shared table
+     */
+    private boolean isSharedPreprocessingPossible(final DAVOptions options, final Table inputTable) {
+        return !options.normalizeFeatures && isSharedInputTable(options, inputTable);
+    }
+
+    /**
+     * Determine if a table is the input table shared by all splits of this JVM, which must
+     * not be modified.
+     *
+     * @param options    DAVMode options for processing
+     * @param inputTable The table to check
+     * @return true when the table is the shared input table
+     */
+    private boolean isSharedInputTable(final DAVOptions options, final Table inputTable) {
+        return SharedInputTable.isEnabled() && options.input != null && inputTable != null
+                && inputTable == options.inputTable;
+    }
+
+    /**
+     * Select the samples of the current split from the shared, preprocessed input table.
+     *
+     * @param options          DAVMode options for processing
+     * @param labelValueGroups Sets of labels for each classification target.
+     * @return a table with one row per sample of the split
+     * @throws TypeMismatchException
+     * @throws InvalidColumnException
+     * @throws ColumnTypeException
+     */
+    private Table selectSharedSamples(final DAVOptions options,
+                                      final List<Set<String>> labelValueGroups)
+            throws TypeMismatchException, InvalidColumnException, ColumnTypeException {
+        final Table shared;
+        try {
+            shared = SharedInputTable.getInstance(options.input).getPreprocessedTable(options, this);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot read input file " + options.input, e);
+        } catch (SyntaxErrorException e) {
+            throw new IllegalStateException("Syntax error in input file " + options.input, e);
+        } catch (UnsupportedFormatException e) {
+            throw new IllegalStateException("Unsupported format for input file " + options.input, e);
+        }
+        final ObjectSet<String> keepSampleIds =
+                new ObjectOpenHashSet<String>(MicroarrayTrainEvaluate.getAllSamples(labelValueGroups));
+        keepSampleIds.retainAll(getReduction(labelValueGroups));
+        // the shared table is never modified, and the split only reads the samples it selects:
+        return filterSamples(shared, keepSampleIds, true);
+    }
+
     private Table filterByGeneList(final GeneList geneList, final DAVOptions options,
                                    final List<Set<String>> labelValueGroups,
                                    Table aggregated) {
@@ -1397,6 +1588,11 @@ public class DAVMode extends UseModality<DAVOptions> {
 
     private Table doPathwayAggregation(final DAVOptions options, final Table transposed,
                                        final int splitId, final String splitType) {
+        if (options.pathways == null) {
+            // nothing to aggregate, and models trained without pathways may not name an
+            // aggregation method:
+            return transposed;
+        }
         final Table aggregated;
         if (options.pathways != null) {
             // Map probesetIds in the pathwayInfo instances to probeset indices in the trainingPlatform:
@@ -1423,19 +1619,11 @@ public class DAVMode extends UseModality<DAVOptions> {
 
 
         final String pathwayComponentPrefix = options.datasetName;
-        if (splitId == 0) {
-            // generating final model from whole training set. We synchronize so that
-            // parallel synchronization of models do not interact with each other
-            // (i.e., partial writing and reading of compound file will not work).
-            synchronized (SEMAPHORE) {
-                aggregated = pathwayHelper.aggregateFeaturesForPathways(options.pathways, transposed,
-                        pathwayComponentPrefix, splitType, splitId);
-            }
-        } else {
-            // independent splits, we can do them in parallel:
-            aggregated = pathwayHelper.aggregateFeaturesForPathways(options.pathways, transposed,
-                    pathwayComponentPrefix, splitType, splitId);
-        }
+        // models generated in parallel from the whole training set (split 0) share the same
+        // pathway component files. RotationReaderWriter serializes access to these files, so
+        // no global synchronization is needed here.
+        aggregated = pathwayHelper.aggregateFeaturesForPathways(options.pathways, transposed,
+                pathwayComponentPrefix, splitType, splitId);
         return aggregated;
     }
 
@@ -1594,6 +1782,43 @@ public class DAVMode extends UseModality<DAVOptions> {
     }
 
     protected Table filterTable(final DAVOptions options, final Table source, final GeneList geneList) {
+        return filterTable(options, source, geneList, false);
+    }
+
+    /**
+     * Keep only the columns of a table that are in a gene list (and the ID_REF column).
+     *
+     * @param options  DAVMode options. The training platform is rebuilt for the columns kept.
+     * @param source   The table to filter
+     * @param geneList The gene list
+     * @param readOnly When true, return a read-only {@link TableView} of the source table
+     *                 instead of a copy. Use when the result is only read (e.g., to load a
+     *                 classification problem) and the source table is not modified while the
+     *                 result is in use.
+     * @return the filtered table
+     */
+    protected Table filterTable(final DAVOptions options, final Table source,
+                                final GeneList geneList, final boolean readOnly) {
+        if (readOnly || source instanceof TableView) {
+            final IntList columnIndicesToKeep = new IntArrayList();
+            for (int colIndex = 0; colIndex < source.getColumnNumber(); colIndex++) {
+                final String colId = source.getIdentifier(colIndex);
+                if ("ID_REF".equals(colId) || (colIndex > 0 && geneList.isProbesetInList(colId))) {
+                    columnIndicesToKeep.add(colIndex);
+                }
+            }
+            final TableView view = new TableView(source, columnIndicesToKeep.toIntArray());
+            try {
+                // copying a view only copies the columns and rows it selects:
+                final Table result = readOnly ? view : view.copy();
+                rebuildTrainingPlatform(options, result);
+                return result;
+            } catch (TypeMismatchException e) {
+                throw new InternalError("Should not happen.");
+            } catch (InvalidColumnException e) {
+                throw new InternalError("Should not happen.");
+            }
+        }
         try {
             final Set<String> columnsToKeep = new ObjectOpenHashSet<String>();
             columnsToKeep.add("ID_REF");
@@ -1706,7 +1931,31 @@ public class DAVMode extends UseModality<DAVOptions> {
      * @return filtered table.
      */
     protected Table filterSamples(final Table processedTable, final ObjectSet<String> keepSampleIds) {
+        return filterSamples(processedTable, keepSampleIds, false);
+    }
+
+    /**
+     * Filter processed table to keep only a subset of samples.
+     *
+     * @param processedTable
+     * @param keepSampleIds  Those sample ids to keep in the filtered table.
+     * @param readOnly       When true, return a read-only {@link TableView} of the processed
+     *                       table instead of a copy.
+     * @return filtered table.
+     */
+    protected Table filterSamples(final Table processedTable, final ObjectSet<String> keepSampleIds,
+                                  final boolean readOnly) {
         final int idColumnIndex = 0;
+        if (readOnly) {
+            final String[] sampleIds = processedTable.getColumnValues(idColumnIndex).getStrings();
+            final IntList rowIndicesToKeep = new IntArrayList();
+            for (int rowIndex = 0; rowIndex < processedTable.getRowNumber(); rowIndex++) {
+                if (keepSampleIds.contains(sampleIds[rowIndex])) {
+                    rowIndicesToKeep.add(rowIndex);
+                }
+            }
+            return TableView.selectRows(processedTable, rowIndicesToKeep.toIntArray());
+        }
         final RowFilter myFilter =
                 new IdentifierSetRowFilter(keepSampleIds, idColumnIndex);
 
@@ -114,6 +114,8 @@ public class DiscoverAndValidate implements WithProcessMethod {
         davMode.registerMode("ga-wrapper", DiscoverWithGeneticAlgorithm.class);
         davMode.registerMode("write-model", WriteModel.class);
         davMode.registerMode("predict", Predict.class);
+        davMode.registerMode("serve", ServeMode.class);
+        davMode.registerMode("predict-many", PredictManyMode.class);
         davMode.registerMode("stats", StatsMode.class);
         davMode.registerMode("sequence", SequenceMode.class);
         davMode.registerMode("min-max", DiscoverWithMinMax.class);
@@ -30,10 +30,7 @@ import edu.cornell.med.icb.geo.tools.GeneList;
 import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
 import edu.cornell.med.icb.tissueinfo.similarity.TranscriptScore;
-import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
@@ -116,55 +113,22 @@ public class DiscoverWithFoldChange extends DAVMode {
                     if (LOG.isDebugEnabled()) {
                         LOG.debug("Discover markers with fold change " + task);
                     }
-                    final Table processedTable =
-                            processTable(geneList, options.inputTable,
-                                    options, MicroarrayTrainEvaluate.calculateLabelValueGroups(
-                                            task));
-                    final ArrayTable.ColumnDescription labelColumn =
-                            processedTable.getColumnValues(0);
-                    assert labelColumn.type
-                            == String.class : "label must have type String";
-                    final String[] labels = labelColumn.getStrings();
-
                     final List<Set<String>> labelValueGroups =
-                            MicroarrayTrainEvaluate
-                                    .calculateLabelValueGroups(task);
+                            MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
+                    final Table processedTable = processTable(geneList, options.inputTable,
+                            options, labelValueGroups);
+
+                    final UnivariateFeatureStatistics statistics =
+                            new UnivariateFeatureStatistics(processedTable, labelValueGroups);
+                    statistics.setNumberOfThreads(getStatisticsThreads());
+                    statistics.compute(false);
 
                     final ScoredTranscriptBoundedSizeQueue selectedProbesets =
                             new ScoredTranscriptBoundedSizeQueue(maxProbesToReport);
-                    for (int featureIndex = 1; featureIndex < processedTable
-                            .getColumnNumber(); featureIndex++) {
-
-                        final int probesetIndex = featureIndex - 1;
-                        final ArrayTable.ColumnDescription cd =
-                                processedTable.getColumnValues(featureIndex);
-                        assert cd.type
-                                == double.class : "features must have type double";
-                        final double[] values = cd.getDoubles();
-                        final DoubleList positiveLabelValues = new DoubleArrayList();
-                        final DoubleList negativeLabelValues = new DoubleArrayList();
-                        int index = 0;
-                        for (final String label : labels) {
-
-                            if (labelValueGroups.get(0).contains(label)) {
-                                negativeLabelValues.add(values[index]);
-                            } else {
-                                if (labelValueGroups.get(1).contains(label)) {
-                                    positiveLabelValues.add(values[index]);
-                                }
-                            }
-                            index++;
-                        }
-                        double averageNegativeClass = 0;
-                        double averagePositiveClass = 0;
-                        for (final double value : negativeLabelValues) {
-                            averageNegativeClass += value;
-                        }
-                        averageNegativeClass /= negativeLabelValues.size();
-                        for (final double value : positiveLabelValues) {
-                            averagePositiveClass += value;
-                        }
-                        averagePositiveClass /= positiveLabelValues.size();
+                    for (int probesetIndex = 0; probesetIndex < statistics
+                            .getNumberOfFeatures(); probesetIndex++) {
+                        final double averageNegativeClass = statistics.getMean(0, probesetIndex);
+                        final double averagePositiveClass = statistics.getMean(1, probesetIndex);
                         final double featureRatio;
                         final double inverseRatio;
 
@@ -181,13 +145,6 @@ public class DiscoverWithFoldChange extends DAVMode {
                         if (featureRatio >= ratio || inverseRatio >= ratio) {
                             final MutableString probesetId =
                                     options.getProbesetIdentifier(probesetIndex);
-                            /* System.out.println("featureIndex:" + featureIndex);
-
-                           System.out.println("featureId:" + probesetId);
-                           System.out.println("fold-change:" + featureRatio);
-                           System.out.println("positive: " + positiveLabelValues.toString());
-                           System.out.println("negative: " + negativeLabelValues.toString());
-                            */
                             LOG.debug("Selecting feature by fold change " + probesetId);
                             selectedProbesets.enqueue(probesetIndex, Math.max(featureRatio, inverseRatio));
                             ratios.put(probesetIndex, featureRatio);
@@ -52,6 +52,11 @@ import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Discover sets of features that maximize a given performance measure, using optimization with
  * genetic algorithms. Classification is performed with a support vector machine (linear or RBF
@@ -281,6 +286,9 @@ public class DiscoverWithGeneticAlgorithm extends DAVMode {
                     IntSet fitestSubSet = null;
                     double[] fitestParamValues = ArrayUtils.EMPTY_DOUBLE_ARRAY;
                     options.trainingPlatform = new GEOPlatformIndexed();
+                    // subsets are indexed by the probesets of the first iteration, so fitness
+                    // values remain valid across iterations of this task and gene list:
+                    clearFitnessCache();
                     Table processedTable =
                             processTable(activeGeneList,
                                     options.inputTable, options,
@@ -340,13 +348,19 @@ public class DiscoverWithGeneticAlgorithm extends DAVMode {
                                 new AbstractSubSetFitnessFunction() {
                                     @Override
                                     public double evaluate(final IntSet subset, final double[] paramValues) {
+                                        final FitnessKey key = new FitnessKey(subset, paramValues);
+                                        final Double cachedMeasure = getCachedFitness(key);
+                                        if (cachedMeasure != null) {
+                                            return cachedMeasure;
+                                        }
                                         try {
 
                                             GeneList geneListFromSubset = convertSubsetToGeneList(subset);
 
+                                            // the filtered table is only read to load the problem:
                                             Table filteredTable =
                                                     filterTable(options, processedTableConstant,
-                                                            geneListFromSubset);
+                                                            geneListFromSubset, true);
 
                                             ClassificationHelper helper = getClassifier(filteredTable,
                                                     MicroarrayTrainEvaluate.calculateLabelValueGroups(
@@ -378,6 +392,7 @@ public class DiscoverWithGeneticAlgorithm extends DAVMode {
                                             final double measure = getOptimizationMeasure(eMeasure);
                                             LOG.info(task.getExperimentDataFilename() + " evaluated " +
                                                     getPerformanceMeasureName() + " " + measure);
+                                            cacheFitness(key, measure);
 
 //                                                double std = getOptimizationMeasureStd(eMeasure);
 
@@ -433,13 +448,15 @@ public class DiscoverWithGeneticAlgorithm extends DAVMode {
 
                         final Table fitestTable =
                                 filterTable(options, processedTable,
-                                        geneListFromSubset);
+                                        geneListFromSubset, true);
                         processedTable = fitestTable;
 
                         // hint to the JVM that this would be a good time to garbage collect.
                         System.gc();
                     } while (numKept > numProbesets);
 
+                    LOG.info("Fitness cache: " + fitnessCacheHits + " hits, "
+                            + fitnessCache.size() + " subsets cross-validated.");
                     printFeatures(options, iteration, fitestSubSet, 0);
                     printFitestParamValues(options, fitestParamValues, getParameterNames(discreteParameters));
                 } catch (Exception e) {
@@ -451,6 +468,67 @@ public class DiscoverWithGeneticAlgorithm extends DAVMode {
         }
     }
 
+    /**
+     * Identifies an individual of the genetic algorithm population: a subset of features
+     * and the values of the discrete classifier parameters.
+     */
+    private static final class FitnessKey {
+        private final BitSet features;
+        private final double[] parameterValues;
+        private final int hashCode;
+
+        private FitnessKey(final IntSet subset, final double[] parameterValues) {
+            super();
+            this.features = new BitSet();
+            for (final int probesetIndex : subset) {
+                features.set(probesetIndex);
+            }
+            this.parameterValues = parameterValues.clone();
+            this.hashCode = 31 * features.hashCode() + Arrays.hashCode(this.parameterValues);
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof FitnessKey)) {
+                return false;
+            }
+            final FitnessKey other = (FitnessKey) object;
+            return hashCode == other.hashCode && features.equals(other.features)
+                    && Arrays.equals(parameterValues, other.parameterValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Fitness of the individuals evaluated so far. The genetic algorithm produces the same
+     * individuals again across generations, and cross-validation is deterministic (the
+     * random engine is seeded with the same seed for each evaluation), so the measure of
+     * an individual only needs to be computed once.
+     */
+    private final Map<FitnessKey, Double> fitnessCache = new HashMap<FitnessKey, Double>();
+    private int fitnessCacheHits;
+
+    private synchronized Double getCachedFitness(final FitnessKey key) {
+        final Double measure = fitnessCache.get(key);
+        if (measure != null) {
+            fitnessCacheHits++;
+        }
+        return measure;
+    }
+
+    private synchronized void cacheFitness(final FitnessKey key, final double measure) {
+        fitnessCache.put(key, measure);
+    }
+
+    private synchronized void clearFitnessCache() {
+        fitnessCache.clear();
+        fitnessCacheHits = 0;
+    }
+
     private boolean optimizationRequiresR() {
         return !(optimizeMeasureName.equalsIgnoreCase("F-1") || optimizeMeasureName.equalsIgnoreCase("MCC")
                 || optimizeMeasureName.equalsIgnoreCase("sens") ||
@@ -30,12 +30,10 @@ import edu.cornell.med.icb.geo.tools.GeneList;
 import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
 import edu.cornell.med.icb.tissueinfo.similarity.TranscriptScore;
-import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
-import it.unimi.dsi.law.stat.KendallTau;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -115,49 +113,25 @@ public class DiscoverWithKendallTau extends DAVMode {
                     final Int2DoubleMap ratios = new Int2DoubleOpenHashMap();
                     System.out.println(
                             "Discover markers with Kendall tau " + task);
-                    final Table processedTable =
-                            processTable(geneList, options.inputTable,
-                                    options, MicroarrayTrainEvaluate.calculateLabelValueGroups(
-                                    task));
-                    final ArrayTable.ColumnDescription labelColumn =
-                            processedTable.getColumnValues(0);
-                    assert labelColumn.type
-                            == String.class : "label must have type String";
-                    final String[] labels = labelColumn.getStrings();
-
                     final List<Set<String>> labelValueGroups =
-                            MicroarrayTrainEvaluate
-                                    .calculateLabelValueGroups(task);
-                    final double[] numericLabels = new double[labels.length];
-                    int labelIndex = 0;
-                    for (final String label : labels) {
-                        numericLabels[labelIndex++] = labelValueGroups.get(0).contains(label) ? 0 : 1;
-                    }
+                            MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
+                    final Table processedTable = processTable(geneList, options.inputTable,
+                            options, labelValueGroups);
+
+                    // tau is computed with label 0 for the first group and 1 for the second:
+                    final UnivariateFeatureStatistics statistics =
+                            new UnivariateFeatureStatistics(processedTable, labelValueGroups);
+                    statistics.setNumberOfThreads(getStatisticsThreads());
+                    statistics.compute(true);
+
                     final ScoredTranscriptBoundedSizeQueue selectedProbesets =
                             new ScoredTranscriptBoundedSizeQueue(maxProbesToReport);
-                    for (int featureIndex = 1; featureIndex < processedTable
-                            .getColumnNumber(); featureIndex++) {
-
-                        final int probesetIndex = featureIndex - 1;
-                        final ArrayTable.ColumnDescription cd =
-                                processedTable.getColumnValues(featureIndex);
-                        assert cd.type
-                                == double.class : "features must have type double";
-                        final double[] values = cd.getDoubles();
-                        final double[] trimedValues = new double[processedTable.getRowNumber()];
-                        System.arraycopy(values, 0, trimedValues, 0, trimedValues.length);
-
-                        final double[] trimedLabels = new double[processedTable.getRowNumber()];
-                        System.arraycopy(numericLabels, 0, trimedLabels, 0, trimedLabels.length);
-
-                        final double tau = KendallTau.compute(trimedValues, trimedLabels);
+                    for (int probesetIndex = 0; probesetIndex < statistics
+                            .getNumberOfFeatures(); probesetIndex++) {
+                        final double tau = statistics.getKendallTau(probesetIndex);
                         final double absTau = Math.abs(tau);
 
-
                         if (absTau >= ratio) {
-                            //System.out.println("pValue:" + pValue);
-                            //System.out.println("positive: " + positiveLabelValues.toString());
-                            //System.out.println("negative: " + negativeLabelValues.toString());
                             final MutableString probesetId =
                                     options.getProbesetIdentifier(
                                             probesetIndex);
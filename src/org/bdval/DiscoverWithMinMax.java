@@ -31,7 +31,7 @@ import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.stat.MinMaxCalculator;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
 import edu.cornell.med.icb.tissueinfo.similarity.TranscriptScore;
-import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.InvalidColumnException;
 import edu.mssm.crover.tables.Table;
 import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
 import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
@@ -126,42 +126,38 @@ public class DiscoverWithMinMax extends DAVMode {
                     options.scaleFeatures = false;
                     final Int2DoubleMap ratios = new Int2DoubleOpenHashMap();
                     System.out.println("Discover markers with min/max statistics " + task);
-                    final Table processedTable =
-                            processTable(geneList, options.inputTable,
-                                    options, MicroarrayTrainEvaluate.calculateLabelValueGroups(
-                                    task));
-                    final ArrayTable.ColumnDescription labelColumn =
-                            processedTable.getColumnValues(0);
-                    assert labelColumn.type
-                            == String.class : "label must have type String";
-                    final String[] labels = labelColumn.getStrings();
-
                     final List<Set<String>> labelValueGroups =
-                            MicroarrayTrainEvaluate
-                                    .calculateLabelValueGroups(task);
-                    final double[] numericLabels = new double[labels.length];
-                    int labelIndex = 0;
-                    for (final String label : labels) {
-                        numericLabels[labelIndex++] = labelValueGroups.get(0).contains(label) ? 0 : 1;
+                            MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
+                    final Table processedTable = processTable(geneList, options.inputTable,
+                            options, labelValueGroups);
+
+                    final UnivariateFeatureStatistics statistics =
+                            new UnivariateFeatureStatistics(processedTable, labelValueGroups);
+                    statistics.setNumberOfThreads(getStatisticsThreads());
+                    final int[] classes = statistics.getClasses();
+                    final double[] numericLabels = new double[classes.length];
+                    for (int sampleIndex = 0; sampleIndex < classes.length; sampleIndex++) {
+                        numericLabels[sampleIndex] = classes[sampleIndex] == 0 ? 0 : 1;
                     }
+                    // features are scored in parallel, each with its own copy of the labels:
+                    final double[] minMaxScores = statistics.score(
+                            new UnivariateFeatureStatistics.FeatureScorer() {
+                                public double score(final int featureIndex)
+                                        throws InvalidColumnException {
+                                    final double[] trimedValues = processedTable.getDoubles(
+                                            processedTable.getIdentifier(featureIndex + 1));
+                                    return MinMaxCalculator.compute(trimedValues,
+                                            numericLabels.clone(), minMaxObservations);
+                                }
+                            });
+
                     final ScoredTranscriptBoundedSizeQueue selectedProbesets =
                             new ScoredTranscriptBoundedSizeQueue(maxProbesToReport);
-                    for (int featureIndex = 1; featureIndex < processedTable
-                            .getColumnNumber(); featureIndex++) {
-
-                        final int probesetIndex = featureIndex - 1;
-
-
-                        final double[] trimedValues = processedTable.getDoubles(processedTable.getIdentifier(featureIndex));
-                        final double[] trimedLabels = new double[processedTable.getRowNumber()];
-                        System.arraycopy(numericLabels, 0, trimedLabels, 0, trimedLabels.length);
-
-                        final double minMax = MinMaxCalculator.compute(trimedValues, trimedLabels, minMaxObservations);
+                    for (int probesetIndex = 0; probesetIndex < minMaxScores.length;
+                         probesetIndex++) {
+                        final double minMax = minMaxScores[probesetIndex];
 
                         if (minMax >= ratio) {
-                            //System.out.println("pValue:" + pValue);
-                            //System.out.println("positive: " + positiveLabelValues.toString());
-                            //System.out.println("negative: " + negativeLabelValues.toString());
                             final MutableString probesetId =
                                     options.getProbesetIdentifier(probesetIndex);
                             LOG.debug("Selecting feature MinMax " + probesetId + " minMax= " + minMax);
@@ -30,17 +30,18 @@ import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
 import edu.cornell.med.icb.tissueinfo.similarity.TranscriptScore;
 import edu.cornell.med.icb.util.RandomAdapter;
-import edu.cornell.med.icb.stat.AreaUnderTheRocCurveCalculator;
-import edu.mssm.crover.tables.*;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.util.*;
+import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -152,33 +153,21 @@ public class DiscoverWithPermutation extends DAVMode {
                 } catch (InvalidColumnException e) {
                     error(e);
                 }
-                final ArrayTable.ColumnDescription labelColumn =
-                        processedTable.getColumnValues(0);
-
-                assert labelColumn.type == String.class : "label must have type String";
-
-                String[] labels = labelColumn.getStrings(); // labels are the sampleIDs
-
                 final List<Set<String>> labelValueGroups =
                         MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
 
                 final ScoredTranscriptBoundedSizeQueue selectedProbesets =
                         new ScoredTranscriptBoundedSizeQueue(maxProbesToReport);
 
-                // for all probesets across all samples
-
-                for (int featureIndex = 1; featureIndex < processedTable.getColumnNumber(); featureIndex++) {
-                    final int probesetIndex = featureIndex - 1;
-                    double testStatistic = evaluateStatisticForLabels(processedTable, labels, labelValueGroups, featureIndex);
-
-                    DoubleList permutedStatsList = new DoubleArrayList();
-                    // stores test statistic for all permutations
-
-                    RandomAdapter randomAdapter = new RandomAdapter(options.randomGenerator);
-                    permute(processedTable, labels, labelValueGroups, featureIndex, permutedStatsList, randomAdapter);
+                // the same label permutations are evaluated for all probesets:
+                final UnivariateFeatureStatistics statistics =
+                        new UnivariateFeatureStatistics(processedTable, labelValueGroups);
+                statistics.setNumberOfThreads(getStatisticsThreads());
+                final double[] pValues = statistics.permutationPValues(numOfPermutations,
+                        new RandomAdapter(options.randomGenerator), alpha);
 
-                    double pValue;
-                    pValue = pValueDetermination(testStatistic, permutedStatsList);
+                for (int probesetIndex = 0; probesetIndex < pValues.length; probesetIndex++) {
+                    final double pValue = pValues[probesetIndex];
 
                     // save in probesetPValues map
                     final MutableString probesetId = options.getProbesetIdentifier(probesetIndex);
@@ -191,7 +180,6 @@ public class DiscoverWithPermutation extends DAVMode {
                     }
                 }
 
-
                 System.out.println("Selected " + selectedProbesets.size()
                         + " probesets at significance level=" + Double
                         .toString(alpha));
@@ -207,59 +195,6 @@ public class DiscoverWithPermutation extends DAVMode {
         }
     }
 
-    private void permute(Table processedTable, String[] labels,
-                         List<Set<String>> labelValueGroups, int featureIndex, DoubleList permutedStatsList, RandomAdapter randomAdapter) {
-        double permutedStatistic;
-        List<String> labelsList = Arrays.asList(labels);
-        for(int i=0; i < numOfPermutations; i++) {
-            // shuffle the labels
-            Collections.shuffle(labelsList, randomAdapter);
-            String[] shuffledLabels = (String[]) labelsList.toArray();
-            permutedStatistic = evaluateStatisticForLabels(processedTable, shuffledLabels, labelValueGroups, featureIndex);
-            permutedStatsList.add(permutedStatistic);
-            i++;
-        }
-    }
-
-    private double pValueDetermination(double testStatistic, DoubleList permutedStatsList) {
-        double pValue;
-        double frequency = 0;
-        for (final double permutedStat : permutedStatsList) {
-            if (permutedStat > testStatistic) {
-                frequency++;
-            }
-        }
-
-        pValue = frequency / numOfPermutations;
-
-        if (pValue != pValue) {//NaN
-            pValue = 1;
-        }
-        return pValue;
-    }
-
-    private double evaluateStatisticForLabels(Table processedTable, String[] labels, List<Set<String>> labelValueGroups, int featureIndex) {
-        final ArrayTable.ColumnDescription cd = processedTable.getColumnValues(featureIndex);
-        assert cd.type == double.class : "features must have type double";
-        final double[] values = cd.getDoubles();
-        final DoubleList binaryLabelValues = new DoubleArrayList();
-
-        for (final String label : labels) {
-            if (labelValueGroups.get(0).contains(label)) {
-                binaryLabelValues.add(Double.valueOf("-1"));
-            } else {
-                if (labelValueGroups.get(1).contains(label)) {
-                    binaryLabelValues.add(Double.valueOf("1"));
-                }
-            }
-
-        }
-        double[] binaryLabelValuesArray = binaryLabelValues.toDoubleArray();
-        AreaUnderTheRocCurveCalculator auc = new AreaUnderTheRocCurveCalculator();
-        double aucresult = auc.evaluateStatistic(values, binaryLabelValuesArray);
-        return Math.abs(aucresult-0.5);
-    }
-
     private void error(Exception e) {
         System.err.println("Cannot processTable. Details may be provided below.");
         e.printStackTrace();
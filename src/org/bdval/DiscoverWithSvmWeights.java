@@ -31,6 +31,7 @@ import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.learning.ClassificationHelper;
 import edu.cornell.med.icb.learning.ClassificationModel;
 import edu.cornell.med.icb.learning.ClassificationProblem;
+import edu.cornell.med.icb.learning.libsvm.LibSvmClassifier;
 import edu.cornell.med.icb.learning.libsvm.LibSvmModel;
 import edu.cornell.med.icb.learning.libsvm.LibSvmUtils;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
@@ -108,9 +109,7 @@ public class DiscoverWithSvmWeights extends DAVMode {
             for (final GeneList geneList : options.geneLists) {
 
                 try {
-                    // force the classifier to be libSVM, irrespective of the command line:
-                    options.classifierParameters=new String[0];
-                    options.classiferClass=edu.cornell.med.icb.learning.libsvm.LibSvmClassifier.class;
+                    forceLibSvm(options);
 
                     System.out.println(
                             "Discover markers with SVM weights for " + task);
@@ -155,6 +154,26 @@ public class DiscoverWithSvmWeights extends DAVMode {
         }
     }
 
+    /**
+     * Record the options for this mode, without training a model.
+     *
+     * @param options DAVMode options
+     */
+    protected void initializeProcess(final DAVOptions options) {
+        super.process(options);
+    }
+
+    /**
+     * Force the classifier to be libSVM with default parameters, irrespective of the
+     * command line.
+     *
+     * @param options DAVMode options
+     */
+    protected void forceLibSvm(final DAVOptions options) {
+        options.classifierParameters = new String[0];
+        options.classiferClass = LibSvmClassifier.class;
+    }
+
     FeatureReporting reporter;
 
     protected void printFeature(final int iteration, final double[] weights,
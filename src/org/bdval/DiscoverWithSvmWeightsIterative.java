@@ -45,13 +45,18 @@ import org.apache.commons.logging.LogFactory;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Discover biomarkers with the iterative SVM weight approach. A support vector machine is trained with a linear kernel
  * on the training set. Feature weights are then evaluated from the trained model, and features with the N-k largest
  * absolute value of the weight are identified as the features to use in the next round. k is taken such that
- * (N-k/N)=ratio, typically 50%. The process starts over until the number N-k falls below or equal to the desired number
- * of biomarkers (n). When the condition is met, the the n features with the largest absolute weight are written out.
+ * (N-k/N)=ratio, typically 50%, or k is fixed with the elimination-step option. The process starts over until the
+ * number N-k falls below or equal to the desired number of biomarkers (n). When the condition is met, the the n
+ * features with the largest absolute weight are written out.
+ * <p/>
+ * The input table is processed and scaled once. Since features are scaled independently of each other, each round
+ * trains on a read-only view of the columns that are still in the running, rather than processing the input again.
  *
  * @author Fabien Campagne Date: Oct 22, 2007 Time: 6:55:57 PM
  */
@@ -59,6 +64,12 @@ public class DiscoverWithSvmWeightsIterative extends DiscoverWithSvmWeights {
     private static final Log LOG = LogFactory.getLog(DiscoverWithSvmWeightsIterative.class);
     private double ratio = 0.5d;
 
+    /**
+     * Number of features eliminated at each iteration. When zero, ratio determines the number
+     * of features kept.
+     */
+    private int eliminationStep;
+
     /**
      * Define command line options for this mode.
      * @param jsap the JSAP command line parser
@@ -76,6 +87,15 @@ public class DiscoverWithSvmWeightsIterative extends DiscoverWithSvmWeights {
                 .setHelp("The ratio of new number of feature to original number of features,"
                         + " for each iteration.");
         jsap.registerParameter(ratioParam);
+
+        final Parameter eliminationStepParam = new FlaggedOption("elimination-step")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("0")
+                .setRequired(false)
+                .setLongFlag("elimination-step")
+                .setHelp("Number of features to eliminate at each iteration. When zero (the default),"
+                        + " the ratio option determines the number of features kept.");
+        jsap.registerParameter(eliminationStepParam);
     }
 
     @Override
@@ -83,34 +103,57 @@ public class DiscoverWithSvmWeightsIterative extends DiscoverWithSvmWeights {
                                    final DAVOptions options) {
         super.interpretArguments(jsap, result, options);
         ratio = result.getDouble("ratio");
+        eliminationStep = result.getInt("elimination-step");
+        if (eliminationStep < 0) {
+            System.err.println("elimination-step must not be negative.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Calculate how many features to keep for the next iteration.
+     *
+     * @param numKept Number of features used in the current iteration
+     * @return the number of features to keep, never smaller than the number of features to
+     * select
+     */
+    private int numberOfFeaturesToKeep(final int numKept) {
+        int reducedNumProbeset = eliminationStep > 0 ? numKept - eliminationStep : (int) (numKept * ratio);
+        if (reducedNumProbeset >= numKept) {
+            // always eliminate at least one feature, otherwise the iterations would not end:
+            reducedNumProbeset = numKept - 1;
+        }
+        return Math.max(numProbesets, reducedNumProbeset);
     }
 
     @Override
     public void process(final DAVOptions options) {
-        process(options, false);
+        initializeProcess(options);
         int reducedNumProbeset;
         for (final ClassificationTask task : options.classificationTasks) {
-            for (GeneList geneList : options.geneLists) {
+            for (final GeneList geneList : options.geneLists) {
                 int iteration = 1;
                 try {
+                    forceLibSvm(options);
+                    final List<Set<String>> labelValueGroups =
+                            MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
+                    options.trainingPlatform = new GEOPlatformIndexed();
+                    final Table processedTable =
+                            processTable(geneList, options.inputTable, options, labelValueGroups);
+                    scaleFeatures(options, false, processedTable);
+
+                    Table table = processedTable;
                     int numKept;
+                    boolean done;
                     final List<TranscriptScore> probesetsToOutput =
                             new LinkedList<TranscriptScore>();
                     double[] weights = null;
                     do {
                         System.out.println("Discover markers with SVM weights for " + task);
-                        options.trainingPlatform = new GEOPlatformIndexed();
-                        final Table processedTable =
-                                processTable(geneList, options.inputTable, options,
-                                        MicroarrayTrainEvaluate.calculateLabelValueGroups(task));
                         numKept = options.trainingPlatform.getProbeIds().size();
-                        reducedNumProbeset = Math.max(numProbesets,
-                                (int) (numKept * ratio));
-
-                        scaleFeatures(options, false, processedTable);
+                        reducedNumProbeset = numberOfFeaturesToKeep(numKept);
 
-                        final ClassificationHelper helper = getClassifier(processedTable,
-                                MicroarrayTrainEvaluate.calculateLabelValueGroups(task));
+                        final ClassificationHelper helper = getClassifier(table, labelValueGroups);
                         final ClassificationProblem scaledProblem = helper.problem;
                         final Timer timer = new Timer();
                         timer.start();
@@ -144,18 +187,20 @@ public class DiscoverWithSvmWeightsIterative extends DiscoverWithSvmWeights {
                             }
                             reducedProbesetIds.add(probesetId.toString());
                         }
-                        //       System.out.println("POTENTIAL probesets to write "
-                        //            + probesetsToOutput.size());
                         System.out.println("numKept: " + numKept
                                 + " reducedNumber: " + reducedNumProbeset);
                         iteration++;
-                        // use as gene list for the next iteration: the restriction of the previous gene list
-                        // to those probesets that were found with largest weight in this iteration.
-                        geneList =
-                                new FixedGeneList(reducedProbesetIds.toArray(
-                                        new String[reducedProbesetIds.size()]));
+                        done = numKept <= numProbesets;
+                        if (!done) {
+                            // train the next iteration on the restriction of the table to those
+                            // probesets that were found with largest weight in this iteration.
+                            // This also rebuilds the training platform for the columns kept.
+                            table = filterTable(options, processedTable,
+                                    new FixedGeneList(reducedProbesetIds.toArray(
+                                            new String[reducedProbesetIds.size()])), true);
+                        }
                         options.output.flush();
-                    } while (numKept > numProbesets);
+                    } while (!done);
 
                     // Write probesetsToOutput. After the last iteration.
                     System.out.println("Number of probesets to write " + probesetsToOutput.size());
@@ -30,17 +30,12 @@ import edu.cornell.med.icb.geo.tools.GeneList;
 import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
 import edu.cornell.med.icb.tissueinfo.similarity.ScoredTranscriptBoundedSizeQueue;
 import edu.cornell.med.icb.tissueinfo.similarity.TranscriptScore;
-import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
-import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
-import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.apache.commons.math.stat.inference.TTest;
-import org.apache.commons.math.stat.inference.TTestImpl;
 
 import java.util.List;
 import java.util.Set;
@@ -117,58 +112,27 @@ public class DiscoverWithTTest extends DAVMode {
         super.process(options);
         for (final ClassificationTask task : options.classificationTasks) {
             for (final GeneList geneList : options.geneLists) {
-                final TTest tester = new TTestImpl();
                 try {
                     System.out.println("Discover markers with T-Test " + task);
                     options.normalizeFeatures = false;
                     options.scaleFeatures = false;
-                    final Table processedTable = processTable(geneList, options.inputTable,
-                            options, MicroarrayTrainEvaluate.calculateLabelValueGroups(task));
-                    final ArrayTable.ColumnDescription labelColumn =
-                            processedTable.getColumnValues(0);
-                    assert labelColumn.type
-                            == String.class : "label must have type String";
-                    final String[] labels = labelColumn.getStrings();
-
                     final List<Set<String>> labelValueGroups =
                             MicroarrayTrainEvaluate.calculateLabelValueGroups(task);
+                    final Table processedTable = processTable(geneList, options.inputTable,
+                            options, labelValueGroups);
+
+                    // T-Test cannot be applied to sets of numbers with less than two elements.
+                    // In such cases (p-value is NaN), consider that no feature is significant.
+                    final UnivariateFeatureStatistics statistics =
+                            new UnivariateFeatureStatistics(processedTable, labelValueGroups);
+                    statistics.setNumberOfThreads(getStatisticsThreads());
+                    statistics.compute(false);
+                    final double[] pValues = statistics.tTestPValues();
 
                     final ScoredTranscriptBoundedSizeQueue selectedProbesets =
                             new ScoredTranscriptBoundedSizeQueue(maxProbesToReport);
-                    for (int featureIndex = 1; featureIndex < processedTable
-                            .getColumnNumber(); featureIndex++) {
-
-                        final int probesetIndex = featureIndex - 1;
-                        final ArrayTable.ColumnDescription cd =
-                                processedTable.getColumnValues(featureIndex);
-                        assert cd.type == double.class : "features must have type double";
-                        final double[] values = cd.getDoubles();
-                        final DoubleList positiveLabelValues = new DoubleArrayList();
-                        final DoubleList negativeLabelValues = new DoubleArrayList();
-                        int index = 0;
-                        for (final String label : labels) {
-                            if (labelValueGroups.get(0).contains(label)) {
-                                negativeLabelValues.add(values[index]);
-                            } else {
-                                if (labelValueGroups.get(1).contains(label)) {
-                                    positiveLabelValues.add(values[index]);
-                                }
-                            }
-                            index++;
-                        }
-                        double pValue;
-                        // T-Test cannot be applied to sets of numbers with less than two elements.
-                        // In such cases, consider that no feature is significant.
-                        if (positiveLabelValues.size() < 2 || negativeLabelValues.size() < 2) {
-                            pValue = Double.NaN;
-                        }
-
-                        else {
-                            pValue = tester.tTest(
-                                    positiveLabelValues.toDoubleArray(),
-                                    negativeLabelValues.toDoubleArray());
-                        }
-
+                    for (int probesetIndex = 0; probesetIndex < pValues.length; probesetIndex++) {
+                        double pValue = pValues[probesetIndex];
                         if (pValue != pValue) {
                             // NaN
                             pValue = 1;
@@ -179,7 +143,7 @@ public class DiscoverWithTTest extends DAVMode {
                         probesetPvalues.put(probesetId.copy().compact(), pValue);
 
                         if (pValue <= alpha) {
-                            
+
                             // The queue keeps items with larger score. Transform the pValue accordingly.
                             selectedProbesets.enqueue(new TranscriptScore(1 - pValue, probesetIndex));
                         }
@@ -25,6 +25,7 @@ import com.martiansoftware.jsap.JSAPResult;
 import com.martiansoftware.jsap.Parameter;
 import edu.cornell.med.icb.geo.tools.ClassificationTask;
 import edu.cornell.med.icb.geo.tools.ConditionIdentifiers;
+import edu.cornell.med.icb.geo.tools.FullGeneList;
 import edu.cornell.med.icb.iterators.RecursiveFileListIterator;
 import edu.cornell.med.icb.iterators.TextFileLineIterator;
 import edu.cornell.med.icb.util.ICBStringUtils;
@@ -35,6 +36,10 @@ import edu.mssm.crover.tables.Table;
 import edu.mssm.crover.tables.TypeMismatchException;
 import edu.mssm.crover.tables.readers.SyntaxErrorException;
 import edu.mssm.crover.tables.readers.UnsupportedFormatException;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
+import edu.rit.pj.ParallelRegion;
+import edu.rit.pj.ParallelTeam;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
@@ -49,6 +54,7 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.time.DateFormatUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.bdval.cache.TableMemoryCache;
 import org.bdval.modelconditions.ProcessModelConditionsMode;
 import org.bdval.signalquality.BaseSignalQualityCalculator;
 
@@ -113,9 +119,20 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
     private String propertiesValidationLabel;
 
     /**
-     * Cache tables by filename in memory.
+     * Input tables (by filename) and processed datasets (by dataset file, sample file and
+     * feature normalization), shared by the models that use the same datasets.
      */
-    private final Map<String, Table> tableCache = new Object2ObjectOpenHashMap<String, Table>();
+    private TableMemoryCache datasetCache = new TableMemoryCache(0);
+
+    /**
+     * Serializes the reading and processing of datasets missing from the cache.
+     */
+    private final Object datasetLock = new Object();
+
+    /**
+     * Number of models processed concurrently. Zero uses one thread per processor.
+     */
+    private int modelThreads = 1;
 
     /**
      * Models to exclude from processing.
@@ -268,6 +285,41 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
                         .setLongFlag("max-num-classes")
                         .setHelp("The maximum number of classes (for the output file header)");
         jsap.registerParameter(maxNumClassesOption);
+
+        final Parameter featureThreadsOption =
+                new FlaggedOption("feature-threads")
+                        .setStringParser(JSAP.INTEGER_PARSER)
+                        .setDefault("1")
+                        .setRequired(false)
+                        .setLongFlag("feature-threads")
+                        .setHelp("Number of threads used to compute the p-values of the features "
+                                + "of a model. Zero uses one thread per processor. Default is 1 "
+                                + "(sequential).");
+        jsap.registerParameter(featureThreadsOption);
+
+        final Parameter modelThreadsOption =
+                new FlaggedOption("model-threads")
+                        .setStringParser(JSAP.INTEGER_PARSER)
+                        .setDefault("1")
+                        .setRequired(false)
+                        .setLongFlag("model-threads")
+                        .setHelp("Number of models processed concurrently. Output is written "
+                                + "in model order. Zero uses one thread per processor. Default "
+                                + "is 1 (sequential).");
+        jsap.registerParameter(modelThreadsOption);
+
+        final Parameter datasetCacheMemoryOption =
+                new FlaggedOption("dataset-cache-memory")
+                        .setStringParser(JSAP.INTEGER_PARSER)
+                        .setDefault("1024")
+                        .setRequired(false)
+                        .setLongFlag("dataset-cache-memory")
+                        .setHelp("Memory budget (in megabytes) used to keep the training and "
+                                + "validation datasets in memory, read and processed once for "
+                                + "all the models that use them. Least recently used datasets "
+                                + "are evicted when the budget is exceeded. Zero processes the "
+                                + "datasets again for each model. Default is 1024.");
+        jsap.registerParameter(datasetCacheMemoryOption);
     }
 
     /**
@@ -316,6 +368,9 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
         if (signalQualityCalcObj == null) {
             System.exit(10);
         }
+        signalQualityCalcObj.setNumberOfThreads(result.getInt("feature-threads"));
+        modelThreads = result.getInt("model-threads");
+        datasetCache = new TableMemoryCache(result.getInt("dataset-cache-memory") * 1024L * 1024L);
 
         // Populate keepModelSet (empty set for all)
         Set<String> keepModelSet = modelList(keepModelSetStr, "all");
@@ -569,55 +624,108 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
     public void process(final DAVOptions options) {
         super.process(options);
 
-        final ProcessEstimator estimator = new ProcessEstimator(modelIdToModelPrefixMap.size());
+        final List<String> modelIds = new ArrayList<String>();
         for (final String modelId : modelIdToModelPrefixMap.keySet()) {
-            if (excludeModelSet.contains(modelId)) {
-                estimator.unitCompleted();
-                continue;
-            }
-            final String modelFilenamePrefix = modelIdToModelPrefixMap.get(modelId);
-            final Map<String, String> modelConditionsMap = modelIdToModelConditionsMap.get(modelId);
-            final String datasetName = modelConditionsMap.get("dataset-name");
-            final String datasetRoot;
-            if (evalDatasetRoot == null) {
-                datasetRoot = modelConditionsMap.get("dataset-root");
-            } else {
-                datasetRoot = evalDatasetRoot;
+            if (!excludeModelSet.contains(modelId)) {
+                modelIds.add(modelId);
             }
+        }
+        if (modelIds.isEmpty()) {
+            signalQualityCalcObj.close();
+            return;
+        }
 
-            final Map<String, String> datasetDetailsMap =
-                    localizeDatasetDetailsMap(datasetName2DetailsMap.get(datasetName), datasetRoot);
+        // excluded models are not counted, so that the estimate reflects the models processed
+        final ProcessEstimator estimator = new ProcessEstimator(modelIds.size());
+        signalQualityCalcObj.startOrderedOutput();
+        final ParallelTeam team = modelThreads == 0 ? new ParallelTeam()
+                : new ParallelTeam(modelThreads);
+        try {
+            team.execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, modelIds.size() - 1 /* end index is inclusive */, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            // models differ in size, hand them out one at a time:
+                            return IntegerSchedule.dynamic(1);
+                        }
 
-            try {
-                loadFilesAndCalculateQuality(
-                        options, modelId, modelFilenamePrefix, datasetDetailsMap);
-            } catch (IllegalArgumentException e) {
-                signalQualityCalcObj.writeData("# " + modelId + " error loading table for model: "
-                        + e.getMessage());
-            } catch (IOException e) {
-                signalQualityCalcObj.writeData("# " + modelId + " error reading file: "
-                        + e.getMessage());
-            } finally {
-                // Work completed, estimate time remaining
-                final long estimate = estimator.unitCompleted();
-                if (estimate == Long.MAX_VALUE) {
-                    System.out.println("## Waiting for second data point to estimate time");
-                } else {
-                    final long finishAt = (new Date().getTime()) + estimate;
-                    System.out.printf(
-                            "## Processed model %d of %d, Time remaining %s, finish at %s%n",
-                            estimator.getUnitsCompleted(), estimator.getTotalUnits(),
-                            ICBStringUtils.millis2hms(estimate),
-                            DateFormatUtils.format(finishAt, "HH:mm:ss"));
+                        @Override
+                        public void run(final int first, final int last) {
+                            for (int modelIndex = first; modelIndex <= last; modelIndex++) {
+                                processModel(options, modelIndex, modelIds.get(modelIndex));
+                                reportProgress(estimator);
+                            }
+                        }
+                    });
                 }
-            }
+            });
+        } catch (Exception e) {
+            LOG.error("An error occurred processing models", e);
+            throw new IllegalStateException("An error occurred processing models", e);
+        } finally {
+            // waits for the output of all the models to be written
+            signalQualityCalcObj.close();
+        }
+        LOG.info("Dataset cache: " + datasetCache);
+    }
+
+    /**
+     * Process one model. Its output is written as a block, at the position of the model.
+     */
+    private void processModel(final DAVOptions options, final int modelIndex,
+                              final String modelId) {
+        final String modelFilenamePrefix = modelIdToModelPrefixMap.get(modelId);
+        final Map<String, String> modelConditionsMap = modelIdToModelConditionsMap.get(modelId);
+        final String datasetName = modelConditionsMap.get("dataset-name");
+        final String datasetRoot;
+        if (evalDatasetRoot == null) {
+            datasetRoot = modelConditionsMap.get("dataset-root");
+        } else {
+            datasetRoot = evalDatasetRoot;
         }
 
-        /** Run for a single model. */
-        /*
-        */
+        final Map<String, String> datasetDetailsMap =
+                localizeDatasetDetailsMap(datasetName2DetailsMap.get(datasetName), datasetRoot);
+
+        signalQualityCalcObj.beginBlock(modelIndex);
+        try {
+            loadFilesAndCalculateQuality(
+                    options, modelId, modelFilenamePrefix, datasetDetailsMap);
+        } catch (IllegalArgumentException e) {
+            signalQualityCalcObj.writeData("# " + modelId + " error loading table for model: "
+                    + e.getMessage());
+        } catch (IOException e) {
+            signalQualityCalcObj.writeData("# " + modelId + " error reading file: "
+                    + e.getMessage());
+        } finally {
+            signalQualityCalcObj.endBlock();
+        }
+    }
 
-        signalQualityCalcObj.close();
+    /**
+     * Report the number of models processed, the throughput and an estimate of the time
+     * remaining. Models complete concurrently, the estimate is based on wall clock time.
+     */
+    private void reportProgress(final ProcessEstimator estimator) {
+        synchronized (estimator) {
+            final long estimate = estimator.unitCompleted();
+            final int completed = estimator.getUnitsCompleted();
+            final double minutes = estimator.getTimeSpent() / 60000.0;
+            final double throughput = minutes > 0 ? completed / minutes : 0;
+            if (estimate == Long.MAX_VALUE) {
+                System.out.println("## Waiting for second data point to estimate time");
+            } else {
+                final long finishAt = (new Date().getTime()) + Math.max(0, estimate);
+                System.out.printf(
+                        "## Processed model %d of %d (%.1f models/minute), Time remaining %s, "
+                                + "finish at %s%n",
+                        completed, estimator.getTotalUnits(), throughput,
+                        ICBStringUtils.millis2hms(Math.max(0, estimate)),
+                        DateFormatUtils.format(finishAt, "HH:mm:ss"));
+            }
+        }
     }
 
     /**
@@ -687,17 +795,17 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
         try {
             final BDVModel model = new BDVModel(modelFilenamePrefix);
 
-            final boolean scaleFeaturesFromCommandLine = options.scaleFeatures;
-            model.load(options);
+            // models change the options they are loaded with, each model gets its own:
+            final DAVOptions modelOptions = createDatasetOptions(options);
+            model.load(modelOptions);
             // Force scaleFeature to respect the command line option (default is true)
-            options.scaleFeatures = scaleFeaturesFromCommandLine;
+            modelOptions.scaleFeatures = options.scaleFeatures;
 
             assert model.getGeneList() != null : " gene list must not be null";
 
-            final List<Set<String>> trainingLabelValueGroups = new ArrayList<Set<String>>();
-            options.inputTable = readMemoryCachedInputFile(trainingDatasetFilename);
-            final Table trainingTable = model.loadTestSet(this, options,
-                    model.getGeneList(), trainingLabelValueGroups, trainingSampleIds);
+            final Table trainingTable = model.prepareTestSet(this, modelOptions,
+                    getProcessedDataset(options, modelOptions.normalizeFeatures,
+                            trainingDatasetFilename, trainingSamplesFilename, trainingSampleIds));
             final int trainingFilteredNumberOfSamples = trainingTable.getRowNumber();
             LOG.info("Training dataset has " + trainingFilteredNumberOfSamples + " samples.");
 
@@ -710,10 +818,10 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
                 return;
             }
 
-            final List<Set<String>> validationLabelValueGroups = new ArrayList<Set<String>>();
-            options.inputTable = readMemoryCachedInputFile(validationDatasetFilename);
-            final Table validationTable = model.loadTestSet(this, options,
-                    model.getGeneList(), validationLabelValueGroups, validationSampleIds);
+            final Table validationTable = model.prepareTestSet(this, modelOptions,
+                    getProcessedDataset(options, modelOptions.normalizeFeatures,
+                            validationDatasetFilename, validationSamplesFilename,
+                            validationSampleIds));
             final int validationFilteredNumberOfSamples = validationTable.getRowNumber();
             LOG.info("Validation dataset has " + validationFilteredNumberOfSamples + " samples.");
 
@@ -804,8 +912,77 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
         return classTask;
     }
 
+    /**
+     * Create options to load a model or process a dataset with. Pathway options of the mode
+     * are shared by all the models.
+     *
+     * @param options the options of the mode
+     * @return new options
+     */
+    private DAVOptions createDatasetOptions(final DAVOptions options) {
+        final DAVOptions datasetOptions = createModelOptions(options);
+        datasetOptions.scaleFeatures = options.scaleFeatures;
+        datasetOptions.normalizeFeatures = options.normalizeFeatures;
+        datasetOptions.pathways = options.pathways;
+        datasetOptions.pathwayAggregtionMethod = options.pathwayAggregtionMethod;
+        datasetOptions.pathwaysInfoFilename = options.pathwaysInfoFilename;
+        datasetOptions.geneToProbeFilename = options.geneToProbeFilename;
+        datasetOptions.gene2Probe = options.gene2Probe;
+        datasetOptions.probeIndexMapping = options.probeIndexMapping;
+        datasetOptions.pathwayIndexMapping = options.pathwayIndexMapping;
+        return datasetOptions;
+    }
+
+    /**
+     * Get a dataset processed for all the features (normalized, floored, transposed and
+     * aggregated), restricted to the samples of a sample file. Models prepare their test
+     * sets from it with {@link BDVModel#prepareTestSet}, which copies the columns they need,
+     * so the dataset is shared and never modified. Datasets are kept in memory within the
+     * budget of the dataset cache.
+     *
+     * @param options           the options of the mode
+     * @param normalizeFeatures whether the model normalizes features
+     * @param datasetFilename   the dataset file
+     * @param samplesFilename   the sample file, may be null
+     * @param sampleIds         the samples of the sample file, null to keep all samples
+     * @return the processed dataset
+     */
+    private Table getProcessedDataset(final DAVOptions options, final boolean normalizeFeatures,
+                                      final String datasetFilename, final String samplesFilename,
+                                      final ObjectSet<String> sampleIds) throws IOException,
+            SyntaxErrorException, UnsupportedFormatException, TypeMismatchException,
+            InvalidColumnException, ColumnTypeException {
+        final String key = "processed\t" + datasetFilename + "\t" + samplesFilename + "\t"
+                + normalizeFeatures;
+        Table processedTable = datasetCache.get(key);
+        if (processedTable != null) {
+            return processedTable;
+        }
+        synchronized (datasetLock) {
+            // another model may have processed it while we waited:
+            processedTable = datasetCache.get(key);
+            if (processedTable == null) {
+                LOG.info(String.format("Processing dataset %s for samples %s",
+                        datasetFilename, samplesFilename));
+                final DAVOptions datasetOptions = createDatasetOptions(options);
+                datasetOptions.normalizeFeatures = normalizeFeatures;
+                // normalization and floor adjustment change the input table, process a copy:
+                final Table inputTable = readMemoryCachedInputFile(datasetFilename).copy();
+                processedTable = processTable(new FullGeneList("full"), inputTable,
+                        datasetOptions, new ArrayList<Set<String>>(), true);
+                if (sampleIds != null) {
+                    // focus on a subset of samples in the input table: those in test-samples
+                    processedTable = filterSamples(processedTable, sampleIds);
+                }
+                datasetCache.put(key, processedTable);
+            }
+            return processedTable;
+        }
+    }
+
     /**
      * Read a table by filename. Cache them in memory. On future reads, get it from the cache.
+     * The table returned is shared and must not be modified.
      *
      * @param fileName Name of the file to read
      * @return A table that contains data read from the input file
@@ -815,11 +992,12 @@ public class DistributionDifferenceByFeatureMode extends DAVMode {
      */
     private Table readMemoryCachedInputFile(final String fileName) throws
             IOException, SyntaxErrorException, UnsupportedFormatException {
-        Table table = tableCache.get(fileName);
+        final String key = "input\t" + fileName;
+        Table table = datasetCache.get(key);
         if (table == null) {
             table = readInputFile(fileName);
             if (table != null) {
-                tableCache.put(fileName, table);
+                datasetCache.put(key, table);
             }
         }
         return table;
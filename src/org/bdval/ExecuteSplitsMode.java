@@ -76,6 +76,10 @@ public class ExecuteSplitsMode extends DAVMode {
     private boolean evaluateStatistics;
     private OptionalModelId[] optionalModelIds = new OptionalModelId[0];
     private TimeLoggingService timeService;
+    /**
+     * Whether the input table is read and preprocessed once, then shared by all splits.
+     */
+    private boolean sharedInput;
 
     /**
      * Parse properties to extract optional model id definitions. The format is as follow:
@@ -139,6 +143,14 @@ public class ExecuteSplitsMode extends DAVMode {
         timeService = new TimeLoggingService("execute-splits");
         timeService.start();
 
+        // must be set before the input file is read by DAVMode:
+        sharedInput = result.getBoolean("shared-input");
+        SharedInputTable.setEnabled(sharedInput);
+        if (sharedInput) {
+            System.out.println("The input table will be loaded and preprocessed once, "
+                    + "then shared by all splits.");
+        }
+
         super.interpretArguments(jsap, result, options);
         optionalModelIds = parseOptionalModelIdProperties(configurationProperties);
 
@@ -162,7 +174,8 @@ public class ExecuteSplitsMode extends DAVMode {
             paramKeysNotRequired.add(Integer.toString(options.randomSeed));
         }
 
-        modelId = ShortHash.shortHash(getOriginalArgs());
+        // how the input is shared is an execution detail and must not change the model id:
+        modelId = ShortHash.shortHash(removeSharedInputArgument(getOriginalArgs()));
         options.modelId = modelId;
         timeService.setModelId(options.modelId);
 
@@ -170,7 +183,8 @@ public class ExecuteSplitsMode extends DAVMode {
         additionalConditionsMap.put("model-id", modelId);
 
         for (final OptionalModelId optionalModelId : optionalModelIds) {
-            final String[] originalArgs1 = expandShortArgs(getOriginalArgs(), jsap);
+            final String[] originalArgs1 =
+                    expandShortArgs(removeSharedInputArgument(getOriginalArgs()), jsap);
             final String[] filteredArgs = filterArgs(originalArgs1, optionalModelId);
             final String optionalModelIdValue = ShortHash.shortHash(filteredArgs);
 
@@ -181,6 +195,7 @@ public class ExecuteSplitsMode extends DAVMode {
         final Set<String> skipJsapConditions = new HashSet<String>();
         skipJsapConditions.add("model-id");
         skipJsapConditions.add("mode");
+        skipJsapConditions.add("shared-input");
         try {
             writeConditions(modelConditionsFilename, jsap, result,
                     additionalConditionsMap, skipJsapConditions);
@@ -189,6 +204,18 @@ public class ExecuteSplitsMode extends DAVMode {
         }
     }
 
+    private String[] removeSharedInputArgument(final String[] originalArgs) {
+        final ObjectList<String> filteredArgs = new ObjectArrayList<String>();
+        for (int i = 0; i < originalArgs.length; i++) {
+            if ("--shared-input".equals(originalArgs[i])) {
+                i++; // skip the value as well
+            } else {
+                filteredArgs.add(originalArgs[i]);
+            }
+        }
+        return filteredArgs.toArray(new String[filteredArgs.size()]);
+    }
+
     /*
    Replace short argument name, such as "-m" with long argument names (such as "--mode" )
     */
@@ -306,6 +333,19 @@ public class ExecuteSplitsMode extends DAVMode {
                         .setLongFlag("evaluate-statistics")
                         .setHelp("Indicate whether evaluation statistics should be evaluated after all splits are executed. Setting this property to true requires R/ROCR for statistics evaluation.");
         jsap.registerParameter(noStatsParam);
+
+        final Parameter sharedInputParam =
+                new FlaggedOption("shared-input")
+                        .setStringParser(JSAP.BOOLEAN_PARSER)
+                        .setDefault("false")
+                        .setRequired(false)
+                        .setLongFlag("shared-input")
+                        .setHelp("When true, the input table is loaded and preprocessed once "
+                                + "in this JVM and shared read-only by all splits. Each split "
+                                + "then only selects the samples listed for it in the split plan. "
+                                + "Preprocessing is shared only when features are not normalized "
+                                + "(--normalize-features false).");
+        jsap.registerParameter(sharedInputParam);
     }
 
     @Override
@@ -326,6 +366,11 @@ public class ExecuteSplitsMode extends DAVMode {
             LOGGER.error("An exception occurred.", e);
         }
         logger.stop();
+        if (sharedInput) {
+            // all splits are done, release the shared input tables:
+            SharedInputTable.clear();
+            SharedInputTable.setEnabled(false);
+        }
 
         /**
          * Time the duration of the sequence:
@@ -476,6 +521,9 @@ public class ExecuteSplitsMode extends DAVMode {
             if (arg.equals("--evaluate-statistics")) {
                 ignoreCount = 2;
             }
+            if (arg.equals("--shared-input")) {
+                ignoreCount = 2;
+            }
             if (ignoreCount > 0) {
                 ignoreCount--;
             } else {
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.ChiSquaredDistributionImpl;
+import org.apache.commons.math.linear.Array2DRowRealMatrix;
+import org.apache.commons.math.linear.LUDecompositionImpl;
+
+import java.util.Arrays;
+
+/**
+ * Log-rank test of the difference between the survival curves of groups of samples, computed
+ * in the JVM. Equivalent to R's <code>survdiff</code> with rho=0, as used by
+ * <code>rscripts/logRank_test.R</code>.
+ */
+public final class LogRankTest {
+    private LogRankTest() {
+        super();
+    }
+
+    /**
+     * Compute the log-rank statistic.
+     *
+     * @param time   Survival or censoring time of each sample
+     * @param censor Event indicator of each sample (1 for an event, 0 for censored)
+     * @param group  Group of each sample (e.g., -1 or 1)
+     * @return the chi-square statistic, with one degree of freedom less than the number of
+     * groups. NaN when there are less than two groups.
+     */
+    public static double chiSquare(final double[] time, final double[] censor,
+                                   final double[] group) {
+        if (time.length != censor.length || time.length != group.length) {
+            throw new IllegalArgumentException(
+                    " the number of times, censor values and groups must match.");
+        }
+        final double[] groups = distinct(group);
+        final int k = groups.length;
+        if (k < 2) {
+            return Double.NaN;
+        }
+        final int n = time.length;
+        final int[] groupIndex = new int[n];
+        for (int i = 0; i < n; i++) {
+            groupIndex[i] = Arrays.binarySearch(groups, group[i]);
+        }
+
+        // risk sets grow from the longest time down, as in CoxProportionalHazards:
+        final int[] order = CoxProportionalHazards.orderByDecreasingTime(time);
+        final double[] atRisk = new double[k];
+        final double[] events = new double[k];
+        final double[] observedMinusExpected = new double[k];
+        final double[][] variance = new double[k][k];
+        double totalAtRisk = 0;
+        int position = 0;
+        while (position < n) {
+            final double currentTime = time[order[position]];
+            Arrays.fill(events, 0);
+            double totalEvents = 0;
+            for (; position < n && time[order[position]] == currentTime; position++) {
+                final int sample = order[position];
+                atRisk[groupIndex[sample]]++;
+                totalAtRisk++;
+                if (censor[sample] == 1) {
+                    events[groupIndex[sample]]++;
+                    totalEvents++;
+                }
+            }
+            if (totalEvents == 0) {
+                continue;
+            }
+            final double factor = totalAtRisk > 1
+                    ? totalEvents * (totalAtRisk - totalEvents) / (totalAtRisk - 1) : 0;
+            for (int g = 0; g < k; g++) {
+                final double fraction = atRisk[g] / totalAtRisk;
+                observedMinusExpected[g] += events[g] - totalEvents * fraction;
+                for (int h = 0; h < k; h++) {
+                    variance[g][h] += factor * fraction
+                            * ((g == h ? 1 : 0) - atRisk[h] / totalAtRisk);
+                }
+            }
+        }
+
+        // the last group is redundant: observed minus expected sums to zero over groups
+        final double[] difference = Arrays.copyOf(observedMinusExpected, k - 1);
+        final double[][] reduced = new double[k - 1][];
+        for (int g = 0; g < k - 1; g++) {
+            reduced[g] = Arrays.copyOf(variance[g], k - 1);
+        }
+        final double[] solution = new LUDecompositionImpl(new Array2DRowRealMatrix(reduced, false))
+                .getSolver().solve(difference);
+        double chiSquare = 0;
+        for (int g = 0; g < k - 1; g++) {
+            chiSquare += difference[g] * solution[g];
+        }
+        return chiSquare;
+    }
+
+    /**
+     * Compute the p-value of the log-rank test.
+     *
+     * @param time   Survival or censoring time of each sample
+     * @param censor Event indicator of each sample (1 for an event, 0 for censored)
+     * @param group  Group of each sample (e.g., -1 or 1)
+     * @return the p-value, NaN when there are less than two groups
+     * @throws MathException if the chi-square distribution cannot be evaluated
+     */
+    public static double pValue(final double[] time, final double[] censor,
+                                final double[] group) throws MathException {
+        final double chiSquare = chiSquare(time, censor, group);
+        if (Double.isNaN(chiSquare)) {
+            return Double.NaN;
+        }
+        final int degreesOfFreedom = distinct(group).length - 1;
+        return 1 - new ChiSquaredDistributionImpl(degreesOfFreedom).cumulativeProbability(chiSquare);
+    }
+
+    private static double[] distinct(final double[] values) {
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import edu.cornell.med.icb.geo.GEOPlatformIndexed;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2DoubleMap;
+import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
+import it.unimi.dsi.lang.MutableString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads and writes the single file of a {@link BDVModel} stored in the
+ * {@link BDVModel.Format#PACKED} format. The file starts with a small header (properties and
+ * section sizes). Feature data follow as primitive arrays indexed by feature position: scale
+ * means and ranges (NaN when a feature has no value), then the probe and external identifier
+ * dictionaries (offsets into a block of chars). The serialized classifier closes the file.
+ * Reading maps the file in memory and rebuilds the platform index from the dictionaries.
+ */
+final class PackedModel {
+    /**
+     * Magic number that starts packed model files ("BDVM").
+     */
+    static final int MAGIC = 0x4244564D;
+
+    /**
+     * Version of the packed model layout.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Size of the magic number, version and header length that precede the header.
+     */
+    private static final int PREAMBLE_SIZE = 12;
+
+    private final byte[] properties;
+    private final GEOPlatformIndexed platform;
+    private final Object2DoubleMap<MutableString> means;
+    private final Object2DoubleMap<MutableString> ranges;
+    private final byte[] classifier;
+
+    private PackedModel(final byte[] properties, final GEOPlatformIndexed platform,
+                        final Object2DoubleMap<MutableString> means,
+                        final Object2DoubleMap<MutableString> ranges, final byte[] classifier) {
+        super();
+        this.properties = properties;
+        this.platform = platform;
+        this.means = means;
+        this.ranges = ranges;
+        this.classifier = classifier;
+    }
+
+    /**
+     * The model properties, in the text format of {@link it.unimi.dsi.util.Properties}.
+     */
+    byte[] getProperties() {
+        return properties;
+    }
+
+    GEOPlatformIndexed getPlatform() {
+        return platform;
+    }
+
+    Object2DoubleMap<MutableString> getMeans() {
+        return means;
+    }
+
+    Object2DoubleMap<MutableString> getRanges() {
+        return ranges;
+    }
+
+    /**
+     * The classifier model, as written by {@link edu.cornell.med.icb.learning.ClassificationModel}.
+     */
+    byte[] getClassifier() {
+        return classifier;
+    }
+
+    /**
+     * Write a packed model file. Features are stored in the order of their index in the
+     * platform, which must be 0 to n-1.
+     *
+     * @param file       The file to write
+     * @param properties Model properties, in text format
+     * @param platform   The training platform of the model
+     * @param means      Scale means of the features
+     * @param ranges     Scale ranges of the features
+     * @param classifier The serialized classifier model
+     * @throws IOException if the file cannot be written
+     */
+    static void write(final File file, final byte[] properties, final GEOPlatformIndexed platform,
+                      final Object2DoubleMap<MutableString> means,
+                      final Object2DoubleMap<MutableString> ranges, final byte[] classifier)
+            throws IOException {
+        final int numberOfFeatures = platform.getNumProbeIds();
+        final MutableString[] probeIds = new MutableString[numberOfFeatures];
+        final MutableString[] externalIds = new MutableString[numberOfFeatures];
+        int probeChars = 0;
+        int externalChars = 0;
+        for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+            probeIds[featureIndex] = platform.getProbesetIdentifier(featureIndex);
+            if (probeIds[featureIndex] == null) {
+                throw new IllegalArgumentException("Platform has no probe at index " + featureIndex);
+            }
+            externalIds[featureIndex] = platform.getExternalId(
+                    platform.getExternalIndexForProbeId(probeIds[featureIndex]));
+            if (externalIds[featureIndex] == null) {
+                externalIds[featureIndex] = probeIds[featureIndex];
+            }
+            probeChars += probeIds[featureIndex].length();
+            externalChars += externalIds[featureIndex].length();
+        }
+
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+        final DataOutputStream header = new DataOutputStream(headerBytes);
+        header.writeInt(numberOfFeatures);
+        writeNullableString(header, platform.getName());
+        writeNullableString(header, platform.getExternalIdType());
+        header.writeInt(probeChars);
+        header.writeInt(externalChars);
+        header.writeInt(classifier.length);
+        header.writeInt(properties.length);
+        header.write(properties);
+        header.flush();
+
+        final DataOutputStream output = new DataOutputStream(
+                new FastBufferedOutputStream(new FileOutputStream(file)));
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(headerBytes.size());
+            headerBytes.writeTo(output);
+            final long dataStart = dataStart(headerBytes.size());
+            for (long position = PREAMBLE_SIZE + headerBytes.size(); position < dataStart; position++) {
+                output.writeByte(0);
+            }
+            // doubles first, so that they start on the aligned data start:
+            writeValues(output, probeIds, means);
+            writeValues(output, probeIds, ranges);
+            writeOffsets(output, probeIds);
+            writeOffsets(output, externalIds);
+            writeChars(output, probeIds);
+            writeChars(output, externalIds);
+            output.write(classifier);
+            output.flush();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Read a packed model file.
+     *
+     * @param file The file to read
+     * @return the model read from the file
+     * @throws IOException if the file cannot be read or is not a packed model
+     */
+    static PackedModel read(final File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a packed model file.");
+            }
+            final int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unsupported packed model version " + version);
+            }
+            final int headerLength = buffer.getInt(8);
+            final byte[] headerBytes = new byte[headerLength];
+            buffer.position(PREAMBLE_SIZE);
+            buffer.get(headerBytes);
+
+            final DataInputStream header =
+                    new DataInputStream(new ByteArrayInputStream(headerBytes));
+            final int numberOfFeatures = header.readInt();
+            final MutableString name = readNullableString(header);
+            final MutableString externalIdType = readNullableString(header);
+            final int probeChars = header.readInt();
+            final int externalChars = header.readInt();
+            final int classifierLength = header.readInt();
+            final byte[] properties = new byte[header.readInt()];
+            header.readFully(properties);
+
+            final double[] meanValues = new double[numberOfFeatures];
+            final double[] rangeValues = new double[numberOfFeatures];
+            final int[] probeOffsets = new int[numberOfFeatures + 1];
+            final int[] externalOffsets = new int[numberOfFeatures + 1];
+            final char[] probeData = new char[probeChars];
+            final char[] externalData = new char[externalChars];
+            final byte[] classifier = new byte[classifierLength];
+
+            buffer.position((int) dataStart(headerLength));
+            buffer.slice().asDoubleBuffer().get(meanValues);
+            buffer.position(buffer.position() + numberOfFeatures * Double.SIZE / 8);
+            buffer.slice().asDoubleBuffer().get(rangeValues);
+            buffer.position(buffer.position() + numberOfFeatures * Double.SIZE / 8);
+            buffer.slice().asIntBuffer().get(probeOffsets);
+            buffer.position(buffer.position() + (numberOfFeatures + 1) * Integer.SIZE / 8);
+            buffer.slice().asIntBuffer().get(externalOffsets);
+            buffer.position(buffer.position() + (numberOfFeatures + 1) * Integer.SIZE / 8);
+            buffer.slice().asCharBuffer().get(probeData);
+            buffer.position(buffer.position() + probeChars * Character.SIZE / 8);
+            buffer.slice().asCharBuffer().get(externalData);
+            buffer.position(buffer.position() + externalChars * Character.SIZE / 8);
+            buffer.get(classifier);
+
+            // features are registered in index order, so that they get their original index:
+            final GEOPlatformIndexed platform = new GEOPlatformIndexed();
+            platform.setName(name);
+            platform.setExternalIdType(externalIdType);
+            final Object2DoubleMap<MutableString> means =
+                    new Object2DoubleOpenHashMap<MutableString>(numberOfFeatures);
+            final Object2DoubleMap<MutableString> ranges =
+                    new Object2DoubleOpenHashMap<MutableString>(numberOfFeatures);
+            for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                final MutableString probeId = new MutableString(probeData,
+                        probeOffsets[featureIndex],
+                        probeOffsets[featureIndex + 1] - probeOffsets[featureIndex]);
+                final MutableString externalId = new MutableString(externalData,
+                        externalOffsets[featureIndex],
+                        externalOffsets[featureIndex + 1] - externalOffsets[featureIndex]);
+                platform.registerProbeId(probeId, externalId);
+                if (!Double.isNaN(meanValues[featureIndex])) {
+                    means.put(probeId, meanValues[featureIndex]);
+                }
+                if (!Double.isNaN(rangeValues[featureIndex])) {
+                    ranges.put(probeId, rangeValues[featureIndex]);
+                }
+            }
+            return new PackedModel(properties, platform, means, ranges, classifier);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Data start on the first multiple of eight after the header, so that double arrays are
+     * aligned in the mapped file.
+     */
+    private static long dataStart(final int headerLength) {
+        final long end = PREAMBLE_SIZE + headerLength;
+        return (end + 7) / 8 * 8;
+    }
+
+    private static void writeValues(final DataOutputStream output, final MutableString[] ids,
+                                    final Object2DoubleMap<MutableString> values)
+            throws IOException {
+        for (final MutableString id : ids) {
+            output.writeDouble(values != null && values.containsKey(id)
+                    ? values.getDouble(id) : Double.NaN);
+        }
+    }
+
+    private static void writeOffsets(final DataOutputStream output, final MutableString[] ids)
+            throws IOException {
+        int offset = 0;
+        output.writeInt(offset);
+        for (final MutableString id : ids) {
+            offset += id.length();
+            output.writeInt(offset);
+        }
+    }
+
+    private static void writeChars(final DataOutputStream output, final MutableString[] ids)
+            throws IOException {
+        for (final MutableString id : ids) {
+            final int length = id.length();
+            for (int i = 0; i < length; i++) {
+                output.writeChar(id.charAt(i));
+            }
+        }
+    }
+
+    private static void writeNullableString(final DataOutputStream output,
+                                            final MutableString value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value.toString());
+        }
+    }
+
+    private static MutableString readNullableString(final DataInputStream input)
+            throws IOException {
+        return input.readBoolean() ? new MutableString(input.readUTF()) : null;
+    }
+}
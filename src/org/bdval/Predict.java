@@ -33,6 +33,8 @@ import edu.mssm.crover.tables.Table;
 import edu.mssm.crover.tables.TypeMismatchException;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
@@ -52,7 +54,9 @@ import org.apache.commons.logging.LogFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -89,6 +93,9 @@ public class Predict extends DAVMode {
 
     private final MaqciiHelper maqciiHelper = new MaqciiHelper();
     private boolean sampleWithReplacement = true;
+    private int numberOfBootstrapSamples = 1000;
+    private double confidenceLevel = 0.95;
+    private String confidenceIntervalFilename;
     private String testSampleFilename;
 
     private String modelFilenamePrefix;
@@ -96,6 +103,16 @@ public class Predict extends DAVMode {
     private BDVModel model;
     private String trueLabelFilename;
 
+    /**
+     * Number of samples predicted together. Predictions are written to the output once per batch.
+     */
+    private static final int PREDICTION_BATCH_SIZE = 1024;
+
+    /**
+     * Number of threads used to predict the samples of a batch.
+     */
+    private int predictionThreads = 1;
+
     /**
      * Define command line options for this mode.
      *
@@ -149,9 +166,37 @@ public class Predict extends DAVMode {
                 .setRequired(false)
                 .setDefault("false")
                 .setLongFlag("estimate-with-replacement")
-                .setHelp("Estimate performance measure as an average over a number of test set samples constructed by sampling the fixed test set with replacement. A thousand samplings are considered. This makes it possible to estimate std deviation of each measure on the test set and acknowledges that the test set is just another sample of a very large population. Default is false.");
+                .setHelp("Estimate performance measure as an average over a number of test set samples constructed by sampling the fixed test set with replacement. The number of samplings is set with --bootstrap-samples. This makes it possible to estimate std deviation of each measure on the test set and acknowledges that the test set is just another sample of a very large population. Default is false.");
         jsap.registerParameter(estimateWithReplacementOption);
 
+        final Parameter bootstrapSamplesOption = new FlaggedOption("bootstrap-samples")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setRequired(false)
+                .setDefault("1000")
+                .setLongFlag("bootstrap-samples")
+                .setHelp("Number of test set samples constructed when estimating performance "
+                        + "with replacement. Default is 1000.");
+        jsap.registerParameter(bootstrapSamplesOption);
+
+        final Parameter confidenceLevelOption = new FlaggedOption("confidence-level")
+                .setStringParser(JSAP.DOUBLE_PARSER)
+                .setRequired(false)
+                .setDefault("0.95")
+                .setLongFlag("confidence-level")
+                .setHelp("Level of the percentile confidence intervals estimated when sampling "
+                        + "the test set with replacement. Default is 0.95.");
+        jsap.registerParameter(confidenceLevelOption);
+
+        final Parameter confidenceIntervalOption = new FlaggedOption("confidence-intervals")
+                .setStringParser(JSAP.STRING_PARSER)
+                .setRequired(false)
+                .setDefault(JSAP.NO_DEFAULT)
+                .setLongFlag("confidence-intervals")
+                .setHelp("Name of a file where the percentile confidence intervals of AUC, MCC, "
+                        + "accuracy, sensitivity and specificity are appended when estimating "
+                        + "performance with replacement.");
+        jsap.registerParameter(confidenceIntervalOption);
+
         final Parameter trueLabelOption = new FlaggedOption("true-labels")
                 .setStringParser(JSAP.STRING_PARSER)
                 .setDefault(JSAP.NO_DEFAULT)
@@ -173,6 +218,18 @@ public class Predict extends DAVMode {
                         + "will be included in the regression model");
         jsap.registerParameter(survivalFilenameOption);
 
+        final Parameter predictionThreadsOption = new FlaggedOption("prediction-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("prediction-threads")
+                .setHelp("Number of threads used to predict the samples of the test set. "
+                        + "The classifier must support concurrent predictions. Consensus "
+                        + "models use these threads to prepare and evaluate their juror models, "
+                        + "and bootstrap estimates of performance are computed with them. "
+                        + "Zero uses one thread per processor. Default is 1 (sequential).");
+        jsap.registerParameter(predictionThreadsOption);
+
         maqciiHelper.defineSubmissionFileOption(jsap);
         jsap.getByID("label").addDefault("auto");
         //  jsap.getByID("folds").addDefault("0");
@@ -213,8 +270,16 @@ public class Predict extends DAVMode {
         if (result.contains("estimate-with-replacement")) {
             sampleWithReplacement = result.getBoolean("estimate-with-replacement");
         }
+        numberOfBootstrapSamples = result.getInt("bootstrap-samples");
+        confidenceLevel = result.getDouble("confidence-level");
+        if (confidenceLevel <= 0 || confidenceLevel >= 1) {
+            System.err.println("--confidence-level must be between 0 and 1.");
+            System.exit(1);
+        }
+        confidenceIntervalFilename = result.getString("confidence-intervals");
 
         printStats = result.getBoolean("print-stats");
+        predictionThreads = result.getInt("prediction-threads");
         if (result.contains("survival")) {
             survivalFileName = result.getString("survival");
         }
@@ -325,6 +390,7 @@ public class Predict extends DAVMode {
     private void loadModel(final DAVOptions options) {
         try {
             model = new BDVModel(modelFilenamePrefix);
+            model.setNumberOfThreads(predictionThreads);
             model.load(options);
         } catch (IOException e) {
             LOG.fatal("Error loading model " + modelFilenamePrefix, e);
@@ -392,19 +458,23 @@ public class Predict extends DAVMode {
                 final EvaluationMeasure measure;
 
                 if (sampleWithReplacement) {
-                    final int numberOfBootstrapSamples = 1000;
+                    final double[] decisionArray = decisions.toDoubleArray();
+                    final double[] trueLabelArray = trueLabels.toDoubleArray();
+                    final BootstrapEvaluator bootstrap =
+                            new BootstrapEvaluator(decisionArray, trueLabelArray);
+                    bootstrap.setNumberOfThreads(predictionThreads);
+                    final int[][] samples = bootstrap.drawSamples(numberOfBootstrapSamples,
+                            options.randomGenerator);
+
                     final ObjectList<double[]> decisionList = new ObjectArrayList<double[]>();
                     final ObjectList<double[]> trueLabelList = new ObjectArrayList<double[]>();
                     measure = new EvaluationMeasure();
-                    for (int i = 0; i < numberOfBootstrapSamples; i++) {
-                        final DoubleList sampleDecisions = new DoubleArrayList();
-                        final DoubleList sampleTrueLabels = new DoubleArrayList();
-
-                        buildSample(options, decisions, trueLabels, sampleDecisions, sampleTrueLabels);
-                        decisionList.add(sampleDecisions.toDoubleArray());
-                        trueLabelList.add(sampleTrueLabels.toDoubleArray());
+                    for (final int[] sample : samples) {
+                        decisionList.add(BootstrapEvaluator.select(decisionArray, sample));
+                        trueLabelList.add(BootstrapEvaluator.select(trueLabelArray, sample));
                     }
                     CrossValidation.evaluate(decisionList, trueLabelList, evaluationMeasureNames, measure, "", true);
+                    printConfidenceIntervals(bootstrap.evaluate(samples));
                 } else {
                     measure = CrossValidation.testSetEvaluation(decisions.toDoubleArray(),
                             trueLabels.toDoubleArray(), evaluationMeasureNames, true);
@@ -463,72 +533,124 @@ public class Predict extends DAVMode {
         sampleDecisions.clear();
         sampleTrueLabels.clear();
 
-        final int sampleSize = decisions.size();
-        final int[] instanceIndices = new int[sampleSize];
-        for (int instanceIndex = 0; instanceIndex < sampleSize; instanceIndex++) {
-            instanceIndices[instanceIndex] = (int) (options.randomGenerator.nextDouble() * sampleSize); //[0-sampleSize[  array indexing convention
-        }
+        final int[] instanceIndices =
+                BootstrapEvaluator.drawSample(options.randomGenerator, decisions.size());
         for (final int instanceIndex : instanceIndices) {
             sampleDecisions.add(decisions.get(instanceIndex));
             sampleTrueLabels.add(trueLabels.get(instanceIndex));
         }
     }
 
+    /**
+     * Report percentile confidence intervals of the bootstrap estimates. Intervals are logged,
+     * and written to the confidence interval file when one was requested.
+     *
+     * @param values Value of each measure on each bootstrap sample, as returned by
+     *               {@link BootstrapEvaluator#evaluate(int[][])}
+     */
+    private void printConfidenceIntervals(final double[][] values) {
+        PrintWriter writer = null;
+        try {
+            if (confidenceIntervalFilename != null) {
+                final boolean preexist = new File(confidenceIntervalFilename).exists();
+                writer = new PrintWriter(new FileWriter(confidenceIntervalFilename, true));
+                if (!preexist) {
+                    writer.println("modelId\tmeasure\tbootstrapSamples\tconfidenceLevel\t"
+                            + "average\tlowerBound\tupperBound");
+                }
+            }
+            for (int measureIndex = 0; measureIndex < values.length; measureIndex++) {
+                final String measureName = BootstrapEvaluator.MEASURES[measureIndex];
+                final double average = BootstrapEvaluator.mean(values[measureIndex]);
+                final double[] interval = BootstrapEvaluator.confidenceInterval(
+                        values[measureIndex], confidenceLevel);
+                LOG.info(String.format("%s: %f, %.0f%% confidence interval [%f, %f]",
+                        measureName, average, confidenceLevel * 100, interval[0], interval[1]));
+                if (writer != null) {
+                    writer.printf("%s\t%s\t%d\t%s\t%f\t%f\t%f%n", modelFilenamePrefixNoPath,
+                            measureName, numberOfBootstrapSamples, confidenceLevel, average,
+                            interval[0], interval[1]);
+                }
+            }
+        } catch (IOException e) {
+            LOG.error("Cannot write confidence intervals to " + confidenceIntervalFilename, e);
+        } finally {
+            IOUtils.closeQuietly(writer);
+        }
+    }
+
     private void accumulatePredictions(final DAVOptions options, final String[] idRefs,
                                        final DoubleList decisions, final DoubleList trueLabels,
                                        final int numberOfSamples, final BDVModel model) {
+        // Consider only sampleIds in the specified split:
+        final IntList splitSampleIndices = new IntArrayList();
         for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
-            // predict the class of the each training in the input, according to the model:
-            final String sampleId = idRefs[sampleIndex];
-            // Consider only sampleIds in the specified split:
-            if (!splitPlanContainsSampleId(sampleId)) {
-                continue;
+            if (splitPlanContainsSampleId(idRefs[sampleIndex])) {
+                splitSampleIndices.add(sampleIndex);
             }
+        }
+        final int[] sampleIndices = splitSampleIndices.toIntArray();
+        final String[] symbolicClassLabel = model.getSymbolicClassLabel();
+
+        for (int batchStart = 0; batchStart < sampleIndices.length; batchStart += PREDICTION_BATCH_SIZE) {
+            // predict the class of a batch of samples in the input, according to the model:
+            final int[] batch = Arrays.copyOfRange(sampleIndices, batchStart,
+                    Math.min(sampleIndices.length, batchStart + PREDICTION_BATCH_SIZE));
+            final double[] batchDecisions = new double[batch.length];
+            final double[] batchProbabilities = new double[2 * batch.length];
+            model.predict(batch, batchDecisions, batchProbabilities, predictionThreads);
+
+            for (int i = 0; i < batch.length; i++) {
+                final int sampleIndex = batch[i];
+                final String sampleId = idRefs[sampleIndex];
+                final double[] probabilities = {batchProbabilities[2 * i], batchProbabilities[2 * i + 1]};
+                double decision = batchDecisions[i];
+
+                if (decision != decision) {     //decision is not a number
+                    final double randomdecision = options.randomGenerator.nextDouble();
+                    probabilities[0] = randomdecision;
+
+                    // replace NaN with a random decision centered around 0
+                    probabilities[1] = 1 - probabilities[0];
+
+                    if (probabilities[0] > probabilities[1]) {
+                        decision = -1;
+                    } else {
+                        decision = 1;
+                    }
+                }
 
-            final double[] probabilities = new double[2];
-            double decision = model.predict(sampleIndex, probabilities);
-
-            if (decision != decision) {     //decision is not a number
-                final double randomdecision = options.randomGenerator.nextDouble();
-                probabilities[0] = randomdecision;
-
-                // replace NaN with a random decision centered around 0
-                probabilities[1] = 1 - probabilities[0];
+                assert decision == 1 || decision == -1 : "decision must be binary. Assertion encountered processing model " + modelFilenamePrefix;
+
+                final double probability = Math.max(probabilities[0], probabilities[1]);
+                final String trueLabel = trueLabel(sampleId);
+
+                if (!printStats) {
+                    final int labelIndex = convertDecisionToLabelIndex(decision);
+                    final PredictedItem predictedItem = new PredictedItem(getSplitId(),
+                            getSplitType(),
+                            getRepeatId(),
+                            modelFilenamePrefixNoPath,
+                            sampleIndex,
+                            sampleId,
+                            decision,
+                            symbolicClassLabel[labelIndex],
+                            probability,
+                            labelIndex == 1 ? probability : 1 - probability,    // the model probability that the test instance belongs to class 1
+                            trueLabel, convertToNumeric(symbolicClassLabel, trueLabel),
+                            trueLabel.equals(symbolicClassLabel[labelIndex]) ? "correct" : "incorrect",
+                            model.getNumberOfFeatures());
+                    options.output.println(predictedItem.format());
+                }
 
-                if (probabilities[0] > probabilities[1]) {
-                    decision = -1;
-                } else {
-                    decision = 1;
+                if (!"unknown".equals(trueLabel)) {
+                    decisions.add(probability * decision);
+                    trueLabels.add(convertToNumeric(symbolicClassLabel, trueLabel));
                 }
             }
-
-            assert decision == 1 || decision == -1 : "decision must be binary. Assertion encountered processing model " + modelFilenamePrefix;
-
-            final double probability = Math.max(probabilities[0], probabilities[1]);
-            final String[] symbolicClassLabel = model.getSymbolicClassLabel();
-
             if (!printStats) {
-                final PredictedItem predictedItem = new PredictedItem(getSplitId(),
-                        getSplitType(),
-                        getRepeatId(),
-                        modelFilenamePrefixNoPath,
-                        sampleIndex,
-                        sampleId,
-                        decision,
-                        symbolicClassLabel[convertDecisionToLabelIndex(decision)],
-                        probability,
-                        convertDecisionToLabelIndex(decision) == 1 ? probability : 1 - probability,    // the model probability that the test instance belongs to class 1
-                        trueLabel(sampleId), convertToNumeric(symbolicClassLabel, trueLabel(sampleId)),
-                        trueLabel(sampleId).equals(symbolicClassLabel[convertDecisionToLabelIndex(decision)]) ? "correct" : "incorrect",
-                        model.getNumberOfFeatures());
-                options.output.println(predictedItem.format());
                 options.output.flush();
             }
-
-            if (!"unknown".equals(trueLabel(sampleId))) {
-                decisions.add(probability * decision);
-                trueLabels.add(convertToNumeric(symbolicClassLabel, trueLabel(sampleId)));
-            }
         }
     }
 
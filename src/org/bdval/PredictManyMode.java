@@ -0,0 +1,480 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import edu.cornell.med.icb.geo.tools.FixedGeneList;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
+import edu.rit.pj.ParallelRegion;
+import edu.rit.pj.ParallelTeam;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import it.unimi.dsi.io.FastBufferedReader;
+import it.unimi.dsi.io.LineIterator;
+import it.unimi.dsi.util.Properties;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Predict the samples of one dataset with many models, in a single JVM. The dataset is read
+ * once. Models are grouped by the options that preprocess the dataset (feature normalization
+ * and pathway aggregation), and the dataset is processed once per group, for the union of the
+ * features of the models of the group. The models of a group then prepare their own test
+ * sets from the processed table and are scored concurrently. Predictions of all the models are
+ * written to one file, in the format of the predict mode, each model's predictions contiguous.
+ * Consensus models that aggregate pathway features must be predicted with the predict mode.
+ */
+public class PredictManyMode extends DAVMode {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(PredictManyMode.class);
+
+    /**
+     * Prefixes of the models to predict with.
+     */
+    private final List<String> modelPrefixes = new ArrayList<String>();
+
+    /**
+     * Number of models scored concurrently. Zero uses one thread per processor.
+     */
+    private int modelThreads = 1;
+
+    /**
+     * Number of models loaded and grouped for prediction.
+     */
+    private int numberOfModels;
+
+    private String pathwayComponentsDir;
+    private ObjectSet<String> testSampleIds;
+    private Map<String, String> sample2TrueLabelMap;
+
+    /**
+     * A model and the options it was loaded with.
+     */
+    private static final class LoadedModel {
+        private final BDVModel model;
+        private final DAVOptions options;
+        private final String modelFilenamePrefixNoPath;
+
+        private LoadedModel(final BDVModel model, final DAVOptions options) {
+            super();
+            this.model = model;
+            this.options = options;
+            modelFilenamePrefixNoPath = FilenameUtils.getName(model.getModelFilenamePrefix());
+        }
+    }
+
+    /**
+     * Define command line options for this mode.
+     *
+     * @param jsap the JSAP command line parser
+     * @throws JSAPException if there is a problem building the options
+     */
+    @Override
+    public void defineOptions(final JSAP jsap) throws JSAPException {
+        // tasks and gene lists are defined by the models:
+        jsap.getByID("task-list").addDefault("N/A");
+        jsap.getByID("conditions").addDefault("N/A");
+        jsap.getByID("gene-lists").addDefault("N/A");
+        jsap.getByID("seed").addDefault("" + 1);
+
+        final Parameter modelsOption = new FlaggedOption("models")
+                .setStringParser(JSAP.STRING_PARSER)
+                .setDefault(JSAP.NO_DEFAULT)
+                .setRequired(true)
+                .setLongFlag("models")
+                .setHelp("Models to predict with. Either a directory, in which case every "
+                        + "model (.zip or .packed file) of the directory is used, or a file "
+                        + "with one model filename prefix per line.");
+        jsap.registerParameter(modelsOption);
+
+        final Parameter testSampleListFilenameOption = new FlaggedOption("test-samples")
+                .setStringParser(JSAP.STRING_PARSER)
+                .setDefault(JSAP.NO_DEFAULT)
+                .setRequired(false)
+                .setLongFlag("test-samples")
+                .setHelp("Filename for list of test sample ids. Path to a file with one line per "
+                        + "test sample id. The input dataset will be filtered "
+                        + "to keep only those samples in the list for prediction.");
+        jsap.registerParameter(testSampleListFilenameOption);
+
+        final Parameter trueLabelOption = new FlaggedOption("true-labels")
+                .setStringParser(JSAP.STRING_PARSER)
+                .setDefault(JSAP.NO_DEFAULT)
+                .setLongFlag("true-labels")
+                .setHelp("True labels for this dataset, in the cids format. True labels are "
+                        + "reported next to the predictions.");
+        jsap.registerParameter(trueLabelOption);
+
+        final Parameter modelThreadsOption = new FlaggedOption("model-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("model-threads")
+                .setHelp("Number of models scored concurrently. The classifiers must support "
+                        + "concurrent predictions with different models. Zero uses one thread "
+                        + "per processor. Default is 1 (sequential).");
+        jsap.registerParameter(modelThreadsOption);
+    }
+
+    @Override
+    protected void setupGeneLists(final JSAPResult result, final DAVOptions options) {
+        // do nothing.
+    }
+
+    @Override
+    public void interpretArguments(final JSAP jsap, final JSAPResult result,
+                                   final DAVOptions options) {
+        checkArgumentsSound(jsap, result, false);
+        setupOutput(result, options);
+        setupDatasetName(result, options);
+        setupSplitPlan(result, options);
+        setupInput(result, options);
+        setupPlatforms(result, options);
+        setupRandomArguments(result, options);
+        setupArrayAttributes(result, options);
+        setupRservePort(result, options);
+
+        modelThreads = result.getInt("model-threads");
+        pathwayComponentsDir = result.getString("pathway-components-dir");
+        listModels(result.getString("models"));
+        if (modelPrefixes.isEmpty()) {
+            System.err.println("No model found in " + result.getString("models"));
+            System.exit(1);
+        }
+        sample2TrueLabelMap = Predict.readSampleToTrueLabelsMap(result.getString("true-labels"));
+        testSampleIds = readTestSampleIds(result.getString("test-samples"));
+    }
+
+    /**
+     * Collect the model prefixes of a directory or of a file with one prefix per line.
+     */
+    private void listModels(final String modelsFilename) {
+        final File models = new File(modelsFilename);
+        if (models.isDirectory()) {
+            final Set<String> prefixes = new ObjectOpenHashSet<String>();
+            final File[] files = models.listFiles();
+            if (files != null) {
+                for (final File file : files) {
+                    final String filename = file.getPath();
+                    if (filename.endsWith(".zip") || filename.endsWith(".packed")) {
+                        prefixes.add(FilenameUtils.removeExtension(filename));
+                    }
+                }
+            }
+            final String[] sortedPrefixes = prefixes.toArray(new String[prefixes.size()]);
+            Arrays.sort(sortedPrefixes);
+            modelPrefixes.addAll(Arrays.asList(sortedPrefixes));
+        } else {
+            FastBufferedReader reader = null;
+            try {
+                reader = new FastBufferedReader(new FileReader(models));
+                final LineIterator lit = new LineIterator(reader);
+                while (lit.hasNext()) {
+                    final String line = lit.next().toString().trim();
+                    if (line.length() > 0 && !line.startsWith("#")) {
+                        String prefix = BDVModel.removeSuffix(line, ".model");
+                        prefix = BDVModel.removeSuffix(prefix, ".zip");
+                        modelPrefixes.add(prefix);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                LOG.fatal("Cannot read model list: " + modelsFilename, e);
+                System.exit(10);
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+        }
+    }
+
+    private ObjectSet<String> readTestSampleIds(final String testSampleFilename) {
+        if (testSampleFilename == null) {
+            return null;
+        }
+        LOG.info("Reading test sample filename: " + testSampleFilename);
+        final ObjectSet<String> sampleIds = new ObjectOpenHashSet<String>();
+        FastBufferedReader reader = null;
+        try {
+            reader = new FastBufferedReader(new FileReader(testSampleFilename));
+            final LineIterator lit = new LineIterator(reader);
+            while (lit.hasNext()) {
+                sampleIds.add(lit.next().toString().trim());
+            }
+        } catch (FileNotFoundException e) {
+            LOG.fatal("Cannot read test sample file: " + testSampleFilename, e);
+            System.exit(10);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        return sampleIds;
+    }
+
+    @Override
+    public void process(final DAVOptions options) {
+        super.process(options);
+        if (!options.outputFilePreexist) {
+            options.output.println(PredictedItem.getHeaders());
+            options.output.flush();
+        }
+
+        final Map<String, List<LoadedModel>> groups = loadModels(options);
+        final AtomicInteger predictedModels = new AtomicInteger();
+        int groupIndex = 0;
+        try {
+            for (final List<LoadedModel> group : groups.values()) {
+                // normalization and floor adjustment change the input table, only the last
+                // group may process the table read from the input file:
+                final boolean lastGroup = ++groupIndex == groups.size();
+                final Table inputTable = lastGroup ? options.inputTable : options.inputTable.copy();
+                final Table processedTable = processGroup(options, group, inputTable);
+                predictGroup(options, group, processedTable, predictedModels);
+            }
+        } catch (TypeMismatchException e) {
+            LOG.fatal("Error processing input file ", e);
+            System.exit(10);
+        } catch (InvalidColumnException e) {
+            LOG.fatal("Error processing input file ", e);
+            System.exit(10);
+        } catch (ColumnTypeException e) {
+            LOG.fatal("Error processing input file ", e);
+            System.exit(10);
+        }
+        options.output.flush();
+    }
+
+    /**
+     * Load the models, each with its own options, and group them by the options that
+     * preprocess the dataset.
+     */
+    private Map<String, List<LoadedModel>> loadModels(final DAVOptions options) {
+        final Map<String, List<LoadedModel>> groups =
+                new LinkedHashMap<String, List<LoadedModel>>();
+        int modelIndex = 0;
+        for (final String modelPrefix : modelPrefixes) {
+            LOG.info(String.format("Loading model %d of %d: %s", ++modelIndex,
+                    modelPrefixes.size(), modelPrefix));
+            final DAVOptions modelOptions = createModelOptions(options);
+            final BDVModel model = new BDVModel(modelPrefix);
+            try {
+                model.load(modelOptions);
+            } catch (IOException e) {
+                LOG.fatal("Error loading model " + modelPrefix, e);
+                System.exit(10);
+            } catch (ClassNotFoundException e) {
+                LOG.fatal("Error loading model " + modelPrefix, e);
+                System.exit(10);
+            }
+            final Properties properties = model.getProperties();
+            final String pathways = properties.getString("pathway.option.pathways");
+            if (pathways != null && model.isConsensusModel()) {
+                LOG.warn("Skipping consensus model " + modelPrefix
+                        + ": its jurors aggregate pathway features, use the predict mode.");
+                continue;
+            }
+            // the aggregation method is recorded for every model, but only matters with pathways:
+            final String groupKey = modelOptions.normalizeFeatures + "\t" + (pathways == null ? ""
+                    : pathways + "\t" + properties.getString("pathway.option.gene-to-probe")
+                    + "\t" + properties.getString("pathway.aggregation.method"));
+            List<LoadedModel> group = groups.get(groupKey);
+            if (group == null) {
+                group = new ArrayList<LoadedModel>();
+                groups.put(groupKey, group);
+            }
+            group.add(new LoadedModel(model, modelOptions));
+            numberOfModels++;
+        }
+        LOG.info(String.format("Loaded %d models, in %d preprocessing groups.",
+                numberOfModels, groups.size()));
+        return groups;
+    }
+
+    /**
+     * Process the input table once for the models of a group, for the union of their features.
+     */
+    private Table processGroup(final DAVOptions options, final List<LoadedModel> group,
+                               final Table inputTable) throws TypeMismatchException,
+            InvalidColumnException, ColumnTypeException {
+        final LoadedModel first = group.get(0);
+        final Properties properties = first.model.getProperties();
+        final DAVOptions groupOptions = createModelOptions(options);
+        groupOptions.normalizeFeatures = first.options.normalizeFeatures;
+        final String pathways = properties.getString("pathway.option.pathways");
+        if (pathways != null) {
+            setupPathwayOptions(groupOptions, properties.getString("pathway.aggregation.method"),
+                    pathways, properties.getString("pathway.option.gene-to-probe"),
+                    pathwayComponentsDir);
+        }
+
+        final Set<String> featureIds = new ObjectOpenHashSet<String>();
+        for (final LoadedModel loaded : group) {
+            featureIds.addAll(loaded.model.getFeatureIds());
+        }
+        LOG.info(String.format("Processing the input table for %d models (%d features).",
+                group.size(), featureIds.size()));
+        final FixedGeneList geneList =
+                new FixedGeneList(featureIds.toArray(new String[featureIds.size()]));
+        Table processedTable = processTable(geneList, inputTable, groupOptions,
+                new ArrayList<Set<String>>(), true);
+        if (testSampleIds != null) {
+            // focus on a subset of samples in the input table: those in test-samples
+            processedTable = filterSamples(processedTable, testSampleIds, true);
+            if (processedTable.getRowNumber() != testSampleIds.size()) {
+                LOG.warn(String.format("The test set has %d of the %d samples listed in "
+                        + "the test sample file.", processedTable.getRowNumber(),
+                        testSampleIds.size()));
+            }
+        }
+        return processedTable;
+    }
+
+    /**
+     * Score the models of a group concurrently. The predictions of each model are written to
+     * the output together.
+     */
+    private void predictGroup(final DAVOptions options, final List<LoadedModel> group,
+                              final Table processedTable, final AtomicInteger predictedModels) {
+        final ParallelTeam team = modelThreads == 0 ? new ParallelTeam()
+                : new ParallelTeam(modelThreads);
+        try {
+            team.execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, group.size() - 1 /* end index is inclusive */, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            // models differ in size, hand them out one at a time:
+                            return IntegerSchedule.dynamic(1);
+                        }
+
+                        @Override
+                        public void run(final int first, final int last) throws Exception {
+                            for (int modelIndex = first; modelIndex <= last; modelIndex++) {
+                                final LoadedModel loaded = group.get(modelIndex);
+                                predict(options, loaded, processedTable);
+                                LOG.info(String.format("Predicted model %d of %d: %s",
+                                        predictedModels.incrementAndGet(),
+                                        numberOfModels,
+                                        loaded.modelFilenamePrefixNoPath));
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            LOG.error("An error occurred predicting with models", e);
+            throw new IllegalStateException("An error occurred predicting with models", e);
+        }
+    }
+
+    private void predict(final DAVOptions options, final LoadedModel loaded,
+                         final Table processedTable) throws TypeMismatchException,
+            InvalidColumnException {
+        final BDVModel model = loaded.model;
+        final Table testSet = model.prepareTestSet(this, loaded.options, processedTable);
+        final String[] idRefs =
+                testSet.getColumnValues(testSet.getColumnIndex("ID_REF")).getStrings();
+        model.prepareClassificationProblem(testSet);
+
+        final int numberOfSamples = testSet.getRowNumber();
+        final double[] decisions = new double[numberOfSamples];
+        final double[] probabilities = new double[2 * numberOfSamples];
+        model.predict(0, numberOfSamples, decisions, probabilities, 1);
+
+        final double[] sampleProbabilities = new double[2];
+        // predictions of a model are written together. The random generator that replaces NaN
+        // decisions is shared by all models:
+        synchronized (options.output) {
+            for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+                if (!splitPlanContainsSampleId(idRefs[sampleIndex])) {
+                    continue;
+                }
+                sampleProbabilities[0] = probabilities[2 * sampleIndex];
+                sampleProbabilities[1] = probabilities[2 * sampleIndex + 1];
+                options.output.println(format(options, loaded, sampleIndex,
+                        idRefs[sampleIndex], decisions[sampleIndex], sampleProbabilities));
+            }
+            options.output.flush();
+        }
+    }
+
+    /**
+     * Format a prediction as the predict mode does.
+     */
+    private String format(final DAVOptions options, final LoadedModel loaded,
+                          final int sampleIndex, final String sampleId,
+                          final double modelDecision, final double[] probabilities) {
+        double decision = modelDecision;
+        if (decision != decision) {     //decision is not a number
+            // replace NaN with a random decision centered around 0
+            probabilities[0] = options.randomGenerator.nextDouble();
+            probabilities[1] = 1 - probabilities[0];
+            decision = probabilities[0] > probabilities[1] ? -1 : 1;
+        }
+        final double probability = Math.max(probabilities[0], probabilities[1]);
+        final String[] symbolicClassLabel = loaded.model.getSymbolicClassLabel();
+        final int labelIndex = decision == -1 ? 0 : 1;
+        final String trueLabel = trueLabel(sampleId);
+        final double numericTrueLabel = trueLabel.equals(symbolicClassLabel[0]) ? 0
+                : (trueLabel.equals(symbolicClassLabel[1]) ? 1 : Double.NaN);
+        final PredictedItem predictedItem = new PredictedItem(getSplitId(),
+                getSplitType(),
+                getRepeatId(),
+                loaded.modelFilenamePrefixNoPath,
+                sampleIndex,
+                sampleId,
+                decision,
+                symbolicClassLabel[labelIndex],
+                probability,
+                labelIndex == 1 ? probability : 1 - probability,
+                trueLabel, numericTrueLabel,
+                trueLabel.equals(symbolicClassLabel[labelIndex]) ? "correct" : "incorrect",
+                loaded.model.getNumberOfFeatures());
+        return predictedItem.format();
+    }
+
+    private String trueLabel(final String sampleId) {
+        final String label = sample2TrueLabelMap == null ? null
+                : sample2TrueLabelMap.get(sampleId.intern());
+        return label == null ? "unknown" : label;
+    }
+}
@@ -21,53 +21,267 @@ package org.bdval;
 import edu.cornell.med.icb.io.TSVReader;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntArraySet;
+import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
+ * Predictions read from a file written by the predict mode. Predictions are stored in
+ * primitive columns, grouped by repeat and split: the predictions of a split are a contiguous
+ * range of rows, in the order of the file, and the splits of a repeat are contiguous ranges
+ * in increasing split id order. Accessors for a repeat or a split only visit the rows of the
+ * repeat or split.
+ *
  * @author Fabien Campagne
  *         Date: Apr 6, 2008
  *         Time: 10:52:06 AM
  */
-public class PredictedItems extends ObjectArrayList<PredictedItem> {
-    public static ObjectList<PredictedItem> predictions;
+public class PredictedItems {
     private int numberOfRepeats;
     private int numberOfFolds;
 
+    /**
+     * Number of features of the model that made the first prediction of the file, or -1 when
+     * no prediction was loaded.
+     */
+    private int modelNumFeatures = -1;
+
+    private int[] repeatIds = new int[0];
+    private int[] splitIds = new int[0];
+    private double[] decisions = new double[0];
+    private double[] probabilities = new double[0];
+    private double[] numericTrueLabels = new double[0];
+    private String[] sampleIds = new String[0];
+
+    /**
+     * Repeat and split id of each (repeat, split) segment of rows, in increasing order.
+     */
+    private int[] segmentRepeatIds = new int[0];
+    private int[] segmentSplitIds = new int[0];
+
+    /**
+     * Rows of segment i are segmentStarts[i] (included) to segmentStarts[i+1] (excluded).
+     */
+    private int[] segmentStarts = {0};
+
     public void load(final String filename) throws IOException {
         final TSVReader reader = new TSVReader(new FileReader(filename));
-        predictions = new ObjectArrayList<PredictedItem>();
-        while (reader.hasNext()) {
-            if (reader.isCommentLine() || reader.isEmptyLine()) {
-                reader.skip();
+        final IntList repeatIdList = new IntArrayList();
+        final IntList splitIdList = new IntArrayList();
+        final DoubleList decisionList = new DoubleArrayList();
+        final DoubleList probabilityList = new DoubleArrayList();
+        final DoubleList numericTrueLabelList = new DoubleArrayList();
+        final ObjectList<String> sampleIdList = new ObjectArrayList<String>();
+        numberOfRepeats = 0;
+        numberOfFolds = 0;
+        modelNumFeatures = -1;
+        try {
+            while (reader.hasNext()) {
+                if (reader.isCommentLine() || reader.isEmptyLine()) {
+                    reader.skip();
+                } else {
+                    reader.next();
+                    final int splitId = reader.getInt();
+                    numberOfFolds = Math.max(splitId, numberOfFolds);
+                    reader.getString();     // splitType
+                    final int repeatId = reader.getInt();
+                    numberOfRepeats = Math.max(repeatId, numberOfRepeats);
+                    reader.getString();     // modelFilenamePrefixNoPath
+                    reader.getInt();        // sampleIndex
+                    final String sampleId = reader.getString();
+                    final double decision = reader.getDouble();
+                    reader.getString();     // symbolicClassLabel
+                    final double probability = reader.getDouble();
+                    reader.getDouble();     // probabilityOfClass1
+                    reader.getString();     // trueLabel
+                    final double numericTrueLabel = reader.getDouble();
+                    reader.getString();     // predictionCorrectIncorrect
+                    final int numFeatures = reader.getInt();
+                    if (repeatIdList.isEmpty()) {
+                        modelNumFeatures = numFeatures;
+                    }
+                    repeatIdList.add(repeatId);
+                    splitIdList.add(splitId);
+                    sampleIdList.add(sampleId);
+                    decisionList.add(decision);
+                    probabilityList.add(probability);
+                    numericTrueLabelList.add(numericTrueLabel);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        index(repeatIdList.toIntArray(), splitIdList.toIntArray(), decisionList.toDoubleArray(),
+                probabilityList.toDoubleArray(), numericTrueLabelList.toDoubleArray(),
+                sampleIdList.toArray(new String[sampleIdList.size()]));
+    }
+
+    /**
+     * Group rows by (repeat, split), keeping the order of the file within a split.
+     */
+    private void index(final int[] fileRepeatIds, final int[] fileSplitIds,
+                       final double[] fileDecisions, final double[] fileProbabilities,
+                       final double[] fileNumericTrueLabels, final String[] fileSampleIds) {
+        final int numberOfRows = fileRepeatIds.length;
+        final long[] rowKeys = new long[numberOfRows];
+        for (int row = 0; row < numberOfRows; row++) {
+            rowKeys[row] = key(fileRepeatIds[row], fileSplitIds[row]);
+        }
+        final long[] sortedKeys = rowKeys.clone();
+        Arrays.sort(sortedKeys);
+        int numberOfSegments = 0;
+        for (int i = 0; i < numberOfRows; i++) {
+            if (i == 0 || sortedKeys[i] != sortedKeys[i - 1]) {
+                sortedKeys[numberOfSegments++] = sortedKeys[i];
+            }
+        }
+        final long[] segmentKeys = Arrays.copyOf(sortedKeys, numberOfSegments);
+
+        // counting sort of the rows by segment, stable so that the file order is kept:
+        final int[] rowSegments = new int[numberOfRows];
+        segmentStarts = new int[numberOfSegments + 1];
+        for (int row = 0; row < numberOfRows; row++) {
+            rowSegments[row] = Arrays.binarySearch(segmentKeys, rowKeys[row]);
+            segmentStarts[rowSegments[row] + 1]++;
+        }
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            segmentStarts[segment + 1] += segmentStarts[segment];
+        }
+        final int[] nextRow = Arrays.copyOf(segmentStarts, numberOfSegments);
+        repeatIds = new int[numberOfRows];
+        splitIds = new int[numberOfRows];
+        decisions = new double[numberOfRows];
+        probabilities = new double[numberOfRows];
+        numericTrueLabels = new double[numberOfRows];
+        sampleIds = new String[numberOfRows];
+        for (int row = 0; row < numberOfRows; row++) {
+            final int target = nextRow[rowSegments[row]]++;
+            repeatIds[target] = fileRepeatIds[row];
+            splitIds[target] = fileSplitIds[row];
+            decisions[target] = fileDecisions[row];
+            probabilities[target] = fileProbabilities[row];
+            numericTrueLabels[target] = fileNumericTrueLabels[row];
+            sampleIds[target] = fileSampleIds[row];
+        }
+
+        segmentRepeatIds = new int[numberOfSegments];
+        segmentSplitIds = new int[numberOfSegments];
+        for (int segment = 0; segment < numberOfSegments; segment++) {
+            segmentRepeatIds[segment] = repeatIds[segmentStarts[segment]];
+            segmentSplitIds[segment] = splitIds[segmentStarts[segment]];
+        }
+    }
+
+    /**
+     * Key that orders rows by repeat id, then split id.
+     */
+    private static long key(final int repeatId, final int splitId) {
+        return ((long) repeatId << 32) + ((long) splitId - Integer.MIN_VALUE);
+    }
+
+    /**
+     * Index of the first segment of a repeat, or of the first segment after it when the
+     * repeat has no prediction.
+     */
+    private int firstSegment(final int repeatId) {
+        int low = 0;
+        int high = segmentRepeatIds.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (segmentRepeatIds[middle] < repeatId) {
+                low = middle + 1;
             } else {
-                final PredictedItem item = new PredictedItem();
-                reader.next();
-                item.splitId = reader.getInt();
-                numberOfFolds=Math.max(item.splitId, numberOfFolds);
-                item.splitType = reader.getString();
-                item.repeatId = reader.getInt();
-                numberOfRepeats = Math.max(item.repeatId, numberOfRepeats);
-                item.modelFilenamePrefixNoPath = reader.getString();
-                item.sampleIndex = reader.getInt();
-                item.sampleId = reader.getString();
-                item.decision = reader.getDouble();
-                item.symbolicClassLabel = reader.getString();
-                item.probability = reader.getDouble();
-                item.probabilityOfClass1 = reader.getDouble();
-                item.trueLabel = reader.getString();
-                item.numericTrueLabel = reader.getDouble();
-                item.predictionCorrectIncorrect = reader.getString();
-                item.modelNumFeatures = reader.getInt();
-                predictions.add(item);
+                high = middle;
             }
         }
+        return low;
+    }
 
+    /**
+     * Index of the segment after the last segment of a repeat.
+     */
+    private int endSegment(final int repeatId) {
+        return firstSegment(repeatId + 1);
+    }
+
+    /**
+     * Index of the segment of a split, or -1 when the split has no prediction.
+     */
+    private int segment(final int repeatId, final int splitId) {
+        final int end = endSegment(repeatId);
+        for (int segment = firstSegment(repeatId); segment < end; segment++) {
+            if (segmentSplitIds[segment] == splitId) {
+                return segment;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * First row of a repeat.
+     */
+    private int repeatStart(final int repeatId) {
+        return segmentStarts[firstSegment(repeatId)];
+    }
+
+    /**
+     * Row after the last row of a repeat.
+     */
+    private int repeatEnd(final int repeatId) {
+        return segmentStarts[endSegment(repeatId)];
+    }
+
+    private int splitStart(final int segment) {
+        return segment == -1 ? 0 : segmentStarts[segment];
+    }
+
+    private int splitEnd(final int segment) {
+        return segment == -1 ? 0 : segmentStarts[segment + 1];
+    }
+
+    /**
+     * Decision values of a range of rows: decisionClass1 becomes negative for class -1
+     * and positive for class 1, such that decisionClass1(i)>decisionClass1(j) when the
+     * classifier expects i to have greater chance to belong to class 1 than to class -1.
+     */
+    private DoubleList decisions(final int start, final int end) {
+        final DoubleList result = new DoubleArrayList(Math.max(0, end - start));
+        for (int row = start; row < end; row++) {
+            result.add(probabilities[row] * decisions[row]);
+        }
+        return result;
+    }
+
+    private DoubleList trueLabels(final int start, final int end) {
+        final DoubleList result = new DoubleArrayList(Math.max(0, end - start));
+        for (int row = start; row < end; row++) {
+            result.add(numericTrueLabels[row]);
+        }
+        return result;
+    }
+
+    private ObjectList<String> sampleIds(final int start, final int end) {
+        final ObjectList<String> result = new ObjectArrayList<String>(Math.max(0, end - start));
+        for (int row = start; row < end; row++) {
+            result.add(sampleIds[row]);
+        }
+        return result;
+    }
+
+    /**
+     * Number of predictions loaded.
+     *
+     * @return the number of predictions
+     */
+    public int size() {
+        return repeatIds.length;
     }
 
     public int getNumberOfRepeats() {
@@ -83,17 +297,7 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      * @return
      */
     public DoubleList getDecisionsForRepeat(final int repeatId) {
-        final DoubleList result = new DoubleArrayList();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-                final double decisionClass1 = item.probability * item.decision;
-                // decisionClass1 becomes negative for class -1
-                // and positive for class 1, such that decisionClass1(i)>decisionClass1(j) when the classifier expects
-                // i to have greater chance to belong to class 1 than to class -1.
-                result.add(decisionClass1);
-            }
-        }
-        return result;
+        return decisions(repeatStart(repeatId), repeatEnd(repeatId));
     }
 
     /**
@@ -104,29 +308,17 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      * @return List of decision values
      */
     public DoubleList getDecisionsForSplit(final int repeatId, final int splitId) {
-        final DoubleList result = new DoubleArrayList();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId && item.splitId == splitId) {
-                final double decisionClass1 = item.probability * item.decision;
-                // decisionClass1 becomes negative for class -1
-                // and positive for class 1, such that decisionClass1(i)>decisionClass1(j) when the classifier expects
-                // i to have greater chance to belong to class 1 than to class -1.
-                result.add(decisionClass1);
-            }
-        }
-        return result;
+        final int segment = segment(repeatId, splitId);
+        return decisions(splitStart(segment), splitEnd(segment));
     }
 
     public int getNumberOfSplitsForRepeat(final int repeatId) {
         int maxSplitId = -1;
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-
-                maxSplitId = Math.max(maxSplitId, item.splitId);
-            }
+        final int end = endSegment(repeatId);
+        for (int segment = firstSegment(repeatId); segment < end; segment++) {
+            maxSplitId = Math.max(maxSplitId, segmentSplitIds[segment]);
         }
         return maxSplitId;
-
     }
 
     /**
@@ -136,13 +328,7 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      * @return List of decision values
      */
     public DoubleList getTrueLabelsForRepeat(final int repeatId) {
-        final DoubleList result = new DoubleArrayList();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-                result.add(item.numericTrueLabel);
-            }
-        }
-        return result;
+        return trueLabels(repeatStart(repeatId), repeatEnd(repeatId));
     }
 
     /**
@@ -153,13 +339,8 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      * @return List of decision values
      */
     public DoubleList getTrueLabelsForSplit(final int repeatId, final int splitId) {
-        final DoubleList result = new DoubleArrayList();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId && item.splitId == splitId) {
-                result.add(item.numericTrueLabel);
-            }
-        }
-        return result;
+        final int segment = segment(repeatId, splitId);
+        return trueLabels(splitStart(segment), splitEnd(segment));
     }
 
     /**
@@ -169,46 +350,27 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      * @return
      */
     public ObjectList<String> getSampleIDsForRepeat(final int repeatId) {
-        final ObjectList<String> result = new ObjectArrayList<String>();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-                result.add(item.sampleId);
-            }
-        }
-        return result;
-        /**
-         * Return a list of sample Ids for predictions in the repeat.
-         * @param repeatId The repeatId for predictions of interest
-         * @param splitId  The splitId for predictions of interest
-         * @return
-         */}
+        return sampleIds(repeatStart(repeatId), repeatEnd(repeatId));
+    }
 
+    /**
+     * Return a list of sample Ids for predictions in the split.
+     *
+     * @param repeatId The repeatId for predictions of interest
+     * @param splitId  The splitId for predictions of interest
+     * @return
+     */
     public ObjectList<String> getSampleIDsForSplit(final int repeatId, final int splitId) {
-        final ObjectList<String> result = new ObjectArrayList<String>();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId && item.splitId == splitId) {
-                result.add(item.sampleId);
-            }
-        }
-        return result;
+        final int segment = segment(repeatId, splitId);
+        return sampleIds(splitStart(segment), splitEnd(segment));
     }
 
     public boolean containsRepeat(final int repeatId) {
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-                return true;
-            }
-
-        }
-        return false;
+        return firstSegment(repeatId) < endSegment(repeatId);
     }
 
     public int modelNumFeatures() {
-        if (predictions == null || predictions.isEmpty()) {
-            return -1;
-        } else {
-            return predictions.get(0).modelNumFeatures;
-        }
+        return modelNumFeatures;
     }
 
     /**
@@ -218,10 +380,9 @@ public class PredictedItems extends ObjectArrayList<PredictedItem> {
      */
     public IntSet splitIdsForRepeat(final int repeatId) {
         final IntSet result = new IntArraySet();
-        for (final PredictedItem item : predictions) {
-            if (item.repeatId == repeatId) {
-                result.add(item.splitId);
-            }
+        final int end = endSegment(repeatId);
+        for (int segment = firstSegment(repeatId); segment < end; segment++) {
+            result.add(segmentSplitIds[segment]);
         }
         return result;
     }
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import com.martiansoftware.jsap.FlaggedOption;
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import com.martiansoftware.jsap.Parameter;
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import edu.mssm.crover.tables.readers.SyntaxErrorException;
+import edu.mssm.crover.tables.readers.UnsupportedFormatException;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keep models loaded and score samples on request, without paying for JVM startup and model
+ * loading on each prediction. Requests are read one per line, either from standard input or
+ * from connections to a port of the loopback interface. Fields of a request are separated by
+ * tabs:
+ * <LI> load model-prefix: load a model, or mark it as recently used.
+ * <LI> features model-prefix: list the features of a model, in the order score expects them.
+ * <LI> score model-prefix sample-id value1 ... valueN: predict a sample from the (unscaled)
+ * values of the model features.
+ * <LI> predict model-prefix dataset-filename: predict every sample of a dataset, as the
+ * predict mode would.
+ * <LI> unload model-prefix: release a model.
+ * <LI> quit: end the session. shutdown: stop the server.
+ * <p/>
+ * Predictions are returned in the {@link PredictedItem} format. Each response ends with a line
+ * containing END. Errors are reported on a line that starts with ERROR. Loaded models are
+ * evicted in least recently used order when the size of their files exceeds the model memory
+ * budget. Models that aggregate pathway features are not supported.
+ */
+public class ServeMode extends DAVMode {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(ServeMode.class);
+
+    private static final String END_OF_RESPONSE = "END";
+
+    /**
+     * Port to listen to, or -1 to serve requests from standard input.
+     */
+    private int port = -1;
+
+    /**
+     * Approximate number of bytes the loaded models may use.
+     */
+    private long maxModelBytes;
+
+    /**
+     * Loaded models, in least recently used order.
+     */
+    private final Map<String, LoadedModel> models =
+            new LinkedHashMap<String, LoadedModel>(16, 0.75f, true);
+    private long loadedModelBytes;
+
+    private DAVOptions serverOptions;
+    private boolean shutdown;
+
+    /**
+     * A model held by the server, with the options it was loaded with.
+     */
+    private static final class LoadedModel {
+        private final BDVModel model;
+        private final DAVOptions options;
+        private final String modelFilenamePrefixNoPath;
+        private final String[] featureIds;
+        private final long footprint;
+
+        private LoadedModel(final BDVModel model, final DAVOptions options, final long footprint) {
+            super();
+            this.model = model;
+            this.options = options;
+            this.footprint = footprint;
+            modelFilenamePrefixNoPath = FilenameUtils.getName(model.getModelFilenamePrefix());
+            if (model.isConsensusModel()) {
+                featureIds = null;
+            } else {
+                final int numberOfFeatures = options.trainingPlatform.getProbeIds().size();
+                featureIds = new String[numberOfFeatures];
+                for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+                    featureIds[featureIndex] =
+                            options.getProbesetIdentifier(featureIndex).toString();
+                }
+            }
+        }
+    }
+
+    /**
+     * Define command line options for this mode.
+     *
+     * @param jsap the JSAP command line parser
+     * @throws JSAPException if there is a problem building the options
+     */
+    @Override
+    public void defineOptions(final JSAP jsap) throws JSAPException {
+        // datasets, tasks and gene lists are named by the requests and the models:
+        jsap.getByID("input").addDefault("N/A");
+        jsap.getByID("task-list").addDefault("N/A");
+        jsap.getByID("conditions").addDefault("N/A");
+        jsap.getByID("gene-lists").addDefault("N/A");
+        jsap.getByID("seed").addDefault("" + 1);
+
+        final Parameter portOption = new FlaggedOption("port")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault(JSAP.NO_DEFAULT)
+                .setRequired(false)
+                .setLongFlag("port")
+                .setHelp("Serve requests on this port of the loopback interface. "
+                        + "Requests are read from standard input when no port is provided.");
+        jsap.registerParameter(portOption);
+
+        final Parameter maxModelMemoryOption = new FlaggedOption("max-model-memory")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("512")
+                .setRequired(false)
+                .setLongFlag("max-model-memory")
+                .setHelp("Approximate memory, in megabytes, that loaded models may use. "
+                        + "The size of a model is estimated from the size of its files. The "
+                        + "least recently used models are released when this limit is exceeded.");
+        jsap.registerParameter(maxModelMemoryOption);
+    }
+
+    @Override
+    public void interpretArguments(final JSAP jsap, final JSAPResult result,
+                                   final DAVOptions options) {
+        checkArgumentsSound(jsap, result, false);
+        setupPlatforms(result, options);
+        setupRandomArguments(result, options);
+        setupArrayAttributes(result, options);
+        setupRservePort(result, options);
+        options.quiet = true;
+
+        if (result.contains("port")) {
+            port = result.getInt("port");
+        }
+        maxModelBytes = result.getInt("max-model-memory") * 1024L * 1024L;
+    }
+
+    @Override
+    public void process(final DAVOptions options) {
+        super.process(options);
+        serverOptions = options;
+        try {
+            if (port == -1) {
+                // responses are written to standard output, other messages go to standard error:
+                final PrintStream stdout = System.out;
+                System.setOut(System.err);
+                try {
+                    serve(new BufferedReader(new InputStreamReader(System.in)),
+                            new PrintWriter(new OutputStreamWriter(stdout)));
+                } finally {
+                    System.setOut(stdout);
+                }
+            } else {
+                final ServerSocket serverSocket =
+                        new ServerSocket(port, 50, InetAddress.getByName(null));
+                LOG.info("Serving models on port " + port);
+                try {
+                    while (!shutdown) {
+                        final Socket socket = serverSocket.accept();
+                        try {
+                            serve(new BufferedReader(new InputStreamReader(socket.getInputStream())),
+                                    new PrintWriter(new OutputStreamWriter(socket.getOutputStream())));
+                        } catch (IOException e) {
+                            LOG.warn("Connection closed with an error", e);
+                        } finally {
+                            try {
+                                socket.close();
+                            } catch (IOException e) {
+                                LOG.debug("Cannot close connection", e);
+                            }
+                        }
+                    }
+                } finally {
+                    serverSocket.close();
+                }
+            }
+        } catch (IOException e) {
+            LOG.fatal("Error serving models", e);
+            System.exit(10);
+        }
+    }
+
+    /**
+     * Answer the requests of one session, until the session ends or the server is shut down.
+     */
+    private void serve(final BufferedReader requests, final PrintWriter responses)
+            throws IOException {
+        String line;
+        while (!shutdown && (line = requests.readLine()) != null) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            final String[] fields = line.split("\t");
+            final String command = fields[0].trim();
+            if ("quit".equals(command)) {
+                break;
+            }
+            if ("shutdown".equals(command)) {
+                shutdown = true;
+                break;
+            }
+            try {
+                answer(command, fields, responses);
+            } catch (Exception e) {
+                // report the error and keep serving:
+                LOG.warn("Cannot answer request " + line, e);
+                responses.println("ERROR\t" + e);
+            }
+            responses.println(END_OF_RESPONSE);
+            responses.flush();
+        }
+        responses.flush();
+    }
+
+    private void answer(final String command, final String[] fields, final PrintWriter responses)
+            throws IOException, ClassNotFoundException, InvalidColumnException,
+            TypeMismatchException, ColumnTypeException, SyntaxErrorException,
+            UnsupportedFormatException {
+        if (fields.length < 2) {
+            throw new IllegalArgumentException("A model must be named by request " + command);
+        }
+        final String modelPrefix = BDVModel.removeSuffix(fields[1], ".model");
+        if ("unload".equals(command)) {
+            unload(modelPrefix);
+            return;
+        }
+        final LoadedModel loaded = getModel(modelPrefix);
+        if ("load".equals(command)) {
+            responses.println("OK\t" + loaded.modelFilenamePrefixNoPath);
+        } else if ("features".equals(command)) {
+            checkNotConsensus(loaded);
+            responses.println(StringUtils.join(loaded.featureIds, '\t'));
+        } else if ("score".equals(command)) {
+            score(loaded, fields, responses);
+        } else if ("predict".equals(command)) {
+            if (fields.length != 3) {
+                throw new IllegalArgumentException("predict requests must name a dataset.");
+            }
+            predict(loaded, fields[2], responses);
+        } else {
+            throw new IllegalArgumentException("Unknown request: " + command);
+        }
+    }
+
+    /**
+     * Predict one sample from the values of the model features.
+     */
+    private void score(final LoadedModel loaded, final String[] fields,
+                       final PrintWriter responses) throws InvalidColumnException,
+            TypeMismatchException {
+        checkNotConsensus(loaded);
+        final int numberOfFeatures = loaded.featureIds.length;
+        if (fields.length != numberOfFeatures + 3) {
+            throw new IllegalArgumentException("Model " + loaded.modelFilenamePrefixNoPath
+                    + " expects " + numberOfFeatures + " feature values, found "
+                    + Math.max(0, fields.length - 3));
+        }
+        final String sampleId = fields[2];
+        final ArrayTable table = new ArrayTable();
+        final int idColumn = table.addColumn("ID_REF", String.class);
+        table.appendObject(idColumn, sampleId);
+        for (int featureIndex = 0; featureIndex < numberOfFeatures; featureIndex++) {
+            final int column = table.addColumn(loaded.featureIds[featureIndex], double.class);
+            table.appendDoubleValue(column, Double.parseDouble(fields[featureIndex + 3]));
+        }
+        scaleFeatures(loaded.options, true, table);
+        loaded.model.prepareClassificationProblem(table);
+
+        final double[] probabilities = new double[2];
+        final double decision = loaded.model.predict(0, probabilities);
+        responses.println(format(loaded, 0, sampleId, decision, probabilities));
+    }
+
+    /**
+     * Predict every sample of a dataset, processing the dataset as the predict mode does.
+     */
+    private void predict(final LoadedModel loaded, final String datasetFilename,
+                         final PrintWriter responses) throws IOException,
+            ClassNotFoundException, InvalidColumnException, TypeMismatchException,
+            ColumnTypeException, SyntaxErrorException, UnsupportedFormatException {
+        final DAVOptions options = loaded.options;
+        options.input = datasetFilename;
+        options.inputTable = readInputFile(datasetFilename);
+        try {
+            final List<Set<String>> labelValueGroups = new ArrayList<Set<String>>();
+            final Table testSet = loaded.model.loadTestSet(this, options,
+                    loaded.model.getGeneList(), labelValueGroups, null);
+            final String[] idRefs =
+                    testSet.getColumnValues(testSet.getColumnIndex("ID_REF")).getStrings();
+            loaded.model.prepareClassificationProblem(testSet);
+
+            final int numberOfSamples = testSet.getRowNumber();
+            final double[] decisions = new double[numberOfSamples];
+            final double[] probabilities = new double[2 * numberOfSamples];
+            loaded.model.predict(0, numberOfSamples, decisions, probabilities, 1);
+            final double[] sampleProbabilities = new double[2];
+            for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+                sampleProbabilities[0] = probabilities[2 * sampleIndex];
+                sampleProbabilities[1] = probabilities[2 * sampleIndex + 1];
+                responses.println(format(loaded, sampleIndex, idRefs[sampleIndex],
+                        decisions[sampleIndex], sampleProbabilities));
+            }
+        } finally {
+            // do not keep the dataset after the request:
+            options.inputTable = null;
+        }
+    }
+
+    /**
+     * Format a prediction as the predict mode does when true labels are not provided.
+     */
+    private String format(final LoadedModel loaded, final int sampleIndex, final String sampleId,
+                          final double modelDecision, final double[] probabilities) {
+        double decision = modelDecision;
+        if (decision != decision) {     //decision is not a number
+            // replace NaN with a random decision centered around 0
+            probabilities[0] = serverOptions.randomGenerator.nextDouble();
+            probabilities[1] = 1 - probabilities[0];
+            decision = probabilities[0] > probabilities[1] ? -1 : 1;
+        }
+        final double probability = Math.max(probabilities[0], probabilities[1]);
+        final String[] symbolicClassLabel = loaded.model.getSymbolicClassLabel();
+        final int labelIndex = decision == -1 ? 0 : 1;
+        final String trueLabel = "unknown";
+        final PredictedItem predictedItem = new PredictedItem(getSplitId(),
+                getSplitType(),
+                getRepeatId(),
+                loaded.modelFilenamePrefixNoPath,
+                sampleIndex,
+                sampleId,
+                decision,
+                symbolicClassLabel[labelIndex],
+                probability,
+                labelIndex == 1 ? probability : 1 - probability,
+                trueLabel, Double.NaN,
+                trueLabel.equals(symbolicClassLabel[labelIndex]) ? "correct" : "incorrect",
+                loaded.model.getNumberOfFeatures());
+        return predictedItem.format();
+    }
+
+    private void checkNotConsensus(final LoadedModel loaded) {
+        if (loaded.featureIds == null) {
+            throw new IllegalArgumentException("Consensus model "
+                    + loaded.modelFilenamePrefixNoPath
+                    + " can only predict datasets, its jurors use different features.");
+        }
+    }
+
+    /**
+     * Get a loaded model, loading it if needed. Least recently used models are released when
+     * the new model does not fit in the model memory budget.
+     */
+    private LoadedModel getModel(final String modelPrefix) throws IOException,
+            ClassNotFoundException {
+        LoadedModel loaded = models.get(modelPrefix);
+        if (loaded != null) {
+            return loaded;
+        }
+        final DAVOptions options = createModelOptions(serverOptions);
+        options.datasetName = "serve";
+        final BDVModel model = new BDVModel(modelPrefix);
+        model.load(options);
+        // the aggregation method is recorded for every model, only the pathways tell if
+        // features were aggregated:
+        if (model.getProperties().getString("pathway.option.pathways") != null) {
+            throw new IllegalArgumentException("Model " + modelPrefix
+                    + " aggregates pathway features, which the serve mode does not support.");
+        }
+        loaded = new LoadedModel(model, options, estimateFootprint(modelPrefix));
+
+        final Iterator<Map.Entry<String, LoadedModel>> eldest = models.entrySet().iterator();
+        while (eldest.hasNext() && loadedModelBytes + loaded.footprint > maxModelBytes) {
+            final Map.Entry<String, LoadedModel> entry = eldest.next();
+            LOG.info("Releasing model " + entry.getKey());
+            loadedModelBytes -= entry.getValue().footprint;
+            eldest.remove();
+        }
+        models.put(modelPrefix, loaded);
+        loadedModelBytes += loaded.footprint;
+        LOG.info("Loaded model " + modelPrefix + " (" + models.size() + " models in memory)");
+        return loaded;
+    }
+
+    private void unload(final String modelPrefix) {
+        final LoadedModel loaded = models.remove(modelPrefix);
+        if (loaded != null) {
+            loadedModelBytes -= loaded.footprint;
+        }
+    }
+
+    /**
+     * Estimate the memory used by a model from the size of its files.
+     */
+    private long estimateFootprint(final String modelPrefix) {
+        final File prefix = new File(modelPrefix);
+        final File directory = prefix.getAbsoluteFile().getParentFile();
+        final File[] files = directory == null ? null : directory.listFiles();
+        long footprint = 0;
+        if (files != null) {
+            final String modelFilePrefix = prefix.getName() + ".";
+            for (final File file : files) {
+                if (file.getName().startsWith(modelFilePrefix)) {
+                    footprint += file.length();
+                }
+            }
+        }
+        return footprint;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import edu.cornell.med.icb.geo.tools.MicroarrayTrainEvaluate;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.DefineColumnFromRow;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.RowFloorAdjustmentCalculator;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import edu.mssm.crover.tables.readers.SyntaxErrorException;
+import edu.mssm.crover.tables.readers.UnsupportedFormatException;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+
+/**
+ * Input tables that are read and preprocessed once per JVM, then shared read-only by all
+ * the splits that {@link org.bdval.ExecuteSplitsMode} runs in process. The raw input table
+ * is parsed once. When features are not normalized (normalization depends on the samples
+ * in each split), the floor adjustment and transposition are also done once, and each split
+ * only selects the sample rows it needs from the shared transposed table.
+ */
+public final class SharedInputTable {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(SharedInputTable.class);
+
+    /**
+     * Whether input tables should be shared across modes executed in this JVM.
+     */
+    private static boolean enabled;
+
+    /**
+     * Shared instances, keyed by input filename.
+     */
+    private static final Object2ObjectMap<String, SharedInputTable> INSTANCES =
+            new Object2ObjectOpenHashMap<String, SharedInputTable>();
+
+    /**
+     * The name of the input file this instance was read from.
+     */
+    private final String inputFilename;
+
+    /**
+     * The input table, as read from the input file. Never modified after loading.
+     */
+    private Table inputTable;
+
+    /**
+     * Transposed tables (one row per sample) keyed by the preprocessing options that
+     * were used to build them.
+     */
+    private final Object2ObjectMap<String, Table> preprocessedTables =
+            new Object2ObjectOpenHashMap<String, Table>();
+
+    private SharedInputTable(final String inputFilename) {
+        super();
+        this.inputFilename = inputFilename;
+    }
+
+    /**
+     * Enable or disable sharing of input tables in this JVM.
+     *
+     * @param enabled When true, modes read their input through this class.
+     */
+    public static synchronized void setEnabled(final boolean enabled) {
+        SharedInputTable.enabled = enabled;
+    }
+
+    /**
+     * Indicates whether input tables are shared in this JVM.
+     *
+     * @return true when modes should read their input through this class.
+     */
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Obtain the shared instance for an input file. The file is not read until
+     * the input table is first requested.
+     *
+     * @param inputFilename Name of the input file
+     * @return the shared instance for this file
+     */
+    public static synchronized SharedInputTable getInstance(final String inputFilename) {
+        SharedInputTable instance = INSTANCES.get(inputFilename);
+        if (instance == null) {
+            instance = new SharedInputTable(inputFilename);
+            INSTANCES.put(inputFilename, instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Release all shared tables.
+     */
+    public static synchronized void clear() {
+        INSTANCES.clear();
+    }
+
+    /**
+     * Get the input table, reading it the first time this method is called. Callers must
+     * not modify the table returned.
+     *
+     * @param reader The mode used to read the input file
+     * @return the shared input table
+     * @throws SyntaxErrorException       if there is an error in the file
+     * @throws IOException                if the input file cannot be read
+     * @throws UnsupportedFormatException if the file format is not recognized
+     */
+    public synchronized Table getInputTable(final DAVMode reader)
+            throws IOException, SyntaxErrorException, UnsupportedFormatException {
+        if (inputTable == null) {
+            inputTable = reader.readInputFile(inputFilename);
+            LOG.info("Input table " + inputFilename + " will be shared by all splits.");
+        } else if (LOG.isDebugEnabled()) {
+            LOG.debug("Reusing shared input table " + inputFilename);
+        }
+        return inputTable;
+    }
+
+    /**
+     * Get the floored and transposed version of the input table, building it the first
+     * time it is requested with a given set of preprocessing options. The table has one
+     * row per sample, with the sample id in the first column. Callers must not modify
+     * the table returned.
+     *
+     * @param options Options that determine how the table is floored
+     * @param reader  The mode used to read the input file, if not read already
+     * @return the shared preprocessed table
+     * @throws SyntaxErrorException       if there is an error in the file
+     * @throws IOException                if the input file cannot be read
+     * @throws UnsupportedFormatException if the file format is not recognized
+     * @throws TypeMismatchException      if the input table cannot be transposed
+     * @throws InvalidColumnException     if the input table has no identifier column
+     * @throws ColumnTypeException        if the input table cannot be transposed
+     */
+    public synchronized Table getPreprocessedTable(final DAVOptions options, final DAVMode reader)
+            throws IOException, SyntaxErrorException, UnsupportedFormatException,
+            TypeMismatchException, InvalidColumnException, ColumnTypeException {
+        final String key = preprocessingKey(options);
+        Table transposed = preprocessedTables.get(key);
+        if (transposed == null) {
+            final Table source = getInputTable(reader).copy();
+
+            // keep only the identifier column and the signal columns:
+            final ObjectSet<String> keepSet = new ObjectOpenHashSet<String>();
+            keepSet.add(options.IDENTIFIER_COLUMN_NAME);
+            final int[] columnSelection = MicroarrayTrainEvaluate.getDoubleColumnIndices(source);
+            for (final int columnIndex : columnSelection) {
+                keepSet.add(source.getIdentifier(columnIndex));
+            }
+            MicroarrayTrainEvaluate.filterColumns(source, keepSet);
+
+            if (options.adjustSignalToFloorValue) {
+                final RowFloorAdjustmentCalculator floorAdjust =
+                        new RowFloorAdjustmentCalculator(
+                                MicroarrayTrainEvaluate.getDoubleColumnIndices(source),
+                                options.signalFloorValue,
+                                options.oneChannelArray,
+                                options.loggedArray);
+                source.processRows(floorAdjust);
+            }
+            final int idColumnIndex = source.getColumnIndex(options.IDENTIFIER_COLUMN_NAME);
+            transposed = source.transpose(new DefineColumnFromRow(idColumnIndex));
+            preprocessedTables.put(key, transposed);
+            LOG.info("Preprocessed shared input table " + inputFilename + " (" + key + ")");
+        }
+        return transposed;
+    }
+
+    /**
+     * Build a key that identifies the preprocessing applied to a shared table.
+     *
+     * @param options Options that determine how the table is floored
+     * @return a key describing the preprocessing options
+     */
+    private static String preprocessingKey(final DAVOptions options) {
+        if (!options.adjustSignalToFloorValue) {
+            return "no-floor";
+        }
+        return String.format("floor=%f,one-channel=%b,logged=%b", options.signalFloorValue,
+                options.oneChannelArray, options.loggedArray);
+    }
+}
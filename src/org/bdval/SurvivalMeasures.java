@@ -25,10 +25,10 @@ import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
-import javastat.survival.regression.CoxRegression;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math.MathException;
 import org.rosuda.REngine.REXPMismatchException;
 import org.rosuda.REngine.REngineException;
 import org.rosuda.REngine.Rserve.RserveException;
@@ -66,12 +66,28 @@ public class SurvivalMeasures {
         System.out.println("log rank p " + logpval);
         for(int i=0; i<pval.length; i++){
             System.out.println("pval:\t"+i+"\t"+pval[i]);
-            System.out.println("coef:\t"+i+"\t"+Math.pow(2.71828,coef[i]));
+            System.out.println("hazard ratio:\t"+i+"\t"+coef[i]);
         }
         System.out.println("R2 "+s.R2);
 
     }
     private static final Log LOG = LogFactory.getLog(SurvivalMeasures.class);
+
+    /**
+     * Relative difference tolerated between the statistics computed in the JVM and by R.
+     */
+    private static final double VERIFICATION_TOLERANCE = 1E-4;
+
+    /**
+     * When true, statistics are also computed by the R scripts on Rserve and compared with
+     * those computed in the JVM. Set with the bdval.survival.verify-with-r system property.
+     */
+    private static boolean verifyWithR = Boolean.getBoolean("bdval.survival.verify-with-r");
+
+    public static void setVerifyWithR(final boolean verify) {
+        verifyWithR = verify;
+    }
+
     private final DiscoverWithCoxRegression cox = new DiscoverWithCoxRegression();
     public String survivalFilename;
     public double [] coxP;
@@ -159,9 +175,10 @@ public class SurvivalMeasures {
             }
 
             coxRegressionByJava(alpha, time, censor, covariateWithScore);
-            //     coxRegressionByRScript(time, censor, covariateWithScore);
-
-            logRankByRscript(time, censor, group);
+            logRankP = logRankByJava(time, censor, group);
+            if (verifyWithR) {
+                verifyWithRScripts(time, censor, group, covariateWithScore);
+            }
 
         } catch (Exception e) {
             LOG.warn(String.format(
@@ -169,11 +186,56 @@ public class SurvivalMeasures {
                     ArrayUtils.toString(time), ArrayUtils.toString(censor), ArrayUtils.toString(group), time.length, censor.length, group.length ), e);
         }
     }
-    public void logRankByJava() {
-        //todo:
+
+    /**
+     * Compare the statistics computed in the JVM with those of the R scripts, and warn when
+     * they differ. The Cox regression script only supports two covariates (one clinical
+     * covariate and the decision score).
+     */
+    private void verifyWithRScripts(final double[] time, final double[] censor,
+                                    final double[] group, final double[][] covariateWithScore)
+            throws RserveException, REXPMismatchException, REngineException {
+        final double rLogRankP = logRankByRscript(time, censor, group);
+        if (!agree(logRankP, rLogRankP)) {
+            LOG.warn(String.format("Log-rank p-value %g differs from the R script value %g",
+                    logRankP, rLogRankP));
+        }
+        if (covariateWithScore.length == 2) {
+            final double[][] r = coxRegressionByRScript(time, censor, covariateWithScore);
+            for (int k = 0; k < covariateWithScore.length; k++) {
+                if (!agree(coxP[k], r[0][k]) || !agree(hazardRatio[k], r[1][k])) {
+                    LOG.warn(String.format("Cox regression of covariate %d (p=%g, HR=%g) differs"
+                            + " from the R script (p=%g, HR=%g)",
+                            k, coxP[k], hazardRatio[k], r[0][k], r[1][k]));
+                }
+            }
+            if (!agree(R2, r[2][0])) {
+                LOG.warn(String.format("Cox regression R2 %g differs from the R script value %g",
+                        R2, r[2][0]));
+            }
+        }
+    }
+
+    private static boolean agree(final double value, final double reference) {
+        return Math.abs(value - reference) <= VERIFICATION_TOLERANCE * Math.max(1, Math.abs(reference));
+    }
+
+    /**
+     * Log-rank test computed in the JVM.
+     *
+     * @return the p-value of the log-rank test, NaN when all samples belong to the same group
+     */
+    public double logRankByJava(final double[] time, final double[] censor, final double[] group)
+            throws MathException {
+        return LogRankTest.pValue(time, censor, group);
     }
 
-    public void logRankByRscript(final double[] time, final double[] censor, final double [] group) throws RserveException, REXPMismatchException, REngineException {
+    /**
+     * Log-rank test computed by rscripts/logRank_test.R on Rserve.
+     *
+     * @return the p-value of the log-rank test
+     */
+    public double logRankByRscript(final double[] time, final double[] censor, final double [] group) throws RserveException, REXPMismatchException, REngineException {
         RScript rscript = null;
         try {
             rscript = RScript.createFromResource("rscripts/logRank_test.R");
@@ -186,10 +248,15 @@ public class SurvivalMeasures {
         rscript.setInput("group", group);
         rscript.setOutput("p_value", RDataObjectType.Double);
         rscript.execute();
-        logRankP=1.0;
-        logRankP=rscript.getOutputDouble("p_value");
+        return rscript.getOutputDouble("p_value");
     }
-    private void coxRegressionByRScript( final double[] time, final double[] censor, final double[][] covariateWithScore) throws RserveException, REXPMismatchException, REngineException {
+
+    /**
+     * Cox regression computed by rscripts/cox_regression.R on Rserve.
+     *
+     * @return the p-values, the hazard ratios and the R2 (as a single element array)
+     */
+    private double[][] coxRegressionByRScript( final double[] time, final double[] censor, final double[][] covariateWithScore) throws RserveException, REXPMismatchException, REngineException {
         RScript rscript=null;
         try{
             rscript = RScript.createFromResource("rscripts/cox_regression.R");
@@ -206,27 +273,30 @@ public class SurvivalMeasures {
         rscript.setOutput("coef", RDataObjectType.DoubleArray);
         rscript.setOutput("R2", RDataObjectType.Double);
         rscript.execute();
-        coxP = rscript.getOutputDoubleArray("p_value");
-        hazardRatio = rscript.getOutputDoubleArray("coef");
-        R2 = rscript.getOutputDouble("R2");
-        System.out.println("R2  "+R2);
+        return new double[][] {
+                rscript.getOutputDoubleArray("p_value"),
+                rscript.getOutputDoubleArray("coef"),
+                {rscript.getOutputDouble("R2")}};
     }
 
-    private void coxRegressionByJava(final double alpha, final double[] time, final double[] censor, final double[][] covariateWithScore) {
+    private void coxRegressionByJava(final double alpha, final double[] time, final double[] censor, final double[][] covariateWithScore) throws MathException {
         try {
-            LOG.info("In coxRegressionByJava: the sample size is:"+ time.length);
-            final CoxRegression coxReg = new CoxRegression(alpha,
-                    time,
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("In coxRegressionByJava: the sample size is:" + time.length);
+            }
+            final CoxProportionalHazards coxReg = new CoxProportionalHazards(time,
                     censor,
                     covariateWithScore);
+            final double[][] confidenceIntervals = coxReg.getConfidenceIntervals(alpha);
             lowCI = new double[nCov+1];
             upCI = new double[nCov+1];
             for (int k = 0; k < lowCI.length; k++){
-                lowCI[k] = coxReg.confidenceInterval[k][0];
-                upCI[k] = coxReg.confidenceInterval[k][1];
+                lowCI[k] = confidenceIntervals[k][0];
+                upCI[k] = confidenceIntervals[k][1];
             }
-            coxP = coxReg.pValue;
-            hazardRatio= coxReg.coefficients;
+            coxP = coxReg.getPValues();
+            hazardRatio = coxReg.getHazardRatios();
+            R2 = coxReg.getRSquare();
         } catch (RuntimeException e) {
             LOG.warn(e.getMessage());
         }
@@ -0,0 +1,569 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.Table;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.ParallelRegion;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.stat.inference.TTestImpl;
+import org.bdval.util.ParallelTeams;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Univariate statistics for all the features of a processed table (first column holds the
+ * sample labels, other columns hold one feature each). Labels are encoded once as an int
+ * vector (0 for the first label group, 1 for the second, -1 for samples in neither group),
+ * then class counts, means, variances and rank statistics are computed for every feature
+ * over primitive arrays, in parallel across features. The Discover* modes use these
+ * statistics to score features.
+ */
+public class UnivariateFeatureStatistics {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(UnivariateFeatureStatistics.class);
+
+    /**
+     * Class of each sample: 0 for the negative class (first label group), 1 for the positive
+     * class (second label group), -1 for samples in neither group.
+     */
+    private final int[] classes;
+
+    /**
+     * Number of samples in each class.
+     */
+    private final int[] classCounts = new int[2];
+
+    /**
+     * Feature values, one array per feature. Arrays may be longer than the number of samples.
+     */
+    private final double[][] features;
+
+    /**
+     * Mean of each feature in each class, indexed by [class][feature].
+     */
+    private double[][] means;
+
+    /**
+     * Unbiased variance of each feature in each class, indexed by [class][feature].
+     */
+    private double[][] variances;
+
+    /**
+     * Kendall tau-b correlation between each feature and the class, or null if rank
+     * statistics were not computed.
+     */
+    private double[] kendallTaus;
+
+    /**
+     * Number of threads used to compute statistics. Zero uses one thread per processor.
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * Scores a single feature. Implementations must be safe to call concurrently for
+     * different features.
+     */
+    public interface FeatureScorer {
+        /**
+         * Score a feature.
+         *
+         * @param featureIndex Index of the feature (column index in the table minus one)
+         * @return the score of the feature
+         * @throws Exception if the feature cannot be scored
+         */
+        double score(int featureIndex) throws Exception;
+    }
+
+    /**
+     * Prepare statistics for a processed table.
+     *
+     * @param processedTable   Table with the sample labels in the first column and one feature
+     *                         per other column
+     * @param labelValueGroups The labels of the negative class, then of the positive class
+     */
+    public UnivariateFeatureStatistics(final Table processedTable,
+                                       final List<Set<String>> labelValueGroups) {
+        super();
+        final ArrayTable.ColumnDescription labelColumn = processedTable.getColumnValues(0);
+        assert labelColumn.type == String.class : "label must have type String";
+        classes = encodeLabels(labelColumn.getStrings(), processedTable.getRowNumber(),
+                labelValueGroups);
+        for (final int sampleClass : classes) {
+            if (sampleClass >= 0) {
+                classCounts[sampleClass]++;
+            }
+        }
+
+        features = new double[processedTable.getColumnNumber() - 1][];
+        for (int featureIndex = 0; featureIndex < features.length; featureIndex++) {
+            final ArrayTable.ColumnDescription cd = processedTable.getColumnValues(featureIndex + 1);
+            assert cd.type == double.class : "features must have type double";
+            features[featureIndex] = cd.getDoubles();
+        }
+    }
+
+    /**
+     * Encode sample labels as classes.
+     *
+     * @param labels           Label of each sample
+     * @param numberOfSamples  Number of samples (labels may hold more elements)
+     * @param labelValueGroups The labels of the negative class, then of the positive class
+     * @return 0 for samples in the first group, 1 for samples in the second group, -1 otherwise
+     */
+    public static int[] encodeLabels(final String[] labels, final int numberOfSamples,
+                                     final List<Set<String>> labelValueGroups) {
+        final int[] result = new int[numberOfSamples];
+        for (int i = 0; i < numberOfSamples; i++) {
+            if (labelValueGroups.get(0).contains(labels[i])) {
+                result[i] = 0;
+            } else if (labelValueGroups.get(1).contains(labels[i])) {
+                result[i] = 1;
+            } else {
+                result[i] = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Set the number of threads used to compute statistics. Default is 1 (sequential).
+     *
+     * @param numberOfThreads Number of threads, zero uses one thread per processor.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = Math.max(0, numberOfThreads);
+    }
+
+    /**
+     * Compute class means and variances of every feature, and optionally rank statistics.
+     *
+     * @param rankStatistics When true, also compute the Kendall tau correlation of each feature
+     *                       with the class.
+     */
+    public void compute(final boolean rankStatistics) {
+        final int numberOfFeatures = features.length;
+        means = new double[2][numberOfFeatures];
+        variances = new double[2][numberOfFeatures];
+        kendallTaus = rankStatistics ? new double[numberOfFeatures] : null;
+        forEachFeature(new IntegerForLoop() {
+            @Override
+            public void run(final int startIndex, final int endIndex) {
+                for (int featureIndex = startIndex; featureIndex <= endIndex; featureIndex++) {
+                    computeMoments(featureIndex);
+                    if (rankStatistics) {
+                        kendallTaus[featureIndex] = computeKendallTau(features[featureIndex]);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Score every feature, in parallel.
+     *
+     * @param scorer The scorer to apply to each feature
+     * @return the score of each feature
+     */
+    public double[] score(final FeatureScorer scorer) {
+        final double[] scores = new double[features.length];
+        forEachFeature(new IntegerForLoop() {
+            @Override
+            public void run(final int startIndex, final int endIndex) throws Exception {
+                for (int featureIndex = startIndex; featureIndex <= endIndex; featureIndex++) {
+                    scores[featureIndex] = scorer.score(featureIndex);
+                }
+            }
+        });
+        return scores;
+    }
+
+    /**
+     * Two sided p-value of the T-Test for the difference of means between the two classes
+     * (Welch test, unequal variances), for every feature. Features with less than two samples
+     * in a class get a p-value of NaN. Requires {@link #compute(boolean)}.
+     *
+     * @return the p-value of each feature
+     */
+    public double[] tTestPValues() {
+        final double[] pValues = new double[features.length];
+        final int negativeCount = classCounts[0];
+        final int positiveCount = classCounts[1];
+        if (negativeCount < 2 || positiveCount < 2) {
+            // T-Test cannot be applied to sets of numbers with less than two elements.
+            Arrays.fill(pValues, Double.NaN);
+            return pValues;
+        }
+        forEachFeature(new LoopFactory() {
+            public IntegerForLoop newLoop() {
+                return new IntegerForLoop() {
+                    // TTestImpl is not thread safe, each thread runs its own loop:
+                    private final WelchTTest tester = new WelchTTest();
+
+                    @Override
+                    public void run(final int startIndex, final int endIndex)
+                            throws MathException {
+                        for (int featureIndex = startIndex; featureIndex <= endIndex;
+                             featureIndex++) {
+                            pValues[featureIndex] = tester.tTest(
+                                    means[1][featureIndex], means[0][featureIndex],
+                                    variances[1][featureIndex], variances[0][featureIndex],
+                                    positiveCount, negativeCount);
+                        }
+                    }
+                };
+            }
+        });
+        return pValues;
+    }
+
+    /**
+     * Gives access to the T-Test p-value of summary statistics.
+     */
+    private static final class WelchTTest extends TTestImpl {
+        @Override
+        protected double tTest(final double m1, final double m2, final double v1, final double v2,
+                               final double n1, final double n2) throws MathException {
+            return super.tTest(m1, m2, v1, v2, n1, n2);
+        }
+    }
+
+    /**
+     * Permutation test of the area under the ROC curve of each feature. The statistic is
+     * |AUC - 0.5|, and the p-value is the fraction of label permutations whose statistic is
+     * larger than the statistic of the actual labels. The permuted label vectors are drawn
+     * once and shared by all the features. Each feature is ranked once, after which the AUC
+     * of a permutation is obtained from the sum of the ranks of its positive samples.
+     * <p/>
+     * Permutations of a feature stop as soon as the p-value is certain to exceed alpha. The
+     * p-value reported for such a feature is the fraction of permutations evaluated so far
+     * that exceeded the statistic, which is larger than alpha.
+     *
+     * @param numberOfPermutations Number of label permutations
+     * @param random               Source of randomness used to draw the permutations
+     * @param alpha                Significance level. Use 1 to evaluate all the permutations.
+     * @return the p-value of each feature, 1 when a class has no samples
+     */
+    public double[] permutationPValues(final int numberOfPermutations, final Random random,
+                                       final double alpha) {
+        final double[] pValues = new double[features.length];
+        final int[] labeled = new int[classCounts[0] + classCounts[1]];
+        final int[] actualPositives = new int[classCounts[1]];
+        int position = 0;
+        int positive = 0;
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] == 1) {
+                actualPositives[positive++] = position;
+            }
+            if (classes[i] >= 0) {
+                labeled[position++] = i;
+            }
+        }
+        if (classCounts[0] == 0 || classCounts[1] == 0 || numberOfPermutations <= 0) {
+            Arrays.fill(pValues, 1);
+            return pValues;
+        }
+
+        // the positions of the positive samples in each permutation:
+        final int[][] permutedPositives = new int[numberOfPermutations][];
+        final int[] shuffled = new int[labeled.length];
+        for (int i = 0; i < shuffled.length; i++) {
+            shuffled[i] = i;
+        }
+        for (int permutation = 0; permutation < numberOfPermutations; permutation++) {
+            for (int i = shuffled.length - 1; i > 0; i--) {
+                final int j = random.nextInt(i + 1);
+                final int swap = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swap;
+            }
+            permutedPositives[permutation] = Arrays.copyOf(shuffled, actualPositives.length);
+        }
+
+        // rank sum of the positive samples expected when the feature is not informative:
+        final double expectedRankSum = actualPositives.length * (labeled.length + 1) / 2.0;
+        // the permutation count above which the p-value exceeds alpha:
+        final double maxExceeding = alpha * numberOfPermutations;
+        forEachFeature(new LoopFactory() {
+            public IntegerForLoop newLoop() {
+                return new IntegerForLoop() {
+                    // scratch buffers, one set per thread:
+                    private final double[] ranks = new double[labeled.length];
+                    private final double[] sorted = new double[labeled.length];
+
+                    @Override
+                    public void run(final int startIndex, final int endIndex) {
+                        for (int featureIndex = startIndex; featureIndex <= endIndex;
+                             featureIndex++) {
+                            computeMidranks(features[featureIndex], labeled, sorted, ranks);
+                            final double observed =
+                                    Math.abs(rankSum(ranks, actualPositives) - expectedRankSum);
+                            int exceeding = 0;
+                            int permutation = 0;
+                            while (permutation < numberOfPermutations
+                                    && exceeding <= maxExceeding) {
+                                final double permuted = Math.abs(rankSum(ranks,
+                                        permutedPositives[permutation]) - expectedRankSum);
+                                if (permuted > observed) {
+                                    exceeding++;
+                                }
+                                permutation++;
+                            }
+                            pValues[featureIndex] = ((double) exceeding) / permutation;
+                        }
+                    }
+                };
+            }
+        });
+        return pValues;
+    }
+
+    /**
+     * Compute the ranks of the values of the labeled samples, with ties given the
+     * average of their ranks.
+     */
+    private static void computeMidranks(final double[] values, final int[] labeled,
+                                        final double[] sorted, final double[] ranks) {
+        for (int i = 0; i < labeled.length; i++) {
+            sorted[i] = values[labeled[i]];
+        }
+        Arrays.sort(sorted);
+        for (int i = 0; i < labeled.length; i++) {
+            final double value = values[labeled[i]];
+            int first = Arrays.binarySearch(sorted, value);
+            int last = first;
+            while (first > 0 && Double.compare(sorted[first - 1], value) == 0) {
+                first--;
+            }
+            while (last < sorted.length - 1 && Double.compare(sorted[last + 1], value) == 0) {
+                last++;
+            }
+            ranks[i] = (first + last) / 2.0 + 1;
+        }
+    }
+
+    private static double rankSum(final double[] ranks, final int[] positions) {
+        double sum = 0;
+        for (final int position : positions) {
+            sum += ranks[position];
+        }
+        return sum;
+    }
+
+    /**
+     * Creates the loop run by each thread of a team, for loops that keep state, such as
+     * scratch buffers, which threads cannot share.
+     */
+    private interface LoopFactory {
+        IntegerForLoop newLoop();
+    }
+
+    /**
+     * Run a loop that keeps no state over all the features on a team of threads. The same
+     * loop instance is shared by all the threads.
+     */
+    private void forEachFeature(final IntegerForLoop loop) {
+        forEachFeature(new LoopFactory() {
+            public IntegerForLoop newLoop() {
+                return loop;
+            }
+        });
+    }
+
+    /**
+     * Run a loop over all the features on a team of threads. Each thread runs its own loop,
+     * created by the factory. The loop runs on the calling thread when a single thread is
+     * used, and teams are shared with {@link ParallelTeams} otherwise, so that the many
+     * statistics computed in one run do not each start threads.
+     */
+    private void forEachFeature(final LoopFactory loopFactory) {
+        if (features.length == 0) {
+            return;
+        }
+        try {
+            if (ParallelTeams.getThreadCount(numberOfThreads) == 1) {
+                ParallelTeams.execute(1, 0, features.length - 1, loopFactory.newLoop());
+            } else {
+                ParallelTeams.execute(numberOfThreads, new ParallelRegion() {
+                    @Override
+                    public void run() throws Exception {
+                        execute(0, features.length - 1 /* end index is inclusive */,
+                                loopFactory.newLoop());
+                    }
+                });
+            }
+        } catch (Exception e) {
+            LOG.error("An error occurred computing feature statistics", e);
+            throw new IllegalStateException("An error occurred computing feature statistics", e);
+        }
+    }
+
+    private void computeMoments(final int featureIndex) {
+        final double[] values = features[featureIndex];
+        final double[] sums = new double[2];
+        for (int i = 0; i < classes.length; i++) {
+            final int sampleClass = classes[i];
+            if (sampleClass >= 0) {
+                sums[sampleClass] += values[i];
+            }
+        }
+        final double negativeMean = sums[0] / classCounts[0];
+        final double positiveMean = sums[1] / classCounts[1];
+        means[0][featureIndex] = negativeMean;
+        means[1][featureIndex] = positiveMean;
+
+        // corrected two-pass algorithm, as in commons-math:
+        final double[] squares = new double[2];
+        final double[] deviations = new double[2];
+        for (int i = 0; i < classes.length; i++) {
+            final int sampleClass = classes[i];
+            if (sampleClass >= 0) {
+                final double deviation = values[i] - (sampleClass == 0 ? negativeMean : positiveMean);
+                squares[sampleClass] += deviation * deviation;
+                deviations[sampleClass] += deviation;
+            }
+        }
+        for (int sampleClass = 0; sampleClass < 2; sampleClass++) {
+            final double n = classCounts[sampleClass];
+            variances[sampleClass][featureIndex] = n > 1
+                    ? (squares[sampleClass] - deviations[sampleClass] * deviations[sampleClass] / n) / (n - 1)
+                    : Double.NaN;
+        }
+    }
+
+    /**
+     * Compute the Kendall tau-b correlation between the values of a feature and the classes.
+     * Since the class is binary, the numerator is the Mann-Whitney statistic and is obtained
+     * by merging the sorted values of each class in O(n log n).
+     */
+    private double computeKendallTau(final double[] values) {
+        final double[] negative = new double[classCounts[0]];
+        final double[] positive = new double[classCounts[1]];
+        int negativeIndex = 0;
+        int positiveIndex = 0;
+        for (int i = 0; i < classes.length; i++) {
+            if (classes[i] == 0) {
+                negative[negativeIndex++] = values[i];
+            } else if (classes[i] == 1) {
+                positive[positiveIndex++] = values[i];
+            }
+        }
+        Arrays.sort(negative);
+        Arrays.sort(positive);
+
+        // concordant minus discordant pairs, and pairs tied on the feature value:
+        long score = 0;
+        long featureTies = 0;
+        int i = 0;
+        int j = 0;
+        while (i < negative.length || j < positive.length) {
+            final double value;
+            if (j == positive.length || (i < negative.length && negative[i] <= positive[j])) {
+                value = negative[i];
+            } else {
+                value = positive[j];
+            }
+            final int negativeBelow = i;
+            while (i < negative.length && negative[i] == value) {
+                i++;
+            }
+            final int negativeTied = i - negativeBelow;
+            int positiveTied = 0;
+            while (j < positive.length && positive[j] == value) {
+                j++;
+                positiveTied++;
+            }
+            // each positive sample with this value is above the negative samples seen so far,
+            // and below the negative samples that remain:
+            score += (long) positiveTied * (negativeBelow - (negative.length - negativeBelow - negativeTied));
+            final long tied = negativeTied + positiveTied;
+            featureTies += tied * (tied - 1) / 2;
+        }
+
+        final long n = negative.length + positive.length;
+        final long pairs = n * (n - 1) / 2;
+        final long classTies = (long) negative.length * (negative.length - 1) / 2
+                + (long) positive.length * (positive.length - 1) / 2;
+        return score / Math.sqrt((double) (pairs - featureTies) * (double) (pairs - classTies));
+    }
+
+    public int getNumberOfFeatures() {
+        return features.length;
+    }
+
+    /**
+     * Get the number of samples in a class.
+     *
+     * @param sampleClass 0 for the negative class, 1 for the positive class
+     * @return the number of samples in the class
+     */
+    public int getClassCount(final int sampleClass) {
+        return classCounts[sampleClass];
+    }
+
+    /**
+     * Get the class of each sample.
+     *
+     * @return 0 for the negative class, 1 for the positive class, -1 for unlabeled samples
+     */
+    public int[] getClasses() {
+        return classes;
+    }
+
+    /**
+     * Get the mean of a feature in a class. Requires {@link #compute(boolean)}.
+     *
+     * @param sampleClass  0 for the negative class, 1 for the positive class
+     * @param featureIndex Index of the feature
+     * @return mean value of the feature in the class
+     */
+    public double getMean(final int sampleClass, final int featureIndex) {
+        return means[sampleClass][featureIndex];
+    }
+
+    /**
+     * Get the unbiased variance of a feature in a class. Requires {@link #compute(boolean)}.
+     *
+     * @param sampleClass  0 for the negative class, 1 for the positive class
+     * @param featureIndex Index of the feature
+     * @return variance of the feature in the class
+     */
+    public double getVariance(final int sampleClass, final int featureIndex) {
+        return variances[sampleClass][featureIndex];
+    }
+
+    /**
+     * Get the Kendall tau-b correlation between a feature and the class (0 for the negative
+     * class, 1 for the positive class). Requires {@link #compute(boolean)} with rank statistics.
+     *
+     * @param featureIndex Index of the feature
+     * @return Kendall tau of the feature
+     */
+    public double getKendallTau(final int featureIndex) {
+        return kendallTaus[featureIndex];
+    }
+}
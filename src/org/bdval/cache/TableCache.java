@@ -20,8 +20,10 @@ package org.bdval.cache;
 
 import edu.cornell.med.icb.geo.tools.FullGeneList;
 import edu.cornell.med.icb.geo.tools.GeneList;
+import edu.mssm.crover.tables.AcceptAllRowFilter;
 import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.KeepSubSetColumnFilter;
 import edu.mssm.crover.tables.Table;
 import edu.mssm.crover.tables.TypeMismatchException;
 import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
@@ -32,15 +34,33 @@ import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.log4j.Logger;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
 
 /**
  * Class to cache (read/write) Tables.
+ * <p/>
+ * Tables are written in a columnar format. The file starts with a header that indexes
+ * the columns (type, identifier and offset of the column data). String columns are stored
+ * in the header. Double columns are stored after the header as blocks of float64 values,
+ * aligned on eight bytes, so that the loader can memory map the file and read only the
+ * columns it needs. Files written in the previous stream format (one readUTF/readDouble
+ * at a time) can still be read.
+ * <p/>
+ * When the shared {@link TableMemoryCache} has a budget, complete tables are also kept in
+ * memory and callers receive copies of them, so that repeated requests for the same table
+ * do not go back to disk.
  *
  * @author Kevin Dorff
  */
@@ -60,6 +80,38 @@ public class TableCache {
      */
     private static final String S_CACHED_FILENAME = "%s/cached-table-%s-%s-%d.bin";
 
+    /**
+     * Magic number that starts files written in the columnar format ("BDTC").
+     * Files written in the stream format start with the number of columns instead.
+     */
+    static final int COLUMNAR_MAGIC = 0x42445443;
+
+    /**
+     * Version of the columnar format.
+     */
+    static final int COLUMNAR_VERSION = 1;
+
+    /**
+     * Size of the fixed part of the columnar file: magic, version, header length.
+     */
+    private static final int COLUMNAR_PREAMBLE_SIZE = 12;
+
+    /**
+     * Locks that protect cached table files, selected by hash of the filename.
+     */
+    private static final Object[] LOCK_STRIPES = new Object[64];
+
+    static {
+        for (int i = 0; i < LOCK_STRIPES.length; i++) {
+            LOCK_STRIPES[i] = new Object();
+        }
+    }
+
+    /**
+     * Memory tier in front of the files of this cache, shared by all caches of the JVM.
+     */
+    private final TableMemoryCache memoryCache = TableMemoryCache.getInstance();
+
     /**
      * Create a TableCache storing tables in the "current working directory".
      *
@@ -123,10 +175,24 @@ public class TableCache {
         } catch (IOException e) {
             return false;
         }
-        synchronized (filename.intern()) {
+        if (memoryCache.contains(filename)) {
+            return true;
+        }
+        synchronized (lockFor(filename)) {
             return cachedTableFile.exists();
         }
     }
+
+    /**
+     * Get the lock that protects a cached table file. Locks are striped so that
+     * concurrent splits working on different tables rarely contend for the same lock.
+     *
+     * @param filename The canonical filename of the cached table
+     * @return the lock for this filename
+     */
+    private static Object lockFor(final String filename) {
+        return LOCK_STRIPES[(filename.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES.length];
+    }
     /**
      * Remove a specific table from the cache.
      *
@@ -137,9 +203,13 @@ public class TableCache {
     public void clearFromCache(final int splitId, final String splitType,
                                final String datasetName) {
         final File cachedTableFile = getCachedTableFile(splitId, splitType, datasetName);
-        if (cachedTableFile.exists()) {
-            if (!cachedTableFile.delete()) {
-                LOG.warn("Unable to delete cache file " + cachedTableFile.getAbsolutePath());
+        final String filename = filenameOf(cachedTableFile);
+        synchronized (lockFor(filename)) {
+            memoryCache.remove(filename);
+            if (cachedTableFile.exists()) {
+                if (!cachedTableFile.delete()) {
+                    LOG.warn("Unable to delete cache file " + cachedTableFile.getAbsolutePath());
+                }
             }
         }
     }
@@ -178,11 +248,169 @@ public class TableCache {
                                 final String datasetName, final GeneList geneListFilter) {
         final File cachedTableFile = getCachedTableFile(splitId, splitType, datasetName);
 
-        if (geneListFilter != null && !(geneListFilter instanceof FullGeneList)) {
-            final ObjectSet<CharSequence> tableColumnIds =
-                    getTableColumnIds(splitId, splitType, datasetName);
+        if (!memoryCache.isEnabled()) {
+            if (geneListFilter != null && !(geneListFilter instanceof FullGeneList)) {
+                final ObjectSet<CharSequence> tableColumnIds =
+                        getTableColumnIds(splitId, splitType, datasetName);
+                geneListFilter.calculateProbeSetSelection(tableColumnIds);
+            }
+            return readTable(cachedTableFile, geneListFilter);
+        }
+
+        // Keep the complete table in memory, and give the caller a copy with the
+        // columns it needs:
+        final String key = filenameOf(cachedTableFile);
+        Table sharedTable;
+        synchronized (lockFor(key)) {
+            sharedTable = memoryCache.get(key);
+            if (sharedTable == null) {
+                sharedTable = readTable(cachedTableFile, null);
+                if (sharedTable == null) {
+                    return null;
+                }
+                memoryCache.put(key, sharedTable);
+            }
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug(memoryCache);
+        }
+        return copyTable(sharedTable, geneListFilter);
+    }
+
+    /**
+     * Copy a table held in memory, keeping only the double columns that match a gene list.
+     *
+     * @param sharedTable    The table held in memory
+     * @param geneListFilter A gene list, or null to copy all the columns
+     * @return a copy of the table (or null if it could not be copied)
+     */
+    private Table copyTable(final Table sharedTable, final GeneList geneListFilter) {
+        try {
+            if (geneListFilter == null || geneListFilter instanceof FullGeneList) {
+                return sharedTable.copy();
+            }
+            final ObjectSet<CharSequence> tableColumnIds = new ObjectOpenHashSet<CharSequence>();
+            for (int i = 0; i < sharedTable.getColumnNumber(); i++) {
+                tableColumnIds.add(sharedTable.getIdentifier(i));
+            }
             geneListFilter.calculateProbeSetSelection(tableColumnIds);
+
+            final Set<String> columnsToKeep = new ObjectOpenHashSet<String>();
+            for (int i = 0; i < sharedTable.getColumnNumber(); i++) {
+                final String colId = sharedTable.getIdentifier(i);
+                if (sharedTable.getType(i) != double.class
+                        || geneListFilter.isProbesetInList(colId)) {
+                    columnsToKeep.add(colId);
+                }
+            }
+            return sharedTable.copy(new AcceptAllRowFilter(),
+                    new KeepSubSetColumnFilter(columnsToKeep));
+        } catch (TypeMismatchException e) {
+            LOG.error("TypeMismatchException copying cached table", e);
+            return null;
+        } catch (InvalidColumnException e) {
+            LOG.error("InvalidColumnException copying cached table", e);
+            return null;
         }
+    }
+
+    /**
+     * Read a cached table from disk, in whichever format it was written.
+     *
+     * @param cachedTableFile The file to read from
+     * @param geneListFilter  A gene list, or null to read all the columns
+     * @return the table read from the file (or null if it could not be read)
+     */
+    private Table readTable(final File cachedTableFile, final GeneList geneListFilter) {
+        try {
+            if (isColumnarFormat(cachedTableFile)) {
+                return readColumnarTable(cachedTableFile, geneListFilter);
+            } else {
+                return readStreamTable(cachedTableFile, geneListFilter);
+            }
+        } catch (IOException e) {
+            LOG.error(e);
+            return null;
+        } catch (TypeMismatchException e) {
+            LOG.error("TypeMismatchException adding data to Table "
+                    + filenameOf(cachedTableFile), e);
+            return null;
+        }
+    }
+
+    /**
+     * Read a table written in the columnar format. The file is memory mapped and only
+     * the double columns that match the gene list are decoded.
+     *
+     * @param cachedTableFile The file to read from
+     * @param geneListFilter  A gene list, or null to read all the columns
+     * @return the table read from the file (or null if it could not be read)
+     * @throws IOException if the file cannot be read
+     * @throws TypeMismatchException if the data cannot be added to the table
+     */
+    private Table readColumnarTable(final File cachedTableFile, final GeneList geneListFilter)
+            throws IOException, TypeMismatchException {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(cachedTableFile, "r");
+            final FileChannel channel = file.getChannel();
+            final MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final ColumnarHeader header = readColumnarHeader(buffer);
+            LOG.info("Reading cached table with " + header.columnIds.length + " columns");
+
+            final ArrayTable result = new ArrayTable();
+            resize(result, header.numRows);
+            final double[] values = new double[header.numRows];
+            for (int i = 0; i < header.columnIds.length; i++) {
+                final String colId = header.columnIds[i];
+                if (header.columnTypes[i] == 's') {
+                    final int columnIndex = result.addColumn(colId, String.class);
+                    for (final String value : header.strings[i]) {
+                        result.appendObject(columnIndex, value);
+                    }
+                } else if (header.columnTypes[i] == 'd') {
+                    if (geneListFilter != null && !geneListFilter.isProbesetInList(colId)) {
+                        // the column does not match the gene list, leave it on disk.
+                        continue;
+                    }
+                    buffer.position((int) (header.dataStart + header.offsets[i]));
+                    final DoubleBuffer doubles = buffer.slice().asDoubleBuffer();
+                    doubles.get(values, 0, header.numRows);
+                    final int columnIndex = result.addColumn(colId, double.class);
+                    for (final double value : values) {
+                        result.appendDoubleValue(columnIndex, value);
+                    }
+                } else {
+                    LOG.error("UNKNOWN COLUMN TYPE " + header.columnTypes[i]
+                            + " cannot read cached table from file "
+                            + filenameOf(cachedTableFile));
+                    return null;
+                }
+            }
+            return result;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    LOG.warn("Unable to close cache file " + filenameOf(cachedTableFile), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read a table written in the stream format used by previous versions of the cache.
+     *
+     * @param cachedTableFile The file to read from
+     * @param geneListFilter  A gene list, or null to read all the columns
+     * @return the table read from the file (or null if it could not be read)
+     * @throws IOException if the file cannot be read
+     * @throws TypeMismatchException if the data cannot be added to the table
+     */
+    private Table readStreamTable(final File cachedTableFile, final GeneList geneListFilter)
+            throws IOException, TypeMismatchException {
         DataInputStream dataInput = null;
         try {
             dataInput = new DataInputStream(
@@ -229,21 +457,59 @@ public class TableCache {
                 }
             }
             return result;
-        } catch (IOException e) {
-            LOG.error(e);
-            return null;
-        } catch (TypeMismatchException e) {
-            LOG.error("TypeMismatchException adding data to Table "
-                    + filenameOf(cachedTableFile), e);
-            return null;
         } finally {
             IOUtils.closeQuietly(dataInput);
         }
     }
 
+    /**
+     * Get the identifiers of the columns of a cached table. For tables in the columnar
+     * format, only the header of the file is read.
+     *
+     * @param splitId     The split id
+     * @param splitType   The Split type
+     * @param datasetName The dataset name
+     * @return the column identifiers (or null if they could not be read)
+     */
     public ObjectSet<CharSequence> getTableColumnIds(final int splitId, final String splitType,
                                                      final String datasetName) {
         final File cachedTableFile = getCachedTableFile(splitId, splitType, datasetName);
+        try {
+            if (isColumnarFormat(cachedTableFile)) {
+                return readColumnarColumnIds(cachedTableFile);
+            } else {
+                return readStreamColumnIds(cachedTableFile);
+            }
+        } catch (IOException e) {
+            LOG.error("Error getting column ids", e);
+            return null;
+        }
+    }
+
+    private ObjectSet<CharSequence> readColumnarColumnIds(final File cachedTableFile)
+            throws IOException {
+        DataInputStream dataInput = null;
+        try {
+            dataInput = new DataInputStream(
+                    new FastBufferedInputStream(new FileInputStream(cachedTableFile)));
+            final byte[] preamble = new byte[COLUMNAR_PREAMBLE_SIZE];
+            dataInput.readFully(preamble);
+            final int headerLength = readInt(preamble, 8);
+            final byte[] headerBytes = new byte[headerLength];
+            dataInput.readFully(headerBytes);
+            final ColumnarHeader header = parseColumnarHeader(headerBytes);
+            final ObjectSet<CharSequence> result = new ObjectOpenHashSet<CharSequence>();
+            for (final String columnId : header.columnIds) {
+                result.add(columnId);
+            }
+            return result;
+        } finally {
+            IOUtils.closeQuietly(dataInput);
+        }
+    }
+
+    private ObjectSet<CharSequence> readStreamColumnIds(final File cachedTableFile)
+            throws IOException {
         final ObjectSet<CharSequence> result = new ObjectOpenHashSet<CharSequence>();
         DataInputStream dataInput = null;
         try {
@@ -280,14 +546,116 @@ public class TableCache {
                 }
             }
             return result;
-        } catch (IOException e) {
-            LOG.error("Error getting column ids", e);
-            return null;
         } finally {
             IOUtils.closeQuietly(dataInput);
         }
     }
 
+    /**
+     * Determine whether a cached file was written in the columnar format.
+     *
+     * @param cachedTableFile The file to check
+     * @return true if the file starts with the columnar magic number
+     * @throws IOException if the file cannot be read
+     */
+    private boolean isColumnarFormat(final File cachedTableFile) throws IOException {
+        DataInputStream dataInput = null;
+        try {
+            dataInput = new DataInputStream(new FileInputStream(cachedTableFile));
+            return dataInput.readInt() == COLUMNAR_MAGIC;
+        } finally {
+            IOUtils.closeQuietly(dataInput);
+        }
+    }
+
+    /**
+     * The header of a table written in the columnar format.
+     */
+    private static final class ColumnarHeader {
+        /**
+         * Number of rows in the table.
+         */
+        private int numRows;
+        /**
+         * Position in the file where the double column blocks start.
+         */
+        private long dataStart;
+        /**
+         * Column types, 's' for String and 'd' for double columns.
+         */
+        private char[] columnTypes;
+        /**
+         * Column identifiers.
+         */
+        private String[] columnIds;
+        /**
+         * Offset of each double column block, relative to dataStart.
+         */
+        private long[] offsets;
+        /**
+         * Values of the String columns (null for double columns).
+         */
+        private String[][] strings;
+    }
+
+    private ColumnarHeader readColumnarHeader(final MappedByteBuffer buffer) throws IOException {
+        if (buffer.getInt(0) != COLUMNAR_MAGIC) {
+            throw new IOException("Not a columnar table cache file.");
+        }
+        final int version = buffer.getInt(4);
+        if (version != COLUMNAR_VERSION) {
+            throw new IOException("Unsupported table cache version " + version);
+        }
+        final int headerLength = buffer.getInt(8);
+        final byte[] headerBytes = new byte[headerLength];
+        buffer.position(COLUMNAR_PREAMBLE_SIZE);
+        buffer.get(headerBytes);
+        return parseColumnarHeader(headerBytes);
+    }
+
+    private ColumnarHeader parseColumnarHeader(final byte[] headerBytes) throws IOException {
+        final DataInputStream headerInput =
+                new DataInputStream(new ByteArrayInputStream(headerBytes));
+        final ColumnarHeader header = new ColumnarHeader();
+        header.dataStart = dataStart(headerBytes.length);
+        header.numRows = headerInput.readInt();
+        final int numberOfColumns = headerInput.readInt();
+        header.columnTypes = new char[numberOfColumns];
+        header.columnIds = new String[numberOfColumns];
+        header.offsets = new long[numberOfColumns];
+        header.strings = new String[numberOfColumns][];
+        for (int i = 0; i < numberOfColumns; i++) {
+            header.columnTypes[i] = (char) headerInput.readByte();
+            header.columnIds[i] = headerInput.readUTF();
+            if (header.columnTypes[i] == 's') {
+                header.strings[i] = new String[header.numRows];
+                for (int j = 0; j < header.numRows; j++) {
+                    header.strings[i][j] = headerInput.readUTF();
+                }
+            } else {
+                header.offsets[i] = headerInput.readLong();
+            }
+        }
+        return header;
+    }
+
+    /**
+     * Calculate where the double column blocks start, so that they are aligned on
+     * eight bytes.
+     *
+     * @param headerLength Length of the header in bytes
+     * @return position of the first double column block in the file
+     */
+    private static long dataStart(final int headerLength) {
+        final long end = COLUMNAR_PREAMBLE_SIZE + headerLength;
+        return (end + 7) / 8 * 8;
+    }
+
+    private static int readInt(final byte[] bytes, final int position) {
+        return ((bytes[position] & 0xff) << 24) | ((bytes[position + 1] & 0xff) << 16)
+                | ((bytes[position + 2] & 0xff) << 8) | (bytes[position + 3] & 0xff);
+    }
+
     private void resize(final ArrayTable result, final int numRows) {
         if (LOG.isTraceEnabled()) {
             LOG.trace("Resizing table to " + numRows + 1);
@@ -307,50 +675,85 @@ public class TableCache {
     public void saveTableToCache(final int splitId, final String splitType,
             final String datasetName, final Table table) {
         DataOutputStream dataOutput = null;
+        File temporaryFile = null;
         try {
             if (!checkTableConfiguration(table)) {
                 return;
             }
 
             final int numColumns = table.getColumnNumber();
+            final int numRows = table.getRowNumber();
 
-            final File cachedTableFile = getCachedTableFile(splitId, splitType, datasetName);
-            dataOutput = new DataOutputStream(
-                    new FastBufferedOutputStream(new FileOutputStream(cachedTableFile)));
-
-            // Write the number of columns
-            dataOutput.writeInt(numColumns);
-            LOG.info("Writing " + numColumns + " columns");
+            // The header indexes all the columns. String columns are small (sample ids)
+            // and are stored in the header, double columns are stored in blocks after it.
+            final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+            final DataOutputStream header = new DataOutputStream(headerBytes);
+            header.writeInt(numRows);
+            header.writeInt(numColumns);
+            long offset = 0;
             int numWritten = 0;
             for (int i = 0; i < numColumns; i++) {
-                // For each column write if it is a "d"ouble or "s"tring column
                 final String id = table.getIdentifier(i);
                 if (table.getType(i) == String.class) {
-                    dataOutput.writeUTF("s");
-                    dataOutput.writeUTF(id);
-                    final String[] stringColumnData = table.getStrings(id);
-                    final int numStrings = stringColumnData.length;
-                    dataOutput.writeInt(numStrings);
-                    for (final String stringColumnItem : stringColumnData) {
-                        // Each String
-                        dataOutput.writeUTF(stringColumnItem);
+                    header.writeByte('s');
+                    header.writeUTF(id);
+                    for (final String stringColumnItem : table.getStrings(id)) {
+                        header.writeUTF(stringColumnItem);
                     }
                     numWritten++;
                 } else if (table.getType(i) == double.class) {
-                    dataOutput.writeUTF("d");
-                    dataOutput.writeUTF(id);
-                    final double[] doubleColumnData = table.getDoubles(id);
-                    final int numDoubles = doubleColumnData.length;
-                    dataOutput.writeInt(numDoubles);
+                    header.writeByte('d');
+                    header.writeUTF(id);
+                    header.writeLong(offset);
+                    offset += (long) numRows * Double.SIZE / 8;
+                    numWritten++;
+                }
+            }
+            header.flush();
+
+            final File cachedTableFile = getCachedTableFile(splitId, splitType, datasetName);
+            // write to a temporary file first, so that the cached file is never seen
+            // (or mapped) partially written:
+            temporaryFile = new File(cachedTableFile.getPath() + ".tmp-"
+                    + Thread.currentThread().getId());
+            dataOutput = new DataOutputStream(
+                    new FastBufferedOutputStream(new FileOutputStream(temporaryFile)));
+
+            LOG.info("Writing " + numColumns + " columns");
+            dataOutput.writeInt(COLUMNAR_MAGIC);
+            dataOutput.writeInt(COLUMNAR_VERSION);
+            dataOutput.writeInt(headerBytes.size());
+            headerBytes.writeTo(dataOutput);
+            final long dataStart = dataStart(headerBytes.size());
+            for (long position = COLUMNAR_PREAMBLE_SIZE + headerBytes.size();
+                 position < dataStart; position++) {
+                dataOutput.writeByte(0);
+            }
+
+            for (int i = 0; i < numColumns; i++) {
+                if (table.getType(i) == double.class) {
+                    final double[] doubleColumnData = table.getDoubles(table.getIdentifier(i));
                     for (final double doubleColumnItem : doubleColumnData) {
-                        // Each double
                         dataOutput.writeDouble(doubleColumnItem);
                     }
-                    numWritten++;
                 }
             }
 
             dataOutput.flush();
+            dataOutput.close();
+            dataOutput = null;
+            final String filename = filenameOf(cachedTableFile);
+            synchronized (lockFor(filename)) {
+                memoryCache.remove(filename);
+                if (cachedTableFile.exists() && !cachedTableFile.delete()) {
+                    LOG.warn("Unable to replace cache file " + filename);
+                }
+                if (!temporaryFile.renameTo(cachedTableFile)) {
+                    throw new IOException("Unable to rename " + filenameOf(temporaryFile)
+                            + " to " + filename);
+                }
+            }
+            temporaryFile = null;
 
             LOG.info("Wrote " + numWritten + " columns");
             LOG.info("++ SAVED TABLE TO CACHE for split-id=" + splitId
@@ -361,6 +764,9 @@ public class TableCache {
             LOG.error("Invalid table data", e);
         } finally {
             IOUtils.closeQuietly(dataOutput);
+            if (temporaryFile != null && temporaryFile.exists() && !temporaryFile.delete()) {
+                LOG.warn("Unable to delete temporary cache file " + filenameOf(temporaryFile));
+            }
         }
     }
 
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.cache;
+
+import edu.mssm.crover.tables.Table;
+import org.apache.log4j.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory tier for the {@link TableCache}. Keeps the most recently used cached tables in
+ * memory, up to a budget expressed in bytes, and evicts the least recently used tables
+ * when the budget is exceeded. Tables stored here are shared and must never be modified;
+ * {@link TableCache} hands out copies to its callers.
+ * <p/>
+ * A single instance is shared by all the TableCache instances of a JVM, so that the splits
+ * executed in process by execute-splits benefit from each other's loads. The budget is
+ * zero (tier disabled) until {@link #setBudget(long)} is called. Modes that keep other
+ * tables in memory (e.g., processed datasets) create their own instance with a budget.
+ */
+public final class TableMemoryCache {
+    /**
+     * The logger to use.
+     */
+    private static final Logger LOG = Logger.getLogger(TableMemoryCache.class);
+
+    /**
+     * The instance shared by all table caches of this JVM.
+     */
+    private static final TableMemoryCache INSTANCE = new TableMemoryCache();
+
+    /**
+     * Cached tables, in access order (least recently used first).
+     */
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Maximum number of bytes the cached tables may use.
+     */
+    private long budget;
+
+    /**
+     * Estimated number of bytes used by the cached tables.
+     */
+    private long size;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * A table and its estimated size.
+     */
+    private static final class Entry {
+        private final Table table;
+        private final long size;
+
+        private Entry(final Table table, final long size) {
+            super();
+            this.table = table;
+            this.size = size;
+        }
+    }
+
+    private TableMemoryCache() {
+        super();
+    }
+
+    /**
+     * Create a memory cache independent of the shared instance.
+     *
+     * @param budget budget in bytes, zero disables the cache
+     */
+    public TableMemoryCache(final long budget) {
+        super();
+        setBudget(budget);
+    }
+
+    /**
+     * Get the memory tier shared by all table caches of this JVM.
+     *
+     * @return the shared memory tier
+     */
+    public static TableMemoryCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Set the number of bytes cached tables may use. Tables are evicted if the new budget
+     * is smaller than the memory currently used. A budget of zero disables the tier.
+     *
+     * @param budget budget in bytes
+     */
+    public synchronized void setBudget(final long budget) {
+        this.budget = Math.max(0, budget);
+        evict();
+    }
+
+    /**
+     * Get the number of bytes cached tables may use.
+     *
+     * @return budget in bytes
+     */
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Determine if the memory tier may hold tables.
+     *
+     * @return true when the budget is positive
+     */
+    public synchronized boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Get a table from memory. The table returned is shared and must not be modified.
+     *
+     * @param key The key the table was stored with
+     * @return the table, or null if the table is not in memory
+     */
+    public synchronized Table get(final String key) {
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.table;
+    }
+
+    /**
+     * Determine if a table is in memory, without counting a hit or a miss.
+     *
+     * @param key The key the table was stored with
+     * @return true if the table is in memory
+     */
+    public synchronized boolean contains(final String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Store a table in memory. The table must not be modified after it has been stored.
+     * Tables larger than the budget are not stored.
+     *
+     * @param key   The key to store the table with
+     * @param table The table to store
+     */
+    public synchronized void put(final String key, final Table table) {
+        if (budget <= 0) {
+            return;
+        }
+        final long tableSize = estimateSize(table);
+        if (tableSize > budget) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Table " + key + " (" + tableSize + " bytes) exceeds the memory "
+                        + "cache budget (" + budget + " bytes)");
+            }
+            return;
+        }
+        remove(key);
+        entries.put(key, new Entry(table, tableSize));
+        size += tableSize;
+        evict();
+    }
+
+    /**
+     * Remove a table from memory.
+     *
+     * @param key The key the table was stored with
+     */
+    public synchronized void remove(final String key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            size -= entry.size;
+        }
+    }
+
+    /**
+     * Remove all tables from memory.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    /**
+     * Evict least recently used tables until the tables fit in the budget.
+     */
+    private void evict() {
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (size > budget && iterator.hasNext()) {
+            final Map.Entry<String, Entry> eldest = iterator.next();
+            size -= eldest.getValue().size;
+            iterator.remove();
+            evictions++;
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Evicted table " + eldest.getKey() + " from the memory cache");
+            }
+        }
+    }
+
+    /**
+     * Estimate the number of bytes used by a table.
+     *
+     * @param table the table
+     * @return estimated size in bytes
+     */
+    static long estimateSize(final Table table) {
+        final long numRows = table.getRowNumber();
+        long estimate = 0;
+        for (int i = 0; i < table.getColumnNumber(); i++) {
+            final Class<?> type = table.getType(i);
+            if (type == double.class) {
+                estimate += numRows * Double.SIZE / 8;
+            } else if (type == String.class) {
+                // reference, object header and characters of a short identifier:
+                estimate += numRows * 64;
+            } else {
+                estimate += numRows * 8;
+            }
+        }
+        return estimate;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getNumberOfTables() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("TableMemoryCache[tables=%d, size=%d, budget=%d, hits=%d, "
+                + "misses=%d, evictions=%d]", entries.size(), size, budget, hits, misses,
+                evictions);
+    }
+}
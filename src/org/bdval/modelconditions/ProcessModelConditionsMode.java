@@ -8,6 +8,10 @@ import com.martiansoftware.jsap.Parameter;
 import com.martiansoftware.jsap.UnflaggedOption;
 import edu.cornell.med.icb.io.TsvToFromMap;
 import edu.cornell.med.icb.iterators.TextFileLineIterator;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
+import edu.rit.pj.ParallelRegion;
+import edu.rit.pj.ParallelTeam;
 import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.commons.io.FilenameUtils;
@@ -21,7 +25,9 @@ import org.bdval.modelselection.CandidateModelSelectionAllTeams;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -69,6 +75,16 @@ public class ProcessModelConditionsMode extends edu.cornell.med.icb.cli.UseModal
                 .setLongFlag("model-conditions")
                 .setHelp("The model condition file where models which are be processed are described.");
         jsap.registerParameter(modelconditionsOption);
+
+        final Parameter seriesThreadsOption = new FlaggedOption("series-threads")
+                .setStringParser(JSAP.INTEGER_PARSER)
+                .setDefault("1")
+                .setRequired(false)
+                .setLongFlag("series-threads")
+                .setHelp("Number of model series processed concurrently. Results are written in "
+                        + "the order of the model conditions file whatever the number of threads. "
+                        + "Zero uses one thread per processor. Default is 1 (sequential).");
+        jsap.registerParameter(seriesThreadsOption);
     }
 
     @Override
@@ -76,6 +92,7 @@ public class ProcessModelConditionsMode extends edu.cornell.med.icb.cli.UseModal
         final String[] resultDirectories = jsapResult.getStringArray("result-directory");
         options.resultDirectories = resultDirectories;
         options.modelConditionsFilename = jsapResult.getString("model-conditions");
+        options.seriesThreads = jsapResult.getInt("series-threads");
         options.modelConditionLines = GenerateFinalModels.readLines(options.modelConditionsFilename);
         options.modelConditions = readModelConditionsFile(options.modelConditionsFilename,
                 new HashSet());
@@ -95,22 +112,129 @@ public class ProcessModelConditionsMode extends edu.cornell.med.icb.cli.UseModal
 
     }
 
+    /**
+     * Results of a series, written once the results of all the series that precede it in the
+     * model conditions file have been written.
+     */
+    protected interface SeriesResults {
+        /**
+         * Write the results. Calls are serialized, so implementations may use shared writers.
+         */
+        void write();
+    }
+
+    /**
+     * Process the model conditions one series at a time. Series are independent and are
+     * processed concurrently by a team of options.seriesThreads threads, with a dynamic
+     * schedule so that threads that finish small series pick up the remaining ones. The
+     * results of each series are written as soon as all the preceding series are written,
+     * so the output does not depend on the schedule.
+     */
     @Override
     public void process(final ProcessModelConditionsOptions options) {
         this.options = options;
 
+        final Map<String, List<String>> seriesModelIds = groupModelIdsBySeries(options);
+        final String[] seriesIds = seriesModelIds.keySet().toArray(new String[seriesModelIds.size()]);
+        if (seriesIds.length == 0) {
+            return;
+        }
+        final SeriesResults[] results = new SeriesResults[seriesIds.length];
+        final boolean[] completed = new boolean[seriesIds.length];
+        final int[] nextSeriesToWrite = new int[1];
+
+        final ParallelTeam team = options.seriesThreads == 0 ? new ParallelTeam()
+                : new ParallelTeam(options.seriesThreads);
+        try {
+            team.execute(new ParallelRegion() {
+                @Override
+                public void run() throws Exception {
+                    execute(0, seriesIds.length - 1 /* end index is inclusive */, new IntegerForLoop() {
+                        @Override
+                        public IntegerSchedule schedule() {
+                            return IntegerSchedule.dynamic(1);
+                        }
+
+                        @Override
+                        public void run(final int first, final int last) {
+                            for (int index = first; index <= last; index++) {
+                                final SeriesResults seriesResults = processSeries(options,
+                                        seriesIds[index], seriesModelIds.get(seriesIds[index]));
+                                synchronized (results) {
+                                    results[index] = seriesResults;
+                                    completed[index] = true;
+                                    // write every completed series that is next in order:
+                                    while (nextSeriesToWrite[0] < results.length
+                                            && completed[nextSeriesToWrite[0]]) {
+                                        if (results[nextSeriesToWrite[0]] != null) {
+                                            results[nextSeriesToWrite[0]].write();
+                                            results[nextSeriesToWrite[0]] = null;
+                                        }
+                                        nextSeriesToWrite[0]++;
+                                    }
+                                }
+                            }
+                        }
+                    });
+                }
+            });
+        } catch (Exception e) {
+            LOG.error("An error occurred processing model series", e);
+            throw new IllegalStateException("An error occurred processing model series", e);
+        }
+    }
+
+    /**
+     * Group the model ids of the model conditions by series (the id-parameter-scan-series
+     * condition). Series are in the order of their first model id, and model ids keep the
+     * order of the model conditions file. Model ids that do not belong to a series are not
+     * processed.
+     */
+    private Map<String, List<String>> groupModelIdsBySeries(
+            final ProcessModelConditionsOptions options) {
+        final Map<String, List<String>> seriesModelIds =
+                new Object2ObjectLinkedOpenHashMap<String, List<String>>();
+        int noSeries = 0;
         for (final String modelId : options.modelConditions.keySet()) {
-            processSeries(options, modelId);
+            final String seriesId = options.modelConditions.get(modelId).get("id-parameter-scan-series");
+            if (seriesId == null) {
+                noSeries++;
+                continue;
+            }
+            List<String> modelIds = seriesModelIds.get(seriesId);
+            if (modelIds == null) {
+                modelIds = new ArrayList<String>();
+                seriesModelIds.put(seriesId, modelIds);
+            }
+            modelIds.add(modelId);
         }
+        if (noSeries > 0) {
+            LOG.warn(String.format("Skipping %d model ids that do not belong to a series", noSeries));
+        }
+        LOG.info(String.format("Processing %d model series", seriesModelIds.size()));
+        return seriesModelIds;
     }
 
     /**
-     * Method to process a series
+     * Method to process a series. Called concurrently for different series: implementations
+     * must keep the state of a series local and return their output as SeriesResults.
+     * The default implementation runs the first pass on every model of the series, then
+     * the second pass.
      *
      * @param options
-     * @param modelId
+     * @param seriesId the id of the series
+     * @param modelIds the model ids of the series
+     * @return the results of the series, or null if the series has no output
      */
-    public void processSeries(final ProcessModelConditionsOptions options, final String modelId) {
+    public SeriesResults processSeries(final ProcessModelConditionsOptions options,
+                                       final String seriesId, final List<String> modelIds) {
+        for (final String modelId : modelIds) {
+            processOneModelIdPassOne(options, modelId);
+        }
+        for (final String modelId : modelIds) {
+            processOneModelIdPassTwo(options, modelId);
+        }
+        return null;
     }
 
 
@@ -32,4 +32,8 @@ public class ProcessModelConditionsOptions {
     public String[] modelConditionLines;
     public Map<String, Map<String, String>> modelConditions;
     public PrintWriter output;
+    /**
+     * Number of series processed concurrently. Zero uses one thread per processor.
+     */
+    public int seriesThreads = 1;
 }
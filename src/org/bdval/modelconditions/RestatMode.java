@@ -44,7 +44,6 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Calculates statistics from model conditions and a set of results directories.
@@ -121,199 +120,221 @@ public class RestatMode extends ProcessModelConditionsMode {
     }
 
 
-    final ArrayList<String> series = new ArrayList<String>(); // list of series that have been processed
-    EvaluationMeasure repeatedEvaluationMeasure = new EvaluationMeasure();
-    PredictedItems predictions;
-    int numberOfRepeats;
-    final List<SurvivalMeasures> survivalMeasuresList = new ArrayList<SurvivalMeasures>();
-    static final Map<String, double[]> acrossAllFoldsMap = new HashMap<String, double[]>();
-    int numberOfFeatures;
-    static int numberOfFolds;
-
+    /**
+     * Process the models of a series: the first pass evaluates each model and records its
+     * accuracy on each test set, the second pass adds the bias of each model relative to the
+     * best model of the series on each test set. Predictions are parsed once per model.
+     */
     @Override
-    public void processSeries(final ProcessModelConditionsOptions options, final String modelId) {
-
-        // group together models that are in the same series?
-        final String seriesID = options.modelConditions.get(modelId).get("id-parameter-scan-series");
-
-        if (!(series.contains(seriesID))) { // This series has not been processed before.
+    public SeriesResults processSeries(final ProcessModelConditionsOptions options,
+                                       final String seriesID, final List<String> models) {
+        LOG.info("models in same series " + models.toString());
+        LOG.info("# models in series " + seriesID + " = " + models.size());
 
+        final SeriesEvaluation evaluation = new SeriesEvaluation(options, seriesID);
+        // for all models in a series get accuracy measures for each fold,
+        for (final String modelInSeries : models) {
+            evaluation.passOne(modelInSeries);
+        }
 
-            final ArrayList<String> models = extractSeriesModelIds(options, seriesID);
+        // across the series, record accuracy obtained by model with maximum accuracy for each fold/repeat element.
+        final double[] accuracyArray = new double[evaluation.numberOfFolds * evaluation.numberOfRepeats];
+        Arrays.fill(accuracyArray, Double.MIN_VALUE);
 
-            // for all models in a series get accuracy measures for each fold,
-            for (final String modelInSeries : models) {
-                processOneModelIdPassOne(options, modelInSeries);
+        for (final String modelInSeries : models) {
+            final double[] modelAccuracies = evaluation.acrossAllFoldsMap.get(modelInSeries);
+            if (modelAccuracies == null) {
+                // could not load prediction file  for this model.
+                continue;
             }
+            int index = 0; // maintain s the index in the model accuracies array
 
-            // across the series, record accuracy obtained by model with maximum accuracy for each fold/repeat element.
-
-            final Map<String, double[]> foldMins = new HashMap<String, double[]>();
-            final double[] accuracyArray = new double[numberOfFolds * numberOfRepeats];
-            Arrays.fill(accuracyArray, Double.MIN_VALUE);
-
-            for (final String modelInSeries : models) {
-                final double[] modelAccuracies = acrossAllFoldsMap.get(modelInSeries);
-                if (modelAccuracies == null) {
-                    // could not load prediction file  for this model.
-                    continue;
-                }
-                int index = 0; // maintain s the index in the model accuracies array
-
-                for (int r = 0; r < numberOfRepeats; r++) {
-                    for (int c = 0; c < numberOfFolds; c++) {
-                        if (index >= accuracyArray.length || index >= modelAccuracies.length) {
-                            break;
-                        }
-                        accuracyArray[index] = Math.max(modelAccuracies[index], accuracyArray[index]);
-                        ++index;
+            for (int r = 0; r < evaluation.numberOfRepeats; r++) {
+                for (int c = 0; c < evaluation.numberOfFolds; c++) {
+                    if (index >= accuracyArray.length || index >= modelAccuracies.length) {
+                        break;
                     }
+                    accuracyArray[index] = Math.max(modelAccuracies[index], accuracyArray[index]);
+                    ++index;
                 }
             }
-            foldMins.put(seriesID, accuracyArray);
-
-            // now calculate bias for this  series
-            evaluateSeriesBias(options, seriesID, models, acrossAllFoldsMap, foldMins);
-
-            // record that the series has already been processed:
-            series.add(seriesID);
-        }
-    }
-
-    private ArrayList<String> extractSeriesModelIds
-            (final ProcessModelConditionsOptions
-                    options, final String
-                    seriesID) {
-        if (seriesID == null) {
-            return new ArrayList<String>();
-        }
-        final Set<String> modelIdKeys = options.modelConditions.keySet();
-        // model-Id's associated with model-conditions file
-
-        //String[] keys = modelIdKeys.toArray(new String[modelIdKeys.size()]);
-        final ArrayList<String> models = new ArrayList<String>(); // arraylist of models in the same series
-
-        for (final String modelId : modelIdKeys) {
-            final String otherseriesId = options.modelConditions.get(modelId).get("id-parameter-scan-series");
-            if (seriesID.equals(otherseriesId)) {
-                models.add(modelId);
-            }
         }
-        LOG.info("models in same series " + models.toString());
-        LOG.info("# models in series " + seriesID + " = " + models.size());
-        return models;
-    }
-
-    private void evaluateSeriesBias(final ProcessModelConditionsOptions options, final String seriesID, final ArrayList<String> models,
-                                    final Map<String, double[]> acrossAllFoldsMap, final Map<String, double[]> foldMins) {
 
+        // now calculate bias for this  series
+        final List<ModelResults> results = new ArrayList<ModelResults>();
         for (final String modelId : models) {
-            double bias = 0.0;
-            int index = 0;
-            if (acrossAllFoldsMap.get(modelId) == null) {
+            final double[] modelAccuracies = evaluation.acrossAllFoldsMap.get(modelId);
+            if (modelAccuracies == null) {
                 // could not load predictions for this model (perhaps partially built).
                 continue;
             }
-            int actualRepeatNumber = 0;
-            final double[] modelAccuracies = acrossAllFoldsMap.get(modelId);
-            for (int repeatIndex = 0; repeatIndex < numberOfRepeats; repeatIndex++) {
-                if (index >= modelAccuracies.length) {
-                    break;
-                }
-                for (int foldIndex = 0; foldIndex < numberOfFolds; foldIndex++) {
-
-                try{
-                    assert modelAccuracies != null : "model accurary must have been loaded for model id " + modelId;
-                    final double errorOfThisModel = (1.0d - (modelAccuracies[index] / 100d));
-                    final double thetaHatFoldK = (1.0d - (foldMins.get(seriesID)[index] / 100d));
-                    bias += (errorOfThisModel - thetaHatFoldK);
-                    ++index;
+            final double bias = evaluateBias(evaluation, modelId, modelAccuracies, accuracyArray);
+            LOG.debug("bias for " + modelId + " is " + bias);
+            results.add(evaluation.passTwo(modelId, bias));
+        }
 
-                    LOG.debug("bias total " + bias);
-                } catch(IndexOutOfBoundsException e){
-                       LOG.info("Error in number of model accuracies assessed ", e);
-                        //System.exit(10);
-                    }
+        return new SeriesResults() {
+            public void write() {
+                for (final ModelResults modelResults : results) {
+                    modelResults.print();
                 }
-                ++actualRepeatNumber;
             }
+        };
+    }
 
-            bias /= numberOfFolds;
-            bias /= actualRepeatNumber;
-            davOptions.modelId = modelId;
-
-            LOG.debug("bias for " + davOptions.modelId + " is " + bias);
-            processOneModelIdPassTwo(davOptions.modelId, bias);
+    private double evaluateBias(final SeriesEvaluation evaluation, final String modelId,
+                                final double[] modelAccuracies, final double[] foldMaxima) {
+        double bias = 0.0;
+        int index = 0;
+        int actualRepeatNumber = 0;
+        for (int repeatIndex = 0; repeatIndex < evaluation.numberOfRepeats; repeatIndex++) {
+            if (index >= modelAccuracies.length) {
+                break;
+            }
+            for (int foldIndex = 0; foldIndex < evaluation.numberOfFolds; foldIndex++) {
+
+            try{
+                assert modelAccuracies != null : "model accurary must have been loaded for model id " + modelId;
+                final double errorOfThisModel = (1.0d - (modelAccuracies[index] / 100d));
+                final double thetaHatFoldK = (1.0d - (foldMaxima[index] / 100d));
+                bias += (errorOfThisModel - thetaHatFoldK);
+                ++index;
+
+                LOG.debug("bias total " + bias);
+            } catch(IndexOutOfBoundsException e){
+                   LOG.info("Error in number of model accuracies assessed ", e);
+                    //System.exit(10);
+                }
+            }
+            ++actualRepeatNumber;
         }
 
+        bias /= evaluation.numberOfFolds;
+        bias /= actualRepeatNumber;
+        return bias;
     }
 
+    /**
+     * State of the evaluation of one series. Each series has its own, so that series can be
+     * evaluated concurrently.
+     */
+    private final class SeriesEvaluation {
+        private final ProcessModelConditionsOptions options;
+        private final String seriesID;
+        /**
+         * Predictions parsed in the first pass, reused in the second pass.
+         */
+        private final Map<String, PredictedItems> predictionsMap = new HashMap<String, PredictedItems>();
+        /**
+         * Evaluation of each model in the first pass, and the number of repeats it used.
+         */
+        private final Map<String, EvaluationMeasure> passOneMeasures = new HashMap<String, EvaluationMeasure>();
+        private final Map<String, Integer> passOneRepeats = new HashMap<String, Integer>();
+        private final Map<String, double[]> acrossAllFoldsMap = new HashMap<String, double[]>();
+        private final List<SurvivalMeasures> survivalMeasuresList = new ArrayList<SurvivalMeasures>();
+        private int numberOfRepeats;
+        private int numberOfFolds;
+
+        private SeriesEvaluation(final ProcessModelConditionsOptions options, final String seriesID) {
+            super();
+            this.options = options;
+            this.seriesID = seriesID;
+        }
 
-    @Override
-    public void processOneModelIdPassOne
-            (
-                    final ProcessModelConditionsOptions options,
-                    final String modelId) {
-
-        predictions = loadPredictions(modelId);
-
-        if (predictions != null) {
-            numberOfFeatures = predictions.modelNumFeatures();
-
-            LOG.debug("Processing predictions(first pass) for model id  " + modelId);
-            davOptions.crossValidationFoldNumber = predictions.getNumberOfFolds();
-
-            davOptions.datasetName = getDatasetName(modelId);
-            maqciiHelper.setLabel(constructLabel(modelId));
-            davOptions.seriesModelId = options.modelConditions.get(modelId).get("id-parameter-scan-series");
-            numberOfRepeats = predictions.getNumberOfRepeats();
-            repeatedEvaluationMeasure = new EvaluationMeasure();
-
-            switch (statsEvalType) {
-                case STATS_PER_REPEAT:
-                    evaluatePerformanceMeasurePerRepeat(predictions, null, survivalMeasuresList,
-                            numberOfRepeats, evaluationMeasureNames, repeatedEvaluationMeasure);
-                    break;
-                case STATS_PER_SPLIT:
-                    evaluatePerformanceMeasurePerTestSet(predictions, null, survivalMeasuresList,
-                            numberOfRepeats, evaluationMeasureNames, repeatedEvaluationMeasure);
-                    break;
+        private void passOne(final String modelId) {
+            final PredictedItems predictions = loadPredictions(modelId);
+            if (predictions != null) {
+                LOG.debug("Processing predictions(first pass) for model id  " + modelId);
+                numberOfRepeats = predictions.getNumberOfRepeats();
+                final EvaluationMeasure repeatedEvaluationMeasure =
+                        evaluate(predictions, numberOfRepeats, survivalMeasuresList);
+
+                final double[] accuracies =
+                        evaluateAccuracyPerTestSet(predictions, numberOfRepeats, evaluationMeasureNames);
+                if (accuracies != null) {
+                    acrossAllFoldsMap.put(modelId, accuracies);
+                    numberOfFolds = lastNumberOfFolds(predictions, numberOfRepeats);
+                }
+                predictionsMap.put(modelId, predictions);
+                passOneMeasures.put(modelId, repeatedEvaluationMeasure);
+                passOneRepeats.put(modelId, numberOfRepeats);
             }
-
-            evaluateAccuracyPerTestSet(modelId, predictions, numberOfRepeats, evaluationMeasureNames);
-
         }
-    }
-
 
-    public void processOneModelIdPassTwo(final String modelId, final double bias) {
-        predictions = loadPredictions(modelId);
-        if (predictions != null) {
+        private ModelResults passTwo(final String modelId, final double bias) {
+            final PredictedItems predictions = predictionsMap.remove(modelId);
             LOG.debug("Processing predictions(second pass) for model id  " + modelId);
+            // the second pass evaluates every model with the number of repeats of the last
+            // model of the series; the first pass evaluation is reused when they agree.
+            EvaluationMeasure repeatedEvaluationMeasure = passOneMeasures.remove(modelId);
+            if (passOneRepeats.remove(modelId) != numberOfRepeats) {
+                repeatedEvaluationMeasure = evaluate(predictions, numberOfRepeats, survivalMeasuresList);
+            }
+            repeatedEvaluationMeasure.addValue("bias", bias);
 
+            return new ModelResults(modelId, getDatasetName(modelId), predictions.getNumberOfFolds(),
+                    seriesID, constructLabel(modelId), repeatedEvaluationMeasure,
+                    predictions.modelNumFeatures(), numberOfRepeats, survivalMeasuresList);
+        }
 
-            final int numberOfFeatures = predictions.modelNumFeatures();
-            repeatedEvaluationMeasure = new EvaluationMeasure();
-
+        private EvaluationMeasure evaluate(final PredictedItems predictions, final int repeats,
+                                           final List<SurvivalMeasures> survivalMeasures) {
+            final EvaluationMeasure repeatedEvaluationMeasure = new EvaluationMeasure();
             switch (statsEvalType) {
                 case STATS_PER_REPEAT:
-                    evaluatePerformanceMeasurePerRepeat(predictions, null, survivalMeasuresList,
-                            numberOfRepeats, evaluationMeasureNames, repeatedEvaluationMeasure);
+                    evaluatePerformanceMeasurePerRepeat(predictions, null, survivalMeasures,
+                            repeats, evaluationMeasureNames, repeatedEvaluationMeasure);
                     break;
                 case STATS_PER_SPLIT:
-                    evaluatePerformanceMeasurePerTestSet(predictions, null, survivalMeasuresList,
-                            numberOfRepeats, evaluationMeasureNames, repeatedEvaluationMeasure);
+                    evaluatePerformanceMeasurePerTestSet(predictions, null, survivalMeasures,
+                            repeats, evaluationMeasureNames, repeatedEvaluationMeasure);
                     break;
             }
+            return repeatedEvaluationMeasure;
+        }
+    }
+
+    /**
+     * Submission line of a model, printed when the results of its series are written.
+     */
+    private final class ModelResults {
+        private final String modelId;
+        private final String datasetName;
+        private final int crossValidationFoldNumber;
+        private final String seriesModelId;
+        private final String label;
+        private final EvaluationMeasure measure;
+        private final int numberOfFeatures;
+        private final int numberOfRepeats;
+        private final List<SurvivalMeasures> survivalMeasuresList;
+
+        private ModelResults(final String modelId, final String datasetName,
+                             final int crossValidationFoldNumber, final String seriesModelId,
+                             final String label, final EvaluationMeasure measure,
+                             final int numberOfFeatures, final int numberOfRepeats,
+                             final List<SurvivalMeasures> survivalMeasuresList) {
+            super();
+            this.modelId = modelId;
+            this.datasetName = datasetName;
+            this.crossValidationFoldNumber = crossValidationFoldNumber;
+            this.seriesModelId = seriesModelId;
+            this.label = label;
+            this.measure = measure;
+            this.numberOfFeatures = numberOfFeatures;
+            this.numberOfRepeats = numberOfRepeats;
+            this.survivalMeasuresList = survivalMeasuresList;
+        }
 
+        private void print() {
             davOptions.modelId = modelId;
-            repeatedEvaluationMeasure.addValue("bias", bias);
+            davOptions.datasetName = datasetName;
+            davOptions.crossValidationFoldNumber = crossValidationFoldNumber;
+            davOptions.seriesModelId = seriesModelId;
+            maqciiHelper.setLabel(label);
             maqciiHelper.printSubmissionHeaders(davOptions, survivalFileName != null);
-            maqciiHelper.printSubmissionResults(davOptions, repeatedEvaluationMeasure,
+            maqciiHelper.printSubmissionResults(davOptions, measure,
                     numberOfFeatures, numberOfRepeats, survivalMeasuresList);
-
         }
-
     }
 
 
@@ -365,28 +386,26 @@ public class RestatMode extends ProcessModelConditionsMode {
         }
     }
 
-    public void evaluateAccuracyPerTestSet(final String modelId,
-                                           final PredictedItems predictions,
-                                           final int numberOfRepeats,
-                                           final ObjectSet<CharSequence> evaluationMeasureNames) {
+    /**
+     * Accuracy of the model on each test set of cross-validation.
+     *
+     * @return the accuracies, ordered by repeat and split, or null when there are no repeats
+     */
+    public static double[] evaluateAccuracyPerTestSet(final PredictedItems predictions,
+                                                      final int numberOfRepeats,
+                                                      final ObjectSet<CharSequence> evaluationMeasureNames) {
+        if (numberOfRepeats < 1) {
+            return null;
+        }
         final DoubleList modelAcc = new DoubleArrayList();
 
-
         // Collect one evaluation measure per split test set of cross-validation.
         for (int repeatId = 1; repeatId <= numberOfRepeats; repeatId++) {
 
             if (predictions.containsRepeat(repeatId)) {
-                final int maxSplitId = predictions.getNumberOfSplitsForRepeat(repeatId);
-                numberOfFolds = predictions.splitIdsForRepeat(repeatId).size();
-
                 for (final int splitId : predictions.splitIdsForRepeat(repeatId)) {
-                    final DoubleList decisions = new DoubleArrayList();
-                    final DoubleList trueLabels = new DoubleArrayList();
-                    final ObjectList<String> sampleIDs = new ObjectArrayList<String>();
-
-                    decisions.addAll(predictions.getDecisionsForSplit(repeatId, splitId));
-                    trueLabels.addAll(predictions.getTrueLabelsForSplit(repeatId, splitId));
-                    sampleIDs.addAll(predictions.getSampleIDsForSplit(repeatId, splitId));
+                    final DoubleList decisions = predictions.getDecisionsForSplit(repeatId, splitId);
+                    final DoubleList trueLabels = predictions.getTrueLabelsForSplit(repeatId, splitId);
                     if (decisions.size() == 0) {
                         LOG.fatal("cannot process empty decision list");
                         System.exit(10);
@@ -398,8 +417,21 @@ public class RestatMode extends ProcessModelConditionsMode {
 
                 }
             }
-            acrossAllFoldsMap.put(modelId, modelAcc.toDoubleArray());
         }
+        return modelAcc.toDoubleArray();
+    }
+
+    /**
+     * Number of test sets in the last repeat of the predictions (as recorded by the first pass).
+     */
+    private static int lastNumberOfFolds(final PredictedItems predictions, final int numberOfRepeats) {
+        int numberOfFolds = 0;
+        for (int repeatId = 1; repeatId <= numberOfRepeats; repeatId++) {
+            if (predictions.containsRepeat(repeatId)) {
+                numberOfFolds = predictions.splitIdsForRepeat(repeatId).size();
+            }
+        }
+        return numberOfFolds;
     }
 
 
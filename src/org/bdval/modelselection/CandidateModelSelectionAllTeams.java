@@ -110,6 +110,11 @@ public class CandidateModelSelectionAllTeams implements WithProcessMethod {
     private ObjectSet<String> modelIds;
     private ObjectSet<String> datasetNames;
     private ObjectSet<String> endpointNames;
+    /**
+     * Columnar stores of the result files, indexed by filename.
+     */
+    private final Object2ObjectMap<String, ModelPerformanceStore> performanceStores =
+            new Object2ObjectOpenHashMap<String, ModelPerformanceStore>();
 
     IndexedIdentifier modelIdIndices;
     DoubleIndexedIdentifier reverseIndex;
@@ -1919,6 +1924,28 @@ AUC of CV + 0.0190346231277872 * :Name( "MCC of CV-CF" ) +
         }
     }
 
+    /**
+     * Get the columnar store of a cv, cvcf or test result file. Stores are kept for the
+     * duration of the run, so that each file is read at most once.
+     */
+    private ModelPerformanceStore getPerformanceStore(final String filename)
+            throws FileNotFoundException {
+        ModelPerformanceStore store = performanceStores.get(filename);
+        if (store == null) {
+            try {
+                store = ModelPerformanceStore.load(filename);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                System.err.println("Cannot read file " + filename);
+                System.exit(1);
+                return null;
+            }
+            performanceStores.put(filename, store);
+        }
+        return store;
+    }
+
     private Object2ObjectMap<String, ModelPerformance> loadCornellMAQCIISubmissionStats
             (
                     final String filename,
@@ -1936,63 +1963,39 @@ AUC of CV + 0.0190346231277872 * :Name( "MCC of CV-CF" ) +
             endpointNames = new ObjectOpenHashSet<String>();
         }
 
-        final Object2ObjectMap<String, ModelPerformance> modelPerfs = new Object2ObjectOpenHashMap<String, ModelPerformance>();
-        final TSVReader reader = new TSVReader(new FileReader(filename), '\t');
-        reader.setCommentPrefix("OrganizationCode");
-        try {
-            while (reader.hasNext()) {
-                if (reader.isCommentLine()) {
-                    reader.skip();
-                } else {
-                    reader.next();
-                    reader.getString();
-                    final ModelPerformance measure = new ModelPerformance();
-
-                    measure.dataset = reader.getString();
-
-                    measure.endpoint = reader.getString();
-                    if (filterByEndpoint && measure.dataset.equals(toolsArgs.datasetName) && measure.endpoint.equals(toolsArgs.endpointName) ||
-                            !filterByEndpoint) {
-                        if (readDatasetEndpoint) {
-                            datasetNames.add(measure.dataset);
-                        }
-                        if (readDatasetEndpoint) {
-                            endpointNames.add(measure.endpoint);
-                        }
-                        measure.excel = reader.getString();
-                        measure.mcc = reader.getDouble();
-                        measure.accuracy = reader.getDouble();
-                        measure.sens = reader.getDouble();
-                        measure.spec = reader.getDouble();
-                        measure.auc = reader.getDouble();
-                        measure.rmse = reader.getDouble();
-                        measure.mccStd = reader.getDouble();
-                        measure.accuracyStd = reader.getDouble();
-                        measure.sensStd = reader.getDouble();
-                        measure.specStd = reader.getDouble();
-                        measure.aucStd = reader.getDouble();
-                        measure.rmseStd = reader.getDouble();
-                        reader.getString();
-                        reader.getString();
-                        measure.actualNumberOfFeaturesInModel = reader.getInt();
-                        for (int i = 0; i < 4; i++) {
-                            reader.getString();
-                        }
-                        measure.modelId = reader.getString();
-                        modelPerfs.put(measure.modelId, measure);
-                        modelIds.add(measure.modelId);
-                        final MutableString modelId = new MutableString(measure.modelId);
-                        modelIdIndices.registerIdentifier(modelId);
-                    }
-
-                }
+        final ModelPerformanceStore store = getPerformanceStore(filename);
+        final int[] rows = filterByEndpoint
+                ? store.rows(toolsArgs.datasetName, toolsArgs.endpointName) : store.rows();
+        final Object2ObjectMap<String, ModelPerformance> modelPerfs = new Object2ObjectOpenHashMap<String, ModelPerformance>(rows.length);
+        for (final int row : rows) {
+            final ModelPerformance measure = new ModelPerformance();
+            measure.dataset = store.getDataset(row);
+            measure.endpoint = store.getEndpoint(row);
+            if (readDatasetEndpoint) {
+                datasetNames.add(measure.dataset);
+                endpointNames.add(measure.endpoint);
             }
-            return modelPerfs;
-        } catch (IOException e) {
-            System.err.println("Cannot read file " + filename);
-            System.exit(1);
-            return null;
-        }
+            measure.excel = store.getExcel(row);
+            measure.mcc = store.mcc[row];
+            measure.accuracy = store.accuracy[row];
+            measure.sens = store.sens[row];
+            measure.spec = store.spec[row];
+            measure.auc = store.auc[row];
+            measure.rmse = store.rmse[row];
+            measure.mccStd = store.mccStd[row];
+            measure.accuracyStd = store.accuracyStd[row];
+            measure.sensStd = store.sensStd[row];
+            measure.specStd = store.specStd[row];
+            measure.aucStd = store.aucStd[row];
+            measure.rmseStd = store.rmseStd[row];
+            measure.actualNumberOfFeaturesInModel = store.actualNumberOfFeaturesInModel[row];
+            measure.modelId = store.getModelId(row);
+            modelPerfs.put(measure.modelId, measure);
+            modelIds.add(measure.modelId);
+            final MutableString modelId = new MutableString(measure.modelId);
+            modelIdIndices.registerIdentifier(modelId);
+        }
+        return modelPerfs;
     }
 
     private class ModelPerformance {
@@ -0,0 +1,424 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.modelselection;
+
+import edu.cornell.med.icb.io.TSVReader;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.io.FastBufferedInputStream;
+import it.unimi.dsi.fastutil.io.FastBufferedOutputStream;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Columnar store of the model performance statistics of a cv, cvcf or test result file
+ * (the format written by the MAQC-II submission tools, with the model id in column 24 and, in
+ * files with at least 29 columns, the bias in column 28). String fields are encoded as ints into dictionaries, metrics are
+ * kept in primitive columns, and the rows of each (dataset, endpoint) pair are indexed, so that
+ * model selection can filter by endpoint without parsing the file again.
+ * <p/>
+ * The first load of a result file parses it and writes the store to a binary file next to it
+ * (see {@link #getStoreFile(File)}). Later loads read the binary file, as long as its recorded
+ * size and modification time of the result file still match.
+ */
+final class ModelPerformanceStore {
+    /**
+     * The logger to use.
+     */
+    private static final Logger LOG = Logger.getLogger(ModelPerformanceStore.class);
+
+    /**
+     * Magic number that starts store files ("BDPS").
+     */
+    static final int MAGIC = 0x42445053;
+
+    /**
+     * Version of the store format.
+     */
+    static final int VERSION = 1;
+
+    /**
+     * Suffix appended to the name of a result file to name its store.
+     */
+    static final String STORE_SUFFIX = ".perf-store";
+
+    final String[] modelIdDictionary;
+    final String[] datasetDictionary;
+    final String[] endpointDictionary;
+    final String[] excelDictionary;
+
+    final int[] modelId;
+    final int[] dataset;
+    final int[] endpoint;
+    final int[] excel;
+
+    final double[] mcc;
+    final double[] accuracy;
+    final double[] sens;
+    final double[] spec;
+    final double[] auc;
+    final double[] rmse;
+    final double[] mccStd;
+    final double[] accuracyStd;
+    final double[] sensStd;
+    final double[] specStd;
+    final double[] aucStd;
+    final double[] rmseStd;
+    final double[] bias;
+    final int[] actualNumberOfFeaturesInModel;
+
+    /**
+     * Rows of each (dataset, endpoint) pair, in the order of the result file.
+     */
+    private final Object2ObjectMap<String, int[]> rowsByDatasetEndpoint;
+
+    private final int[] allRows;
+
+    private ModelPerformanceStore(final String[][] dictionaries, final int[][] intColumns,
+                                  final double[][] doubleColumns) {
+        super();
+        modelIdDictionary = dictionaries[0];
+        datasetDictionary = dictionaries[1];
+        endpointDictionary = dictionaries[2];
+        excelDictionary = dictionaries[3];
+        modelId = intColumns[0];
+        dataset = intColumns[1];
+        endpoint = intColumns[2];
+        excel = intColumns[3];
+        actualNumberOfFeaturesInModel = intColumns[4];
+        mcc = doubleColumns[0];
+        accuracy = doubleColumns[1];
+        sens = doubleColumns[2];
+        spec = doubleColumns[3];
+        auc = doubleColumns[4];
+        rmse = doubleColumns[5];
+        mccStd = doubleColumns[6];
+        accuracyStd = doubleColumns[7];
+        sensStd = doubleColumns[8];
+        specStd = doubleColumns[9];
+        aucStd = doubleColumns[10];
+        rmseStd = doubleColumns[11];
+        bias = doubleColumns[12];
+
+        allRows = new int[modelId.length];
+        final Object2ObjectMap<String, IntArrayList> rows =
+                new Object2ObjectOpenHashMap<String, IntArrayList>();
+        for (int row = 0; row < allRows.length; row++) {
+            allRows[row] = row;
+            final String key = key(getDataset(row), getEndpoint(row));
+            IntArrayList list = rows.get(key);
+            if (list == null) {
+                list = new IntArrayList();
+                rows.put(key, list);
+            }
+            list.add(row);
+        }
+        rowsByDatasetEndpoint = new Object2ObjectOpenHashMap<String, int[]>(rows.size());
+        for (final Object2ObjectMap.Entry<String, IntArrayList> entry : rows.object2ObjectEntrySet()) {
+            rowsByDatasetEndpoint.put(entry.getKey(), entry.getValue().toIntArray());
+        }
+    }
+
+    private static String key(final String datasetName, final String endpointName) {
+        return datasetName + '\t' + endpointName;
+    }
+
+    /**
+     * @return the number of rows (models) in this store
+     */
+    int size() {
+        return modelId.length;
+    }
+
+    /**
+     * @return all the rows of this store, in the order of the result file
+     */
+    int[] rows() {
+        return allRows;
+    }
+
+    /**
+     * Get the rows of one dataset and endpoint.
+     *
+     * @param datasetName  The dataset name
+     * @param endpointName The endpoint name
+     * @return the rows, in the order of the result file (empty if there are none)
+     */
+    int[] rows(final String datasetName, final String endpointName) {
+        final int[] rows = rowsByDatasetEndpoint.get(key(datasetName, endpointName));
+        return rows == null ? new int[0] : rows;
+    }
+
+    String getModelId(final int row) {
+        return modelIdDictionary[modelId[row]];
+    }
+
+    String getDataset(final int row) {
+        return datasetDictionary[dataset[row]];
+    }
+
+    String getEndpoint(final int row) {
+        return endpointDictionary[endpoint[row]];
+    }
+
+    String getExcel(final int row) {
+        return excelDictionary[excel[row]];
+    }
+
+    /**
+     * Load the store of a result file. The store file is read when it is up to date,
+     * otherwise the result file is parsed and the store file is (re)written.
+     *
+     * @param filename The name of the result file
+     * @return the store
+     * @throws IOException if the result file cannot be read
+     */
+    static ModelPerformanceStore load(final String filename) throws IOException {
+        final File resultFile = new File(filename);
+        final File storeFile = getStoreFile(resultFile);
+        if (storeFile.exists()) {
+            try {
+                final ModelPerformanceStore store = read(storeFile, resultFile);
+                if (store != null) {
+                    return store;
+                }
+            } catch (IOException e) {
+                LOG.warn("Cannot read performance store " + storeFile + ", parsing " + filename, e);
+            }
+        }
+        final FileReader reader = new FileReader(resultFile);
+        final ModelPerformanceStore store;
+        try {
+            store = parse(reader);
+        } finally {
+            IOUtils.closeQuietly(reader);
+        }
+        try {
+            store.write(storeFile, resultFile);
+        } catch (IOException e) {
+            LOG.warn("Cannot write performance store " + storeFile, e);
+        }
+        return store;
+    }
+
+    /**
+     * @param resultFile A result file
+     * @return the file that holds the store of the result file
+     */
+    static File getStoreFile(final File resultFile) {
+        return new File(resultFile.getPath() + STORE_SUFFIX);
+    }
+
+    /**
+     * Parse a result file.
+     *
+     * @param input The content of the result file
+     * @return the store of its statistics
+     * @throws IOException if the input cannot be read
+     */
+    static ModelPerformanceStore parse(final Reader input) throws IOException {
+        final Dictionary modelIds = new Dictionary();
+        final Dictionary datasets = new Dictionary();
+        final Dictionary endpoints = new Dictionary();
+        final Dictionary excels = new Dictionary();
+        final IntArrayList[] intColumns = new IntArrayList[5];
+        for (int i = 0; i < intColumns.length; i++) {
+            intColumns[i] = new IntArrayList();
+        }
+        final DoubleArrayList[] doubleColumns = new DoubleArrayList[13];
+        for (int i = 0; i < doubleColumns.length; i++) {
+            doubleColumns[i] = new DoubleArrayList();
+        }
+
+        final TSVReader reader = new TSVReader(input, '\t');
+        reader.setCommentPrefix("OrganizationCode");
+        while (reader.hasNext()) {
+            if (reader.isCommentLine()) {
+                reader.skip();
+            } else {
+                reader.next();
+                reader.getString();
+                final int datasetCode = datasets.encode(reader.getString());
+                final int endpointCode = endpoints.encode(reader.getString());
+                final int excelCode = excels.encode(reader.getString());
+                // mcc, accuracy, sens, spec, auc, rmse, then their standard deviations:
+                for (int i = 0; i < 12; i++) {
+                    doubleColumns[i].add(reader.getDouble());
+                }
+                reader.getString();
+                reader.getString();
+                final int actualNumberOfFeatures = reader.getInt();
+                for (int i = 0; i < 4; i++) {
+                    reader.getString();
+                }
+                final int modelIdCode = modelIds.encode(reader.getString());
+                if (reader.numTokens() >= 29) {
+                    for (int i = 0; i < 3; i++) {
+                        reader.getString();
+                    }
+                    doubleColumns[12].add(reader.getDouble());
+                } else {
+                    doubleColumns[12].add(Double.NaN);
+                }
+                intColumns[0].add(modelIdCode);
+                intColumns[1].add(datasetCode);
+                intColumns[2].add(endpointCode);
+                intColumns[3].add(excelCode);
+                intColumns[4].add(actualNumberOfFeatures);
+            }
+        }
+        final int[][] ints = new int[intColumns.length][];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = intColumns[i].toIntArray();
+        }
+        final double[][] doubles = new double[doubleColumns.length][];
+        for (int i = 0; i < doubles.length; i++) {
+            doubles[i] = doubleColumns[i].toDoubleArray();
+        }
+        return new ModelPerformanceStore(new String[][] {
+                modelIds.toArray(), datasets.toArray(), endpoints.toArray(), excels.toArray()},
+                ints, doubles);
+    }
+
+    /**
+     * Write this store. The header records the size and modification time of the result file
+     * so that a store can be recognized as out of date.
+     */
+    void write(final File storeFile, final File resultFile) throws IOException {
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(
+                    new FastBufferedOutputStream(new FileOutputStream(storeFile)));
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(resultFile.length());
+            output.writeLong(resultFile.lastModified());
+            output.writeInt(size());
+            for (final String[] dictionary : new String[][] {
+                    modelIdDictionary, datasetDictionary, endpointDictionary, excelDictionary}) {
+                output.writeInt(dictionary.length);
+                for (final String value : dictionary) {
+                    output.writeUTF(value);
+                }
+            }
+            for (final int[] column : new int[][] {
+                    modelId, dataset, endpoint, excel, actualNumberOfFeaturesInModel}) {
+                for (final int value : column) {
+                    output.writeInt(value);
+                }
+            }
+            for (final double[] column : new double[][] {mcc, accuracy, sens, spec, auc, rmse,
+                    mccStd, accuracyStd, sensStd, specStd, aucStd, rmseStd, bias}) {
+                for (final double value : column) {
+                    output.writeDouble(value);
+                }
+            }
+            output.flush();
+        } finally {
+            IOUtils.closeQuietly(output);
+        }
+    }
+
+    /**
+     * Read a store file.
+     *
+     * @param storeFile  The store file
+     * @param resultFile The result file the store was built from
+     * @return the store, or null if the store file is not up to date with the result file
+     * @throws IOException if the store file cannot be read
+     */
+    static ModelPerformanceStore read(final File storeFile, final File resultFile)
+            throws IOException {
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(
+                    new FastBufferedInputStream(new FileInputStream(storeFile)));
+            if (input.readInt() != MAGIC || input.readInt() != VERSION
+                    || input.readLong() != resultFile.length()
+                    || input.readLong() != resultFile.lastModified()) {
+                LOG.info("Performance store " + storeFile + " is out of date.");
+                return null;
+            }
+            final int size = input.readInt();
+            final String[][] dictionaries = new String[4][];
+            for (int d = 0; d < dictionaries.length; d++) {
+                dictionaries[d] = new String[input.readInt()];
+                for (int i = 0; i < dictionaries[d].length; i++) {
+                    dictionaries[d][i] = input.readUTF();
+                }
+            }
+            final int[][] intColumns = new int[5][size];
+            for (final int[] column : intColumns) {
+                for (int row = 0; row < size; row++) {
+                    column[row] = input.readInt();
+                }
+            }
+            final double[][] doubleColumns = new double[13][size];
+            for (final double[] column : doubleColumns) {
+                for (int row = 0; row < size; row++) {
+                    column[row] = input.readDouble();
+                }
+            }
+            return new ModelPerformanceStore(dictionaries, intColumns, doubleColumns);
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Encodes strings to consecutive ints, in order of first occurrence.
+     */
+    private static final class Dictionary {
+        private final Object2IntMap<String> codes = new Object2IntOpenHashMap<String>();
+        private final ObjectArrayList<String> values = new ObjectArrayList<String>();
+
+        private Dictionary() {
+            super();
+            codes.defaultReturnValue(-1);
+        }
+
+        int encode(final String value) {
+            int code = codes.getInt(value);
+            if (code == -1) {
+                code = values.size();
+                codes.put(value, code);
+                values.add(value);
+            }
+            return code;
+        }
+
+        String[] toArray() {
+            return values.toArray(new String[values.size()]);
+        }
+    }
+}
@@ -18,10 +18,8 @@
 
 package org.bdval.pathways;
 
-import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.lang.MutableString;
 import org.apache.log4j.Logger;
 
@@ -36,19 +34,14 @@ public class AverageAcrossPathwayFeatureAggregator extends PathwayFeatureAggrega
     private static final Logger LOG = Logger.getLogger(AverageAcrossPathwayFeatureAggregator.class);
 
     @Override
-    protected void aggregate(final Table source, final String datasetEndpointName, final ArrayTable aggregated,
-                             final List<CharSequence> sampleIdList, final IntSet usedProbesetIndices, final PathwayInfo pi,
-                             final IntList probeIndices, final int numProbeIndices, final double[][] slice, final List<CharSequence> colIds,
-                             final MutableString[] probeIds, final String splitType, final int splitId) {
+    protected PathwayFeatures aggregate(final Table source, final String datasetEndpointName,
+                                        final List<CharSequence> sampleIdList, final PathwayInfo pi,
+                                        final IntList probeIndices, final int numProbeIndices, final double[][] slice, final List<CharSequence> colIds,
+                                        final MutableString[] probeIds, final String splitType, final int splitId) {
 
         // double[][] slice = new double[/* columns */ numProbeIndices][/* rows */ rowNumber];   // probesets are columns, rows are samples
 
-        // create new feature called pathway_average.
-        final String newColumnId = pi.pathwayId.toString() + "_average";
-        //        System.out.println("adding column " + newColumnId);
-        final int newColumnIndex = aggregated.addColumn(newColumnId, double.class);
-        aggregated.reserve(newColumnIndex, source.getRowNumber());
-        final Table.RowIterator ri = aggregated.firstRow();
+        final double[] averages = new double[slice[0].length];
         for (int rowIndex = 0; rowIndex < slice[0].length; rowIndex++) {   // for each sample:
             // calculate the average of the probeset signal values:
             double sum = 0;
@@ -57,15 +50,12 @@ public class AverageAcrossPathwayFeatureAggregator extends PathwayFeatureAggrega
                 sum += slice[colIndex][rowIndex];
             }
 
-            final double average = sum / numColumns;
-            // and store in the result table as a feature called :
-            aggregated.setValue(newColumnIndex, ri, average);
-            assert !ri.end() : String.format("reached final row of aggregated table j=%d,"
-                    + " aggregated.getRowNumber()=%d ",
-                    rowIndex, aggregated.getRowNumber());
-
-            ri.next();
+            averages[rowIndex] = sum / numColumns;
         }
+        // and store in the result table as a new feature called pathway_average:
+        final PathwayFeatures features = new PathwayFeatures();
+        features.add(pi.pathwayId.toString() + "_average", averages);
+        return features;
     }
 
     @Override
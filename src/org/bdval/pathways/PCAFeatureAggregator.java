@@ -19,14 +19,13 @@
 package org.bdval.pathways;
 
 import edu.cornell.med.icb.learning.MinMaxScalingRowProcessor;
-import edu.cornell.med.icb.pca.PrincipalComponentAnalysisWithR;
+import edu.cornell.med.icb.pca.PrincipalComponentAnalysis;
+import edu.cornell.med.icb.pca.PrincipalComponentAnalysisWithSVD;
 import edu.cornell.med.icb.pca.RotationReaderWriter;
 import edu.cornell.med.icb.svd.SVDFactory;
 import edu.cornell.med.icb.svd.SingularValueDecompositionWithR;
-import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
 import it.unimi.dsi.fastutil.ints.IntList;
-import it.unimi.dsi.fastutil.ints.IntSet;
 import it.unimi.dsi.fastutil.objects.Object2DoubleOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import it.unimi.dsi.lang.MutableString;
@@ -47,10 +46,8 @@ import java.util.Set;
  */
 public class PCAFeatureAggregator extends PathwayFeatureAggregator {
     private static final Logger LOG = Logger.getLogger(PCAFeatureAggregator.class);
-    MinMaxScalingRowProcessor scaler;
-    RotationReaderWriter rotationIO;
+    private RotationReaderWriter rotationIO;
     private final String pathwayComponentsDirectory;
-    private int splitId;
 
     public PCAFeatureAggregator(final String pathwayComponentsDirectory) {
         super();
@@ -59,13 +56,14 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
     }
 
     /**
-     * Aggregate a slice of the input table.
+     * Aggregate a slice of the input table. Pathways may be aggregated concurrently: the
+     * scaler and principal component analysis are local to each call, and rotations are
+     * persisted through a {@link RotationReaderWriter}, which serializes access to its
+     * compound file.
      *
      * @param source
      * @param datasetEndpointName
-     * @param aggregated
      * @param sampleIdList
-     * @param usedProbesetIndices
      * @param pi
      * @param probeIndices
      * @param numProbeIndices
@@ -76,34 +74,25 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
      * @param splitId
      */
     @Override
-    protected void aggregate(final Table source, final String datasetEndpointName, final ArrayTable aggregated,
-                             final List<CharSequence> sampleIdList, final IntSet usedProbesetIndices,
-                             final PathwayInfo pi, final IntList probeIndices, final int numProbeIndices,
-                             final double[][] slice, final List<CharSequence> colIds,
-                             final MutableString[] probeIds, final String splitType, final int splitId) {
-        final PrincipalComponentAnalysisWithR calc = new PrincipalComponentAnalysisWithR();
-        final List<CharSequence> rowIds;
-        final Object2DoubleOpenHashMap<MutableString> meanMap = new Object2DoubleOpenHashMap<MutableString>();
-        final Object2DoubleOpenHashMap<MutableString> rangeMap = new Object2DoubleOpenHashMap<MutableString>();
-
-        scaler = new MinMaxScalingRowProcessor() {
+    protected PathwayFeatures aggregate(final Table source, final String datasetEndpointName,
+                                        final List<CharSequence> sampleIdList,
+                                        final PathwayInfo pi, final IntList probeIndices, final int numProbeIndices,
+                                        final double[][] slice, final List<CharSequence> colIds,
+                                        final MutableString[] probeIds, final String splitType, final int splitId) {
+        final PrincipalComponentAnalysis calc = createPrincipalComponentAnalysis();
+        final MinMaxScalingRowProcessor scaler = new MinMaxScalingRowProcessor() {
             @Override
             protected MutableString getFeatureIdentifier(final int featureIndex) {
                 return probeIds[featureIndex];
             }
 
         };
-        this.splitId = splitId;
-        rowIds = new ArrayList<CharSequence>();
-
-        aggregateFeatureNotSynchronized(source, datasetEndpointName, aggregated, sampleIdList, usedProbesetIndices, pi, probeIndices, numProbeIndices, slice, colIds, probeIds, calc, meanMap, rangeMap);
-
-
-    }
-
-    private void aggregateFeatureNotSynchronized(final Table source, final String datasetEndpointName, final ArrayTable aggregated, final List<CharSequence> sampleIdList, final IntSet usedProbesetIndices, final PathwayInfo pi, final IntList probeIndices, final int numProbeIndices, final double[][] slice, final List<CharSequence> colIds, final MutableString[] probeIds, final PrincipalComponentAnalysisWithR calc, Object2DoubleOpenHashMap<MutableString> meanMap, Object2DoubleOpenHashMap<MutableString> rangeMap) {
+        final RotationReaderWriter rotationIO = setupRotationIO(datasetEndpointName, splitId);
         final List<CharSequence> rowIds;
-        if (!hasCachedRotation(datasetEndpointName, pi.pathwayId)) {
+        Object2DoubleOpenHashMap<MutableString> meanMap = new Object2DoubleOpenHashMap<MutableString>();
+        Object2DoubleOpenHashMap<MutableString> rangeMap = new Object2DoubleOpenHashMap<MutableString>();
+
+        if (rotationIO == null || !rotationIO.isTableCached(datasetEndpointName, pi.pathwayId)) {
             //scale and compute PCA.
             scaler.setTrainingMode(meanMap, rangeMap);
             scaler.processMatrix(slice, numProbeIndices);
@@ -116,31 +105,29 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
 
             final double[][] rotation = calc.getRotation();
             if (rotation != null) {
-                saveRotation(datasetEndpointName, pi.pathwayId, rowIds, rotation);
-                saveMap(datasetEndpointName, pi.pathwayId, rowIds, meanMap, "mean");
-                saveMap(datasetEndpointName, pi.pathwayId, rowIds, rangeMap, "range");
+                if (rotationIO != null) {
+                    // save the maps first: the rotation marks the pathway as cached
+                    rotationIO.saveMap(datasetEndpointName, pi.pathwayId, rowIds, meanMap, "mean");
+                    rotationIO.saveMap(datasetEndpointName, pi.pathwayId, rowIds, rangeMap, "range");
+                    rotationIO.saveRotationMatrix(datasetEndpointName, pi.pathwayId, rowIds, rotation);
+                }
             } else {
                 LOG.error("An error occurred aggregating features for pathway " + pi.pathwayId + ". Details may be available in log files. Probesets will be left unchanged for this pathway.");
-                for (final int probeIndex : probeIndices) {
-                    // leave probesets unchanged.
-                    usedProbesetIndices.remove(probeIndex);
-                }
-                // consider next pathway:
-                return;
-
+                // leave probesets unchanged.
+                return null;
             }
         } else {
             // cached, reuse the rotation matrix previously obtained from data (e.g., on a feature selection dataset)
             rowIds = new ArrayList<CharSequence>();
-            meanMap = loadMap(datasetEndpointName, pi.pathwayId, "mean");
-            rangeMap = loadMap(datasetEndpointName, pi.pathwayId, "range");
+            meanMap = rotationIO.loadMap(datasetEndpointName, pi.pathwayId, "mean");
+            rangeMap = rotationIO.loadMap(datasetEndpointName, pi.pathwayId, "range");
             assert meanMap != null && rangeMap != null : "mean and range maps cannot be found in pathway-components";
             inspectMatrix(slice);
             scaler.setTestSetMode(meanMap, rangeMap);
             scaler.processMatrix(slice, numProbeIndices);
             inspectMatrix(slice);
             // scaleMatrix(slice, slice.length, slice[0].length, meanMap, rangeMap, scaler);
-            calc.setRotation(getCachedRotation(datasetEndpointName, pi.pathwayId, rowIds));
+            calc.setRotation(rotationIO.getRotationMatrix(datasetEndpointName, pi.pathwayId, rowIds));
             int index = 0;
             for (final CharSequence recoveredRowId : rowIds) {
                 assert probeIds[index].equals(recoveredRowId) :
@@ -152,24 +139,23 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
         }
         final double[][] projection = calc.rotate(slice);
         inspectMatrix(projection);
+        final PathwayFeatures features = new PathwayFeatures();
         for (int colIndex = 0; colIndex < projection.length; colIndex++) {
-
             final int reducedColumnIndex = colIndex + 1;
             final String newColumnId = pi.pathwayId.toString() + "_svd" + reducedColumnIndex;
-            //        System.out.println("adding column " + newColumnId);
-            final int newColumnIndex = aggregated.addColumn(newColumnId, double.class);
-            aggregated.reserve(newColumnIndex, source.getRowNumber());
-            final Table.RowIterator ri = aggregated.firstRow();
-            for (int rowIndex = 0; rowIndex < projection[colIndex].length; rowIndex++) {
-
-                aggregated.setValue(newColumnIndex, ri, projection[colIndex][rowIndex]);
-                assert !ri.end() : String.format("reached final row of aggregated table j=%d, U[i].length=%d," +
-                        " aggregated.getRowNumber()=%d ",
-                        rowIndex, projection[colIndex].length, aggregated.getRowNumber());
-
-                ri.next();
-            }
+            features.add(newColumnId, projection[colIndex]);
         }
+        return features;
+    }
+
+    /**
+     * Create the principal component analysis used to aggregate the probesets of a pathway.
+     * Components are computed in the JVM, so that pathway runs do not depend on Rserve.
+     *
+     * @return a new principal component analysis
+     */
+    protected PrincipalComponentAnalysis createPrincipalComponentAnalysis() {
+        return new PrincipalComponentAnalysisWithSVD(SVDFactory.ImplementationType.COLT);
     }
 
     @Override
@@ -181,28 +167,6 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
 //        System.out.println("projection; "+projection);
     }
 
-    private Object2DoubleOpenHashMap<MutableString> loadMap(final String datasetEndpointName,
-                                                            final MutableString pathwayId, final String type) {
-        this.setupRotationIO(datasetEndpointName, splitId);
-        return this.rotationIO.loadMap(datasetEndpointName, pathwayId, type);
-    }
-
-    private void saveMap(final String datasetEndpointName, final MutableString pathwayId,
-                         final List<CharSequence> rowIds, final Object2DoubleOpenHashMap<MutableString> map,
-                         final String type) {
-        this.setupRotationIO(datasetEndpointName, splitId);
-        this.rotationIO.saveMap(datasetEndpointName, pathwayId, rowIds, map, type);
-    }
-
-    private boolean hasCachedRotation(final String datasetEndpointName, final MutableString pathwayId) {
-        if (!setupRotationIO(datasetEndpointName, splitId)) {
-            return false;
-        } else {
-
-            return rotationIO.isTableCached(datasetEndpointName, pathwayId);
-        }
-    }
-
     /**
      * Combine the rotations from all the splits into an aggregate rotation. We can average rotations by using the method
      * described by Curtis WD, Janin AL and Zikan K: We sum all the rotation matrices, calculate the SVD of the sum and
@@ -233,10 +197,9 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
     private void combineRotations(
             final String datasetEndpointName,
             final MutableString pathwayId, final List<CharSequence> rowIds) {
-        // splitId ==0
-        assert splitId == 0 : "combineRotation cannot be called when processing a "
-                + "single split. It is only useful to combine splits for the entire training set";
-        if (setupRotationIO(datasetEndpointName, splitId)) {
+        // only useful to combine splits for the entire training set (split 0)
+        final RotationReaderWriter rotationIO = setupRotationIO(datasetEndpointName, 0);
+        if (rotationIO != null) {
             final List<CharSequence> tempRowIds = new ObjectArrayList<CharSequence>();
 
             final Map<String, Set<String>> rotations =
@@ -297,7 +260,7 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
     }
 
     private double[][] product(final double[][] A, final double[][] B) {
-        return PrincipalComponentAnalysisWithR.product(A, B);
+        return PrincipalComponentAnalysisWithSVD.product(A, B);
     }
 
     private double[][] transpose(final double[][] matrix) {
@@ -330,45 +293,23 @@ public class PCAFeatureAggregator extends PathwayFeatureAggregator {
     }
 
 
-    private double[][] getCachedRotation(final String datasetEndpointName,
-                                         final MutableString pathwayId,
-                                         final List<CharSequence> rowIds) {
-        if (!setupRotationIO(datasetEndpointName, splitId)) {
-            return new double[0][];
-        } else {
-
-            return rotationIO.getRotationMatrix(datasetEndpointName, pathwayId, rowIds);
-        }
-    }
-
-
-    private void saveRotation(final CharSequence datasetEndpointName,
-                              final MutableString pathwayId, final List<CharSequence> rowIds,
-                              final double[][] rotation) {
-        if (!setupRotationIO(datasetEndpointName, splitId)) {
-            return;
-        }
-        rotationIO.saveRotationMatrix(datasetEndpointName, pathwayId, rowIds, rotation);
-
-    }
-
     /**
-     * Returns false if the rotation IO could be setup.
+     * Returns the rotation IO, or null if the rotation IO could not be setup.
      */
-
-    private boolean setupRotationIO(final CharSequence datasetEndpointName, final int splitId) {
+    private synchronized RotationReaderWriter setupRotationIO(final CharSequence datasetEndpointName,
+                                                              final int splitId) {
         if (rotationIO == null) {
             try {
                 rotationIO = new RotationReaderWriter(
                         new File(pathwayComponentsDirectory), datasetEndpointName, splitId);
             } catch (EOFException e) {
                 LOG.error("Could not setup rotation matrix IO support. Found incomplete file.", e);
-                return false;
+                return null;
             } catch (IOException e) {
                 LOG.error("Could not setup rotation matrix IO support.", e);
-                return false;
+                return null;
             }
         }
-        return true;
+        return rotationIO;
     }
 }
@@ -20,25 +20,70 @@ package org.bdval.pathways;
 
 import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.Table;
+import edu.rit.pj.IntegerForLoop;
 import it.unimi.dsi.fastutil.ints.IntList;
 import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
 import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectSet;
 import it.unimi.dsi.lang.MutableString;
 import it.unimi.dsi.logging.ProgressLogger;
 import org.apache.log4j.Logger;
+import org.bdval.util.ParallelTeams;
 
 import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Implements the pathway feature aggregation mechanism used by DAVMode.
+ * Implements the pathway feature aggregation mechanism used by DAVMode. Pathways are
+ * independent of each other and can be aggregated by several threads (see
+ * {@link #setNumberOfThreads(int)}). The features of each pathway are added to the aggregated
+ * table in the iteration order of the pathway set, whatever the number of threads.
  *
  * @author Fabien Campagne
  *         Date: Apr 12, 2008
  *         Time: 12:46:31 PM
  */
 public abstract class PathwayFeatureAggregator {
+    /**
+     * Number of threads used to aggregate pathways. Zero uses one thread per processor.
+     */
+    private int numberOfThreads = 1;
+
+    /**
+     * Features that aggregate the probesets of one pathway.
+     */
+    protected static final class PathwayFeatures {
+        private final ObjectList<String> featureIds = new ObjectArrayList<String>();
+        private final ObjectList<double[]> featureValues = new ObjectArrayList<double[]>();
+
+        /**
+         * Add a feature.
+         *
+         * @param featureId Identifier of the new feature
+         * @param values    Value of the feature for each sample, in the order of the source table
+         */
+        public void add(final String featureId, final double[] values) {
+            featureIds.add(featureId);
+            featureValues.add(values);
+        }
+    }
+
+    /**
+     * Set the number of threads used to aggregate pathways.
+     *
+     * @param numberOfThreads Number of threads. One aggregates pathways sequentially, zero
+     *                        uses one thread per processor.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = Math.max(0, numberOfThreads);
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
     /**
      * Aggregate features for pathways.
      *
@@ -80,36 +125,35 @@ public abstract class PathwayFeatureAggregator {
                 //  System.out.println("sampleId[i]: " + sampleIds[i]);
             }
             logger.start("Aggregating pathway features...");
-            // indices already aggregated:
+            final PathwayInfo[] pathwayArray = pathways.toArray(new PathwayInfo[pathways.size()]);
+            final PathwayFeatures[] features = new PathwayFeatures[pathwayArray.length];
+            if (numberOfThreads == 1 || pathwayArray.length <= 1) {
+                for (int pathwayIndex = 0; pathwayIndex < pathwayArray.length; pathwayIndex++) {
+                    features[pathwayIndex] = aggregatePathway(source, datasetEndpointName,
+                            sampleIdList, pathwayArray[pathwayIndex], splitType, splitId);
+                    logger.update();
+                }
+            } else {
+                aggregatePathwaysInParallel(source, datasetEndpointName, sampleIdList,
+                        pathwayArray, features, splitType, splitId, logger);
+            }
+
+            // merge the features in pathway order, so that the columns do not depend on
+            // the number of threads:
             final IntSet usedProbesetIndices = new IntOpenHashSet();
-            for (final PathwayInfo pi : pathways) {
-                final IntList probeIndices = pi.probesetIndices;
-                // get the slice of source corresponding to the probesets in the pathway pi:
-                final int numProbeIndices = probeIndices.size();
-                if (numProbeIndices <= 1) {
+            for (int pathwayIndex = 0; pathwayIndex < pathwayArray.length; pathwayIndex++) {
+                final IntList probeIndices = pathwayArray[pathwayIndex].probesetIndices;
+                if (probeIndices.size() <= 1) {
                     // skip pathways with one probeset or less.
                     continue;
                 }
-                final double[][] slice = new double[/* columns */ numProbeIndices][/* rows */ rowNumber];   // probesets are columns, rows are samples
-                final List<CharSequence> colIds = new ArrayList<CharSequence>(numProbeIndices);
-                int columnIndex = 0;
-                final MutableString[] probeIds = new MutableString[probeIndices.size()];
-
-                for (final int probeIndex : probeIndices) {
-                    // System.out.println("probeIndex: " + probeIndex);
-                    final int columnIndexForProbeset = probeIndex + 1;
-                    final double[] sourceColumnArray = source.getColumnValues(columnIndexForProbeset).getDoubles(); // add +1 for ID_REF
-                    System.arraycopy(sourceColumnArray, 0, slice[columnIndex], 0, rowNumber);
-                    probeIds[columnIndex] = new MutableString(source.getIdentifier(columnIndexForProbeset)).compact();
-
-                    columnIndex++;
-                    usedProbesetIndices.add(probeIndex);
-                    colIds.add(source.getIdentifier(columnIndexForProbeset));
+                if (features[pathwayIndex] == null) {
+                    // leave probesets unchanged.
+                    usedProbesetIndices.removeAll(probeIndices);
+                    continue;
                 }
-                aggregate(source, datasetEndpointName, aggregated, sampleIdList, usedProbesetIndices,
-                        pi, probeIndices, numProbeIndices, slice, colIds, probeIds, splitType, splitId);
-
-                logger.update();
+                usedProbesetIndices.addAll(probeIndices);
+                addFeatures(aggregated, features[pathwayIndex], rowNumber);
             }
             //System.out.println("aggregated.toString: "+aggregated.toString(aggregated, false));
 
@@ -127,27 +171,118 @@ public abstract class PathwayFeatureAggregator {
     }
 
     /**
-     * Aggregate a slice of the input table.
+     * Aggregate pathways on a team of threads. Each thread stores the features of the pathways
+     * it processes at the index of the pathway in the features array.
+     */
+    private void aggregatePathwaysInParallel(final Table source, final String datasetEndpointName,
+                                             final List<CharSequence> sampleIdList,
+                                             final PathwayInfo[] pathwayArray,
+                                             final PathwayFeatures[] features,
+                                             final String splitType, final int splitId,
+                                             final ProgressLogger logger) {
+        if (getLog().isDebugEnabled()) {
+            getLog().debug("Aggregating pathways on "
+                    + ParallelTeams.getThreadCount(numberOfThreads) + " threads.");
+        }
+        try {
+            // splits that share this aggregator borrow distinct teams:
+            ParallelTeams.execute(numberOfThreads,
+                    0, pathwayArray.length - 1 /* end index is inclusive */, new IntegerForLoop() {
+                        @Override
+                        public void run(final int startIndex, final int endIndex) {
+                            for (int pathwayIndex = startIndex; pathwayIndex <= endIndex; ++pathwayIndex) {
+                                features[pathwayIndex] = aggregatePathway(source, datasetEndpointName,
+                                        sampleIdList, pathwayArray[pathwayIndex], splitType, splitId);
+                                synchronized (logger) {
+                                    logger.update();
+                                }
+                            }
+                        }
+                    });
+        } catch (Exception e) {
+            throw new IllegalStateException("An error occurred aggregating pathway features", e);
+        }
+    }
+
+    /**
+     * Extract the slice of the source table that corresponds to the probesets of a pathway
+     * and aggregate it.
      *
-     * @param source
+     * @return the features for the pathway, or null if the probesets of the pathway must be
+     * left unchanged.
+     */
+    private PathwayFeatures aggregatePathway(final Table source, final String datasetEndpointName,
+                                             final List<CharSequence> sampleIdList,
+                                             final PathwayInfo pi, final String splitType,
+                                             final int splitId) {
+        final IntList probeIndices = pi.probesetIndices;
+        // get the slice of source corresponding to the probesets in the pathway pi:
+        final int numProbeIndices = probeIndices.size();
+        if (numProbeIndices <= 1) {
+            // skip pathways with one probeset or less.
+            return null;
+        }
+        final int rowNumber = source.getRowNumber();
+        final double[][] slice = new double[/* columns */ numProbeIndices][/* rows */ rowNumber];   // probesets are columns, rows are samples
+        final List<CharSequence> colIds = new ArrayList<CharSequence>(numProbeIndices);
+        int columnIndex = 0;
+        final MutableString[] probeIds = new MutableString[probeIndices.size()];
+
+        for (final int probeIndex : probeIndices) {
+            final int columnIndexForProbeset = probeIndex + 1;
+            final double[] sourceColumnArray = source.getColumnValues(columnIndexForProbeset).getDoubles(); // add +1 for ID_REF
+            System.arraycopy(sourceColumnArray, 0, slice[columnIndex], 0, rowNumber);
+            probeIds[columnIndex] = new MutableString(source.getIdentifier(columnIndexForProbeset)).compact();
+
+            columnIndex++;
+            colIds.add(source.getIdentifier(columnIndexForProbeset));
+        }
+        return aggregate(source, datasetEndpointName, sampleIdList,
+                pi, probeIndices, numProbeIndices, slice, colIds, probeIds, splitType, splitId);
+    }
+
+    /**
+     * Add the features of a pathway to the aggregated table.
+     */
+    private void addFeatures(final ArrayTable aggregated, final PathwayFeatures features,
+                             final int rowNumber) {
+        for (int i = 0; i < features.featureIds.size(); i++) {
+            final double[] values = features.featureValues.get(i);
+            final int newColumnIndex = aggregated.addColumn(features.featureIds.get(i), double.class);
+            aggregated.reserve(newColumnIndex, rowNumber);
+            final Table.RowIterator ri = aggregated.firstRow();
+            for (int rowIndex = 0; rowIndex < values.length; rowIndex++) {
+                assert !ri.end() : String.format("reached final row of aggregated table j=%d,"
+                        + " aggregated.getRowNumber()=%d ", rowIndex, aggregated.getRowNumber());
+                aggregated.setValue(newColumnIndex, ri, values[rowIndex]);
+                ri.next();
+            }
+        }
+    }
+
+    /**
+     * Aggregate a slice of the input table. This method may be called concurrently for
+     * different pathways when several threads are used.
+     *
+     * @param source              Input table (columns are probesets, rows are samples).
      * @param datasetEndpointName
-     * @param aggregated
-     * @param sampleIdList
-     * @param usedProbesetIndices
-     * @param pi
+     * @param sampleIdList        Identifiers of the samples, in the order of the source table
+     * @param pi                  The pathway to aggregate
      * @param probeIndices
      * @param numProbeIndices
-     * @param slice
+     * @param slice               Signal of the probesets of the pathway, one column per probeset
      * @param colIds
      * @param probeIds
      * @param splitType
      * @param splitId
+     * @return the features for the pathway, or null if the probesets of the pathway must be
+     * left unchanged.
      */
-    protected abstract void aggregate(Table source, String datasetEndpointName, ArrayTable aggregated,
-                                      List<CharSequence> sampleIdList, IntSet usedProbesetIndices,
-                                      PathwayInfo pi, IntList probeIndices, int numProbeIndices,
-                                      double[][] slice, List<CharSequence> colIds,
-                                      final MutableString[] probeIds, String splitType, int splitId);
+    protected abstract PathwayFeatures aggregate(Table source, String datasetEndpointName,
+                                                 List<CharSequence> sampleIdList,
+                                                 PathwayInfo pi, IntList probeIndices, int numProbeIndices,
+                                                 double[][] slice, List<CharSequence> colIds,
+                                                 final MutableString[] probeIds, String splitType, int splitId);
 
     /**
      * Copy all other probesets verbatim to aggregated table..
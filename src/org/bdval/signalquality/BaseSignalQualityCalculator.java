@@ -22,18 +22,25 @@ import com.martiansoftware.jsap.JSAPResult;
 import edu.cornell.med.icb.io.TsvToFromMap;
 import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
 import it.unimi.dsi.util.Properties;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.bdval.BDVModel;
 
 import java.io.Closeable;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Abstract class for signal quality calculator classes.
@@ -41,6 +48,11 @@ import java.util.Map;
  */
 public class BaseSignalQualityCalculator implements Closeable {
 
+    /**
+     * The logger for this class.
+     */
+    private static final Log LOG = LogFactory.getLog(BaseSignalQualityCalculator.class);
+
     /** The output writer. */
     private PrintWriter outputWriter;
 
@@ -57,7 +69,39 @@ public class BaseSignalQualityCalculator implements Closeable {
 
     private String classMapComment = "";
 
-    private LinkedHashToMultiTypeMap<String> lastData;
+    private volatile LinkedHashToMultiTypeMap<String> lastData;
+
+    /** Number of threads used to compute statistics. Zero uses one thread per processor. */
+    private int numberOfThreads = 1;
+
+    /** The output block of the calling thread, null when the thread writes directly. */
+    private final ThreadLocal<Block> currentBlock = new ThreadLocal<Block>();
+
+    /** Completed blocks, waiting for the writer thread. */
+    private final BlockingQueue<Block> completedBlocks = new LinkedBlockingQueue<Block>();
+
+    /** The thread that writes blocks to the output, in sequence order. */
+    private Thread writerThread;
+
+    /** Marks the end of the blocks in completedBlocks. */
+    private static final Block END_OF_BLOCKS = new Block(-1);
+
+    /**
+     * The output of one unit of work (e.g., one model), written by the writer thread.
+     */
+    private static final class Block {
+        /** Position of the block in the output. */
+        private final int sequence;
+        private final StringWriter text = new StringWriter();
+        private final PrintWriter writer = new PrintWriter(text);
+        /** Class map comment of the block, written only if it changed from the previous block. */
+        private String classMapComment;
+
+        private Block(final int sequence) {
+            super();
+            this.sequence = sequence;
+        }
+    }
 
     /**
      * OutputFileHeader enum to specify the column formats of the various output file types.
@@ -177,9 +221,19 @@ public class BaseSignalQualityCalculator implements Closeable {
     }
 
     /**
-     * Close the output.
+     * Close the output. Blocks started with {@link #startOrderedOutput()} are written first.
      */
     public void close() {
+        if (writerThread != null) {
+            completedBlocks.add(END_OF_BLOCKS);
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                LOG.error("Interrupted waiting for the output to be written", e);
+                Thread.currentThread().interrupt();
+            }
+            writerThread = null;
+        }
         if (StringUtils.isNotBlank(outputFilename)
                 && (!outputFilename.equals("screen"))
                 && (!outputFilename.equals("null"))) {
@@ -193,7 +247,10 @@ public class BaseSignalQualityCalculator implements Closeable {
      * @param data the data to write
      */
     public void writeData(final LinkedHashToMultiTypeMap<String> data) {
-        if (outputWriter != null) {
+        final Block block = currentBlock.get();
+        if (block != null) {
+            tsvOutput.writeDataFromMap(block.writer, data);
+        } else if (outputWriter != null) {
             tsvOutput.writeDataFromMap(outputWriter, data);
         }
         lastData = data;
@@ -203,16 +260,124 @@ public class BaseSignalQualityCalculator implements Closeable {
         return lastData;
     }
 
+    /**
+     * Set the number of threads used to compute the statistics of the features of a model.
+     * @param numberOfThreads the number of threads. Zero uses one thread per processor.
+     */
+    public void setNumberOfThreads(final int numberOfThreads) {
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Get the number of threads used to compute the statistics of the features of a model.
+     * @return the number of threads. Zero uses one thread per processor.
+     */
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
     /**
      * Write a pre-formatted line of data.
      * @param data the data to write
      */
     public void writeData(final String data) {
-        if (outputWriter != null) {
+        final Block block = currentBlock.get();
+        if (block != null) {
+            block.writer.println(data);
+        } else if (outputWriter != null) {
             outputWriter.println(data);
         }
     }
 
+    /**
+     * Start a single writer thread for the output. Units of work (e.g., models) can then
+     * run concurrently, each between {@link #beginBlock(int)} and {@link #endBlock()}: the
+     * data they write is collected in a block, and the writer thread writes the blocks in
+     * sequence order. {@link #close()} waits for all the blocks to be written.
+     */
+    public void startOrderedOutput() {
+        if (writerThread != null) {
+            return;
+        }
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeBlocks();
+            }
+        }, "signal-quality-writer");
+        writerThread.start();
+    }
+
+    /**
+     * Collect the data written by the calling thread into a block, until {@link #endBlock()}.
+     * @param sequence position of the block in the output. Blocks must be numbered from
+     * zero, without gaps.
+     */
+    public void beginBlock(final int sequence) {
+        currentBlock.set(new Block(sequence));
+    }
+
+    /**
+     * Hand the block of the calling thread to the writer thread. Data written by the thread
+     * after this call goes directly to the output.
+     */
+    public void endBlock() {
+        final Block block = currentBlock.get();
+        if (block == null) {
+            return;
+        }
+        currentBlock.remove();
+        block.writer.flush();
+        if (writerThread == null) {
+            // no ordered output, write the block now:
+            synchronized (this) {
+                writeBlock(block);
+            }
+        } else {
+            completedBlocks.add(block);
+        }
+    }
+
+    /**
+     * Body of the writer thread: write the blocks in sequence order, as they complete.
+     */
+    private void writeBlocks() {
+        final Int2ObjectMap<Block> pending = new Int2ObjectOpenHashMap<Block>();
+        int next = 0;
+        try {
+            while (true) {
+                final Block block = completedBlocks.take();
+                if (block == END_OF_BLOCKS) {
+                    break;
+                }
+                pending.put(block.sequence, block);
+                while (pending.containsKey(next)) {
+                    writeBlock(pending.remove(next++));
+                }
+            }
+        } catch (InterruptedException e) {
+            LOG.error("Interrupted writing the output", e);
+        }
+        if (!pending.isEmpty()) {
+            LOG.error(String.format("%d blocks were not written, block %d is missing",
+                    pending.size(), next));
+        }
+        if (outputWriter != null) {
+            outputWriter.flush();
+        }
+    }
+
+    private void writeBlock(final Block block) {
+        if (block.classMapComment != null && !block.classMapComment.equals(classMapComment)) {
+            classMapComment = block.classMapComment;
+            if (outputWriter != null) {
+                outputWriter.println(classMapComment);
+            }
+        }
+        if (outputWriter != null) {
+            outputWriter.write(block.text.toString());
+        }
+    }
+
     /**
      * Base calculate pValues - verify the input data.
      *
@@ -246,6 +411,12 @@ public class BaseSignalQualityCalculator implements Closeable {
      * @param newClassMapComment the comment regarding the class mapping.
      */
     public void setClassMapComment(final String newClassMapComment) {
+        final Block block = currentBlock.get();
+        if (block != null) {
+            // compared with the comment of the previous block when the block is written
+            block.classMapComment = newClassMapComment;
+            return;
+        }
         if (this.classMapComment == null || !classMapComment.equals(newClassMapComment)) {
             // Only write the class map comment if it is different from the last one
             this.classMapComment = newClassMapComment;
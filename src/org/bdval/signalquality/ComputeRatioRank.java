@@ -18,13 +18,9 @@
 
 package org.bdval.signalquality;
 
-import edu.cornell.med.icb.R.script.RDataObjectType;
-import edu.cornell.med.icb.R.script.RScript;
-import org.rosuda.REngine.REXPMismatchException;
-import org.rosuda.REngine.REngineException;
-import org.rosuda.REngine.Rserve.RserveException;
-
-import java.io.IOException;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.distribution.ChiSquaredDistributionImpl;
+import org.apache.commons.math.special.Gamma;
 
 /**
  * @author Kevin Dorff
@@ -32,6 +28,13 @@ import java.io.IOException;
 *         Time: 4:49:04 PM
 */
 class ComputeRatioRank {
+    /**
+     * P-values of 0 and 1 are replaced by these values before they are combined, as
+     * rscripts/pvalue_to_quality.R does.
+     */
+    private static final double SMALLEST_P_VALUE = 2.2E-16;
+    private static final double LARGEST_P_VALUE = 0.9999999999999999;
+
     private final double[] pValues;
     private final double[] t1Values;
     private final double[] t2Values;
@@ -58,28 +61,86 @@ class ComputeRatioRank {
         return ratioRankVal;
     }
 
-    /** The script used when writing the second, quality value file. */
-    private static RScript pvalueToQualityScript;
-
-    public synchronized ComputeRatioRank invoke() throws IOException, RserveException, REXPMismatchException, REngineException {
-        // Calculate signal quality using the given features
-        if (pvalueToQualityScript == null) {
-            pvalueToQualityScript = RScript.createFromResource("rscripts/pvalue_to_quality.R");
+    /**
+     * Calculate the Stouffer and Fisher combinations of the p-values of the features and
+     * the average ratio of their rank sums.
+     */
+    public ComputeRatioRank invoke() throws MathException {
+        final int n = pValues.length;
+        double zSum = 0;
+        double logSum = 0;
+        for (final double value : pValues) {
+            double pValue = value;
+            if (pValue == 0) {
+                pValue = SMALLEST_P_VALUE;
+            } else if (pValue == 1) {
+                pValue = LARGEST_P_VALUE;
+            }
+            zSum += normalQuantile(pValue);
+            logSum += Math.log(pValue);
         }
+        final double z = zSum / Math.sqrt(n);
+        stoufferVals = new double[] {z, normalDistribution(z)};
+        final double f = -2 * logSum;
+        fisherVals = new double[] {
+                f, 1 - new ChiSquaredDistributionImpl(2 * n).cumulativeProbability(f)};
 
-        pvalueToQualityScript.setInput("data_in", pValues);
-        pvalueToQualityScript.setOutput("stouffer_vals", RDataObjectType.DoubleArray);
-        pvalueToQualityScript.setOutput("fisher_vals", RDataObjectType.DoubleArray);
-
-        pvalueToQualityScript.setInput("x", t1Values);
-        pvalueToQualityScript.setInput("y", t2Values);
-        pvalueToQualityScript.setOutput("ratio_rank_val", RDataObjectType.Double);
+        double ratioSum = 0;
+        for (int i = 0; i < t1Values.length; i++) {
+            ratioSum += t1Values[i] / t2Values[i];
+        }
+        ratioRankVal = ratioSum / t1Values.length;
+        return this;
+    }
 
-        pvalueToQualityScript.execute();
+    /**
+     * Standard normal distribution function. Uses the incomplete gamma function so that
+     * small tail probabilities keep their precision.
+     */
+    static double normalDistribution(final double z) throws MathException {
+        final double tail = Gamma.regularizedGammaQ(0.5, z * z / 2) / 2;
+        return z < 0 ? tail : 1 - tail;
+    }
 
-        stoufferVals = pvalueToQualityScript.getOutputDoubleArray("stouffer_vals");
-        fisherVals = pvalueToQualityScript.getOutputDoubleArray("fisher_vals");
-        ratioRankVal = pvalueToQualityScript.getOutputDouble("ratio_rank_val");
-        return this;
+    /**
+     * Standard normal quantile function (algorithm AS 241, as used by R's qnorm).
+     */
+    static double normalQuantile(final double p) {
+        final double q = p - 0.5;
+        if (Math.abs(q) <= 0.425) {
+            final double r = 0.180625 - q * q;
+            return q * (((((((2509.0809287301226727 * r + 33430.575583588128105) * r
+                    + 67265.770927008700853) * r + 45921.953931549871457) * r
+                    + 13731.693765509461125) * r + 1971.5909503065514427) * r
+                    + 133.14166789178437745) * r + 3.387132872796366608)
+                    / (((((((5226.495278852545925 * r + 28729.085735721942674) * r
+                    + 39307.89580009271061) * r + 21213.794301586595867) * r
+                    + 5394.1960214247511077) * r + 687.1870074920579083) * r
+                    + 42.313330701600911252) * r + 1.0);
+        }
+        double r = Math.sqrt(-Math.log(q < 0 ? p : 1 - p));
+        final double value;
+        if (r <= 5) {
+            r -= 1.6;
+            value = (((((((7.7454501427834140764e-4 * r + 0.0227238449892691845833) * r
+                    + 0.24178072517745061177) * r + 1.27045825245236838258) * r
+                    + 3.64784832476320460504) * r + 5.7694972214606914055) * r
+                    + 4.6303378461565452959) * r + 1.42343711074968357734)
+                    / (((((((1.05075007164441684324e-9 * r + 5.475938084995344946e-4) * r
+                    + 0.0151986665636164571966) * r + 0.14810397642748007459) * r
+                    + 0.68976733498510000455) * r + 1.6763848301838038494) * r
+                    + 2.05319162663775882187) * r + 1.0);
+        } else {
+            r -= 5;
+            value = (((((((2.01033439929228813265e-7 * r + 2.71155556874348757815e-5) * r
+                    + 0.0012426609473880784386) * r + 0.026532189526576123093) * r
+                    + 0.29656057182850489123) * r + 1.7848265399172913358) * r
+                    + 5.4637849111641143699) * r + 6.6579046435011037772)
+                    / (((((((2.04426310338993978564e-15 * r + 1.4215117583164458887e-7) * r
+                    + 1.8463183175100546818e-5) * r + 7.868691311456132591e-4) * r
+                    + 0.0148753612908506148525) * r + 0.13692988092273580531) * r
+                    + 0.59983220655588793769) * r + 1.0);
+        }
+        return q < 0 ? -value : value;
     }
 }
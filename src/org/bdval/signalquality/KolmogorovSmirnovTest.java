@@ -18,14 +18,17 @@
 
 package org.bdval.signalquality;
 
-import edu.cornell.med.icb.R.script.RDataObjectType;
-import edu.cornell.med.icb.R.script.RScript;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.util.Arrays;
+
 /**
- * This class provides the Kolmogorov-Smirnov Test using the RServe.
+ * This class provides the two-sample Kolmogorov-Smirnov Test, computed as R's
+ * <code>ks.test(x, y)</code> does: the p-value is exact when the product of the sample sizes
+ * is less than 10000 and the samples have no ties, and uses the asymptotic Kolmogorov
+ * distribution otherwise.
  * @author Kevin Dorff
  */
 public class KolmogorovSmirnovTest {
@@ -35,6 +38,16 @@ public class KolmogorovSmirnovTest {
      */
     private static final Log LOG = LogFactory.getLog(KolmogorovSmirnovTest.class);
 
+    /**
+     * Exact p-values are computed when the product of the sample sizes is below this value.
+     */
+    private static final int EXACT_LIMIT = 10000;
+
+    /**
+     * Tolerance of the asymptotic distribution series.
+     */
+    private static final double TOLERANCE = 1E-6;
+
     private KolmogorovSmirnovTest() {
     }
 
@@ -42,24 +55,110 @@ public class KolmogorovSmirnovTest {
      * Calculates Kolmogorov-Smirnov for the given doubles[]'s xA and xB.
      * @param x the first double[]
      * @param y the first double[]
-     * @return the the result values
+     * @return the the result values, or null if the test cannot be computed
      */
     public static KolmogorovSmirnovTestResult calculate(final double[] x, final double[] y) {
-        try {
-            final RScript rscript = RScript.createFromResource("rscripts/KS_test.R");
-            rscript.setInput("x", x);
-            rscript.setInput("y", y);
-            rscript.setOutput("p_value", RDataObjectType.Double);
-            rscript.setOutput("test_statistic", RDataObjectType.Double);
-            rscript.execute();
-            return new KolmogorovSmirnovTestResult(
-                    rscript.getOutputDouble("p_value"),
-                    rscript.getOutputDouble("test_statistic"));
-        } catch (Exception e) {
+        if (x.length == 0 || y.length == 0) {
             LOG.warn(String.format(
                     "Cannot calculate KolmogorovSmirnovTest for x=%s, y=%s",
-                    ArrayUtils.toString(x), ArrayUtils.toString(y)), e);
+                    ArrayUtils.toString(x), ArrayUtils.toString(y)));
             return null;
         }
+        final double[] sortedX = x.clone();
+        final double[] sortedY = y.clone();
+        Arrays.sort(sortedX);
+        Arrays.sort(sortedY);
+        final int m = sortedX.length;
+        final int n = sortedY.length;
+
+        // largest difference of the empirical distributions, evaluated after all copies of
+        // each distinct value
+        double statistic = 0;
+        boolean ties = false;
+        int i = 0;
+        int j = 0;
+        double previous = Double.NaN;
+        while (i < m || j < n) {
+            final double value = j == n || (i < m && sortedX[i] <= sortedY[j])
+                    ? sortedX[i] : sortedY[j];
+            while (i < m && sortedX[i] == value) {
+                ties |= sortedX[i] == previous;
+                previous = sortedX[i++];
+            }
+            while (j < n && sortedY[j] == value) {
+                ties |= sortedY[j] == previous;
+                previous = sortedY[j++];
+            }
+            statistic = Math.max(statistic, Math.abs((double) i / m - (double) j / n));
+        }
+
+        final double pValue;
+        if ((double) m * n < EXACT_LIMIT && !ties) {
+            pValue = 1 - exactDistribution(statistic, m, n);
+        } else {
+            pValue = 1 - asymptoticDistribution(Math.sqrt((double) m * n / (m + n)) * statistic);
+        }
+        return new KolmogorovSmirnovTestResult(Math.min(1, Math.max(0, pValue)), statistic);
+    }
+
+    /**
+     * Probability that the statistic is less than the observed value when both samples come
+     * from the same continuous distribution (R's psmirnov2x).
+     */
+    private static double exactDistribution(final double statistic, final int sizeX,
+                                            final int sizeY) {
+        final int m = Math.min(sizeX, sizeY);
+        final int n = Math.max(sizeX, sizeY);
+        final double q = (0.5 + Math.floor(statistic * m * n - 1E-7)) / ((double) m * n);
+        final double[] u = new double[n + 1];
+        for (int j = 0; j <= n; j++) {
+            u[j] = ((double) j / n) > q ? 0 : 1;
+        }
+        for (int i = 1; i <= m; i++) {
+            final double w = (double) i / (i + n);
+            if (((double) i / m) > q) {
+                u[0] = 0;
+            } else {
+                u[0] = w * u[0];
+            }
+            for (int j = 1; j <= n; j++) {
+                if (Math.abs((double) i / m - (double) j / n) > q) {
+                    u[j] = 0;
+                } else {
+                    u[j] = w * u[j] + u[j - 1];
+                }
+            }
+        }
+        return u[n];
+    }
+
+    /**
+     * Limiting distribution of sqrt(m n / (m + n)) D (R's pkstwo).
+     */
+    private static double asymptoticDistribution(final double x) {
+        if (x <= 0) {
+            return 0;
+        }
+        if (x < 1) {
+            final double z = -(Math.PI * Math.PI / 8) / (x * x);
+            final double w = Math.log(x);
+            final int maxK = (int) Math.sqrt(2 - Math.log(TOLERANCE));
+            double sum = 0;
+            for (int k = 1; k < maxK; k += 2) {
+                sum += Math.exp(k * k * z - w);
+            }
+            return sum * Math.sqrt(2 * Math.PI);
+        } else {
+            final double z = -2 * x * x;
+            double sign = -1;
+            double previous = 0;
+            double current = 1;
+            for (int k = 1; Math.abs(previous - current) > TOLERANCE; k++) {
+                previous = current;
+                current += 2 * sign * Math.exp(z * k * k);
+                sign *= -1;
+            }
+            return current;
+        }
     }
 }
@@ -18,22 +18,25 @@
 
 package org.bdval.signalquality;
 
-import edu.cornell.med.icb.R.script.RDataObjectType;
-import edu.cornell.med.icb.R.script.RScript;
 import edu.cornell.med.icb.maps.LinkedHashToMultiTypeMap;
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.IntegerSchedule;
 import it.unimi.dsi.fastutil.doubles.DoubleList;
 import it.unimi.dsi.fastutil.objects.ObjectArraySet;
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.bdval.BDVModel;
+import org.bdval.util.ParallelTeams;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 /**
- * Signal Quality Calculator.
+ * Signal Quality Calculator. The calculations keep no state between calls, so several models
+ * can be processed concurrently (see {@link #beginBlock(int)}).
  *
  * @author Kevin Dorff
  */
@@ -44,17 +47,6 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
      */
     private static final Log LOG = LogFactory.getLog(SimpleSignalQualityCalculator.class);
 
-    /** The script used when writing the first, pvalues file. */
-    private RScript dataToPvalueScript;
-
-
-    /** Line of data to output. */
-    final LinkedHashToMultiTypeMap<String> data = new LinkedHashToMultiTypeMap<String>();
-
-    /** List of all features. */
-    final Set<String> allFeaturesSet = new ObjectArraySet<String>();
-    private ComputeRatioRank computeRatioRank;
-
     /**
      * Compute the signal quality between the two sets of data.
      * Input maps have a key of the probe id, such as "AA799301_Probe1"
@@ -81,10 +73,10 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
 
         // System.out.println("(simple) Calculating signal quality for model " + modelId);
 
-        // Calculate pValues and write them
+        // Calculate pValues for all features at once, then write them
 
         // Aquire the ENITRE feature set from both training and validation
-        allFeaturesSet.clear();
+        final Set<String> allFeaturesSet = new ObjectArraySet<String>();
         for (final String sampleClass : allClasses) {
             final Map<String, double[]> trainingDataMap = classToDataMapMap.get(
                     sampleClass + "-training");
@@ -94,12 +86,20 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
             allFeaturesSet.addAll(validationDataMap.keySet());
         }
 
-        for (final String featureId : allFeaturesSet) {
+        final String[] features = allFeaturesSet.toArray(new String[allFeaturesSet.size()]);
+        final KolmogorovSmirnovTestResult[][] ksResults =
+                new KolmogorovSmirnovTestResult[features.length][allClasses.length];
+        final double[][][] sumRanks = new double[features.length][allClasses.length][];
+        calculateStatistics(features, allClasses, classToDataMapMap, ksResults, sumRanks);
 
+        for (int featureIndex = 0; featureIndex < features.length; featureIndex++) {
+            final String featureId = features[featureIndex];
             double[] trainingData = null;
             double[] validationData = null;
             try {
-                data.clear();
+                // a new line for each feature, the last line written is kept by writeData
+                final LinkedHashToMultiTypeMap<String> data =
+                        new LinkedHashToMultiTypeMap<String>();
                 data.put("model-id", modelId);
                 data.put("feature", featureId);
                 for (int classIndex = 0; classIndex < allClasses.length; classIndex++) {
@@ -130,24 +130,14 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
                     // System.out.printf("Training data size = %s Validation data size = %d%n",
                     //         trainingData.length, validationData.length);
 
-                    if (dataToPvalueScript == null) {
-                        dataToPvalueScript =
-                                RScript.createFromResource("rscripts/data_to_pvalue.R");
+                    final KolmogorovSmirnovTestResult ksResult =
+                            ksResults[featureIndex][classIndex];
+                    if (ksResult == null) {
+                        throw new IllegalStateException("KS-test failed for " + featureId);
                     }
-
-                    dataToPvalueScript.setInput("x", trainingData);
-                    dataToPvalueScript.setInput("y", validationData);
-
-                    dataToPvalueScript.setOutput("p_value", RDataObjectType.Double);
-                    dataToPvalueScript.setOutput("test_statistic", RDataObjectType.Double);
-                    dataToPvalueScript.setOutput("sum_rank_features", RDataObjectType.DoubleArray);
-                    dataToPvalueScript.execute();
-
-                    final double pvalue = dataToPvalueScript.getOutputDouble("p_value");
-                    final double testStatistic =
-                            dataToPvalueScript.getOutputDouble("test_statistic");
-                    final double[] sumRankFeatures =
-                            dataToPvalueScript.getOutputDoubleArray("sum_rank_features");
+                    final double pvalue = ksResult.getPValue();
+                    final double testStatistic = ksResult.getTestStatistic();
+                    final double[] sumRankFeatures = sumRanks[featureIndex][classIndex];
 
                     data.put("p-value" + classIdAppend, pvalue);
                     data.put("test-statistics" + classIdAppend, testStatistic);
@@ -177,6 +167,123 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
         }
     }
 
+    /**
+     * Calculate the KS-test and the rank sums of each feature and class, in parallel over
+     * features. Classes with no training or validation data for a feature are skipped. With
+     * a single thread, features are processed on the calling thread.
+     *
+     * @param features the features of the model
+     * @param allClasses the classes
+     * @param classToDataMapMap map of classes + "-training"/"-validation" to the
+     * map of feature to raw data.
+     * @param ksResults receives the KS-test result, indexed by [feature][class]
+     * @param sumRanks receives the rank sums (t1, t2), indexed by [feature][class]
+     */
+    private void calculateStatistics(
+            final String[] features, final String[] allClasses,
+            final Map<String, Map<String, double[]>> classToDataMapMap,
+            final KolmogorovSmirnovTestResult[][] ksResults, final double[][][] sumRanks) {
+        if (features.length == 0) {
+            return;
+        }
+        final IntegerForLoop loop = new IntegerForLoop() {
+            @Override
+            public IntegerSchedule schedule() {
+                return IntegerSchedule.guided();
+            }
+
+            @Override
+            public void run(final int first, final int last) {
+                for (int featureIndex = first; featureIndex <= last; featureIndex++) {
+                    for (int classIndex = 0; classIndex < allClasses.length; classIndex++) {
+                        final String classId = allClasses[classIndex];
+                        final double[] trainingData = classToDataMapMap.get(
+                                classId + "-training").get(features[featureIndex]);
+                        final double[] validationData = classToDataMapMap.get(
+                                classId + "-validation").get(features[featureIndex]);
+                        if (trainingData == null || validationData == null
+                                || trainingData.length == 0 || validationData.length == 0) {
+                            continue;
+                        }
+                        ksResults[featureIndex][classIndex] =
+                                KolmogorovSmirnovTest.calculate(trainingData, validationData);
+                        sumRanks[featureIndex][classIndex] = sumRank(trainingData, validationData);
+                    }
+                }
+            }
+        };
+        try {
+            // calculators of concurrent model threads borrow distinct teams:
+            ParallelTeams.execute(getNumberOfThreads(),
+                    0, features.length - 1 /* end index is inclusive */, loop);
+        } catch (Exception e) {
+            LOG.error("An error occurred calculating p-values", e);
+            throw new IllegalStateException("An error occurred calculating p-values", e);
+        }
+    }
+
+    /**
+     * Rank sums of the training and validation values in the combined sample (ties get
+     * their average rank), as computed by sum_rank in rscripts/data_to_pvalue.R.
+     *
+     * @param training the training values
+     * @param validation the validation values
+     * @return the largest (t1) and smallest (t2) rank sums
+     */
+    static double[] sumRank(final double[] training, final double[] validation) {
+        final int trainingSize = training.length;
+        final int validationSize = validation.length;
+        final int size = trainingSize + validationSize;
+        final double[] sorted = new double[size];
+        System.arraycopy(training, 0, sorted, 0, trainingSize);
+        System.arraycopy(validation, 0, sorted, trainingSize, validationSize);
+        Arrays.sort(sorted);
+        double trainingRanks = 0;
+        for (final double value : training) {
+            trainingRanks += rank(sorted, value);
+        }
+        double validationRanks = 0;
+        for (final double value : validation) {
+            validationRanks += rank(sorted, value);
+        }
+        if (trainingSize <= validationSize) {
+            validationRanks = trainingSize * (size + 1.0) - trainingRanks;
+        } else {
+            trainingRanks = validationSize * (size + 1.0) - validationRanks;
+        }
+        return new double[] {
+                Math.max(trainingRanks, validationRanks),
+                Math.min(trainingRanks, validationRanks)};
+    }
+
+    /**
+     * Average rank (starting at 1) of a value in sorted values.
+     */
+    private static double rank(final double[] sorted, final double value) {
+        // first position of the value, and first position of a larger value
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        final int first = low;
+        high = sorted.length;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (sorted[middle] <= value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return (first + low + 1) / 2.0;
+    }
+
     /**
      * Calculate signal quality.
      *
@@ -197,7 +304,7 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
         super.calculateSignalQuality(modelId, allClasses, featuresList, classToDataMap);
 
         try {
-            data.clear();
+            final LinkedHashToMultiTypeMap<String> data = new LinkedHashToMultiTypeMap<String>();
             data.put("model-id", modelId);
             for (final String classId : allClasses) {
                 final double[] pValues =
@@ -212,7 +319,7 @@ public class SimpleSignalQualityCalculator extends BaseSignalQualityCalculator {
                 }
                 final String classIdAppend = "[" + classId + "]";
 
-                computeRatioRank = new ComputeRatioRank(pValues, t1Values, t2Values).invoke();
+                final ComputeRatioRank computeRatioRank = new ComputeRatioRank(pValues, t1Values, t2Values).invoke();
 
                 final double[] stoufferVals = computeRatioRank.getStoufferVals();
                 final double ratioRankVal = computeRatioRank.getRatioRankVal();
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.ParallelRegion;
+import edu.rit.pj.ParallelTeam;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Teams of threads shared by the parallel loops of BDVal. The threads of a Parallel Java team
+ * never exit, so creating a team for each loop leaks threads in long runs such as
+ * execute-splits. A team is borrowed to execute one parallel region and is given back when
+ * the region ends, so a team never executes two regions at the same time. A new team is only
+ * created when all the teams with the requested number of threads are busy: the number of
+ * teams is bounded by the number of regions that run concurrently. Loops that run on a single
+ * thread do not use a team, they run on the calling thread.
+ */
+public final class ParallelTeams {
+    /**
+     * Used to log debug and informational messages.
+     */
+    private static final Log LOG = LogFactory.getLog(ParallelTeams.class);
+
+    /**
+     * Teams that are not executing a region, by number of threads.
+     */
+    private static final Map<Integer, List<ParallelTeam>> IDLE_TEAMS =
+            new HashMap<Integer, List<ParallelTeam>>();
+
+    /**
+     * This class is for static access only.
+     */
+    private ParallelTeams() {
+        super();
+    }
+
+    /**
+     * Get the number of threads used for a requested number of threads.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     * @return the number of threads
+     */
+    public static int getThreadCount(final int numberOfThreads) {
+        return numberOfThreads <= 0 ? ParallelTeam.getDefaultThreadCount() : numberOfThreads;
+    }
+
+    /**
+     * Execute a parallel region on a team of threads.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     * @param region          The region to execute
+     * @throws Exception if the region throws an exception
+     */
+    public static void execute(final int numberOfThreads, final ParallelRegion region)
+            throws Exception {
+        final ParallelTeam team = borrowTeam(getThreadCount(numberOfThreads));
+        try {
+            team.execute(region);
+        } finally {
+            returnTeam(team);
+        }
+    }
+
+    /**
+     * Execute a loop over a range of indices. All the threads run the same loop instance.
+     * The loop runs on the calling thread when a single thread is requested.
+     *
+     * @param numberOfThreads Number of threads. Zero uses one thread per processor.
+     * @param first           First index of the loop
+     * @param last            Last index of the loop (inclusive)
+     * @param loop            The loop to execute
+     * @throws Exception if the loop throws an exception
+     */
+    public static void execute(final int numberOfThreads, final int first, final int last,
+                               final IntegerForLoop loop) throws Exception {
+        if (last < first) {
+            return;
+        }
+        if (getThreadCount(numberOfThreads) == 1) {
+            loop.start();
+            loop.run(first, last);
+            loop.finish();
+            return;
+        }
+        execute(numberOfThreads, new ParallelRegion() {
+            @Override
+            public void run() throws Exception {
+                execute(first, last, loop);
+            }
+        });
+    }
+
+    private static synchronized ParallelTeam borrowTeam(final int threadCount) {
+        final List<ParallelTeam> idleTeams = IDLE_TEAMS.get(threadCount);
+        if (idleTeams != null && !idleTeams.isEmpty()) {
+            return idleTeams.remove(idleTeams.size() - 1);
+        }
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Creating a team of " + threadCount + " threads.");
+        }
+        return new ParallelTeam(threadCount);
+    }
+
+    private static synchronized void returnTeam(final ParallelTeam team) {
+        List<ParallelTeam> idleTeams = IDLE_TEAMS.get(team.getThreadCount());
+        if (idleTeams == null) {
+            idleTeams = new ArrayList<ParallelTeam>();
+            IDLE_TEAMS.put(team.getThreadCount(), idleTeams);
+        }
+        idleTeams.add(team);
+    }
+}
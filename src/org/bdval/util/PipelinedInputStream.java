@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An input stream that reads its source on a separate thread. The source is read ahead in
+ * blocks, so that expensive work done by the source, such as decompressing a gzip file,
+ * overlaps with the work of the thread that consumes the stream. Errors reading the source are
+ * thrown to the consumer once the blocks read before the error have been consumed. The source
+ * is closed when it has been read completely or when this stream is closed.
+ */
+public class PipelinedInputStream extends InputStream {
+    private static final Log LOG = LogFactory.getLog(PipelinedInputStream.class);
+
+    /**
+     * Default size of the blocks read from the source.
+     */
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Default number of blocks read ahead of the consumer.
+     */
+    private static final int DEFAULT_NUMBER_OF_BLOCKS = 16;
+
+    /**
+     * Marks the end of the source.
+     */
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final BlockingQueue<byte[]> blocks;
+    private final Thread readerThread;
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    /**
+     * The block being consumed and the position of the next byte in this block.
+     */
+    private byte[] block;
+    private int position;
+
+    /**
+     * Start reading the source with default block size and number of blocks.
+     *
+     * @param source Stream to read from
+     */
+    public PipelinedInputStream(final InputStream source) {
+        this(source, DEFAULT_BLOCK_SIZE, DEFAULT_NUMBER_OF_BLOCKS);
+    }
+
+    /**
+     * Start reading the source.
+     *
+     * @param source         Stream to read from
+     * @param blockSize      Size of the blocks read from the source
+     * @param numberOfBlocks Maximum number of blocks read ahead of the consumer
+     */
+    public PipelinedInputStream(final InputStream source, final int blockSize,
+                                final int numberOfBlocks) {
+        super();
+        blocks = new ArrayBlockingQueue<byte[]>(numberOfBlocks);
+        readerThread = new Thread("pipelined-input") {
+            @Override
+            public void run() {
+                try {
+                    int length;
+                    do {
+                        final byte[] buffer = new byte[blockSize];
+                        length = fill(source, buffer);
+                        if (length > 0) {
+                            blocks.put(length == blockSize ? buffer : Arrays.copyOf(buffer, length));
+                        }
+                    } while (length == blockSize && !closed);
+                } catch (IOException e) {
+                    failure = e;
+                } catch (RuntimeException e) {
+                    failure = e;
+                } catch (Error e) {
+                    failure = e;
+                    throw e;
+                } catch (InterruptedException e) {
+                    LOG.debug("Stopped reading the source of a closed stream", e);
+                } finally {
+                    IOUtils.closeQuietly(source);
+                    // the consumer waits for the end marker, whatever stopped the reader:
+                    if (!closed) {
+                        try {
+                            blocks.put(END_OF_STREAM);
+                        } catch (InterruptedException e) {
+                            LOG.debug("Stopped reading the source of a closed stream", e);
+                        }
+                    }
+                }
+            }
+        };
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Read from the source until the buffer is full or the source ends.
+     *
+     * @return the number of bytes read, less than the size of the buffer only at the end of
+     * the source.
+     */
+    private static int fill(final InputStream source, final byte[] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            final int count = source.read(buffer, length, buffer.length - length);
+            if (count == -1) {
+                break;
+            }
+            length += count;
+        }
+        return length;
+    }
+
+    /**
+     * Make sure the current block has bytes left to consume, waiting for the next block when
+     * necessary.
+     *
+     * @return false at the end of the stream.
+     * @throws IOException if the source could not be read
+     */
+    private boolean nextBlock() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (block == END_OF_STREAM) {
+            return false;
+        }
+        if (block != null && position < block.length) {
+            return true;
+        }
+        try {
+            block = blocks.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for input");
+        }
+        position = 0;
+        if (block == END_OF_STREAM) {
+            if (failure != null) {
+                throw new IOException("Cannot read the source of a pipelined stream", failure);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        final int count = Math.min(length, block.length - position);
+        System.arraycopy(block, position, buffer, offset, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return block == null || closed ? 0 : block.length - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            readerThread.interrupt();
+            blocks.clear();
+        }
+    }
+}
@@ -0,0 +1,555 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.ColumnFilter;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.DefineColumnFromRow;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.RowFilter;
+import edu.mssm.crover.tables.RowProcessor;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.lang.reflect.Array;
+
+/**
+ * A read-only {@link Table} that exposes a subset of the columns and rows of another table
+ * without copying its storage. Columns and rows are selected by index and values are read
+ * from the source table on demand. When all the rows are kept, {@link #getColumnValues(int)}
+ * returns the column of the source table itself; otherwise the values of the selected rows
+ * are gathered the first time a column is requested.
+ * <p/>
+ * The source table must not be modified while the view is in use. Methods that would modify
+ * the view throw {@link UnsupportedOperationException}; use {@link #copy()} to obtain a
+ * modifiable table.
+ */
+public class TableView implements Table {
+    /**
+     * The table values are read from.
+     */
+    private final Table source;
+
+    /**
+     * Index in the source table of each column of the view.
+     */
+    private final int[] columnIndices;
+
+    /**
+     * Index in the source table of each row of the view, or null when the view has all the
+     * rows of the source table.
+     */
+    private final int[] rowIndices;
+
+    private final int rowNumber;
+
+    /**
+     * Index of each column of the view, by identifier.
+     */
+    private final Object2IntMap<String> columnIndexByIdentifier;
+
+    /**
+     * Columns gathered for the selected rows, created on demand.
+     */
+    private final ArrayTable.ColumnDescription[] gatheredColumns;
+
+    /**
+     * Create a view of some columns and rows of a table.
+     *
+     * @param source        The table to read values from. When source is itself a view, the
+     *                      new view reads from the table source is a view of.
+     * @param columnIndices Indices of the source columns to keep, in the order the view
+     *                      presents them
+     * @param rowIndices    Indices of the source rows to keep, in the order the view presents
+     *                      them, or null to keep all the rows
+     */
+    public TableView(final Table source, final int[] columnIndices, final int[] rowIndices) {
+        super();
+        if (source instanceof TableView) {
+            final TableView view = (TableView) source;
+            this.source = view.source;
+            this.columnIndices = new int[columnIndices.length];
+            for (int i = 0; i < columnIndices.length; i++) {
+                this.columnIndices[i] = view.columnIndices[columnIndices[i]];
+            }
+            if (rowIndices == null || view.rowIndices == null) {
+                this.rowIndices = rowIndices == null ? view.rowIndices : rowIndices.clone();
+            } else {
+                this.rowIndices = new int[rowIndices.length];
+                for (int i = 0; i < rowIndices.length; i++) {
+                    this.rowIndices[i] = view.rowIndices[rowIndices[i]];
+                }
+            }
+        } else {
+            this.source = source;
+            this.columnIndices = columnIndices.clone();
+            this.rowIndices = rowIndices == null ? null : rowIndices.clone();
+        }
+        this.rowNumber = this.rowIndices == null ? this.source.getRowNumber() : this.rowIndices.length;
+        this.gatheredColumns = new ArrayTable.ColumnDescription[this.columnIndices.length];
+        this.columnIndexByIdentifier = new Object2IntOpenHashMap<String>(this.columnIndices.length);
+        this.columnIndexByIdentifier.defaultReturnValue(-1);
+        for (int i = 0; i < this.columnIndices.length; i++) {
+            columnIndexByIdentifier.put(getIdentifier(i), i);
+        }
+    }
+
+    /**
+     * Create a view of some columns of a table, with all its rows.
+     *
+     * @param source        The table to read values from
+     * @param columnIndices Indices of the source columns to keep
+     */
+    public TableView(final Table source, final int[] columnIndices) {
+        this(source, columnIndices, null);
+    }
+
+    /**
+     * Create a view of some rows of a table, with all its columns.
+     *
+     * @param source     The table to read values from
+     * @param rowIndices Indices of the source rows to keep
+     * @return the view
+     */
+    public static TableView selectRows(final Table source, final int[] rowIndices) {
+        final int[] allColumns = new int[source.getColumnNumber()];
+        for (int i = 0; i < allColumns.length; i++) {
+            allColumns[i] = i;
+        }
+        return new TableView(source, allColumns, rowIndices);
+    }
+
+    private int sourceRow(final int row) {
+        return rowIndices == null ? row : rowIndices[row];
+    }
+
+    private Table.RowIterator sourceIterator(final Table.RowIterator ri) {
+        return ((ViewRowIterator) ri.getImpl()).sourceIterator;
+    }
+
+    public int getColumnNumber() {
+        return columnIndices.length;
+    }
+
+    public int getRowNumber() {
+        return rowNumber;
+    }
+
+    public String getIdentifier(final int columnIndex) {
+        return source.getIdentifier(columnIndices[columnIndex]);
+    }
+
+    public int getColumnIndex(final String identifier) throws InvalidColumnException {
+        final int index = columnIndexByIdentifier.getInt(identifier);
+        if (index == -1) {
+            throw new InvalidColumnException(identifier);
+        }
+        return index;
+    }
+
+    public boolean isColumn(final String identifier) {
+        return columnIndexByIdentifier.containsKey(identifier);
+    }
+
+    public Class<?> getType(final int columnIndex) {
+        return source.getType(columnIndices[columnIndex]);
+    }
+
+    public synchronized ArrayTable.ColumnDescription getColumnValues(final int columnIndex) {
+        if (rowIndices == null) {
+            return source.getColumnValues(columnIndices[columnIndex]);
+        }
+        if (gatheredColumns[columnIndex] == null) {
+            gatheredColumns[columnIndex] = gatherColumn(columnIndex);
+        }
+        return gatheredColumns[columnIndex];
+    }
+
+    /**
+     * Copy the values of the selected rows of a column.
+     */
+    private ArrayTable.ColumnDescription gatherColumn(final int columnIndex) {
+        final ArrayTable.ColumnDescription sourceColumn =
+                source.getColumnValues(columnIndices[columnIndex]);
+        final Class<?> type = sourceColumn.type;
+        final Object values = Array.newInstance(type, rowNumber);
+        if (type == double.class) {
+            final double[] sourceValues = sourceColumn.getDoubles();
+            final double[] gathered = (double[]) values;
+            for (int row = 0; row < rowNumber; row++) {
+                gathered[row] = sourceValues[rowIndices[row]];
+            }
+        } else if (type == String.class) {
+            final String[] sourceValues = sourceColumn.getStrings();
+            final String[] gathered = (String[]) values;
+            for (int row = 0; row < rowNumber; row++) {
+                gathered[row] = sourceValues[rowIndices[row]];
+            }
+        } else {
+            try {
+                int row = 0;
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    Array.set(values, row++, getValue(columnIndex, ri));
+                }
+            } catch (TypeMismatchException e) {
+                throw new IllegalStateException("Cannot read column " + sourceColumn.identifier, e);
+            } catch (InvalidColumnException e) {
+                throw new IllegalStateException("Cannot read column " + sourceColumn.identifier, e);
+            }
+        }
+        return new GatheredColumn(new RowCountTable(rowNumber), sourceColumn.identifier, type,
+                values, rowNumber);
+    }
+
+    public double[] getDoubles(final String identifier) throws InvalidColumnException {
+        return getColumnValues(getColumnIndex(identifier)).getDoubles();
+    }
+
+    public String[] getStrings(final String identifier) throws InvalidColumnException {
+        return getColumnValues(getColumnIndex(identifier)).getStrings();
+    }
+
+    public Table.RowIterator firstRow() {
+        return new ViewRowIterator(0);
+    }
+
+    public Table.RowIterator lastRow() {
+        return new ViewRowIterator(rowNumber - 1);
+    }
+
+    public void processRows(final RowProcessor processor)
+            throws TypeMismatchException, InvalidColumnException {
+        for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+            processor.processRow(this, ri);
+        }
+    }
+
+    public double getDoubleValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException {
+        return source.getDoubleValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public float getFloatValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException, InvalidColumnException {
+        return source.getFloatValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public int getIntValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException, InvalidColumnException {
+        return source.getIntValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public char getCharValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException, InvalidColumnException {
+        return source.getCharValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public boolean getBooleanValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException {
+        return source.getBooleanValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public Object getValue(final int columnIndex, final Table.RowIterator ri)
+            throws TypeMismatchException, InvalidColumnException {
+        return source.getValue(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    public String elementToString(final int columnIndex, final Table.RowIterator ri) {
+        return source.elementToString(columnIndices[columnIndex], sourceIterator(ri));
+    }
+
+    /**
+     * Copy the view to a new, modifiable table.
+     *
+     * @return a table with the columns and rows of the view
+     */
+    public Table copy() throws TypeMismatchException, InvalidColumnException {
+        final ArrayTable result = new ArrayTable();
+        for (int columnIndex = 0; columnIndex < columnIndices.length; columnIndex++) {
+            result.addColumn(getIdentifier(columnIndex), getType(columnIndex));
+        }
+        for (int columnIndex = 0; columnIndex < columnIndices.length; columnIndex++) {
+            final Class<?> type = getType(columnIndex);
+            if (type == double.class) {
+                for (final double value : getColumnValues(columnIndex).getDoubles()) {
+                    result.appendDoubleValue(columnIndex, value);
+                }
+            } else if (type == float.class) {
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    result.appendFloatValue(columnIndex, getFloatValue(columnIndex, ri));
+                }
+            } else if (type == int.class) {
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    result.appendIntValue(columnIndex, getIntValue(columnIndex, ri));
+                }
+            } else if (type == char.class) {
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    result.appendCharValue(columnIndex, getCharValue(columnIndex, ri));
+                }
+            } else if (type == boolean.class) {
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    result.appendBooleanValue(columnIndex, getBooleanValue(columnIndex, ri));
+                }
+            } else {
+                for (final Table.RowIterator ri = firstRow(); !ri.end(); ri.next()) {
+                    result.appendObject(columnIndex, getValue(columnIndex, ri));
+                }
+            }
+        }
+        return result;
+    }
+
+    public Table copy(final RowFilter rowFilter)
+            throws TypeMismatchException, InvalidColumnException {
+        return copy().copy(rowFilter);
+    }
+
+    public Table copy(final RowFilter rowFilter, final ColumnFilter columnFilter)
+            throws TypeMismatchException, InvalidColumnException {
+        return copy().copy(rowFilter, columnFilter);
+    }
+
+    public Table transpose(final DefineColumnFromRow columnDefinition)
+            throws InvalidColumnException, TypeMismatchException, ColumnTypeException {
+        return copy().transpose(columnDefinition);
+    }
+
+    public String toString(final Table table) {
+        try {
+            return copy().toString(table);
+        } catch (TypeMismatchException e) {
+            throw new IllegalStateException(e);
+        } catch (InvalidColumnException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String toString(final Table table, final boolean flag) {
+        try {
+            return copy().toString(table, flag);
+        } catch (TypeMismatchException e) {
+            throw new IllegalStateException(e);
+        } catch (InvalidColumnException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return toString(this);
+    }
+
+    private UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("TableView is read-only, copy() it first.");
+    }
+
+    public void incrementRowNumber() {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final int value) {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final long value) {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final boolean value) {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final float value) {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final double value) {
+        throw readOnly();
+    }
+
+    public void setValue(final int columnIndex, final Table.RowIterator ri, final char value) {
+        throw readOnly();
+    }
+
+    public boolean permutateColumns(final String identifier, final int position) {
+        throw readOnly();
+    }
+
+    public void appendIntValue(final int columnIndex, final int value) {
+        throw readOnly();
+    }
+
+    public void appendCharValue(final int columnIndex, final char value) {
+        throw readOnly();
+    }
+
+    public void appendBooleanValue(final int columnIndex, final boolean value) {
+        throw readOnly();
+    }
+
+    public void appendObject(final int columnIndex, final Object value) {
+        throw readOnly();
+    }
+
+    public void appendFloatValue(final int columnIndex, final float value) {
+        throw readOnly();
+    }
+
+    public void appendDoubleValue(final int columnIndex, final double value) {
+        throw readOnly();
+    }
+
+    public void parseAppend(final int columnIndex, final String value) {
+        throw readOnly();
+    }
+
+    public int addColumn(final String identifier, final Class type) {
+        throw readOnly();
+    }
+
+    public void copy(final Table sourceTable, final int sourceColumn,
+                     final Table.RowIterator sourceRow, final Table destinationTable,
+                     final int destinationColumn, final Table.RowIterator destinationRow) {
+        throw readOnly();
+    }
+
+    public void copy(final int sourceColumn, final Table.RowIterator sourceRow,
+                     final int destinationColumn, final Table.RowIterator destinationRow) {
+        throw readOnly();
+    }
+
+    public void reserve(final int columnIndex, final int size) {
+        throw readOnly();
+    }
+
+    public void removeColumn(final String identifier) {
+        throw readOnly();
+    }
+
+    public void removeColumn(final int columnIndex) {
+        throw readOnly();
+    }
+
+    public void defineColumnsFrom(final Table table) {
+        throw readOnly();
+    }
+
+    public void removeLastRow() {
+        throw readOnly();
+    }
+
+    /**
+     * Iterates over the rows of the view, keeping an iterator of the source table on the
+     * corresponding source row.
+     */
+    private final class ViewRowIterator implements Table.RowIterator {
+        private int row;
+        private int sourceRow;
+        private Table.RowIterator sourceIterator;
+
+        private ViewRowIterator(final int row) {
+            super();
+            this.row = row;
+            this.sourceRow = 0;
+            this.sourceIterator = source.firstRow();
+            seek();
+        }
+
+        /**
+         * Move the source iterator to the source row of the current row.
+         */
+        private void seek() {
+            if (row < 0 || row >= rowNumber) {
+                return;
+            }
+            final int target = sourceRow(row);
+            if (target < sourceRow) {
+                sourceIterator = source.firstRow();
+                sourceRow = 0;
+            }
+            while (sourceRow < target) {
+                sourceIterator.next();
+                sourceRow++;
+            }
+        }
+
+        public Table.RowIterator getImpl() {
+            return this;
+        }
+
+        @Override
+        public Object clone() throws CloneNotSupportedException {
+            final ViewRowIterator clone = (ViewRowIterator) super.clone();
+            clone.sourceIterator = (Table.RowIterator) sourceIterator.clone();
+            return clone;
+        }
+
+        public boolean equalOnColumns(final Table.RowIterator other, final int[] columns) {
+            try {
+                for (final int column : columns) {
+                    final Object value = getValue(column, this);
+                    final Object otherValue = getValue(column, other);
+                    if (value == null ? otherValue != null : !value.equals(otherValue)) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (TypeMismatchException e) {
+                return false;
+            } catch (InvalidColumnException e) {
+                return false;
+            }
+        }
+
+        public void next() {
+            row++;
+            seek();
+        }
+
+        public boolean end() {
+            return row >= rowNumber;
+        }
+    }
+
+    /**
+     * Holds the number of rows of gathered columns, which {@link ArrayTable.ColumnDescription}
+     * obtains from its table.
+     */
+    private static final class RowCountTable extends ArrayTable {
+        private RowCountTable(final int rowNumber) {
+            super();
+            fixRowNumber(rowNumber);
+        }
+    }
+
+    /**
+     * A column whose values were gathered from the selected rows of a source column.
+     */
+    private static final class GatheredColumn extends ArrayTable.ColumnDescription {
+        private GatheredColumn(final ArrayTable table, final String identifier, final Class<?> type,
+                               final Object values, final int rowNumber) {
+            table.super(identifier, type);
+            this.array = values;
+            this.next_valid_index = rowNumber;
+        }
+    }
+}
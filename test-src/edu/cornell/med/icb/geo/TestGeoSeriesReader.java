@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import org.bdval.util.PipelinedInputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Check that {@link GeoSeriesReader} reads the same values as the line by line parser, in the
+ * order of the samples in the file.
+ */
+public class TestGeoSeriesReader {
+    private static final int NUMBER_OF_SAMPLES = 25;
+
+    private static String series() {
+        final StringBuilder input = new StringBuilder();
+        input.append("^DATABASE = GeoMiame\n");
+        input.append("!Database_name = Gene Expression Omnibus (GEO)\n");
+        input.append("^SERIES = GSE1\n");
+        input.append("!Series_title = test series\n");
+        input.append("^PLATFORM = GPL1\n");
+        input.append("!Platform_title = test platform\n");
+        input.append("#ID = probe set\n");
+        input.append("#GB_ACC = accession\n");
+        input.append("!platform_table_begin\n");
+        for (int probe = 0; probe < 3; probe++) {
+            input.append("probe").append(probe).append("\tNM_").append(probe).append('\n');
+        }
+        input.append("!platform_table_end\n");
+        for (int sample = 0; sample < NUMBER_OF_SAMPLES; sample++) {
+            input.append("^SAMPLE = GSM").append(sample).append('\n');
+            input.append("!Sample_title = sample ").append(sample).append('\n');
+            input.append("#ID_REF = probe set\n");
+            input.append("#VALUE = signal\n");
+            input.append("!sample_table_begin\n");
+            input.append("ID_REF\tVALUE\tABS_CALL\n");
+            // probes out of order, spaces as separators, a probe without signal
+            // and an unknown probe:
+            input.append("probe2    ").append(sample).append(".25 P\n");
+            input.append("probe0\t-").append(sample).append("e-2\tA\n");
+            input.append("probe1\t\tA\n");
+            input.append("unknown\t42\tP\n");
+            input.append("!sample_table_end\n");
+        }
+        return input.toString();
+    }
+
+    private static void checkSeries(final Table table) throws InvalidColumnException {
+        assertEquals(NUMBER_OF_SAMPLES + 1, table.getColumnNumber());
+        assertEquals("ID_REF", table.getIdentifier(0));
+        for (int sample = 0; sample < NUMBER_OF_SAMPLES; sample++) {
+            final String sampleId = "GSM" + sample;
+            assertEquals(sampleId, table.getIdentifier(sample + 1));
+            final double[] signal = ((ArrayTable) table).getDoubles(sampleId);
+            assertEquals(3, signal.length);
+            assertEquals(Float.parseFloat("-" + sample + "e-2"), signal[0], 0);
+            assertEquals(0, signal[1], 0);
+            assertEquals(Float.parseFloat(sample + ".25"), signal[2], 0);
+        }
+    }
+
+    @Test
+    public void testRead() throws InvalidColumnException {
+        checkSeries(new GeoSeriesReader(1).read(new StringReader(series())));
+    }
+
+    @Test
+    public void testReadInParallel() throws InvalidColumnException {
+        checkSeries(new GeoSeriesReader(4).read(new StringReader(series())));
+    }
+
+    @Test
+    public void testReadPipelinedGzip() throws IOException, InvalidColumnException {
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        final GZIPOutputStream output = new GZIPOutputStream(compressed);
+        output.write(series().getBytes("UTF-8"));
+        output.close();
+        // small blocks, so that the reader thread waits for the consumer:
+        final InputStreamReader reader = new InputStreamReader(new PipelinedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray())), 64, 2),
+                "UTF-8");
+        try {
+            checkSeries(new GeoSeriesReader(3).read(reader));
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A sample with an empty table is read with no signal, and does not stop the series.
+     */
+    @Test
+    public void testEmptySampleTable() throws InvalidColumnException {
+        final String series = series().replace(
+                "!sample_table_begin\nID_REF\tVALUE\tABS_CALL\n"
+                        + "probe2    0.25 P\nprobe0\t-0e-2\tA\nprobe1\t\tA\nunknown\t42\tP\n",
+                "!sample_table_begin\n");
+        final Table table = new GeoSeriesReader(2).read(new StringReader(series));
+        assertEquals(NUMBER_OF_SAMPLES + 1, table.getColumnNumber());
+        final double[] empty = ((ArrayTable) table).getDoubles("GSM0");
+        for (final double value : empty) {
+            assertEquals(0, value, 0);
+        }
+        final double[] signal = ((ArrayTable) table).getDoubles("GSM1");
+        assertEquals(Float.parseFloat("1.25"), signal[2], 0);
+    }
+
+    @Test
+    public void testParseFloat() {
+        final String[] values = {
+                "0", "-0", "1", "+1", "1.", ".5", "1234.56", "-1234.5600", "0.000123",
+                "3.4028235E38", "1.4E-45", "1e10", "2.5e-3", "16777217", "123456789.123",
+                "0.1", "7.038531E-26", "NaN", "-Infinity", "1e-50",
+        };
+        for (final String value : values) {
+            final char[] chars = (" " + value + " ").toCharArray();
+            assertEquals(value, Float.parseFloat(value),
+                    GeoSeriesReader.parseFloat(chars, 1, chars.length - 1), 0);
+        }
+        final String[] invalid = {"", "-", ".", "1e", "abc", "1.2.3", "1e+"};
+        for (final String value : invalid) {
+            try {
+                GeoSeriesReader.parseFloat(value.toCharArray(), 0, value.length());
+                fail("Expected a number format exception for '" + value + "'");
+            } catch (NumberFormatException e) {
+                // expected
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.geo.binaryarray;
+
+import edu.cornell.med.icb.geo.GEOPlatformIndexed;
+import it.unimi.dsi.lang.MutableString;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Check that {@link MappedArrayReader} reads back, by sample and by probe, the signal written by
+ * {@link MappedArrayWriter}, and that {@link ArrayReader} reads from a converted store.
+ */
+public class TestMappedArrayStore {
+    private static final int NUMBER_OF_PROBES = 37;
+    private static final int NUMBER_OF_SAMPLES = 11;
+
+    private static GEOPlatformIndexed platform() {
+        final GEOPlatformIndexed platform = new GEOPlatformIndexed();
+        for (int i = 0; i < NUMBER_OF_PROBES; i++) {
+            platform.registerProbeId("probeId" + i, "external" + i);
+        }
+        return platform;
+    }
+
+    private static float signal(final int sampleIndex, final int probeIndex) {
+        return sampleIndex * 1000 + probeIndex + 0.5f;
+    }
+
+    private static String basename(final String name) throws IOException {
+        final File directory = new File("test-results/mapped-array-store");
+        FileUtils.forceMkdir(directory);
+        return new File(directory, name).getPath();
+    }
+
+    private static void writeSamples(final ArrayWriter writer) throws IOException {
+        final float[] signal = new float[NUMBER_OF_PROBES];
+        for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++) {
+            for (int probeIndex = 0; probeIndex < NUMBER_OF_PROBES; probeIndex++) {
+                signal[probeIndex] = signal(sampleIndex, probeIndex);
+            }
+            writer.appendSample(signal, new MutableString("sample" + sampleIndex));
+        }
+    }
+
+    private static void checkStore(final MappedArrayReader reader) {
+        assertEquals(NUMBER_OF_PROBES, reader.getNumberOfProbes());
+        assertEquals(NUMBER_OF_SAMPLES, reader.getNumberOfSamples());
+        assertEquals(new MutableString("probeId5"), reader.getProbeIdList().get(5));
+        assertEquals(5, reader.getProbeIds().getInt(new MutableString("probeId5")));
+        assertEquals(new MutableString("sample3"), reader.getSampleIdList().get(3));
+        assertEquals(3, reader.getSampleIds().getInt(new MutableString("sample3")));
+
+        final float[] sample = reader.allocateSignalArray();
+        for (int sampleIndex = NUMBER_OF_SAMPLES - 1; sampleIndex >= 0; sampleIndex -= 2) {
+            reader.readSample(sampleIndex, sample);
+            for (int probeIndex = 0; probeIndex < NUMBER_OF_PROBES; probeIndex++) {
+                assertEquals(signal(sampleIndex, probeIndex), sample[probeIndex], 0);
+            }
+        }
+        final float[] probe = reader.allocateProbeArray();
+        for (int probeIndex = NUMBER_OF_PROBES - 1; probeIndex >= 0; probeIndex -= 3) {
+            reader.readProbe(probeIndex, probe);
+            for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++) {
+                assertEquals(signal(sampleIndex, probeIndex), probe[sampleIndex], 0);
+            }
+        }
+        assertEquals(signal(7, 13), reader.getSignal(7, 13), 0);
+    }
+
+    @Test
+    public void testSampleMajor() throws IOException {
+        final String basename = basename("sample-major");
+        final MappedArrayWriter writer = new MappedArrayWriter(basename, platform(), false);
+        final float[] signal = new float[NUMBER_OF_PROBES];
+        for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++) {
+            for (int probeIndex = 0; probeIndex < NUMBER_OF_PROBES; probeIndex++) {
+                signal[probeIndex] = signal(sampleIndex, probeIndex);
+            }
+            writer.appendSample(signal, new MutableString("sample" + sampleIndex));
+        }
+        writer.close();
+
+        final MappedArrayReader reader =
+                new MappedArrayReader(basename + MappedArrayReader.ARRAY_STORE_SUFFIX);
+        try {
+            assertFalse(reader.isTransposed());
+            checkStore(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testConvertTransposed() throws IOException, ClassNotFoundException {
+        final String basename = basename("converted");
+        FileUtils.deleteQuietly(new File(basename + MappedArrayReader.ARRAY_STORE_SUFFIX));
+        final ArrayWriter arrayWriter = new ArrayWriter(basename, platform());
+        try {
+            writeSamples(arrayWriter);
+        } finally {
+            arrayWriter.close();
+        }
+        MappedArrayWriter.convert(basename, true);
+
+        final MappedArrayReader reader =
+                new MappedArrayReader(basename + MappedArrayReader.ARRAY_STORE_SUFFIX);
+        try {
+            assertTrue(reader.isTransposed());
+            checkStore(reader);
+        } finally {
+            reader.close();
+        }
+
+        // the sequential reader now reads from the store:
+        final ArrayReader arrayReader = new ArrayReader(new MutableString(basename));
+        try {
+            assertEquals(NUMBER_OF_SAMPLES, arrayReader.getSampleIdList().size());
+            final float[] signal = arrayReader.allocateSignalArray();
+            for (int sampleIndex = 0; sampleIndex < NUMBER_OF_SAMPLES; sampleIndex++) {
+                arrayReader.readNextSample(signal);
+                for (int probeIndex = 0; probeIndex < NUMBER_OF_PROBES; probeIndex++) {
+                    assertEquals(signal(sampleIndex, probeIndex), signal[probeIndex], 0);
+                }
+            }
+        } finally {
+            arrayReader.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAStore() throws IOException {
+        final File file = new File(basename("not-a-store") + MappedArrayReader.ARRAY_STORE_SUFFIX);
+        FileUtils.writeStringToFile(file, "ID_REF\tsample1\nprobe1\t1.0\n");
+        new MappedArrayReader(file.getPath());
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package edu.cornell.med.icb.pca;
+
+import edu.cornell.med.icb.svd.SVDFactory;
+import edu.mssm.crover.tables.ColumnTypeException;
+import edu.mssm.crover.tables.DefineColumnFromRow;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import edu.mssm.crover.tables.readers.ColumbiaTmmReader;
+import edu.mssm.crover.tables.readers.SyntaxErrorException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check that the principal components computed in the JVM match those computed by R's
+ * prcomp (see {@link TestPCAWithR}). Components are compared up to their sign, which
+ * is arbitrary.
+ */
+public class TestPCAWithSVD {
+    private static final SVDFactory.ImplementationType[] ENGINES = {
+            SVDFactory.ImplementationType.COLT, SVDFactory.ImplementationType.MTJ
+    };
+
+    /**
+     * USArrests, one column per state and one row per variable.
+     */
+    private double[][] wideMatrix;
+    private List<CharSequence> stateIds;
+
+    /**
+     * USArrests, one column per variable and one row per state.
+     */
+    private double[][] tallMatrix;
+    private List<CharSequence> variableIds;
+
+    @Before
+    public void setUp() throws SyntaxErrorException, IOException,
+            InvalidColumnException, ColumnTypeException, TypeMismatchException {
+        final String data = "ID_REF\tMurder\tAssault\tUrbanPop\tRape\n" +
+                "Alabama\t13.2\t236\t58\t21.2\n" +
+                "Alaska\t10.0\t263\t48\t44.5\n" +
+                "Arizona\t8.1\t294\t80\t31.0\n" +
+                "Arkansas\t8.8\t190\t50\t19.5\n" +
+                "California\t9.0\t276\t91\t40.6\n" +
+                "Colorado\t7.9\t204\t78\t38.7\n" +
+                "Connecticut\t3.3\t110\t77\t11.1\n" +
+                "Delaware\t5.9\t238\t72\t15.8\n" +
+                "Florida\t15.4\t335\t80\t31.9\n" +
+                "Georgia\t17.4\t211\t60\t25.8\n" +
+                "Hawaii\t5.3\t46\t83\t20.2\n" +
+                "Idaho\t2.6\t120\t54\t14.2\n" +
+                "Illinois\t10.4\t249\t83\t24.0\n" +
+                "Indiana\t7.2\t113\t65\t21.0\n" +
+                "Iowa\t2.2\t56\t57\t11.3\n" +
+                "Kansas\t6.0\t115\t66\t18.0\n" +
+                "Kentucky\t9.7\t109\t52\t16.3\n" +
+                "Louisiana\t15.4\t249\t66\t22.2\n" +
+                "Maine\t2.1\t83\t51\t7.8\n" +
+                "Maryland\t11.3\t300\t67\t27.8\n" +
+                "Massachusetts\t4.4\t149\t85\t16.3\n" +
+                "Michigan\t12.1\t255\t74\t35.1\n" +
+                "Minnesota\t2.7\t72\t66\t14.9\n" +
+                "Mississippi\t16.1\t259\t44\t17.1\n" +
+                "Missouri\t9.0\t178\t70\t28.2\n" +
+                "Montana\t6.0\t109\t53\t16.4\n" +
+                "Nebraska\t4.3\t102\t62\t16.5\n" +
+                "Nevada\t12.2\t252\t81\t46.0\n" +
+                "New Hampshire\t2.1\t57\t56\t9.5\n" +
+                "New Jersey\t7.4\t159\t89\t18.8\n" +
+                "New Mexico\t11.4\t285\t70\t32.1\n" +
+                "New York\t11.1\t254\t86\t26.1\n" +
+                "North Carolina\t13.0\t337\t45\t16.1\n" +
+                "North Dakota\t0.8\t45\t44\t7.3\n" +
+                "Ohio\t7.3\t120\t75\t21.4\n" +
+                "Oklahoma\t6.6\t151\t68\t20.0\n" +
+                "Oregon\t4.9\t159\t67\t29.3\n" +
+                "Pennsylvania\t6.3\t106\t72\t14.9\n" +
+                "Rhode Island\t3.4\t174\t87\t8.3\n"
+                + "South Carolina\t14.4\t279\t48\t22.5\n" +
+                "South Dakota\t3.8\t86\t45\t12.8\n" +
+                "Tennessee\t13.2\t188\t59\t26.9\n" +
+                "Texas\t12.7\t201\t80\t25.5\n" +
+                "Utah\t3.2\t120\t80\t22.9\n" +
+                "Vermont\t2.2\t48\t32\t11.2\n" +
+                "Virginia\t8.5\t156\t63\t20.7\n"
+                + "Washington\t4.0\t145\t73\t26.2\n" +
+                "West Virginia\t5.7\t81\t39\t9.3\n"
+                + "Wisconsin\t2.6\t53\t66\t10.8\n" +
+                "Wyoming\t6.8\t161\t60\t15.6";
+
+        final ColumbiaTmmReader parser = new ColumbiaTmmReader();
+        final Table table = parser.read(new StringReader(data));
+        tallMatrix = new double[table.getColumnNumber() - 1][];
+        variableIds = new ArrayList<CharSequence>();
+        for (int c = 1; c < table.getColumnNumber(); c++) {
+            tallMatrix[c - 1] = table.getDoubles(table.getIdentifier(c));
+            variableIds.add(table.getIdentifier(c));
+        }
+
+        final Table transposed = table.transpose(new DefineColumnFromRow(0));
+        wideMatrix = new double[transposed.getColumnNumber() - 1][];
+        stateIds = new ArrayList<CharSequence>();
+        for (int c = 1; c < transposed.getColumnNumber(); c++) {
+            wideMatrix[c - 1] = transposed.getDoubles(transposed.getIdentifier(c));
+            stateIds.add(transposed.getIdentifier(c));
+        }
+    }
+
+    /**
+     * Same analysis as {@link TestPCAWithR#testPCA()}: more columns than rows.
+     */
+    @Test
+    public void testMoreColumnsThanRows() {
+        for (final SVDFactory.ImplementationType engine : ENGINES) {
+            final PrincipalComponentAnalysis calc = new PrincipalComponentAnalysisWithSVD(engine);
+            calc.setCollectRotationRowNames(true);
+            calc.setDoScaling(true);
+            calc.pca(wideMatrix, stateIds);
+            assertEquals(stateIds, calc.getRotationRowNames());
+
+            final double[][] rotation = calc.getRotation();
+            assertNotNull(rotation);
+            // four observations, centered: the fourth component is null and omitted
+            assertEquals(engine.toString(), 3, rotation.length);
+            assertEquals(50, rotation[0].length);
+            final double[] signs = {
+                    Math.signum(rotation[0][0] / 0.14239973d),
+                    Math.signum(rotation[1][0] / -0.128388172d),
+                    Math.signum(rotation[2][1] / 0.311588857d)
+            };
+            assertEquals(0.14239973d, signs[0] * rotation[0][0], 1E-4);
+            assertEquals(0.13841416d, signs[0] * rotation[0][1], 1E-4);
+            assertEquals(-0.128388172d, signs[1] * rotation[1][0], 1E-4);
+            assertEquals(0.311588857d, signs[2] * rotation[2][1], 1E-4);
+
+            final double[][] rotated = calc.rotate(wideMatrix);
+            assertEquals(55.40746d, signs[0] * rotated[0][0], 1E-4);
+            assertEquals(1218.84743d, signs[0] * rotated[0][1], 1E-4);
+            assertEquals(-20.42092d, signs[1] * rotated[1][0], 1E-4);
+            assertEquals(-1.281673d, signs[2] * rotated[2][1], 1E-4);
+            assertEquals(41.653537d, signs[2] * rotated[2][3], 1E-4);
+        }
+    }
+
+    /**
+     * prcomp(USArrests, scale=TRUE): more rows than columns.
+     */
+    @Test
+    public void testMoreRowsThanColumns() {
+        final double[][] expected = {
+                {-0.5358995, -0.5831836, -0.2781909, -0.5434321},
+                {0.4181809, 0.1879856, -0.8728062, -0.1673186},
+                {-0.3412327, -0.2681484, -0.3780158, 0.8177779},
+                {0.6492278, -0.7434075, 0.1338777, 0.0890243}
+        };
+        for (final SVDFactory.ImplementationType engine : ENGINES) {
+            final PrincipalComponentAnalysis calc = new PrincipalComponentAnalysisWithSVD(engine);
+            calc.setCollectRotationRowNames(true);
+            calc.setDoScaling(true);
+            calc.setTolerance(0.1);
+            calc.pca(tallMatrix, variableIds);
+            assertEquals(variableIds, calc.getRotationRowNames());
+            final double[][] rotation = calc.getRotation();
+            assertEquals(engine.toString(), 4, rotation.length);
+            for (int component = 0; component < expected.length; component++) {
+                assertComponentEquals(expected[component], rotation[component]);
+            }
+
+            // standard deviations are 1.575, 0.995, 0.597 and 0.416:
+            calc.setTolerance(0.3);
+            calc.pca(tallMatrix, variableIds);
+            assertEquals(engine.toString(), 3, calc.getRotation().length);
+        }
+    }
+
+    private void assertComponentEquals(final double[] expected, final double[] actual) {
+        assertEquals(expected.length, actual.length);
+        final double sign = Math.signum(expected[0] / actual[0]);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals("loading " + i, expected[i], sign * actual[i], 1E-4);
+        }
+    }
+}
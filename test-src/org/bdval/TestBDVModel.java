@@ -21,12 +21,18 @@ package org.bdval;
 import edu.mssm.crover.tables.ArrayTable;
 import edu.mssm.crover.tables.InvalidColumnException;
 import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import it.unimi.dsi.lang.MutableString;
+import static org.junit.Assert.assertArrayEquals;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Random;
 
 /**
  * Validates the functionality of the {@link org.bdval.BDVModel} class.
@@ -114,8 +120,164 @@ public class TestBDVModel {
 
         // NOTE: removing any column (except for ID_REF) from the testSet table above will cause
         // the same exception listed in http://icbtools.med.cornell.edu/mantis/view.php?id=1301
+        final BDVModel model = new BDVModel("test-data/models/properties/libSVM_Cologne_EFS_MO-baseline-global-svm-weights-final-model-LDPSS");
+        model.load(new DAVOptions());
+        final Table aligned = model.checkReOrderTestSet(testSet);
+        assertEquals("Aligned table must only contain the model features",
+                model.getNumberOfFeatures(), aligned.getColumnNumber());
+        for (int featureIndex = 0; featureIndex < aligned.getColumnNumber(); featureIndex++) {
+            assertEquals("Feature at index " + featureIndex + " is out of order",
+                    model.trainingPlatform.getProbesetIdentifier(featureIndex).toString(),
+                    aligned.getIdentifier(featureIndex));
+        }
+    }
+
+    /**
+     * Validate that {@link BDVModel#checkReOrderTestSet(edu.mssm.crover.tables.Table)}
+     * reports features of the model that are missing from the test set.
+     * @throws ClassNotFoundException if the model cannot be loaded properly
+     * @throws IOException if the model cannot be loaded properly
+     * @throws InvalidColumnException expected, the test set misses a feature
+     */
+    @Test(expected = InvalidColumnException.class)
+    public void checkReOrderTestSetMissingFeature()
+            throws ClassNotFoundException, IOException, InvalidColumnException {
+        final Table testSet = new ArrayTable();
+        testSet.addColumn("ID_REF", String.class);
+        testSet.addColumn("Hs343026.1", double.class);
+        testSet.addColumn("A_32_P129689", double.class);
+
         final BDVModel model = new BDVModel("test-data/models/properties/libSVM_Cologne_EFS_MO-baseline-global-svm-weights-final-model-LDPSS");
         model.load(new DAVOptions());
         model.checkReOrderTestSet(testSet);
     }
+
+    /**
+     * Validates that a model converted to the packed format and back loads with the same
+     * features, scaling values and labels.
+     * @throws ClassNotFoundException if the model cannot be loaded properly
+     * @throws IOException if the model cannot be converted or loaded properly
+     */
+    @Test
+    public void convertPackedModel() throws ClassNotFoundException, IOException {
+        final BDVModel model = new BDVModel("test-data/models/properties/libSVM_Cologne_EFS_MO-baseline-global-svm-weights-final-model-LDPSS");
+        model.load(new DAVOptions());
+
+        final File outputDirectory = new File("test-results/packed-model");
+        outputDirectory.mkdirs();
+        final String packedPrefix = new File(outputDirectory, "packed").getPath();
+        model.convert(packedPrefix, BDVModel.Format.PACKED);
+        assertTrue("Packed model file must exist", new File(packedPrefix + ".packed").exists());
+
+        final BDVModel packed = new BDVModel(packedPrefix, BDVModel.Format.PACKED);
+        packed.load(new DAVOptions());
+        assertSameModel(model, packed);
+
+        final String zipPrefix = new File(outputDirectory, "unpacked").getPath();
+        packed.convert(zipPrefix, BDVModel.Format.PROPERTIES);
+        final BDVModel unpacked = new BDVModel(zipPrefix);
+        unpacked.load(new DAVOptions());
+        assertSameModel(model, unpacked);
+    }
+
+    /**
+     * Validates that samples predicted in batches, sequentially or concurrently, get the same
+     * decisions and probabilities as samples predicted one at a time.
+     * @throws ClassNotFoundException if the model cannot be loaded properly
+     * @throws IOException if the model cannot be loaded properly
+     * @throws InvalidColumnException if the test set does not match the model
+     * @throws TypeMismatchException if the test set cannot be created
+     */
+    @Test
+    public void predictBatches() throws ClassNotFoundException, IOException,
+            InvalidColumnException, TypeMismatchException {
+        final BDVModel model = new BDVModel("test-data/models/properties/libSVM_Cologne_EFS_MO-baseline-global-svm-weights-final-model-LDPSS");
+        model.load(new DAVOptions());
+
+        final int numberOfSamples = 37;
+        final Random random = new Random(42);
+        final ArrayTable testSet = new ArrayTable();
+        final int idColumn = testSet.addColumn("ID_REF", String.class);
+        for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+            testSet.appendObject(idColumn, "sample-" + sampleIndex);
+        }
+        for (int featureIndex = 0; featureIndex < model.getNumberOfFeatures(); featureIndex++) {
+            final int column = testSet.addColumn(
+                    model.trainingPlatform.getProbesetIdentifier(featureIndex).toString(),
+                    double.class);
+            for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+                testSet.appendDoubleValue(column, random.nextGaussian());
+            }
+        }
+        model.prepareClassificationProblem(testSet);
+
+        final double[] expectedDecisions = new double[numberOfSamples];
+        final double[] expectedProbabilities = new double[2 * numberOfSamples];
+        final double[] sampleProbabilities = new double[2];
+        for (int sampleIndex = 0; sampleIndex < numberOfSamples; sampleIndex++) {
+            expectedDecisions[sampleIndex] = model.predict(sampleIndex, sampleProbabilities);
+            expectedProbabilities[2 * sampleIndex] = sampleProbabilities[0];
+            expectedProbabilities[2 * sampleIndex + 1] = sampleProbabilities[1];
+        }
+
+        for (final int numberOfThreads : new int[] {1, 3, 1}) {
+            // predict in two batches of contiguous samples:
+            final int split = 16;
+            final double[] decisions = new double[numberOfSamples];
+            final double[] probabilities = new double[2 * numberOfSamples];
+            final double[] batchDecisions = new double[numberOfSamples];
+            final double[] batchProbabilities = new double[2 * numberOfSamples];
+            model.predict(0, split, batchDecisions, batchProbabilities, numberOfThreads);
+            System.arraycopy(batchDecisions, 0, decisions, 0, split);
+            System.arraycopy(batchProbabilities, 0, probabilities, 0, 2 * split);
+            model.predict(split, numberOfSamples, batchDecisions, batchProbabilities,
+                    numberOfThreads);
+            System.arraycopy(batchDecisions, 0, decisions, split, numberOfSamples - split);
+            System.arraycopy(batchProbabilities, 0, probabilities, 2 * split,
+                    2 * (numberOfSamples - split));
+            assertArrayEquals("decisions with " + numberOfThreads + " threads",
+                    expectedDecisions, decisions, 0);
+            assertArrayEquals("probabilities with " + numberOfThreads + " threads",
+                    expectedProbabilities, probabilities, 0);
+
+            // predict samples in reverse order:
+            final int[] sampleIndices = new int[numberOfSamples];
+            for (int i = 0; i < numberOfSamples; i++) {
+                sampleIndices[i] = numberOfSamples - 1 - i;
+            }
+            model.predict(sampleIndices, decisions, probabilities, numberOfThreads);
+            for (int i = 0; i < numberOfSamples; i++) {
+                assertEquals(expectedDecisions[sampleIndices[i]], decisions[i], 0);
+                assertEquals(expectedProbabilities[2 * sampleIndices[i]],
+                        probabilities[2 * i], 0);
+                assertEquals(expectedProbabilities[2 * sampleIndices[i] + 1],
+                        probabilities[2 * i + 1], 0);
+            }
+        }
+    }
+
+    private void assertSameModel(final BDVModel expected, final BDVModel actual) {
+        assertEquals("The dataset name does not match",
+                expected.getDatasetName(), actual.getDatasetName());
+        assertArrayEquals("Class labels do not match",
+                expected.getSymbolicClassLabel(), actual.getSymbolicClassLabel());
+        assertEquals("Number of features is incorrect",
+                expected.getNumberOfFeatures(), actual.getNumberOfFeatures());
+        assertEquals("means map size does not match",
+                expected.probesetScaleMeanMap.size(), actual.probesetScaleMeanMap.size());
+        assertEquals("range map size does not match",
+                expected.probesetScaleRangeMap.size(), actual.probesetScaleRangeMap.size());
+        for (final MutableString probeId : expected.probesetScaleMeanMap.keySet()) {
+            assertEquals("mean of " + probeId, expected.probesetScaleMeanMap.getDouble(probeId),
+                    actual.probesetScaleMeanMap.getDouble(probeId), 0);
+            assertEquals("range of " + probeId, expected.probesetScaleRangeMap.getDouble(probeId),
+                    actual.probesetScaleRangeMap.getDouble(probeId), 0);
+        }
+        for (int featureIndex = 0; featureIndex < expected.getNumberOfFeatures(); featureIndex++) {
+            assertEquals("probe at index " + featureIndex,
+                    expected.trainingPlatform.getProbesetIdentifier(featureIndex),
+                    actual.trainingPlatform.getProbesetIdentifier(featureIndex));
+        }
+        assertFalse("Model should not be a consensus model", actual.isConsensusModel());
+    }
 }
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import cern.jet.random.engine.MersenneTwister;
+import cern.jet.random.engine.RandomEngine;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Check bootstrap estimates computed by {@link BootstrapEvaluator}.
+ */
+public class TestBootstrapEvaluator {
+    private static final int NUMBER_OF_SAMPLES = 57;
+
+    private final double[] decisions = new double[NUMBER_OF_SAMPLES];
+    private final double[] trueLabels = new double[NUMBER_OF_SAMPLES];
+
+    private BootstrapEvaluator createEvaluator() {
+        final Random random = new Random(4321);
+        for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+            trueLabels[i] = i % 3 == 0 ? 1 : 0;
+            // decisions are rounded to produce ties:
+            final double decision = random.nextGaussian() + (trueLabels[i] > 0 ? 0.8 : -0.8);
+            decisions[i] = Math.round(decision * 4) / 4.0;
+        }
+        return new BootstrapEvaluator(decisions, trueLabels);
+    }
+
+    /**
+     * Check that samples are drawn in the same order as before bootstrap samples were
+     * evaluated in parallel, so that a seed gives the same estimates.
+     */
+    @Test
+    public void testDrawOrder() {
+        final BootstrapEvaluator evaluator = createEvaluator();
+        final int[][] samples = evaluator.drawSamples(20, new MersenneTwister(17));
+        final RandomEngine random = new MersenneTwister(17);
+        for (final int[] sample : samples) {
+            assertEquals(NUMBER_OF_SAMPLES, sample.length);
+            for (final int index : sample) {
+                assertEquals((int) (random.nextDouble() * NUMBER_OF_SAMPLES), index);
+            }
+        }
+    }
+
+    /**
+     * Check that samples and measures only depend on the seed, not on the number of threads.
+     */
+    @Test
+    public void testDeterministic() {
+        final BootstrapEvaluator evaluator = createEvaluator();
+        evaluator.setNumberOfThreads(1);
+        final int[][] sequentialSamples = evaluator.drawSamples(200, new MersenneTwister(17));
+        final double[][] sequentialValues = evaluator.evaluate(sequentialSamples);
+
+        evaluator.setNumberOfThreads(4);
+        final int[][] parallelSamples = evaluator.drawSamples(200, new MersenneTwister(17));
+        final double[][] parallelValues = evaluator.evaluate(parallelSamples);
+
+        for (int i = 0; i < sequentialSamples.length; i++) {
+            assertArrayEquals(sequentialSamples[i], parallelSamples[i]);
+        }
+        for (int measure = 0; measure < BootstrapEvaluator.MEASURES.length; measure++) {
+            assertArrayEquals(sequentialValues[measure], parallelValues[measure], 0);
+        }
+    }
+
+    /**
+     * Check the measures of each bootstrap sample against direct computations.
+     */
+    @Test
+    public void testMeasures() {
+        final BootstrapEvaluator evaluator = createEvaluator();
+        final int[][] samples = evaluator.drawSamples(50, new MersenneTwister(3));
+        final double[][] values = evaluator.evaluate(samples);
+        for (int i = 0; i < samples.length; i++) {
+            final double[] sampleDecisions = BootstrapEvaluator.select(decisions, samples[i]);
+            final double[] sampleLabels = BootstrapEvaluator.select(trueLabels, samples[i]);
+            double pairs = 0;
+            int positives = 0;
+            int negatives = 0;
+            int correct = 0;
+            for (int a = 0; a < sampleDecisions.length; a++) {
+                if (sampleLabels[a] > 0) {
+                    positives++;
+                } else {
+                    negatives++;
+                }
+                if ((sampleDecisions[a] > 0) == (sampleLabels[a] > 0)) {
+                    correct++;
+                }
+                for (int b = 0; b < sampleDecisions.length; b++) {
+                    if (sampleLabels[a] > 0 && sampleLabels[b] <= 0) {
+                        if (sampleDecisions[a] > sampleDecisions[b]) {
+                            pairs += 1;
+                        } else if (sampleDecisions[a] == sampleDecisions[b]) {
+                            pairs += 0.5;
+                        }
+                    }
+                }
+            }
+            assertEquals("AUC of sample " + i, pairs / (positives * negatives), values[0][i], 1E-12);
+            assertEquals("Accuracy of sample " + i,
+                    correct / (double) sampleDecisions.length, values[2][i], 1E-12);
+        }
+    }
+
+    /**
+     * Check percentile confidence intervals.
+     */
+    @Test
+    public void testConfidenceInterval() {
+        final double[] values = new double[101];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i;
+        }
+        values[50] = Double.NaN;
+        final double[] interval = BootstrapEvaluator.confidenceInterval(values, 0.9);
+        assertTrue(interval[0] > 3 && interval[0] < 7);
+        assertTrue(interval[1] > 93 && interval[1] < 97);
+        assertEquals(50, BootstrapEvaluator.mean(values), 1E-12);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Check the indexed access to predictions in {@link PredictedItems}.
+ */
+public class TestPredictedItems {
+    /**
+     * Write predictions of two repeats, with the splits of repeat 2 interleaved.
+     */
+    private PredictedItems loadPredictions() throws IOException {
+        final File directory = new File("test-results/predicted-items");
+        FileUtils.forceMkdir(directory);
+        final File file = new File(directory, "predictions.txt");
+        final PrintWriter writer = new PrintWriter(file);
+        try {
+            writer.println(PredictedItem.getHeaders());
+            final int[][] rows = {
+                    // repeatId, splitId, sample number
+                    {2, 2, 1}, {1, 1, 2}, {2, 1, 3}, {1, 1, 4}, {2, 2, 5}, {1, 2, 6}, {2, 1, 7},
+            };
+            for (final int[] row : rows) {
+                final int sample = row[2];
+                final PredictedItem item = new PredictedItem(row[1], "CV", row[0], "model",
+                        sample, "sample-" + sample, sample % 2 == 0 ? 1 : -1, "label",
+                        sample / 10.0, 0.5, "label", sample % 2, "correct", 12);
+                writer.println(item.format());
+            }
+        } finally {
+            writer.close();
+        }
+        final PredictedItems predictions = new PredictedItems();
+        predictions.load(file.getPath());
+        return predictions;
+    }
+
+    @Test
+    public void splits() throws IOException {
+        final PredictedItems predictions = loadPredictions();
+        assertEquals(7, predictions.size());
+        assertEquals(2, predictions.getNumberOfRepeats());
+        assertEquals(2, predictions.getNumberOfFolds());
+        assertEquals(12, predictions.modelNumFeatures());
+
+        // predictions of a split keep the order of the file:
+        assertArrayEquals(new String[] {"sample-3", "sample-7"},
+                predictions.getSampleIDsForSplit(2, 1).toArray(new String[2]));
+        assertArrayEquals(new double[] {-0.3, -0.7},
+                predictions.getDecisionsForSplit(2, 1).toDoubleArray(), 1E-6);
+        assertArrayEquals(new double[] {1, 1},
+                predictions.getTrueLabelsForSplit(2, 1).toDoubleArray(), 0);
+        assertArrayEquals(new String[] {"sample-2", "sample-4"},
+                predictions.getSampleIDsForSplit(1, 1).toArray(new String[2]));
+        assertEquals(0, predictions.getDecisionsForSplit(3, 1).size());
+        assertEquals(0, predictions.getDecisionsForSplit(1, 3).size());
+    }
+
+    @Test
+    public void repeats() throws IOException {
+        final PredictedItems predictions = loadPredictions();
+        assertTrue(predictions.containsRepeat(1));
+        assertTrue(predictions.containsRepeat(2));
+        assertFalse(predictions.containsRepeat(0));
+        assertFalse(predictions.containsRepeat(3));
+        assertEquals(2, predictions.getNumberOfSplitsForRepeat(1));
+        assertEquals(-1, predictions.getNumberOfSplitsForRepeat(3));
+        assertEquals(2, predictions.splitIdsForRepeat(2).size());
+
+        assertArrayEquals(new String[] {"sample-2", "sample-4", "sample-6"},
+                predictions.getSampleIDsForRepeat(1).toArray(new String[3]));
+        assertArrayEquals(new double[] {0.2, 0.4, 0.6},
+                predictions.getDecisionsForRepeat(1).toDoubleArray(), 1E-6);
+        assertArrayEquals(new double[] {0, 0, 0},
+                predictions.getTrueLabelsForRepeat(1).toDoubleArray(), 0);
+        assertEquals(4, predictions.getSampleIDsForRepeat(2).size());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import com.martiansoftware.jsap.JSAP;
+import com.martiansoftware.jsap.JSAPException;
+import com.martiansoftware.jsap.JSAPResult;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Validates the request protocol of {@link ServeMode} on standard input.
+ */
+public class TestServeMode {
+    private static final String MODEL_NAME =
+            "libSVM_Cologne_EFS_MO-baseline-global-svm-weights-final-model-LDPSS";
+
+    /**
+     * Size of the extra file written next to each model copy, so that two models fit in the
+     * one megabyte model memory budget, but not three.
+     */
+    private static final int MODEL_PADDING = 400 * 1024;
+
+    /**
+     * Validates that models are loaded, used to score and predict samples, and unloaded, and
+     * that the least recently used model is released when the model memory budget is exceeded.
+     * @throws IOException if the models or dataset cannot be written
+     * @throws JSAPException if the command line of the mode cannot be parsed
+     */
+    @Test
+    public void testRequests() throws IOException, JSAPException {
+        final File outputDirectory = new File("test-results/serve-mode");
+        FileUtils.deleteDirectory(outputDirectory);
+        final String modelA = copyModel(outputDirectory, "a");
+        final String modelB = copyModel(outputDirectory, "b");
+        final String modelC = copyModel(outputDirectory, "c");
+
+        final ServeMode serveMode = new ServeMode();
+        final DAVOptions options = new DAVOptions();
+        final JSAP jsap = new JSAP();
+        new DAVMode().defineOptions(jsap);
+        serveMode.defineOptions(jsap);
+        final JSAPResult result = jsap.parse(new String[] {
+                "--platform-filenames", "dummy", "--max-model-memory", "1"});
+        serveMode.interpretArguments(jsap, result, options);
+
+        List<List<String>> responses = serve(serveMode, options,
+                "load\t" + modelA,
+                "features\t" + modelA);
+        assertEquals("OK\t" + MODEL_NAME, responses.get(0).get(0));
+        final String[] featureIds = responses.get(1).get(0).split("\t");
+        assertEquals("Number of features is incorrect", 10, featureIds.length);
+
+        // score one sample and predict a dataset that holds the same sample:
+        final double[][] values = new double[2][featureIds.length];
+        final StringBuilder scoreRequest = new StringBuilder("score\t" + modelA + "\tsample_0");
+        for (int featureIndex = 0; featureIndex < featureIds.length; featureIndex++) {
+            values[0][featureIndex] = 1 + 0.25 * featureIndex;
+            values[1][featureIndex] = 4 - 0.5 * featureIndex;
+            scoreRequest.append('\t').append(values[0][featureIndex]);
+        }
+        final File dataset = new File(outputDirectory, "dataset.tmm");
+        writeDataset(dataset, featureIds, values);
+
+        responses = serve(serveMode, options,
+                scoreRequest.toString(),
+                "predict\t" + modelA + "\t" + dataset.getPath(),
+                "load\t" + modelB,
+                "load\t" + modelA,
+                "score\t" + modelA + "\tsample_0\t1");
+        assertEquals("score must return one prediction", 1, responses.get(0).size());
+        final String[] scored = responses.get(0).get(0).split("\t");
+        assertEquals("sample_0", scored[5]);
+        assertEquals("predict must return one prediction per sample", 2, responses.get(1).size());
+        final String[] predicted = responses.get(1).get(0).split("\t");
+        assertEquals("sample_0", predicted[5]);
+        assertEquals("score and predict must agree on the decision", scored[6], predicted[6]);
+        assertEquals("sample_1", responses.get(1).get(1).split("\t")[5]);
+        assertEquals("OK\t" + MODEL_NAME, responses.get(2).get(0));
+        assertEquals("OK\t" + MODEL_NAME, responses.get(3).get(0));
+        assertTrue("Wrong number of values must be reported as an error",
+                responses.get(4).get(0).startsWith("ERROR\t"));
+
+        // models that are still loaded no longer need their files:
+        deleteModel(modelA);
+        deleteModel(modelB);
+        responses = serve(serveMode, options,
+                "load\t" + modelC,
+                "load\t" + modelA,
+                "load\t" + modelB,
+                "unload\t" + modelA,
+                "load\t" + modelA);
+        assertEquals("OK\t" + MODEL_NAME, responses.get(0).get(0));
+        assertEquals("The most recently used model must stay loaded",
+                "OK\t" + MODEL_NAME, responses.get(1).get(0));
+        assertTrue("The least recently used model must be released",
+                responses.get(2).get(0).startsWith("ERROR\t"));
+        assertEquals("unload has no response", 0, responses.get(3).size());
+        assertTrue("An unloaded model must be loaded again",
+                responses.get(4).get(0).startsWith("ERROR\t"));
+    }
+
+    /**
+     * Send requests on standard input and collect the response to each request.
+     */
+    private List<List<String>> serve(final ServeMode serveMode, final DAVOptions options,
+                                     final String... requests) {
+        final InputStream stdin = System.in;
+        final PrintStream stdout = System.out;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        System.setIn(new ByteArrayInputStream(
+                (StringUtils.join(requests, '\n') + '\n').getBytes()));
+        System.setOut(new PrintStream(output, true));
+        try {
+            serveMode.process(options);
+        } finally {
+            System.setIn(stdin);
+            System.setOut(stdout);
+        }
+
+        final List<List<String>> responses = new ArrayList<List<String>>();
+        List<String> response = new ArrayList<String>();
+        for (final String line : output.toString().split("\n")) {
+            if ("END".equals(line)) {
+                responses.add(response);
+                response = new ArrayList<String>();
+            } else {
+                response.add(line);
+            }
+        }
+        assertEquals("Each request must be answered", requests.length, responses.size());
+        return responses;
+    }
+
+    /**
+     * Copy the test model to its own directory, next to a file that makes its estimated
+     * size large.
+     */
+    private String copyModel(final File outputDirectory, final String name) throws IOException {
+        final File directory = new File(outputDirectory, name);
+        FileUtils.copyFileToDirectory(
+                new File("test-data/models/properties/" + MODEL_NAME + ".zip"), directory);
+        FileUtils.writeByteArrayToFile(new File(directory, MODEL_NAME + ".padding"),
+                new byte[MODEL_PADDING]);
+        return new File(directory, MODEL_NAME).getPath();
+    }
+
+    private void deleteModel(final String modelPrefix) {
+        assertTrue(new File(modelPrefix + ".zip").delete());
+    }
+
+    private void writeDataset(final File dataset, final String[] featureIds,
+                              final double[][] values) throws IOException {
+        final StringBuilder content = new StringBuilder("ID_REF");
+        for (int sampleIndex = 0; sampleIndex < values.length; sampleIndex++) {
+            content.append("\tsample_").append(sampleIndex);
+        }
+        content.append('\n');
+        for (int featureIndex = 0; featureIndex < featureIds.length; featureIndex++) {
+            content.append(featureIds[featureIndex]);
+            for (final double[] sampleValues : values) {
+                content.append('\t').append(sampleValues[featureIndex]);
+            }
+            content.append('\n');
+        }
+        FileUtils.writeStringToFile(dataset, content.toString());
+    }
+}
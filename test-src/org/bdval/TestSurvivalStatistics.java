@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import org.apache.commons.math.MathException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Check {@link CoxProportionalHazards} and {@link LogRankTest} against the values R reports
+ * for the aml data set of the survival package.
+ */
+public class TestSurvivalStatistics {
+    private static final double[] TIME = {
+            9, 13, 13, 18, 23, 28, 31, 34, 45, 48, 161,
+            5, 5, 8, 8, 12, 16, 23, 27, 30, 33, 43, 45,
+    };
+    private static final double[] CENSOR = {
+            1, 1, 0, 1, 1, 0, 1, 1, 0, 1, 0,
+            1, 1, 1, 1, 1, 0, 1, 1, 1, 1, 1, 1,
+    };
+    // 0 = maintained, 1 = nonmaintained
+    private static final double[] GROUP = {
+            0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+    };
+
+    /**
+     * coxph(Surv(time, status) ~ x, data=aml)
+     */
+    @Test
+    public void testCoxRegression() throws MathException {
+        final CoxProportionalHazards cox =
+                new CoxProportionalHazards(TIME, CENSOR, new double[][] {GROUP});
+        assertEquals(0.9155, cox.getCoefficients()[0], 1E-4);
+        assertEquals(2.498, cox.getHazardRatios()[0], 1E-3);
+        assertEquals(0.5119, cox.getStandardErrors()[0], 1E-4);
+        assertEquals(0.0737, cox.getPValues()[0], 1E-4);
+        final double[][] interval = cox.getConfidenceIntervals(0.05);
+        assertEquals(0.916, interval[0][0], 1E-3);
+        assertEquals(6.81, interval[0][1], 1E-2);
+        // likelihood ratio test statistic of 3.38
+        assertEquals(3.38, 2 * (cox.getLogLikelihood() - cox.getNullLogLikelihood()), 1E-2);
+        assertEquals(0.137, cox.getRSquare(), 1E-3);
+    }
+
+    /**
+     * The fit does not depend on the coding of the covariate or on the order of the samples.
+     */
+    @Test
+    public void testInvariance() {
+        final int n = TIME.length;
+        final double[] time = new double[n];
+        final double[] censor = new double[n];
+        final double[] covariate = new double[n];
+        for (int i = 0; i < n; i++) {
+            time[i] = TIME[n - 1 - i];
+            censor[i] = CENSOR[n - 1 - i];
+            covariate[i] = 10 - 2 * GROUP[n - 1 - i];
+        }
+        final CoxProportionalHazards reference =
+                new CoxProportionalHazards(TIME, CENSOR, new double[][] {GROUP});
+        final CoxProportionalHazards cox =
+                new CoxProportionalHazards(time, censor, new double[][] {covariate});
+        assertEquals(-reference.getCoefficients()[0] / 2, cox.getCoefficients()[0], 1E-8);
+        assertEquals(reference.getRSquare(), cox.getRSquare(), 1E-10);
+        assertTrue(cox.getIterations() < 10);
+    }
+
+    /**
+     * survdiff(Surv(time, status) ~ x, data=aml)
+     */
+    @Test
+    public void testLogRank() throws MathException {
+        assertEquals(3.4, LogRankTest.chiSquare(TIME, CENSOR, GROUP), 0.05);
+        assertEquals(0.0653, LogRankTest.pValue(TIME, CENSOR, GROUP), 1E-4);
+        final double[] sameGroup = new double[TIME.length];
+        assertTrue(Double.isNaN(LogRankTest.pValue(TIME, CENSOR, sameGroup)));
+    }
+}
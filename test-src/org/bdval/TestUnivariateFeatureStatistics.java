@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import it.unimi.dsi.law.stat.KendallTau;
+import org.apache.commons.math.MathException;
+import org.apache.commons.math.stat.inference.TTestImpl;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Check that {@link UnivariateFeatureStatistics} agrees with the per-feature computations
+ * the Discover* modes used to perform.
+ */
+public class TestUnivariateFeatureStatistics {
+    private static final int NUMBER_OF_SAMPLES = 23;
+    private static final int NUMBER_OF_FEATURES = 40;
+
+    private final String[] labels = new String[NUMBER_OF_SAMPLES];
+    private final double[][] features = new double[NUMBER_OF_FEATURES][NUMBER_OF_SAMPLES];
+
+    private List<Set<String>> createLabelValueGroups() {
+        final List<Set<String>> labelValueGroups = new ArrayList<Set<String>>();
+        labelValueGroups.add(new HashSet<String>(Arrays.asList("normal")));
+        labelValueGroups.add(new HashSet<String>(Arrays.asList("tumor", "metastasis")));
+        return labelValueGroups;
+    }
+
+    private Table createTable() throws TypeMismatchException {
+        final Random random = new Random(1234);
+        final String[] classes = {"normal", "tumor", "metastasis"};
+        for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+            labels[i] = classes[i % classes.length];
+        }
+        for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+            for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+                final double shift = labels[i].equals("normal") ? 0 : f / 10.0;
+                // even features are rounded to produce ties:
+                final double value = random.nextGaussian() + shift;
+                features[f][i] = f % 2 == 0 ? Math.round(value) : value;
+            }
+        }
+        final ArrayTable table = new ArrayTable();
+        final int labelColumn = table.addColumn("label", String.class);
+        for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+            table.appendObject(labelColumn, labels[i]);
+        }
+        for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+            final int column = table.addColumn("probe-" + f, double.class);
+            for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+                table.appendDoubleValue(column, features[f][i]);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Check T-Test p-values and class means against commons-math.
+     */
+    @Test
+    public void testTTest() throws TypeMismatchException, MathException {
+        final UnivariateFeatureStatistics statistics =
+                new UnivariateFeatureStatistics(createTable(), createLabelValueGroups());
+        statistics.setNumberOfThreads(3);
+        statistics.compute(false);
+        final double[] pValues = statistics.tTestPValues();
+        assertEquals(NUMBER_OF_FEATURES, pValues.length);
+        assertEquals(8, statistics.getClassCount(0));
+        assertEquals(15, statistics.getClassCount(1));
+
+        final TTestImpl tester = new TTestImpl();
+        for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+            final double[] negative = new double[8];
+            final double[] positive = new double[15];
+            int n = 0;
+            int p = 0;
+            for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+                if (labels[i].equals("normal")) {
+                    negative[n++] = features[f][i];
+                } else {
+                    positive[p++] = features[f][i];
+                }
+            }
+            assertEquals(tester.tTest(positive, negative), pValues[f], 1E-12);
+            assertEquals(mean(negative), statistics.getMean(0, f), 1E-12);
+            assertEquals(mean(positive), statistics.getMean(1, f), 1E-12);
+        }
+    }
+
+    /**
+     * Check that T-Test p-values do not depend on the number of threads.
+     */
+    @Test
+    public void testParallelTTest() throws TypeMismatchException {
+        final Table table = createTable();
+        final UnivariateFeatureStatistics sequential =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        sequential.compute(false);
+        final UnivariateFeatureStatistics parallel =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        parallel.setNumberOfThreads(4);
+        parallel.compute(false);
+        assertArrayEquals(sequential.tTestPValues(), parallel.tTestPValues(), 0);
+    }
+
+    /**
+     * Check that statistics computed one after the other do not each start new threads.
+     */
+    @Test
+    public void testThreadsAreReused() throws TypeMismatchException {
+        final Table table = createTable();
+        final UnivariateFeatureStatistics warmUp =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        warmUp.setNumberOfThreads(4);
+        warmUp.compute(false);
+        final int activeThreads = Thread.activeCount();
+        for (int i = 0; i < 200; i++) {
+            final UnivariateFeatureStatistics statistics =
+                    new UnivariateFeatureStatistics(table, createLabelValueGroups());
+            statistics.setNumberOfThreads(i % 2 == 0 ? 1 : 4);
+            statistics.compute(false);
+            statistics.tTestPValues();
+        }
+        assertTrue("Threads were started for each computation",
+                Thread.activeCount() < activeThreads + 10);
+    }
+
+    /**
+     * Check Kendall tau (including ties) against the law implementation.
+     */
+    @Test
+    public void testKendallTau() throws TypeMismatchException {
+        final UnivariateFeatureStatistics statistics =
+                new UnivariateFeatureStatistics(createTable(), createLabelValueGroups());
+        statistics.setNumberOfThreads(2);
+        statistics.compute(true);
+
+        final double[] numericLabels = new double[NUMBER_OF_SAMPLES];
+        for (int i = 0; i < NUMBER_OF_SAMPLES; i++) {
+            numericLabels[i] = labels[i].equals("normal") ? 0 : 1;
+        }
+        for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+            final double expected = KendallTau.compute(features[f].clone(), numericLabels.clone());
+            assertEquals("feature " + f, expected, statistics.getKendallTau(f), 1E-12);
+        }
+        // the class shift grows with the feature index:
+        assertTrue(statistics.getKendallTau(NUMBER_OF_FEATURES - 1) > 0.3);
+    }
+
+    /**
+     * Check that T-Test p-values are NaN when a class has less than two samples.
+     */
+    @Test
+    public void testTooFewSamples() throws TypeMismatchException {
+        final List<Set<String>> labelValueGroups = new ArrayList<Set<String>>();
+        labelValueGroups.add(new HashSet<String>(Arrays.asList("normal", "tumor")));
+        labelValueGroups.add(new HashSet<String>(Arrays.asList("no-such-label")));
+        final UnivariateFeatureStatistics statistics =
+                new UnivariateFeatureStatistics(createTable(), labelValueGroups);
+        statistics.compute(false);
+        final double[] pValues = statistics.tTestPValues();
+        for (final double pValue : pValues) {
+            assertTrue(Double.isNaN(pValue));
+        }
+    }
+
+    /**
+     * Check that stopping permutations early does not change which features are significant.
+     */
+    @Test
+    public void testPermutationPValues() throws TypeMismatchException {
+        final UnivariateFeatureStatistics statistics =
+                new UnivariateFeatureStatistics(createTable(), createLabelValueGroups());
+        final double[] allPermutations = statistics.permutationPValues(500, new Random(7), 1);
+        final double[] earlyStop = statistics.permutationPValues(500, new Random(7), 0.05);
+        for (int f = 0; f < NUMBER_OF_FEATURES; f++) {
+            if (allPermutations[f] <= 0.05) {
+                assertEquals("feature " + f, allPermutations[f], earlyStop[f], 0);
+            } else {
+                assertTrue("feature " + f, earlyStop[f] > 0.05);
+            }
+        }
+        // the last features separate the classes:
+        assertEquals(0, allPermutations[NUMBER_OF_FEATURES - 1], 0);
+        assertTrue(allPermutations[1] > 0.05);
+    }
+
+    /**
+     * Check that permutation p-values do not depend on the number of threads.
+     */
+    @Test
+    public void testParallelPermutationPValues() throws TypeMismatchException {
+        final Table table = createTable();
+        final UnivariateFeatureStatistics sequential =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        final UnivariateFeatureStatistics parallel =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        parallel.setNumberOfThreads(4);
+        assertArrayEquals(sequential.permutationPValues(500, new Random(7), 1),
+                parallel.permutationPValues(500, new Random(7), 1), 0);
+    }
+
+    /**
+     * Check that permutation tests of successive tasks and gene lists do not each start new
+     * threads.
+     */
+    @Test
+    public void testPermutationThreadsAreReused() throws TypeMismatchException {
+        final Table table = createTable();
+        final UnivariateFeatureStatistics warmUp =
+                new UnivariateFeatureStatistics(table, createLabelValueGroups());
+        warmUp.setNumberOfThreads(4);
+        warmUp.permutationPValues(10, new Random(7), 1);
+        final int activeThreads = Thread.activeCount();
+        for (int i = 0; i < 200; i++) {
+            final UnivariateFeatureStatistics statistics =
+                    new UnivariateFeatureStatistics(table, createLabelValueGroups());
+            statistics.setNumberOfThreads(4);
+            statistics.permutationPValues(10, new Random(i), 1);
+        }
+        assertTrue("Threads were started for each permutation test",
+                Thread.activeCount() < activeThreads + 10);
+    }
+
+    private double mean(final double[] values) {
+        double sum = 0;
+        for (final double value : values) {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+}
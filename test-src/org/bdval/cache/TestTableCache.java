@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.cache;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Test writing and reading tables with the {@link TableCache}.
+ */
+public class TestTableCache {
+    private TableCache createCache() throws IOException {
+        final File cacheDir = new File("test-results/table-cache");
+        FileUtils.forceMkdir(cacheDir);
+        return new TableCache(cacheDir);
+    }
+
+    private Table createTable() throws TypeMismatchException {
+        final ArrayTable table = new ArrayTable();
+        final int idColumn = table.addColumn("ID_REF", String.class);
+        final int firstColumn = table.addColumn("probe-1", double.class);
+        final int secondColumn = table.addColumn("probe-2", double.class);
+        for (int i = 0; i < 5; i++) {
+            table.appendObject(idColumn, "sample-" + i);
+            table.appendDoubleValue(firstColumn, i * 1.5);
+            table.appendDoubleValue(secondColumn, -i / 3.0);
+        }
+        return table;
+    }
+
+    /**
+     * Check that a table saved to the cache is read back identical.
+     */
+    @Test
+    public void testWriteReadBack() throws IOException, InvalidColumnException,
+            TypeMismatchException {
+        final TableCache cache = createCache();
+        final Table table = createTable();
+        cache.clearFromCache(1, "training", "write-read-back");
+        cache.saveTableToCache(1, "training", "write-read-back", table);
+        assertTrue(cache.isTableCached(1, "training", "write-read-back"));
+
+        final Table cached = cache.getCachedTable(1, "training", "write-read-back");
+        assertNotNull(cached);
+        assertEquals(3, cached.getColumnNumber());
+        assertEquals(5, cached.getRowNumber());
+        assertArrayEquals(table.getStrings("ID_REF"), cached.getStrings("ID_REF"));
+        assertArrayEquals(table.getDoubles("probe-1"), cached.getDoubles("probe-1"), 0);
+        assertArrayEquals(table.getDoubles("probe-2"), cached.getDoubles("probe-2"), 0);
+    }
+
+    /**
+     * Check that the column ids are obtained from the header of a cached table.
+     */
+    @Test
+    public void testColumnIds() throws IOException, TypeMismatchException {
+        final TableCache cache = createCache();
+        cache.saveTableToCache(2, "training", "column-ids", createTable());
+
+        final ObjectSet<CharSequence> columnIds =
+                cache.getTableColumnIds(2, "training", "column-ids");
+        assertNotNull(columnIds);
+        assertEquals(3, columnIds.size());
+        assertTrue(columnIds.contains("ID_REF"));
+        assertTrue(columnIds.contains("probe-1"));
+        assertTrue(columnIds.contains("probe-2"));
+    }
+
+    /**
+     * Check that tables are served from memory when the memory tier has a budget, and
+     * that least recently used tables are evicted.
+     */
+    @Test
+    public void testMemoryTier() throws IOException, InvalidColumnException,
+            TypeMismatchException {
+        final TableMemoryCache memoryCache = TableMemoryCache.getInstance();
+        final Table table = createTable();
+        memoryCache.clear();
+        memoryCache.setBudget(TableMemoryCache.estimateSize(table));
+        try {
+            final TableCache cache = createCache();
+            cache.saveTableToCache(3, "training", "memory-tier", table);
+            cache.saveTableToCache(4, "training", "memory-tier", table);
+
+            final long hits = memoryCache.getHits();
+            final long evictions = memoryCache.getEvictions();
+            final Table first = cache.getCachedTable(3, "training", "memory-tier");
+            final Table second = cache.getCachedTable(3, "training", "memory-tier");
+            assertEquals(hits + 1, memoryCache.getHits());
+            assertNotSame(first, second);
+            assertArrayEquals(table.getDoubles("probe-1"), second.getDoubles("probe-1"), 0);
+
+            // only one table fits in the budget:
+            cache.getCachedTable(4, "training", "memory-tier");
+            assertEquals(evictions + 1, memoryCache.getEvictions());
+            assertEquals(1, memoryCache.getNumberOfTables());
+        } finally {
+            memoryCache.setBudget(0);
+            memoryCache.clear();
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.modelconditions;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Check that series processed concurrently are written in the order of the model conditions.
+ */
+public class TestProcessModelConditionsMode {
+    @Test
+    public void testSeriesOrder() {
+        final ProcessModelConditionsOptions options = new ProcessModelConditionsOptions();
+        options.modelConditions = new Object2ObjectLinkedOpenHashMap<String, Map<String, String>>();
+        final List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 40; i++) {
+            // series are interleaved in the model conditions file
+            final String seriesId = "series-" + (19 - i % 20);
+            final Map<String, String> conditions = new Object2ObjectLinkedOpenHashMap<String, String>();
+            conditions.put("model-id", "model-" + i);
+            conditions.put("id-parameter-scan-series", seriesId);
+            options.modelConditions.put("model-" + i, conditions);
+        }
+        for (int i = 0; i < 20; i++) {
+            expected.add("series-" + (19 - i) + ": [model-" + i + ", model-" + (i + 20) + "]");
+        }
+        // a model without series is skipped:
+        options.modelConditions.put("model-x", new Object2ObjectLinkedOpenHashMap<String, String>());
+        options.seriesThreads = 4;
+
+        final List<String> written = new ArrayList<String>();
+        final ProcessModelConditionsMode mode = new ProcessModelConditionsMode() {
+            @Override
+            public SeriesResults processSeries(final ProcessModelConditionsOptions options,
+                                               final String seriesId, final List<String> modelIds) {
+                try {
+                    // later series finish first
+                    Thread.sleep(Integer.parseInt(seriesId.substring(7)));
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return new SeriesResults() {
+                    public void write() {
+                        written.add(seriesId + ": " + modelIds);
+                    }
+                };
+            }
+        };
+        mode.process(options);
+        assertEquals(expected, written);
+    }
+}
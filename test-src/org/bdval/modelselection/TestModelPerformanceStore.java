@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.modelselection;
+
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Check that {@link ModelPerformanceStore} indexes a result file by dataset and endpoint,
+ * and that the store written to disk reads back the same values.
+ */
+public class TestModelPerformanceStore {
+    private static final String[][] MODELS = {
+            // dataset, endpoint, model id
+            {"HamnerWithControl", "A", "model-1"},
+            {"Iconix", "B", "model-2"},
+            {"HamnerWithControl", "A", "model-3"},
+            {"HamnerWithControl", "C", "model-4"},
+    };
+
+    private File writeResults(final String name, final int numberOfColumns) throws IOException {
+        final File directory = new File("test-results/model-performance-store");
+        FileUtils.forceMkdir(directory);
+        final File file = new File(directory, name);
+        final PrintWriter writer = new PrintWriter(file);
+        try {
+            writer.println("OrganizationCode\tDatasetCode\tEndpointCode\tExcel");
+            for (int i = 0; i < MODELS.length; i++) {
+                final StringBuilder line = new StringBuilder();
+                line.append("Cornell\t").append(MODELS[i][0]).append('\t')
+                        .append(MODELS[i][1]).append("\tyes");
+                // mcc, accuracy, sens, spec, auc, rmse and their standard deviations:
+                for (int metric = 0; metric < 12; metric++) {
+                    line.append('\t').append(i + metric / 100.0);
+                }
+                line.append("\tx\tx\t").append(10 * i);
+                line.append("\tx\tx\tx\tx\t").append(MODELS[i][2]);
+                for (int column = 24; column < numberOfColumns; column++) {
+                    line.append('\t').append(column == 27 ? "0.5" : "x");
+                }
+                writer.println(line);
+            }
+        } finally {
+            writer.close();
+        }
+        FileUtils.deleteQuietly(ModelPerformanceStore.getStoreFile(file));
+        return file;
+    }
+
+    @Test
+    public void testIndex() throws IOException {
+        final File file = writeResults("cv.txt", 29);
+        final ModelPerformanceStore store = ModelPerformanceStore.load(file.getPath());
+        assertEquals(4, store.size());
+        assertEquals(2, store.datasetDictionary.length);
+        assertEquals(3, store.endpointDictionary.length);
+        assertArrayEquals(new int[] {0, 2}, store.rows("HamnerWithControl", "A"));
+        assertArrayEquals(new int[] {3}, store.rows("HamnerWithControl", "C"));
+        assertEquals(0, store.rows("Iconix", "A").length);
+        assertEquals("model-3", store.getModelId(2));
+        assertEquals("Iconix", store.getDataset(1));
+        assertEquals("B", store.getEndpoint(1));
+        assertEquals("yes", store.getExcel(1));
+        assertEquals(2, store.mcc[2], 0);
+        assertEquals(2.04, store.auc[2], 1E-10);
+        assertEquals(3.11, store.rmseStd[3], 1E-10);
+        assertEquals(30, store.actualNumberOfFeaturesInModel[3]);
+        assertEquals(0.5, store.bias[0], 0);
+    }
+
+    @Test
+    public void testNoBias() throws IOException {
+        final File file = writeResults("cvcf.txt", 28);
+        final ModelPerformanceStore store = ModelPerformanceStore.load(file.getPath());
+        assertEquals(4, store.size());
+        assertTrue(Double.isNaN(store.bias[0]));
+    }
+
+    @Test
+    public void testStoreFile() throws IOException {
+        final File file = writeResults("test.txt", 29);
+        final File storeFile = ModelPerformanceStore.getStoreFile(file);
+        final ModelPerformanceStore parsed = ModelPerformanceStore.load(file.getPath());
+        assertTrue(storeFile.exists());
+
+        final ModelPerformanceStore read = ModelPerformanceStore.read(storeFile, file);
+        assertNotNull(read);
+        assertArrayEquals(parsed.modelIdDictionary, read.modelIdDictionary);
+        assertArrayEquals(parsed.modelId, read.modelId);
+        assertArrayEquals(parsed.actualNumberOfFeaturesInModel, read.actualNumberOfFeaturesInModel);
+        assertArrayEquals(parsed.auc, read.auc, 0);
+        assertArrayEquals(parsed.bias, read.bias, 0);
+        assertArrayEquals(parsed.rows("HamnerWithControl", "A"), read.rows("HamnerWithControl", "A"));
+
+        // a store is out of date once the result file changes:
+        assertTrue(file.setLastModified(file.lastModified() - 10000));
+        assertNull(ModelPerformanceStore.read(storeFile, file));
+        assertEquals(4, ModelPerformanceStore.load(file.getPath()).size());
+        assertNotNull(ModelPerformanceStore.read(storeFile, file));
+    }
+}
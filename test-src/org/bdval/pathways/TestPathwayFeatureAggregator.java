@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.pathways;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectArraySet;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import it.unimi.dsi.lang.MutableString;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Test aggregation of pathway features.
+ */
+public class TestPathwayFeatureAggregator {
+    private static final int NUM_PROBESETS = 12;
+    private static final int NUM_SAMPLES = 5;
+
+    private Table createSource() throws TypeMismatchException {
+        final ArrayTable table = new ArrayTable();
+        final int idColumn = table.addColumn("ID_REF", String.class);
+        for (int sample = 0; sample < NUM_SAMPLES; sample++) {
+            table.appendObject(idColumn, "sample-" + sample);
+        }
+        for (int probeset = 0; probeset < NUM_PROBESETS; probeset++) {
+            final int column = table.addColumn("probe-" + probeset, double.class);
+            for (int sample = 0; sample < NUM_SAMPLES; sample++) {
+                table.appendDoubleValue(column, probeset * 10 + sample);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Pathway i contains probesets i and i + 1. The last probeset is in no pathway.
+     */
+    private ObjectSet<PathwayInfo> createPathways() {
+        final ObjectSet<PathwayInfo> pathways = new ObjectArraySet<PathwayInfo>();
+        for (int i = 0; i < NUM_PROBESETS - 2; i++) {
+            final PathwayInfo pi = new PathwayInfo();
+            pi.pathwayId = new MutableString("pathway-" + i);
+            pi.pathwayIndex = i;
+            pi.probesetIndices = new IntArrayList(new int[] {i, i + 1});
+            pathways.add(pi);
+        }
+        return pathways;
+    }
+
+    /**
+     * Check that pathways aggregated by several threads produce the same table as
+     * pathways aggregated sequentially.
+     */
+    @Test
+    public void testParallelAggregation() throws TypeMismatchException, InvalidColumnException {
+        final Table source = createSource();
+        final ObjectSet<PathwayInfo> pathways = createPathways();
+
+        final PathwayFeatureAggregator sequential = new AverageAcrossPathwayFeatureAggregator();
+        final Table expected =
+                sequential.aggregateFeaturesForPathways(pathways, source, "dataset", "training", 1);
+
+        final PathwayFeatureAggregator parallel = new AverageAcrossPathwayFeatureAggregator();
+        parallel.setNumberOfThreads(4);
+        final Table aggregated =
+                parallel.aggregateFeaturesForPathways(pathways, source, "dataset", "training", 1);
+
+        // ID_REF, one average per pathway and the probeset that is in no pathway:
+        assertEquals(1 + (NUM_PROBESETS - 2) + 1, expected.getColumnNumber());
+        assertEquals(expected.getColumnNumber(), aggregated.getColumnNumber());
+        assertEquals("pathway-0_average", expected.getIdentifier(1));
+        assertArrayEquals(new double[] {5, 6, 7, 8, 9}, expected.getDoubles("pathway-0_average"), 0);
+        for (int column = 1; column < expected.getColumnNumber(); column++) {
+            final String columnId = expected.getIdentifier(column);
+            assertEquals(columnId, aggregated.getIdentifier(column));
+            assertArrayEquals(expected.getDoubles(columnId), aggregated.getDoubles(columnId), 0);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.signalquality;
+
+import it.unimi.dsi.util.Properties;
+import org.apache.commons.io.FileUtils;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Check that blocks written concurrently are written in sequence order by the writer thread.
+ */
+public class TestBaseSignalQualityCalculator {
+    @Test
+    public void testOrderedOutput() throws IOException, InterruptedException {
+        final File directory = new File("test-results/signal-quality");
+        FileUtils.forceMkdir(directory);
+        final File output = new File(directory, "ordered-output.tsv");
+        final Properties config = new Properties();
+        config.addProperty("output", output.getPath());
+        final BaseSignalQualityCalculator calculator = new BaseSignalQualityCalculator();
+        calculator.configure(config,
+                BaseSignalQualityCalculator.OutputFileHeader.SIGNAL_QUALITIES, false, 1);
+        calculator.startOrderedOutput();
+
+        final int numberOfBlocks = 20;
+        final int numberOfThreads = 4;
+        final List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < numberOfThreads; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    // each thread completes its blocks from the last to the first
+                    for (int block = numberOfBlocks - numberOfThreads + thread; block >= 0;
+                         block -= numberOfThreads) {
+                        calculator.beginBlock(block);
+                        calculator.setClassMapComment("## comment " + (block / 10));
+                        calculator.writeData("model-" + block + "\tline-1");
+                        calculator.writeData("model-" + block + "\tline-2");
+                        calculator.endBlock();
+                    }
+                }
+            });
+        }
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        calculator.close();
+
+        final List<String> expected = new ArrayList<String>();
+        for (int block = 0; block < numberOfBlocks; block++) {
+            if (block % 10 == 0) {
+                // the comment is only written when it changes
+                expected.add("## comment " + (block / 10));
+            }
+            expected.add("model-" + block + "\tline-1");
+            expected.add("model-" + block + "\tline-2");
+        }
+        final List<String> lines = FileUtils.readLines(output);
+        assertEquals(expected, lines.subList(1, lines.size()));
+    }
+}
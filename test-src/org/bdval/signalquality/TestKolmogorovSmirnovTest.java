@@ -22,7 +22,7 @@ import static org.junit.Assert.assertEquals;
 import org.junit.Test;
 
 /**
- * Test our R-based KolmogorovSmirnovTest.
+ * Test our KolmogorovSmirnovTest against values computed by R's ks.test.
  * @author Kevin Dorff
  */
 public class TestKolmogorovSmirnovTest {
@@ -37,4 +37,17 @@ public class TestKolmogorovSmirnovTest {
         assertEquals(0.007937, result.getPValue(), 0.000001);
         assertEquals(1.0d, result.getTestStatistic(), 0.000001);
     }
+
+    /**
+     * Ties and larger samples use the asymptotic distribution.
+     */
+    @Test
+    public void testAsymptotic() {
+        final double[] x = new double[] {0.1, 0.2, 0.2, 0.3, 0.4, 0.5};
+        final double[] y = new double[] {0.2, 0.7, 0.8, 0.9, 1.0};
+        final KolmogorovSmirnovTestResult result = KolmogorovSmirnovTest.calculate(x, y);
+        // ks.test(c(0.1, 0.2, 0.2, 0.3, 0.4, 0.5), c(0.2, 0.7, 0.8, 0.9, 1.0))
+        assertEquals(0.8, result.getTestStatistic(), 0.000001);
+        assertEquals(0.060945, result.getPValue(), 0.000001);
+    }
 }
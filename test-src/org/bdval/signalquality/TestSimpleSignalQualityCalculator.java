@@ -39,7 +39,7 @@ import java.util.List;
 import java.util.Map;
 
 /**
- * Test the SimpleSignalQualityCalculator (specifically testing the R-Scripts).
+ * Test the SimpleSignalQualityCalculator against values computed by the R scripts.
  *
  * @author Kevin Dorff
  */
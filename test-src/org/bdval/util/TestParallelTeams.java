@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import edu.rit.pj.IntegerForLoop;
+import edu.rit.pj.ParallelRegion;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Test executing loops with {@link ParallelTeams}.
+ */
+public class TestParallelTeams {
+    /**
+     * Check that a loop on a single thread runs on the calling thread.
+     */
+    @Test
+    public void testSingleThread() throws Exception {
+        final Thread caller = Thread.currentThread();
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        ParallelTeams.execute(1, 0, 9, new IntegerForLoop() {
+            @Override
+            public void run(final int first, final int last) {
+                threads.add(Thread.currentThread());
+            }
+        });
+        assertEquals(1, threads.size());
+        assertSame(caller, threads.iterator().next());
+    }
+
+    /**
+     * Check that loops executed one after the other reuse the same threads, instead of
+     * starting new threads for each loop.
+     */
+    @Test
+    public void testTeamsAreReused() throws Exception {
+        final Set<Thread> threads = Collections.synchronizedSet(new HashSet<Thread>());
+        final int[] counts = new int[100];
+        for (int i = 0; i < 200; i++) {
+            ParallelTeams.execute(2, 0, counts.length - 1, new IntegerForLoop() {
+                @Override
+                public void run(final int first, final int last) {
+                    threads.add(Thread.currentThread());
+                    for (int index = first; index <= last; index++) {
+                        counts[index]++;
+                    }
+                }
+            });
+        }
+        assertTrue("loops must run on the threads of one team, found " + threads.size(),
+                threads.size() <= 2);
+        for (final int count : counts) {
+            assertEquals(200, count);
+        }
+    }
+
+    /**
+     * Check that loops executed from the threads of another loop get their own teams, and
+     * that every index is processed once.
+     */
+    @Test(timeout = 10000)
+    public void testNestedLoops() throws Exception {
+        final AtomicIntegerArray counts = new AtomicIntegerArray(40);
+        ParallelTeams.execute(2, 0, 3, new IntegerForLoop() {
+            @Override
+            public void run(final int first, final int last) throws Exception {
+                for (int outer = first; outer <= last; outer++) {
+                    final int offset = outer * 10;
+                    ParallelTeams.execute(2, offset, offset + 9, new IntegerForLoop() {
+                        @Override
+                        public void run(final int innerFirst, final int innerLast) {
+                            for (int index = innerFirst; index <= innerLast; index++) {
+                                counts.incrementAndGet(index);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        for (int index = 0; index < counts.length(); index++) {
+            assertEquals(1, counts.get(index));
+        }
+    }
+
+    /**
+     * Check that an exception thrown by a region reaches the caller, and that teams can
+     * still be used afterwards.
+     */
+    @Test(timeout = 10000)
+    public void testException() throws Exception {
+        try {
+            ParallelTeams.execute(2, new ParallelRegion() {
+                @Override
+                public void run() {
+                    throw new IllegalStateException("region failed");
+                }
+            });
+            fail("The exception of the region must be thrown");
+        } catch (Exception e) { // NOPMD
+            // each thread of the team throws, so the exception may wrap several exceptions
+        }
+        final int[] counts = new int[10];
+        ParallelTeams.execute(2, 0, counts.length - 1, new IntegerForLoop() {
+            @Override
+            public void run(final int first, final int last) {
+                for (int index = first; index <= last; index++) {
+                    counts[index]++;
+                }
+            }
+        });
+        for (final int count : counts) {
+            assertEquals(1, count);
+        }
+    }
+}
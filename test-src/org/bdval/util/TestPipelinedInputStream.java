@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Test reading a source through a {@link PipelinedInputStream}.
+ */
+public class TestPipelinedInputStream {
+    private static byte[] data(final int length) {
+        final byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Check that the bytes of the source are read in order, whether the source is smaller or
+     * larger than a block.
+     */
+    @Test
+    public void testRead() throws IOException {
+        for (final int length : new int[] {0, 5, 64, 1000}) {
+            final byte[] data = data(length);
+            final InputStream input =
+                    new PipelinedInputStream(new ByteArrayInputStream(data), 64, 2);
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            int b;
+            while ((b = input.read()) != -1) {
+                output.write(b);
+            }
+            input.close();
+            assertArrayEquals(data, output.toByteArray());
+        }
+    }
+
+    /**
+     * Check that a runtime exception thrown by the source reaches the consumer once the
+     * blocks read before the exception have been consumed, instead of blocking it.
+     */
+    @Test(timeout = 10000)
+    public void testSourceRuntimeException() throws IOException {
+        final InputStream source = new InputStream() {
+            private int count;
+
+            @Override
+            public int read() {
+                if (count == 100) {
+                    throw new IllegalStateException("source failed");
+                }
+                return count++;
+            }
+        };
+        final InputStream input = new PipelinedInputStream(source, 10, 2);
+        int count = 0;
+        try {
+            while (input.read() != -1) {
+                count++;
+            }
+            fail("Expected the failure of the source");
+        } catch (IOException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        } finally {
+            input.close();
+        }
+        assertEquals(100, count);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2008-2010 Institute for Computational Biomedicine,
+ *                         Weill Medical College of Cornell University
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.bdval.util;
+
+import edu.mssm.crover.tables.ArrayTable;
+import edu.mssm.crover.tables.InvalidColumnException;
+import edu.mssm.crover.tables.SumOfSquaresCalculatorRowProcessor;
+import edu.mssm.crover.tables.Table;
+import edu.mssm.crover.tables.TypeMismatchException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Test reading columns and rows of a table through a {@link TableView}.
+ */
+public class TestTableView {
+    private Table createTable() throws TypeMismatchException {
+        final ArrayTable table = new ArrayTable();
+        final int idColumn = table.addColumn("ID_REF", String.class);
+        for (int column = 1; column <= 4; column++) {
+            table.addColumn("probe-" + column, double.class);
+        }
+        for (int row = 0; row < 6; row++) {
+            table.appendObject(idColumn, "sample-" + row);
+            for (int column = 1; column <= 4; column++) {
+                table.appendDoubleValue(column, row * 10 + column);
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Check a view of some of the columns of a table.
+     */
+    @Test
+    public void testColumnView() throws TypeMismatchException, InvalidColumnException {
+        final Table table = createTable();
+        final TableView view = new TableView(table, new int[] {0, 2, 4});
+        assertEquals(3, view.getColumnNumber());
+        assertEquals(6, view.getRowNumber());
+        assertEquals("probe-4", view.getIdentifier(2));
+        assertEquals(1, view.getColumnIndex("probe-2"));
+        assertFalse(view.isColumn("probe-1"));
+        assertEquals(double.class, view.getType(1));
+        assertArrayEquals(table.getDoubles("probe-4"), view.getDoubles("probe-4"), 0);
+        assertArrayEquals(table.getStrings("ID_REF"), view.getStrings("ID_REF"));
+
+        int row = 0;
+        for (final Table.RowIterator ri = view.firstRow(); !ri.end(); ri.next()) {
+            assertEquals("sample-" + row, view.getValue(0, ri));
+            assertEquals(row * 10 + 2, view.getDoubleValue(1, ri), 0);
+            row++;
+        }
+        assertEquals(6, row);
+
+        final SumOfSquaresCalculatorRowProcessor viewSum =
+                new SumOfSquaresCalculatorRowProcessor(view, "ID_REF");
+        view.processRows(viewSum);
+        final Table copy = view.copy();
+        final SumOfSquaresCalculatorRowProcessor copySum =
+                new SumOfSquaresCalculatorRowProcessor(copy, "ID_REF");
+        copy.processRows(copySum);
+        assertEquals(copySum.getSumOfSquares(), viewSum.getSumOfSquares(), 0);
+        assertArrayEquals(view.getDoubles("probe-2"), copy.getDoubles("probe-2"), 0);
+    }
+
+    /**
+     * Check a view of some of the rows of a table, and a view of a view.
+     */
+    @Test
+    public void testRowView() throws TypeMismatchException, InvalidColumnException {
+        final Table table = createTable();
+        final TableView rows = TableView.selectRows(table, new int[] {1, 3, 4});
+        assertEquals(5, rows.getColumnNumber());
+        assertEquals(3, rows.getRowNumber());
+        assertArrayEquals(new String[] {"sample-1", "sample-3", "sample-4"},
+                rows.getColumnValues(0).getStrings());
+        assertArrayEquals(new double[] {13, 33, 43}, rows.getDoubles("probe-3"), 0);
+
+        final TableView columns = new TableView(rows, new int[] {0, 1}, new int[] {2, 0});
+        assertEquals(2, columns.getRowNumber());
+        assertArrayEquals(new double[] {41, 11}, columns.getDoubles("probe-1"), 0);
+        final Table.RowIterator ri = columns.firstRow();
+        assertEquals("sample-4", columns.getValue(0, ri));
+        ri.next();
+        assertEquals(11, columns.getDoubleValue(1, ri), 0);
+        ri.next();
+        assertTrue(ri.end());
+    }
+
+    /**
+     * Check that the view cannot be modified.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws TypeMismatchException {
+        final TableView view = new TableView(createTable(), new int[] {0, 1});
+        view.appendDoubleValue(1, 2.0);
+    }
+}